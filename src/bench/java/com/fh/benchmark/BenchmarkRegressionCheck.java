@@ -0,0 +1,61 @@
+package com.fh.benchmark;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 把本次JMH结果与基线比较,变差超过容忍比例时以非0退出,供CI使用
+ * 参数: 本次结果json 基线json 容忍比例(例如0.2);没有基线时直接通过
+ */
+public class BenchmarkRegressionCheck {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || args[1].isEmpty() || !new File(args[1]).exists()) {
+            System.out.println("no benchmark baseline, skip regression check");
+            return;
+        }
+        double tolerance = args.length > 2 ? Double.parseDouble(args[2]) : 0.2;
+        Map<String, JsonNode> baseline = load(args[1]);
+        Map<String, JsonNode> current = load(args[0]);
+
+        int regressions = 0;
+        for (Map.Entry<String, JsonNode> entry : current.entrySet()) {
+            JsonNode before = baseline.get(entry.getKey());
+            if (before == null) {
+                continue;
+            }
+            double old = before.path("primaryMetric").path("score").asDouble();
+            double now = entry.getValue().path("primaryMetric").path("score").asDouble();
+            // 吞吐量模式越大越好,其余模式为耗时,越小越好
+            boolean higherIsBetter = "thrpt".equals(entry.getValue().path("mode").asText());
+            double change = higherIsBetter ? (old - now) / old : (now - old) / old;
+            String unit = entry.getValue().path("primaryMetric").path("scoreUnit").asText();
+            System.out.printf("%-70s %12.3f -> %12.3f %s (%+.1f%%)%n", entry.getKey(), old, now, unit, change * 100);
+            if (change > tolerance) {
+                regressions++;
+            }
+        }
+        if (regressions > 0) {
+            System.out.println(regressions + " benchmark(s) regressed more than " + tolerance * 100 + "%");
+            System.exit(1);
+        }
+    }
+
+    // 以 benchmark名+参数 作为key
+    private static Map<String, JsonNode> load(String file) throws IOException {
+        Map<String, JsonNode> results = new HashMap<>();
+        for (JsonNode node : new ObjectMapper().readTree(new File(file))) {
+            String key = node.path("benchmark").asText();
+            if (node.has("params")) {
+                key += node.get("params").toString();
+            }
+            results.put(key, node);
+        }
+        return results;
+    }
+}
@@ -0,0 +1,91 @@
+package com.fh.benchmark;
+
+import com.fh.entity.Person;
+import com.fh.es.PersonCodec;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * bulk请求(test07)的组装与序列化,对比XContentBuilder手写_source和PersonCodec
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BulkAssemblyBenchmark {
+
+    @Param({"100", "1000"})
+    private int actions;
+
+    private final BytesStreamOutput out = new BytesStreamOutput();
+    private Person person;
+
+    @Setup
+    public void setUp() {
+        person = new Person();
+        person.setName("朱腾跃");
+        person.setAge(23);
+        person.setAddress("江苏省镇江");
+        person.setInterests("读书,看报,写文章");
+        person.setBirth("1997-07-05");
+    }
+
+    @Benchmark
+    public BulkRequest assembleXContentBuilder() throws IOException {
+        BulkRequest bulkRequest = new BulkRequest();
+        for (int i = 0; i < actions; i++) {
+            bulkRequest.add(new IndexRequest("lib", "_doc", String.valueOf(i)).source(XContentFactory.jsonBuilder()
+                    .startObject()
+                    .field("name", person.getName())
+                    .field("age", person.getAge())
+                    .field("address", person.getAddress())
+                    .field("interests", person.getInterests())
+                    .field("birth", person.getBirth())
+                    .endObject()));
+        }
+        bulkRequest.add(new UpdateRequest("lib", "_doc", "1").doc(XContentFactory.jsonBuilder()
+                .startObject().field("address", "江苏省连云港市灌云县").endObject()));
+        return bulkRequest;
+    }
+
+    @Benchmark
+    public BulkRequest assembleCodec() throws IOException {
+        BulkRequest bulkRequest = new BulkRequest();
+        for (int i = 0; i < actions; i++) {
+            bulkRequest.add(new IndexRequest("lib", "_doc", String.valueOf(i))
+                    .source(PersonCodec.encode(person), XContentType.JSON));
+        }
+        bulkRequest.add(new UpdateRequest("lib", "_doc", "1").doc(XContentFactory.jsonBuilder()
+                .startObject().field("address", "江苏省连云港市灌云县").endObject()));
+        return bulkRequest;
+    }
+
+    // 组装并写成transport二进制,即发送前客户端的全部开销
+    @Benchmark
+    public int assembleCodecAndSerialize() throws IOException {
+        BulkRequest bulkRequest = assembleCodec();
+        out.reset();
+        bulkRequest.writeTo(out);
+        return out.size();
+    }
+}
@@ -0,0 +1,102 @@
+package com.fh.benchmark;
+
+import com.fh.config.NgramProperties;
+import com.fh.es.PersonQueryRewriter;
+import com.fh.support.NgramIndex;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 通配符、前缀查询与改写到n-gram子字段后的查询对比,在内存lucene索引上执行
+ * 子字段的分析方式与PersonMapping一致,setUp中核对两种查询命中数相同
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NgramRewriteBenchmark {
+
+    private static final String[] PROVINCES = {"江苏省", "浙江省", "广东省", "山东省", "河南省", "四川省", "湖北省", "北京市", "上海市"};
+    private static final String[] CITIES = {"宿迁市", "南京市", "杭州市", "深圳市", "济南市", "郑州市", "成都市", "武汉市", "朝阳区", "浦东新区"};
+    private static final String STREETS = "东西南北中新华人民解放建设和平文化幸福光明胜利";
+
+    @Param({"leadingWildcard", "infixWildcard", "prefix"})
+    private String pattern;
+
+    @Param({"100000"})
+    private int documents;
+
+    private NgramIndex index;
+    private QueryBuilder original;
+    private QueryBuilder rewritten;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        List<String> addresses = new ArrayList<>(documents);
+        for (int i = 0; i < documents; i++) {
+            StringBuilder address = new StringBuilder(PROVINCES[random.nextInt(PROVINCES.length)])
+                    .append(CITIES[random.nextInt(CITIES.length)]);
+            for (int j = 0; j < 2; j++) {
+                address.append(STREETS.charAt(random.nextInt(STREETS.length())));
+            }
+            addresses.add(address.append("路").append(random.nextInt(500)).append("号").toString());
+        }
+        NgramProperties properties = new NgramProperties();
+        properties.setEnabled(true);
+        properties.setFields(Collections.singletonList("address"));
+        index = new NgramIndex(properties, Collections.singletonMap("address", addresses));
+
+        switch (pattern) {
+            case "leadingWildcard":
+                original = QueryBuilders.wildcardQuery("address.keyword", "*路12号");
+                break;
+            case "infixWildcard":
+                original = QueryBuilders.wildcardQuery("address.keyword", "*宿迁*");
+                break;
+            default:
+                original = QueryBuilders.prefixQuery("address.keyword", "江苏省");
+        }
+        rewritten = new PersonQueryRewriter(properties).rewrite(original);
+        if (rewritten == original || index.count(original) != index.count(rewritten)) {
+            throw new IllegalStateException("rewrite of " + original + " is not equivalent");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        index.close();
+    }
+
+    @Benchmark
+    public int original() {
+        return index.count(original);
+    }
+
+    @Benchmark
+    public int rewritten() {
+        return index.count(rewritten);
+    }
+}
@@ -0,0 +1,93 @@
+package com.fh.benchmark;
+
+import com.fh.entity.Person;
+import com.fh.es.PersonCodec;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.data.elasticsearch.core.DefaultEntityMapper;
+import org.springframework.data.elasticsearch.core.mapping.SimpleElasticsearchMappingContext;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PersonCodec与默认jackson实体映射、XContentBuilder手写_source的对比
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PersonCodecBenchmark {
+
+    private DefaultEntityMapper defaultMapper;
+    private Person person;
+    private String source;
+    private BytesReference sourceBytes;
+
+    @Setup
+    public void setUp() {
+        defaultMapper = new DefaultEntityMapper(new SimpleElasticsearchMappingContext());
+        person = new Person();
+        person.setName("蔡俊男");
+        person.setAge(23);
+        person.setAddress("江苏省宿迁市");
+        person.setInterests("看电影,学习,打游戏");
+        person.setBirth("1997-07-05");
+        sourceBytes = PersonCodec.encode(person);
+        source = sourceBytes.utf8ToString();
+    }
+
+    @Benchmark
+    public BytesReference encodeCodec() {
+        return PersonCodec.encode(person);
+    }
+
+    @Benchmark
+    public String encodeDefaultMapper() throws IOException {
+        return defaultMapper.mapToString(person);
+    }
+
+    @Benchmark
+    public BytesReference encodeXContentBuilder() throws IOException {
+        return BytesReference.bytes(XContentFactory.jsonBuilder().startObject()
+                .field("name", person.getName())
+                .field("age", person.getAge())
+                .field("address", person.getAddress())
+                .field("interests", person.getInterests())
+                .field("birth", person.getBirth())
+                .endObject());
+    }
+
+    @Benchmark
+    public Person decodeCodecBytes() {
+        return PersonCodec.decode(sourceBytes);
+    }
+
+    @Benchmark
+    public Person decodeCodecString() {
+        return PersonCodec.decode(source);
+    }
+
+    // 命中的_source是字节,默认映射需要先转成字符串,与DefaultResultMapper的实际路径一致
+    @Benchmark
+    public Person decodeDefaultMapper() throws IOException {
+        return defaultMapper.mapToObject(sourceBytes.utf8ToString(), Person.class);
+    }
+
+    @Benchmark
+    public Person decodeDefaultMapperString() throws IOException {
+        return defaultMapper.mapToObject(source, Person.class);
+    }
+}
@@ -0,0 +1,60 @@
+package com.fh.benchmark;
+
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 组合查询(test26)的构造与transport序列化
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryBuilderBenchmark {
+
+    private final BytesStreamOutput out = new BytesStreamOutput();
+
+    @Benchmark
+    public BoolQueryBuilder build() {
+        return boolQuery();
+    }
+
+    // transport client发送前把请求写成二进制
+    @Benchmark
+    public int buildAndSerialize() throws IOException {
+        SearchRequest request = new SearchRequest("lib").source(new SearchSourceBuilder().query(boolQuery()));
+        out.reset();
+        request.writeTo(out);
+        return out.size();
+    }
+
+    // 慢查询日志等场景会把查询转成json
+    @Benchmark
+    public String buildAndRenderJson() {
+        return boolQuery().toString();
+    }
+
+    private static BoolQueryBuilder boolQuery() {
+        return QueryBuilders.boolQuery()
+                .must(QueryBuilders.matchQuery("address", "宿迁"))
+                .mustNot(QueryBuilders.matchQuery("interests", "看报"))
+                .filter(QueryBuilders.rangeQuery("age").gte(23));
+    }
+}
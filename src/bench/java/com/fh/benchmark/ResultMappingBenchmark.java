@@ -0,0 +1,92 @@
+package com.fh.benchmark;
+
+import com.fh.entity.Person;
+import com.fh.es.PersonCodec;
+import com.fh.es.PersonEntityMapper;
+import com.fh.support.StubClient;
+import org.elasticsearch.action.search.SearchAction;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.data.elasticsearch.core.DefaultEntityMapper;
+import org.springframework.data.elasticsearch.core.ElasticsearchTemplate;
+import org.springframework.data.elasticsearch.core.mapping.SimpleElasticsearchMappingContext;
+import org.springframework.data.elasticsearch.core.query.NativeSearchQuery;
+import org.springframework.data.elasticsearch.core.query.SearchQuery;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ElasticsearchTemplate.queryForList的结果映射,es由进程内替身代替,返回固定的一页结果
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResultMappingBenchmark {
+
+    @Param({"10", "100"})
+    private int hits;
+
+    private StubClient client;
+    private ElasticsearchTemplate defaultTemplate;
+    private ElasticsearchTemplate codecTemplate;
+    private SearchQuery query;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Person person = new Person();
+        person.setName("吴兴玉");
+        person.setAge(25);
+        person.setAddress("江苏省宿迁市");
+        person.setInterests("看电影,学习,打游戏");
+        person.setBirth("1995-07-05");
+        List<SearchHit> page = new ArrayList<>(hits);
+        for (int i = 0; i < hits; i++) {
+            SearchHit hit = StubClient.hit(String.valueOf(i), Collections.emptyMap());
+            hit.sourceRef(PersonCodec.encode(person));
+            page.add(hit);
+        }
+        SearchResponse response = StubClient.searchResponse(page, hits, null);
+
+        client = new StubClient().inline(true);
+        client.on(SearchAction.INSTANCE, (request, listener) -> listener.onResponse(response));
+        DefaultEntityMapper defaultMapper = new DefaultEntityMapper(new SimpleElasticsearchMappingContext());
+        defaultTemplate = new ElasticsearchTemplate(client, defaultMapper);
+        codecTemplate = new ElasticsearchTemplate(client, new PersonEntityMapper(defaultMapper));
+        query = new NativeSearchQuery(QueryBuilders.matchAllQuery());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        client.close();
+    }
+
+    @Benchmark
+    public List<Person> queryForListDefault() {
+        return defaultTemplate.queryForList(query, Person.class);
+    }
+
+    @Benchmark
+    public List<Person> queryForListCodec() {
+        return codecTemplate.queryForList(query, Person.class);
+    }
+}
@@ -0,0 +1,149 @@
+package com.fh.benchmark;
+
+import com.fh.config.AsyncProperties;
+import com.fh.config.MultiSearchProperties;
+import com.fh.config.RoutingProperties;
+import com.fh.entity.Person;
+import com.fh.es.PersonQueryRewriter;
+import com.fh.es.PersonWriteEvents;
+import com.fh.partition.PersonPartitions;
+import com.fh.repository.PersonRepository;
+import com.fh.routing.PersonLocator;
+import com.fh.routing.PersonRouting;
+import com.fh.service.PersonMultiSearch;
+import com.fh.support.StubClient;
+import org.elasticsearch.action.search.SearchAction;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.cluster.routing.Murmur3HashFunction;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 自定义routing对查询扇出的影响,es由进程内替身代替
+ * 替身按es的murmur3算法把routing映射到分片,每访问一个分片消耗固定的cpu;
+ * shardsPerSearch为平均每次查询访问的分片数,routing=false或条件没有锁定routing时等于分片数
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoutingFanOutBenchmark {
+
+    private static final String[] ADDRESSES = {"江苏省宿迁市", "北京市朝阳区", "浙江省杭州市", "广东省深圳市", "上海市浦东新区"};
+
+    @Param({"true", "false"})
+    private boolean routing;
+
+    @Param({"5", "20"})
+    private int shards;
+
+    // 每个分片的查询开销,单位为Blackhole.consumeCPU的token
+    @Param({"2000"})
+    private int shardCost;
+
+    private StubClient client;
+    private PersonRepository repository;
+    private final AtomicLong shardsQueried = new AtomicLong();
+    private final AtomicLong searches = new AtomicLong();
+    private int next;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class FanOut {
+        public double shardsPerSearch;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        SearchResponse empty = StubClient.searchResponse(Collections.emptyList(), 0, null);
+        client = new StubClient().inline(true);
+        client.on(SearchAction.INSTANCE, (request, listener) -> {
+            int touched = touched(request.routing());
+            shardsQueried.addAndGet(touched);
+            searches.incrementAndGet();
+            Blackhole.consumeCPU((long) shardCost * touched);
+            listener.onResponse(empty);
+        });
+        RoutingProperties properties = new RoutingProperties();
+        properties.setEnabled(routing);
+        // 每个查询单独发送,不设超时,只比较扇出
+        MultiSearchProperties direct = new MultiSearchProperties();
+        direct.setTimeout(Duration.ZERO);
+        AsyncProperties async = new AsyncProperties();
+        async.setMaxInFlight(Integer.MAX_VALUE);
+        PersonRouting personRouting = new PersonRouting(properties);
+        repository = new PersonRepository(client, PersonWriteEvents.of(), PersonPartitions.disabled(), personRouting,
+                new PersonLocator(client, PersonPartitions.disabled(), personRouting, properties),
+                new PersonMultiSearch(client, direct), PersonQueryRewriter.disabled(), async);
+    }
+
+    @Setup(Level.Iteration)
+    public void resetCounters() {
+        shardsQueried.set(0);
+        searches.set(0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        client.close();
+    }
+
+    // 条件锁定了address所在的地区
+    @Benchmark
+    public List<Person> pinnedQuery(FanOut fanOut) {
+        String address = ADDRESSES[next++ % ADDRESSES.length];
+        return search(QueryBuilders.boolQuery()
+                .must(QueryBuilders.matchQuery("name", "zhangsan"))
+                .filter(QueryBuilders.termQuery("address.keyword", address)), fanOut);
+    }
+
+    // 条件没有锁定routing,查全部分片
+    @Benchmark
+    public List<Person> unpinnedQuery(FanOut fanOut) {
+        return search(QueryBuilders.matchQuery("address", "江苏省"), fanOut);
+    }
+
+    private List<Person> search(QueryBuilder query, FanOut fanOut) {
+        List<Person> persons = repository.search(query, 0, 10).join();
+        fanOut.shardsPerSearch = (double) shardsQueried.get() / searches.get();
+        return persons;
+    }
+
+    // 与es的OperationRouting一致:没有routing时查全部分片,否则查每个routing对应的分片
+    private int touched(String routing) {
+        if (routing == null) {
+            return shards;
+        }
+        Set<Integer> targets = new HashSet<>();
+        for (String key : Strings.splitStringByCommaToArray(routing)) {
+            targets.add(Math.floorMod(Murmur3HashFunction.hash(key), shards));
+        }
+        return targets.size();
+    }
+}
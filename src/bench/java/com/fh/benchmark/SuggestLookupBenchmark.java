@@ -0,0 +1,92 @@
+package com.fh.benchmark;
+
+import com.fh.config.SuggestProperties;
+import com.fh.entity.Person;
+import com.fh.es.PersonIndex;
+import com.fh.es.PersonWriteEvent;
+import com.fh.suggest.PersonSuggester;
+import com.fh.suggest.Suggestion;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/**
+ * 本地联想词索引的前缀查询耗时,FST中为documents个随机的中文姓名和地址,
+ * 增量中另有deltaSize个写入的新取值,setUp中打印占用的内存
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SuggestLookupBenchmark {
+
+    private static final String SURNAMES = "王李张刘陈杨黄赵吴周徐孙马朱胡郭何高林罗";
+    private static final String GIVEN = "伟芳娜秀英敏静丽强磊军洋勇艳杰娟涛明超兰霞平刚桂";
+    private static final String[] PROVINCES = {"江苏省", "浙江省", "广东省", "山东省", "河南省", "四川省", "湖北省", "北京市", "上海市"};
+    private static final String[] CITIES = {"宿迁市", "南京市", "杭州市", "深圳市", "济南市", "郑州市", "成都市", "武汉市", "朝阳区", "浦东新区"};
+
+    @Param({"200000"})
+    private int documents;
+
+    @Param({"0", "5000"})
+    private int deltaSize;
+
+    // 命令行传中文参数容易乱码,这里只指定前缀长度
+    @Param({"1", "3"})
+    private int prefixLength;
+
+    private PersonSuggester suggester;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        SuggestProperties properties = new SuggestProperties();
+        properties.setEnabled(true);
+        properties.setMaxDelta(Integer.MAX_VALUE);
+        suggester = new PersonSuggester(properties, null, new SimpleMeterRegistry());
+        Random random = new Random(42);
+        suggester.rebuild(IntStream.range(0, documents).mapToObj(i -> person(random)));
+        for (int i = 0; i < deltaSize; i++) {
+            suggester.onWrite(PersonWriteEvent.index(PersonIndex.INDEX, String.valueOf(i), person(random)));
+        }
+        System.out.println("suggester memory: " + suggester.ramBytesUsed() + " bytes");
+    }
+
+    @Benchmark
+    public List<Suggestion> name() {
+        return suggester.suggest("name", "张伟芳".substring(0, prefixLength));
+    }
+
+    @Benchmark
+    public List<Suggestion> address() {
+        return suggester.suggest("address", "江苏省南京市".substring(0, prefixLength));
+    }
+
+    private static Person person(Random random) {
+        Person person = new Person();
+        StringBuilder name = new StringBuilder().append(SURNAMES.charAt(random.nextInt(SURNAMES.length())));
+        for (int i = 0, n = 1 + random.nextInt(2); i < n; i++) {
+            name.append(GIVEN.charAt(random.nextInt(GIVEN.length())));
+        }
+        person.setName(name.toString());
+        person.setAddress(PROVINCES[random.nextInt(PROVINCES.length)] + CITIES[random.nextInt(CITIES.length)]
+                + random.nextInt(1000) + "号");
+        return person;
+    }
+}
@@ -0,0 +1,185 @@
+package com.fh.batch;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * 把并发的单个请求攒成一批统一发送
+ * 第一个请求到达后最多等maxDelay,或攒满maxBatchSize立即发送;
+ * 开启去重时同一批内相同的key只发送一次,结果分别交给每个调用方;
+ * dispatcher应异步执行并最终完成每个Pending,不能阻塞调用线程
+ */
+@Slf4j
+public class MicroBatcher<K, V> implements Closeable {
+
+    private final int maxBatchSize;
+    private final long maxDelayNanos;
+    private final boolean deduplicate;
+    private final Consumer<List<Pending<K, V>>> dispatcher;
+    private final ScheduledExecutorService scheduler;
+
+    private final Object lock = new Object();
+    private Map<Object, Pending<K, V>> batch = new LinkedHashMap<>();
+    private ScheduledFuture<?> timer;
+    private boolean closed;
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong deduplicated = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong dispatched = new AtomicLong();
+
+    public MicroBatcher(String name, int maxBatchSize, Duration maxDelay, boolean deduplicate,
+                        Consumer<List<Pending<K, V>>> dispatcher) {
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayNanos = maxDelay.toNanos();
+        this.deduplicate = deduplicate;
+        this.dispatcher = dispatcher;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, name + "-batcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 提交一个请求,返回的future只属于本次调用,取消它不影响同一批的其他调用方
+     */
+    public CompletableFuture<V> submit(K key) {
+        submitted.incrementAndGet();
+        List<Pending<K, V>> full = null;
+        Pending<K, V> pending;
+        synchronized (lock) {
+            if (closed) {
+                CompletableFuture<V> failed = new CompletableFuture<>();
+                failed.completeExceptionally(new IllegalStateException("batcher is closed"));
+                return failed;
+            }
+            // 不去重时每个请求单独占一个位置
+            Object slot = deduplicate ? key : new Object();
+            pending = batch.get(slot);
+            if (pending != null) {
+                deduplicated.incrementAndGet();
+            } else {
+                pending = new Pending<>(key);
+                batch.put(slot, pending);
+                if (batch.size() >= maxBatchSize) {
+                    full = take();
+                } else if (batch.size() == 1) {
+                    timer = scheduler.schedule(this::flush, maxDelayNanos, TimeUnit.NANOSECONDS);
+                }
+            }
+        }
+        if (full != null) {
+            dispatch(full);
+        }
+        return pending.result.thenApply(v -> v);
+    }
+
+    // 立即发送当前攒下的请求
+    public void flush() {
+        List<Pending<K, V>> current;
+        synchronized (lock) {
+            current = take();
+        }
+        dispatch(current);
+    }
+
+    private List<Pending<K, V>> take() {
+        if (timer != null) {
+            timer.cancel(false);
+            timer = null;
+        }
+        if (batch.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Pending<K, V>> current = new ArrayList<>(batch.values());
+        batch = new LinkedHashMap<>();
+        return current;
+    }
+
+    private void dispatch(List<Pending<K, V>> current) {
+        if (current.isEmpty()) {
+            return;
+        }
+        batches.incrementAndGet();
+        dispatched.addAndGet(current.size());
+        try {
+            dispatcher.accept(current);
+        } catch (Exception e) {
+            log.warn("batch of {} failed to dispatch", current.size(), e);
+            current.forEach(pending -> pending.fail(e));
+        }
+    }
+
+    public long getSubmitted() {
+        return submitted.get();
+    }
+
+    public long getDeduplicated() {
+        return deduplicated.get();
+    }
+
+    public long getBatches() {
+        return batches.get();
+    }
+
+    // 平均每批实际发送的请求数
+    public double getAverageBatchSize() {
+        long count = batches.get();
+        return count == 0 ? 0 : (double) dispatched.get() / count;
+    }
+
+    // 关闭前把剩余请求发送出去
+    @Override
+    public void close() {
+        List<Pending<K, V>> current;
+        synchronized (lock) {
+            closed = true;
+            current = take();
+        }
+        dispatch(current);
+        scheduler.shutdown();
+    }
+
+    /**
+     * 一批中的一个请求
+     */
+    public static final class Pending<K, V> {
+        private final K key;
+        private final CompletableFuture<V> result = new CompletableFuture<>();
+
+        Pending(K key) {
+            this.key = key;
+        }
+
+        public K key() {
+            return key;
+        }
+
+        public void complete(V value) {
+            result.complete(value);
+        }
+
+        public void fail(Throwable failure) {
+            result.completeExceptionally(failure);
+        }
+
+        public boolean isDone() {
+            return result.isDone();
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package com.fh.cache;
+
+import lombok.Data;
+import org.elasticsearch.common.bytes.BytesReference;
+
+import java.util.List;
+
+/**
+ * 缓存的一次查询结果,保存命中id和原始_source,取出时再解码,调用方拿到的对象互不影响
+ */
+@Data
+public class CachedResult {
+    private final long totalHits;
+    private final List<String> ids;
+    private final List<BytesReference> sources;
+}
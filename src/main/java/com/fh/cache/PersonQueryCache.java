@@ -0,0 +1,220 @@
+package com.fh.cache;
+
+import com.fh.config.CacheProperties;
+import com.fh.es.PersonWriteEvent;
+import com.fh.es.PersonWriteListener;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * term/terms/ids查询结果的本地缓存,容量和过期时间有上限
+ * 写入成功后按两个反向索引精确失效:
+ * 结果中包含被写文档id的查询(文档变化或被删除),以及被写字段取值能命中的查询(文档可能新进入结果);
+ * es写入要等refresh后才能被查到,所以写入后refreshGrace内开始的查询结果不缓存
+ */
+@Slf4j
+@Component
+public class PersonQueryCache implements PersonWriteListener {
+
+    // 最近写入最多保留条数,超出后丢弃最早的并把丢弃时间作为整体的不缓存界线
+    private static final int MAX_RECENT = 10000;
+
+    private final long graceNanos;
+    private final Cache<QueryKey, CachedResult> cache;
+    // 文档id -> 结果包含该文档或ids查询包含该id的查询
+    private final Map<String, Set<QueryKey>> byDocument = new ConcurrentHashMap<>();
+    // 字段 -> 查询该字段的term/terms查询
+    private final Map<String, Set<QueryKey>> byField = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedDeque<Recent> recent = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger recentCount = new AtomicInteger();
+    private volatile long droppedAt;
+
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AtomicLong skippedStores = new AtomicLong();
+
+    public PersonQueryCache(CacheProperties properties) {
+        this.graceNanos = properties.getRefreshGrace().toNanos();
+        this.droppedAt = System.nanoTime() - graceNanos - 1;
+        // 移除回调在当前线程同步执行,保证反向索引与缓存一致
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(properties.getMaxEntries())
+                .expireAfterWrite(properties.getTtl().toNanos(), TimeUnit.NANOSECONDS)
+                .executor(Runnable::run)
+                .removalListener(this::onRemoval)
+                .recordStats()
+                .build();
+    }
+
+    public CachedResult get(QueryKey key) {
+        return cache.getIfPresent(key);
+    }
+
+    /**
+     * 缓存从es查到的结果,startNanos为发出查询的时间
+     * 查询期间有相关写入则不缓存
+     */
+    public void put(QueryKey key, CachedResult result, long startNanos) {
+        if (isStale(key, result, startNanos)) {
+            skippedStores.incrementAndGet();
+            return;
+        }
+        cache.put(key, result);
+        register(key, result);
+        // 检查和注册之间到达的写入:要么这里能看到,要么写入时能从反向索引找到这个查询
+        if (isStale(key, result, startNanos) && cache.asMap().remove(key, result)) {
+            skippedStores.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void onWrite(PersonWriteEvent event) {
+        remember(event);
+        if (event.isByQuery()) {
+            for (QueryKey key : new ArrayList<>(cache.asMap().keySet())) {
+                if (key.getIndex().equals(event.getIndex())) {
+                    invalidate(key);
+                }
+            }
+            return;
+        }
+        Set<QueryKey> affected = new HashSet<>();
+        Set<QueryKey> containing = byDocument.get(event.getId());
+        if (containing != null) {
+            for (QueryKey key : containing) {
+                if (key.getIndex().equals(event.getIndex())) {
+                    affected.add(key);
+                }
+            }
+        }
+        if (event.getType() != PersonWriteEvent.Type.DELETE) {
+            for (String field : event.writtenValues().keySet()) {
+                Set<QueryKey> keys = byField.get(field);
+                if (keys != null) {
+                    for (QueryKey key : keys) {
+                        if (key.affectedBy(event)) {
+                            affected.add(key);
+                        }
+                    }
+                }
+            }
+        }
+        affected.forEach(this::invalidate);
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    public QueryCacheStats stats() {
+        CacheStats stats = cache.stats();
+        return new QueryCacheStats(cache.estimatedSize(), stats.hitCount(), stats.missCount(), stats.hitRate(),
+                stats.evictionCount(), invalidations.get(), skippedStores.get());
+    }
+
+    private void invalidate(QueryKey key) {
+        if (cache.asMap().remove(key) != null) {
+            invalidations.incrementAndGet();
+        }
+    }
+
+    private boolean isStale(QueryKey key, CachedResult result, long startNanos) {
+        long threshold = startNanos - graceNanos;
+        if (droppedAt - threshold >= 0) {
+            return true;
+        }
+        for (Recent write : recent) {
+            if (write.nanos - threshold < 0) {
+                continue;
+            }
+            PersonWriteEvent event = write.event;
+            if (key.affectedBy(event)
+                    || (key.getIndex().equals(event.getIndex()) && result.getIds().contains(event.getId()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // 记录本次写入并清理超出refreshGrace的旧记录
+    private void remember(PersonWriteEvent event) {
+        long now = System.nanoTime();
+        recent.addLast(new Recent(now, event));
+        recentCount.incrementAndGet();
+        Recent head;
+        while ((head = recent.peekFirst()) != null
+                && (now - head.nanos > graceNanos || recentCount.get() > MAX_RECENT)) {
+            if (recent.remove(head)) {
+                recentCount.decrementAndGet();
+                if (now - head.nanos <= graceNanos) {
+                    droppedAt = head.nanos;
+                }
+            }
+        }
+    }
+
+    private void register(QueryKey key, CachedResult result) {
+        for (String id : result.getIds()) {
+            add(byDocument, id, key);
+        }
+        if (key.getKind() == QueryKey.Kind.IDS) {
+            key.getValues().forEach(id -> add(byDocument, id, key));
+        } else {
+            add(byField, key.getField(), key);
+        }
+    }
+
+    private void onRemoval(QueryKey key, CachedResult result, RemovalCause cause) {
+        // 被替换或已重新放入时新结果已经注册,不能移除
+        if (key == null || result == null || cause == RemovalCause.REPLACED || cache.asMap().containsKey(key)) {
+            return;
+        }
+        for (String id : result.getIds()) {
+            remove(byDocument, id, key);
+        }
+        if (key.getKind() == QueryKey.Kind.IDS) {
+            key.getValues().forEach(id -> remove(byDocument, id, key));
+        } else {
+            remove(byField, key.getField(), key);
+        }
+    }
+
+    // 增删都在compute中完成,避免并发时加进已被移除的空集合
+    private static void add(Map<String, Set<QueryKey>> index, String name, QueryKey key) {
+        index.compute(name, (k, keys) -> {
+            Set<QueryKey> set = keys == null ? ConcurrentHashMap.newKeySet() : keys;
+            set.add(key);
+            return set;
+        });
+    }
+
+    private static void remove(Map<String, Set<QueryKey>> index, String name, QueryKey key) {
+        index.computeIfPresent(name, (k, keys) -> {
+            keys.remove(key);
+            return keys.isEmpty() ? null : keys;
+        });
+    }
+
+    private static final class Recent {
+        private final long nanos;
+        private final PersonWriteEvent event;
+
+        Recent(long nanos, PersonWriteEvent event) {
+            this.nanos = nanos;
+            this.event = event;
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.fh.cache;
+
+import lombok.Data;
+
+/**
+ * 查询缓存的统计
+ */
+@Data
+public class QueryCacheStats {
+    private final long size;
+    private final long hits;
+    private final long misses;
+    private final double hitRate;
+    // 容量或过期淘汰
+    private final long evictions;
+    // 写入导致的失效
+    private final long invalidations;
+    // 查询期间有相关写入,结果未缓存
+    private final long skippedStores;
+}
@@ -0,0 +1,120 @@
+package com.fh.cache;
+
+import com.fh.es.PersonWriteEvent;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+import org.elasticsearch.index.query.IdsQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.TermQueryBuilder;
+import org.elasticsearch.index.query.TermsQueryBuilder;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 可缓存查询的规范化表示,只支持term、terms、ids三种查询
+ * terms和ids的取值排序后比较,取值顺序不同的同一查询共用一个缓存
+ */
+@Getter
+@ToString
+@EqualsAndHashCode
+public final class QueryKey {
+
+    enum Kind {
+        TERM,
+        TERMS,
+        IDS
+    }
+
+    private final String index;
+    private final Kind kind;
+    // 顶层字段名,name.keyword记为name,ids查询为null
+    private final String field;
+    private final List<String> values;
+    private final int size;
+
+    private QueryKey(String index, Kind kind, String field, List<String> values, int size) {
+        this.index = index;
+        this.kind = kind;
+        this.field = field;
+        this.values = values;
+        this.size = size;
+    }
+
+    /**
+     * 不支持缓存的查询返回null
+     */
+    public static QueryKey of(String index, QueryBuilder query, int size) {
+        if (query instanceof TermQueryBuilder) {
+            TermQueryBuilder term = (TermQueryBuilder) query;
+            return new QueryKey(index, Kind.TERM, topLevel(term.fieldName()),
+                    Collections.singletonList(String.valueOf(term.value())), size);
+        }
+        if (query instanceof TermsQueryBuilder) {
+            TermsQueryBuilder terms = (TermsQueryBuilder) query;
+            // terms lookup取值来自别的文档,无法判断何时失效
+            if (terms.termsLookup() != null) {
+                return null;
+            }
+            return new QueryKey(index, Kind.TERMS, topLevel(terms.fieldName()), sorted(terms.values()), size);
+        }
+        if (query instanceof IdsQueryBuilder) {
+            return new QueryKey(index, Kind.IDS, null, sorted(((IdsQueryBuilder) query).ids()), size);
+        }
+        return null;
+    }
+
+    /**
+     * 写入是否可能让本查询多出命中,已命中文档的变化由结果中的id判断
+     * 对分词字段按包含关系宽松匹配,宁可多失效也不漏失效
+     */
+    boolean affectedBy(PersonWriteEvent event) {
+        if (!index.equals(event.getIndex())) {
+            return false;
+        }
+        if (event.isByQuery()) {
+            return true;
+        }
+        if (kind == Kind.IDS) {
+            return values.contains(event.getId());
+        }
+        if (event.getType() == PersonWriteEvent.Type.DELETE) {
+            return false;
+        }
+        Map<String, Object> written = event.writtenValues();
+        return written.containsKey(field) && matchesAny(written.get(field));
+    }
+
+    private boolean matchesAny(Object written) {
+        if (written == null) {
+            return false;
+        }
+        String text = String.valueOf(written);
+        for (String value : values) {
+            if (written instanceof CharSequence || written instanceof Collection
+                    ? text.toLowerCase().contains(value.toLowerCase())
+                    : text.equals(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String topLevel(String field) {
+        int dot = field.indexOf('.');
+        return dot < 0 ? field : field.substring(0, dot);
+    }
+
+    private static List<String> sorted(Collection<?> values) {
+        List<String> list = new ArrayList<>(values.size());
+        for (Object value : values) {
+            list.add(String.valueOf(value));
+        }
+        Collections.sort(list);
+        return Collections.unmodifiableList(list);
+    }
+}
@@ -0,0 +1,30 @@
+package com.fh.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+/**
+ * 按操作类别(search、bulk、update、mget)自适应限制在途es请求数的参数
+ */
+@Data
+@ConfigurationProperties(prefix = "es.admission")
+public class AdmissionProperties {
+    // 关闭时请求直接发给集群,不限制
+    private boolean enabled = false;
+    // 每个类别的初始在途上限,之后根据延迟和拒绝调整
+    private int initialLimit = 20;
+    private int minLimit = 1;
+    private int maxLimit = 200;
+    // 集群拒绝请求(429)时上限乘以这个比例,一个延迟周期内最多降一次
+    private double backoffRatio = 0.5;
+    // 近期延迟超过长期延迟的这个倍数才认为在排队,开始降低上限
+    private double tolerance = 1.5;
+    // 每次调整时新上限的权重
+    private double smoothing = 0.2;
+    // 超过上限的请求最多排队数,排满后立即拒绝
+    private int maxQueued = 100;
+    // 排队超过这个时间的请求不再发出,直接拒绝
+    private Duration maxQueueWait = Duration.ofSeconds(1);
+}
@@ -0,0 +1,16 @@
+package com.fh.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * 异步读写的并发上限,开启es.admission时不生效,由AdmissionControlClient按操作类别限制
+ */
+@Data
+@ConfigurationProperties(prefix = "es.async")
+public class AsyncProperties {
+    // 同时在途的es请求数
+    private int maxInFlight = 256;
+    // 超过在途上限后最多排队的请求数,再多直接拒绝
+    private int maxQueued = 1024;
+}
@@ -0,0 +1,24 @@
+package com.fh.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+/**
+ * 查询结果缓存的参数
+ */
+@Data
+@ConfigurationProperties(prefix = "es.cache")
+public class CacheProperties {
+    // 是否启用
+    private boolean enabled = true;
+    // 最多缓存的查询数
+    private long maxEntries = 10000;
+    // 缓存过期时间,兜底可能漏掉的失效
+    private Duration ttl = Duration.ofMinutes(5);
+    // 写入后多长时间内的查询结果不缓存,不小于索引的refresh_interval
+    private Duration refreshGrace = Duration.ofSeconds(1);
+    // 命中条数超过该值的结果不缓存
+    private int maxResults = 100;
+}
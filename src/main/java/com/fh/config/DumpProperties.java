@@ -0,0 +1,36 @@
+package com.fh.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+/**
+ * 从NDJSON/CSV导出文件批量导入Person的参数
+ */
+@Data
+@ConfigurationProperties(prefix = "es.dump")
+public class DumpProperties {
+    // 只能导入这个目录下的文件
+    private String directory = "dumps";
+    // 文件按行边界切成的块大小,每块由一个线程解析
+    private int chunkSizeBytes = 16 * 1024 * 1024;
+    // 单行最大长度,超过时导入失败
+    private int maxLineBytes = 1024 * 1024;
+    // 解析线程数
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    // 每个bulk最多文档数
+    private int bulkActions = 5000;
+    // 每个bulk最大字节数
+    private long bulkSizeBytes = 10 * 1024 * 1024;
+    // 同时在途的bulk请求数,超过后解析线程阻塞等待
+    private int concurrentBulks = 4;
+    // 导入期间关闭refresh、副本数设为0,结束后恢复
+    private boolean tuneSettings = true;
+    // 被拒绝条目的首次重试等待时间,之后指数退避
+    private Duration retryInitialDelay = Duration.ofMillis(100);
+    // 被拒绝条目的最大重试次数
+    private int maxRetries = 8;
+    // 导入期间输出进度日志的间隔
+    private Duration reportInterval = Duration.ofSeconds(10);
+}
@@ -0,0 +1,87 @@
+package com.fh.config;
+
+import com.fh.es.NodeSelectingClient;
+import com.fh.es.PersonEntityMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.transport.TransportClient;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.transport.TransportAddress;
+import org.elasticsearch.transport.client.PreBuiltTransportClient;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.data.elasticsearch.ElasticsearchProperties;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.elasticsearch.core.DefaultEntityMapper;
+import org.springframework.data.elasticsearch.core.ElasticsearchTemplate;
+import org.springframework.data.elasticsearch.core.EntityMapper;
+import org.springframework.data.elasticsearch.core.mapping.SimpleElasticsearchMappingContext;
+import org.springframework.util.StringUtils;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 全局唯一的es客户端,随应用启动创建,随应用关闭释放
+ */
+@Configuration
+@EnableConfigurationProperties({ElasticsearchProperties.class, EsClientProperties.class, IndexerProperties.class,
+        ScanProperties.class, CacheProperties.class, LoaderProperties.class, StatsProperties.class,
+        AsyncProperties.class, WriteBehindProperties.class, JobsProperties.class, PartitionProperties.class,
+        RoutingProperties.class, MultiSearchProperties.class, NgramProperties.class, SuggestProperties.class,
+        RollupProperties.class, PagingProperties.class, NodeSelectorProperties.class,
+        DumpProperties.class})
+public class ElasticsearchConfig {
+
+    @Bean(destroyMethod = "close")
+    public TransportClient elasticsearchClient(ElasticsearchProperties properties,
+                                               EsClientProperties clientProperties) throws UnknownHostException {
+        return transportClient(properties, clientProperties, clientProperties.isSniff(),
+                StringUtils.commaDelimitedListToStringArray(properties.getClusterNodes()));
+    }
+
+    // 按延迟选择节点时,cluster-nodes中的每个节点单独一个不嗅探的客户端,由NodeSelectingClient决定发给谁
+    @Bean(destroyMethod = "close")
+    @ConditionalOnProperty(prefix = "es.nodes", name = "enabled", havingValue = "true")
+    public NodeSelectingClient nodeSelectingClient(ElasticsearchProperties properties,
+                                                   EsClientProperties clientProperties,
+                                                   NodeSelectorProperties selectorProperties,
+                                                   MeterRegistry registry) throws UnknownHostException {
+        Map<String, TransportClient> clients = new LinkedHashMap<>();
+        for (String node : StringUtils.commaDelimitedListToStringArray(properties.getClusterNodes())) {
+            clients.put(node.trim(), transportClient(properties, clientProperties, false, node));
+        }
+        return new NodeSelectingClient(clients, selectorProperties, registry);
+    }
+
+    private static TransportClient transportClient(ElasticsearchProperties properties,
+                                                   EsClientProperties clientProperties, boolean sniff,
+                                                   String... nodes) throws UnknownHostException {
+        Settings.Builder settings = Settings.builder()
+                .put("cluster.name", properties.getClusterName())
+                .put("client.transport.sniff", sniff)
+                .put("client.transport.ping_timeout", clientProperties.getPingTimeout().toMillis() + "ms")
+                .put("client.transport.nodes_sampler_interval",
+                        clientProperties.getNodesSamplerInterval().toMillis() + "ms");
+        properties.getProperties().forEach(settings::put);
+
+        TransportClient client = new PreBuiltTransportClient(settings.build());
+        // cluster-nodes格式为 host:port,host:port
+        for (String node : nodes) {
+            String[] hostAndPort = node.trim().split(":");
+            client.addTransportAddress(new TransportAddress(
+                    InetAddress.getByName(hostAndPort[0]), Integer.parseInt(hostAndPort[1])));
+        }
+        return client;
+    }
+
+    // Person的读写走专用编解码,其他实体仍用默认的jackson映射
+    @Bean
+    public ElasticsearchTemplate elasticsearchTemplate(Client client) {
+        EntityMapper defaultMapper = new DefaultEntityMapper(new SimpleElasticsearchMappingContext());
+        return new ElasticsearchTemplate(client, new PersonEntityMapper(defaultMapper));
+    }
+}
@@ -0,0 +1,24 @@
+package com.fh.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+/**
+ * 共享TransportClient的连接参数
+ */
+@Data
+@ConfigurationProperties(prefix = "es.client")
+public class EsClientProperties {
+    // 是否嗅探集群中的其他节点
+    private boolean sniff = true;
+    // 节点ping超时时间
+    private Duration pingTimeout = Duration.ofSeconds(5);
+    // 后台刷新节点列表的间隔
+    private Duration nodesSamplerInterval = Duration.ofSeconds(5);
+    // 启动预热等待集群响应的最长时间
+    private Duration warmupTimeout = Duration.ofSeconds(10);
+    // 后台健康检查间隔
+    private Duration healthCheckInterval = Duration.ofSeconds(30);
+}
@@ -0,0 +1,28 @@
+package com.fh.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+/**
+ * PersonIndexer批量写入参数,数量、大小、时间任一条件满足即刷新
+ */
+@Data
+@ConfigurationProperties(prefix = "es.indexer")
+public class IndexerProperties {
+    // 每批最多文档数
+    private int bulkActions = 1000;
+    // 每批最大字节数
+    private long bulkSizeBytes = 5 * 1024 * 1024;
+    // 最长刷新间隔
+    private Duration flushInterval = Duration.ofSeconds(1);
+    // 同时在途的bulk请求数,超过后写入线程阻塞等待
+    private int concurrentRequests = 2;
+    // 被拒绝条目的首次重试等待时间,之后指数退避
+    private Duration retryInitialDelay = Duration.ofMillis(100);
+    // 被拒绝条目的最大重试次数
+    private int maxRetries = 5;
+    // 关闭时等待在途请求完成的时间
+    private Duration closeTimeout = Duration.ofSeconds(30);
+}
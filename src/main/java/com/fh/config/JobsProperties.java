@@ -0,0 +1,20 @@
+package com.fh.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * 后台delete-by-query/update-by-query任务的参数
+ */
+@Data
+@ConfigurationProperties(prefix = "es.jobs")
+public class JobsProperties {
+    // 默认每秒处理的文档数,小于等于0表示不限速
+    private float requestsPerSecond = -1;
+    // 切片数,0表示由es按主分片数自动决定
+    private int slices = 0;
+    // 版本冲突时继续执行而不是中止
+    private boolean proceedOnConflicts = true;
+    // 保留的已结束任务数
+    private int retainFinished = 100;
+}
@@ -0,0 +1,18 @@
+package com.fh.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+/**
+ * 按id合并读取的参数
+ */
+@Data
+@ConfigurationProperties(prefix = "es.loader")
+public class LoaderProperties {
+    // 每个multiGet最多包含的id数
+    private int maxBatchSize = 100;
+    // 第一个请求最多等待多久再发送
+    private Duration maxDelay = Duration.ofMillis(2);
+}
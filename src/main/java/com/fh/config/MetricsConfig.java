@@ -0,0 +1,38 @@
+package com.fh.config;
+
+import com.fh.es.AdmissionControlClient;
+import com.fh.es.InstrumentedClient;
+import com.fh.es.NodeSelectingClient;
+import com.fh.es.PersonCodec;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.transport.TransportClient;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+
+/**
+ * 业务代码注入的Client都经过InstrumentedClient记录指标
+ * 需要TransportClient本身的地方(节点管理、健康检查)仍注入TransportClient
+ * 开启es.nodes.enabled时,业务请求经过NodeSelectingClient按节点延迟选择协调节点
+ * 开启es.admission.enabled时,最外层由AdmissionControlClient按操作类别限制在途请求数,排队时间不计入请求指标
+ */
+@Configuration
+@EnableConfigurationProperties({MetricsProperties.class, AdmissionProperties.class})
+public class MetricsConfig {
+
+    // 底层客户端由elasticsearchClient负责关闭,这里不能再关一次
+    @Bean(destroyMethod = "")
+    @Primary
+    public Client instrumentedClient(TransportClient client, ObjectProvider<NodeSelectingClient> nodeSelecting,
+                                     MeterRegistry registry, MetricsProperties properties,
+                                     AdmissionProperties admission) {
+        NodeSelectingClient selecting = nodeSelecting.getIfAvailable();
+        InstrumentedClient instrumented = new InstrumentedClient(selecting == null ? client : selecting, registry,
+                properties.getSlowThreshold(), properties.isHistogram());
+        PersonCodec.instrument(instrumented.mapping());
+        return admission.isEnabled() ? new AdmissionControlClient(instrumented, admission, registry) : instrumented;
+    }
+}
@@ -0,0 +1,18 @@
+package com.fh.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+/**
+ * es客户端指标的参数
+ */
+@Data
+@ConfigurationProperties(prefix = "es.metrics")
+public class MetricsProperties {
+    // 超过该耗时的请求记录慢查询日志
+    private Duration slowThreshold = Duration.ofSeconds(1);
+    // 是否发布延迟直方图,用于在监控端计算任意分位数
+    private boolean histogram = true;
+}
@@ -0,0 +1,24 @@
+package com.fh.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+/**
+ * 并发查询合并成multiSearch的参数
+ */
+@Data
+@ConfigurationProperties(prefix = "es.msearch")
+public class MultiSearchProperties {
+    // 关闭时每个查询单独发送
+    private boolean enabled = false;
+    // 第一个查询最多等待多久再发送
+    private Duration window = Duration.ofMillis(2);
+    // 每个multiSearch最多包含的查询数
+    private int maxBatchSize = 50;
+    // es端同时执行的查询数,0表示使用es的默认值
+    private int maxConcurrentSearches = 0;
+    // 单个查询的默认超时,0表示不限
+    private Duration timeout = Duration.ofSeconds(5);
+}
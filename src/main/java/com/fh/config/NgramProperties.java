@@ -0,0 +1,27 @@
+package com.fh.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * name、address的n-gram子字段及查询改写的参数
+ * 子字段装好并回填数据之前不要打开enabled,否则改写后的查询查不到旧文档
+ */
+@Data
+@ConfigurationProperties(prefix = "es.ngram")
+public class NgramProperties {
+    // 是否把通配符、前缀查询改写到子字段上
+    private boolean enabled = false;
+    // 启动时给lib加上子字段并在后台回填已有文档
+    private boolean install = false;
+    // 加子字段的字段
+    private List<String> fields = Arrays.asList("name", "address");
+    // 中缀匹配用的n-gram长度范围
+    private int minGram = 1;
+    private int maxGram = 3;
+    // 前缀匹配用的edge n-gram最大长度
+    private int edgeMaxGram = 10;
+}
@@ -0,0 +1,32 @@
+package com.fh.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+/**
+ * 按节点延迟选择协调节点、对查询做对冲请求的参数
+ */
+@Data
+@ConfigurationProperties(prefix = "es.nodes")
+public class NodeSelectorProperties {
+    // 关闭时仍由TransportClient在cluster-nodes之间轮询
+    private boolean enabled = false;
+    // 延迟EWMA中新样本的权重
+    private double alpha = 0.3;
+    // 节点拒绝请求(队列满)或连不上时加到延迟上的惩罚
+    private Duration rejectionPenalty = Duration.ofSeconds(1);
+    // 惩罚按半衰期衰减,节点恢复后逐渐重新分到请求
+    private Duration penaltyHalfLife = Duration.ofSeconds(5);
+    // 节点超过这个时间没被选中时发一个请求探测,刷新它的延迟
+    private Duration probeInterval = Duration.ofSeconds(5);
+    // 是否对查询做对冲:超过延迟分位数还没返回时向另一个节点再发一次,用先返回的结果
+    private boolean hedge = false;
+    // 对冲等待时间取查询延迟的这个分位数
+    private double hedgePercentile = 0.95;
+    // 对冲等待时间的下限
+    private Duration hedgeMinDelay = Duration.ofMillis(10);
+    // 统计分位数的最近查询数,样本不足一半时不对冲
+    private int hedgeWindow = 1000;
+}
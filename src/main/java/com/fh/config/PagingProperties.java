@@ -0,0 +1,25 @@
+package com.fh.config;
+
+import com.fh.es.PersonCodec;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+/**
+ * 游标分页的参数
+ */
+@Data
+@ConfigurationProperties(prefix = "es.paging")
+public class PagingProperties {
+    // 排在所有排序字段最后、取值唯一的字段,保证相同排序值的文档翻页时不重不漏
+    // 默认用写入时带上的doc_id(_id的keyword副本,有doc_values,见DocIdMappingInstaller);
+    // 改成_id也能用,但_id排序要把_id载入内存(fielddata),文档很多时开销大
+    private String tiebreaker = PersonCodec.ID_FIELD;
+    // 默认每页条数
+    private int size = 10;
+    // 每页最多条数
+    private int maxSize = 1000;
+    // 一致性模式下scroll上下文的保持时间,超过这个时间不翻页游标就失效
+    private Duration scrollKeepAlive = Duration.ofMinutes(1);
+}
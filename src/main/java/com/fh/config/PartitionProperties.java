@@ -0,0 +1,37 @@
+package com.fh.config;
+
+import com.fh.partition.PartitionScheme;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+/**
+ * 按日期字段分区存放Person的参数,默认关闭,所有读写仍使用lib
+ */
+@Data
+@ConfigurationProperties(prefix = "es.partition")
+public class PartitionProperties {
+    private boolean enabled = false;
+    // 分区依据的日期字段,取值格式为yyyy[-MM[-dd]]
+    private String field = "birth";
+    private PartitionScheme.Granularity granularity = PartitionScheme.Granularity.YEAR;
+    // 分区索引名前缀,例如lib-1995
+    private String indexPrefix = "lib-";
+    // 包含全部分区的查询别名
+    private String readAlias = "lib-read";
+    // 指向最新分区的写入别名,日期字段为空的文档写到这里
+    private String writeAlias = "lib-write";
+    // 新建分区的主分片数和副本数
+    private int shards = 1;
+    private int replicas = 1;
+    // 本地缓存的分区列表多久从集群刷新一次
+    private Duration refreshInterval = Duration.ofSeconds(30);
+    // 只查部分分区时分区列表的最长缓存时间,超过后先刷新,与索引的refresh_interval相当即可
+    private Duration planRefreshInterval = Duration.ofSeconds(1);
+    // 比最新分区早这么多个周期的分区会被合并段并设为只读,0表示不处理;
+    // 设为只读后分区字段落在这些周期的文档不能再写入,按birth分区时新增的人员可能出生在任何年份,一般不开启
+    private int freezeAfterPeriods = 0;
+    // 检查旧分区的间隔
+    private Duration maintenanceInterval = Duration.ofHours(1);
+}
@@ -0,0 +1,22 @@
+package com.fh.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+/**
+ * age统计本地汇总的参数
+ */
+@Data
+@ConfigurationProperties(prefix = "es.rollup")
+public class RollupProperties {
+    // 是否在本地维护age的汇总,打开后全库age统计不再查es
+    private boolean enabled = false;
+    // 用es聚合核对本地汇总的间隔
+    private Duration reconcileInterval = Duration.ofMinutes(5);
+    // 0到这个值之间的age用数组计数,超出范围的放到单独的表里
+    private int maxAge = 150;
+    // 核对时terms聚合的最多分组数,不同age超过这个数时不核对
+    private int maxTerms = 1000;
+}
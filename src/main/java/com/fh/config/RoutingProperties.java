@@ -0,0 +1,19 @@
+package com.fh.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * Person自定义routing的参数,默认关闭,文档按id分布到各分片
+ */
+@Data
+@ConfigurationProperties(prefix = "es.routing")
+public class RoutingProperties {
+    private boolean enabled = false;
+    // 计算routing的字段,字段为空的文档不带routing
+    private String field = "address";
+    // 从字段值中取出routing的正则,取第一个分组,不匹配时用整个值;默认取到省或直辖市为止
+    private String keyPattern = "^(.+?(?:省|自治区|特别行政区|市))";
+    // 本地缓存多少个id的routing,按id读写时省去一次查找
+    private int cacheSize = 100_000;
+}
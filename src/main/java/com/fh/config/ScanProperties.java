@@ -0,0 +1,24 @@
+package com.fh.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+/**
+ * 流式遍历查询结果的参数
+ */
+@Data
+@ConfigurationProperties(prefix = "es.scan")
+public class ScanProperties {
+    // 每页条数
+    private int pageSize = 1000;
+    // scroll上下文保持时间,需大于处理一页的时间
+    private Duration keepAlive = Duration.ofMinutes(1);
+    // 并行遍历的默认切片数,0表示与主分片数相同
+    private int slices = 0;
+    // 并行遍历的最大线程数,0表示与cpu核数相同
+    private int maxThreads = 0;
+    // /persons/search同时进行的流式响应数,每个占一个servlet线程和一个scroll上下文
+    private int maxStreams = 4;
+}
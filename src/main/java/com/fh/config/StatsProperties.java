@@ -0,0 +1,22 @@
+package com.fh.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+/**
+ * 统计查询的参数
+ */
+@Data
+@ConfigurationProperties(prefix = "es.stats")
+public class StatsProperties {
+    // 在这段时间内到达的同条件统计请求合并成一次查询
+    private Duration mergeWindow = Duration.ofMillis(5);
+    // 一次合并的最多请求数
+    private int maxBatchSize = 50;
+    // 结果缓存时间,0表示不缓存
+    private Duration freshness = Duration.ZERO;
+    // 最多缓存的结果数
+    private long maxCached = 1000;
+}
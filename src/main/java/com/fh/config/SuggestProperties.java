@@ -0,0 +1,26 @@
+package com.fh.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 本地联想词索引的参数
+ */
+@Data
+@ConfigurationProperties(prefix = "es.suggest")
+public class SuggestProperties {
+    // 是否在启动时构建联想词索引并跟随写入更新
+    private boolean enabled = false;
+    // 提供联想的字段
+    private List<String> fields = Arrays.asList("name", "address");
+    // 增量中的不同取值超过这个数就提前重建
+    private int maxDelta = 10000;
+    // 定时全量重建的间隔,删除和修改前的旧值在重建后才会消失
+    private Duration rebuildInterval = Duration.ofHours(1);
+    // 默认返回条数
+    private int size = 10;
+}
@@ -0,0 +1,22 @@
+package com.fh.config;
+
+import com.fh.sync.CheckpointStore;
+import com.fh.sync.FileCheckpointStore;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.nio.file.Paths;
+
+/**
+ * mysql同步相关的bean
+ */
+@Configuration
+@EnableConfigurationProperties(SyncProperties.class)
+public class SyncConfig {
+
+    @Bean
+    public CheckpointStore syncCheckpointStore(SyncProperties properties) {
+        return new FileCheckpointStore(Paths.get(properties.getCheckpointFile()));
+    }
+}
@@ -0,0 +1,24 @@
+package com.fh.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+/**
+ * mysql到es的增量同步参数
+ */
+@Data
+@ConfigurationProperties(prefix = "es.sync")
+public class SyncProperties {
+    // 是否定时同步
+    private boolean enabled = false;
+    // 两次同步之间的间隔
+    private Duration interval = Duration.ofSeconds(10);
+    // 每个bulk的行数
+    private int batchSize = 1000;
+    // 并行写es的线程数
+    private int parallelism = 4;
+    // 高水位文件
+    private String checkpointFile = "data/person-sync.checkpoint";
+}
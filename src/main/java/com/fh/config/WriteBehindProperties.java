@@ -0,0 +1,34 @@
+package com.fh.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+/**
+ * 局部修改写后缓冲的参数
+ */
+@Data
+@ConfigurationProperties(prefix = "es.write-behind")
+public class WriteBehindProperties {
+
+    public enum Durability {
+        // 只在应用正常关闭时写完缓冲,进程崩溃会丢失未刷新的修改
+        SHUTDOWN,
+        // 修改先追加到本地日志,启动时回放
+        JOURNAL
+    }
+
+    // 刷新间隔
+    private Duration flushInterval = Duration.ofMillis(200);
+    // 缓冲的文档数达到该值时立即刷新
+    private int maxPending = 10000;
+    private Durability durability = Durability.SHUTDOWN;
+    // 日志目录
+    private String journalDir = "data/write-behind";
+    // 每条日志都调用fsync,可防止断电丢失,但写入变慢
+    private boolean fsync = false;
+    // 被集群拒绝的条目的重试次数与首次间隔,之后按指数增加
+    private int maxRetries = 3;
+    private Duration retryInitialDelay = Duration.ofMillis(100);
+}
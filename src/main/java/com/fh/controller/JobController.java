@@ -0,0 +1,112 @@
+package com.fh.controller;
+
+import com.fh.dump.DumpFormat;
+import com.fh.dump.DumpLoadStats;
+import com.fh.dump.PersonDumpLoader;
+import com.fh.jobs.ByQueryJobStatus;
+import com.fh.jobs.PersonByQueryJobs;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.script.Script;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * 后台按条件删除/修改任务
+ * 请求体为es的query json,例如 {"range":{"age":{"lt":18}}}
+ * 以及从导出文件批量导入
+ */
+@RestController
+@RequestMapping("/jobs")
+public class JobController {
+
+    private final PersonByQueryJobs jobs;
+    private final PersonDumpLoader loader;
+
+    public JobController(PersonByQueryJobs jobs, PersonDumpLoader loader) {
+        this.jobs = jobs;
+        this.loader = loader;
+    }
+
+    /**
+     * 在后台导入es.dump.directory下的文件,format不传时按扩展名判断
+     * from为开始的字节偏移;resume=true时从上次保存的已提交偏移继续
+     */
+    @PostMapping("/load")
+    @ResponseStatus(HttpStatus.ACCEPTED)
+    public DumpLoadStats load(@RequestParam String file,
+                              @RequestParam(required = false) DumpFormat format,
+                              @RequestParam(defaultValue = "0") long from,
+                              @RequestParam(defaultValue = "false") boolean resume) throws IOException {
+        Path path = loader.resolve(file);
+        return loader.start(path, format == null ? DumpFormat.of(path) : format,
+                resume ? loader.savedOffset(path) : from);
+    }
+
+    @GetMapping("/load")
+    public DumpLoadStats loadStats() {
+        return loader.stats();
+    }
+
+    @PostMapping("/delete-by-query")
+    @ResponseStatus(HttpStatus.ACCEPTED)
+    public ByQueryJobStatus deleteByQuery(@RequestBody String query,
+                                          @RequestParam(defaultValue = "-1") float requestsPerSecond) {
+        return jobs.deleteByQuery(QueryBuilders.wrapperQuery(query), requestsPerSecond);
+    }
+
+    // script为painless脚本,不传时只重新索引命中的文档
+    @PostMapping("/update-by-query")
+    @ResponseStatus(HttpStatus.ACCEPTED)
+    public ByQueryJobStatus updateByQuery(@RequestBody String query,
+                                          @RequestParam(required = false) String script,
+                                          @RequestParam(defaultValue = "-1") float requestsPerSecond) {
+        return jobs.updateByQuery(QueryBuilders.wrapperQuery(query), script == null ? null : new Script(script),
+                requestsPerSecond);
+    }
+
+    @GetMapping
+    public List<ByQueryJobStatus> list() {
+        return jobs.list();
+    }
+
+    @GetMapping("/{id}")
+    public ByQueryJobStatus status(@PathVariable String id) {
+        return jobs.status(id);
+    }
+
+    // 小于等于0表示不限速
+    @PostMapping("/{id}/rethrottle")
+    public ByQueryJobStatus rethrottle(@PathVariable String id, @RequestParam float requestsPerSecond) {
+        return jobs.rethrottle(id, requestsPerSecond);
+    }
+
+    @DeleteMapping("/{id}")
+    public ByQueryJobStatus cancel(@PathVariable String id) {
+        return jobs.cancel(id);
+    }
+
+    @ExceptionHandler(IllegalArgumentException.class)
+    @ResponseStatus(HttpStatus.NOT_FOUND)
+    public String notFound(IllegalArgumentException e) {
+        return e.getMessage();
+    }
+
+    @ExceptionHandler(IllegalStateException.class)
+    @ResponseStatus(HttpStatus.CONFLICT)
+    public String conflict(IllegalStateException e) {
+        return e.getMessage();
+    }
+}
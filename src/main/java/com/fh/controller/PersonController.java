@@ -0,0 +1,164 @@
+package com.fh.controller;
+
+import com.fh.config.ScanProperties;
+import com.fh.entity.Person;
+import com.fh.es.PersonQueryParser;
+import com.fh.es.PersonQueryRewriter;
+import com.fh.paging.CursorPage;
+import com.fh.paging.PersonCursorPager;
+import com.fh.repository.PersonRepository;
+import com.fh.service.PersonScanService;
+import com.fh.suggest.PersonSuggester;
+import com.fh.suggest.Suggestion;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PatchMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Person的增删改查接口
+ * 返回CompletableFuture,servlet线程发出请求后立即释放,es回调时再写响应
+ */
+@RestController
+@RequestMapping("/persons")
+public class PersonController {
+
+    private static final String NDJSON = "application/x-ndjson;charset=UTF-8";
+
+    private final PersonRepository repository;
+    private final PersonSuggester suggester;
+    private final PersonScanService scanService;
+    private final PersonQueryRewriter rewriter;
+    private final PersonCursorPager pager;
+    private final Semaphore streams;
+
+    public PersonController(PersonRepository repository, PersonSuggester suggester, PersonScanService scanService,
+                            PersonQueryRewriter rewriter, PersonCursorPager pager, ScanProperties scanProperties) {
+        this.repository = repository;
+        this.suggester = suggester;
+        this.scanService = scanService;
+        this.rewriter = rewriter;
+        this.pager = pager;
+        this.streams = new Semaphore(scanProperties.getMaxStreams());
+    }
+
+    @GetMapping("/{id}")
+    public CompletableFuture<ResponseEntity<Person>> get(@PathVariable String id) {
+        return repository.get(id).thenApply(person -> person == null
+                ? ResponseEntity.notFound().build() : ResponseEntity.ok(person));
+    }
+
+    // 传ids时按id批量读取,否则按q做全文查询
+    @GetMapping
+    public CompletableFuture<?> list(@RequestParam(required = false) List<String> ids,
+                                     @RequestParam(defaultValue = "") String q,
+                                     @RequestParam(defaultValue = "0") int from,
+                                     @RequestParam(defaultValue = "10") int size) {
+        if (ids != null) {
+            return repository.multiGet(ids);
+        }
+        return repository.search(q.isEmpty() ? QueryBuilders.matchAllQuery() : QueryBuilders.simpleQueryStringQuery(q),
+                from, size);
+    }
+
+    /**
+     * 游标分页,sort形如age:desc,name.keyword;第一页不传cursor,之后传上一页返回的next或previous
+     * consistent=true时翻页期间结果不随写入变化,但只能往后翻,游标在es.paging.scroll-keep-alive内有效
+     */
+    @GetMapping("/page")
+    public CompletableFuture<CursorPage> page(@RequestParam(defaultValue = "") String q,
+                                              @RequestParam(required = false) String sort,
+                                              @RequestParam(required = false) Integer size,
+                                              @RequestParam(required = false) String cursor,
+                                              @RequestParam(defaultValue = "false") boolean consistent) {
+        return pager.page(q.isEmpty() ? QueryBuilders.matchAllQuery() : QueryBuilders.simpleQueryStringQuery(q),
+                PersonCursorPager.sorts(sort), size == null ? pager.getDefaultSize() : size, cursor, consistent);
+    }
+
+    /**
+     * 按{"query": ..., "limit": n}返回全部命中,每行一个文档的_source(NDJSON),边翻页边写
+     * query支持match_all、match、term、terms、range、bool;响应不设超时,在servlet线程上同步写完
+     */
+    @PostMapping("/search")
+    public void search(@RequestBody(required = false) Map<String, Object> body, HttpServletResponse response)
+            throws IOException {
+        QueryBuilder query = rewriter.rewrite(PersonQueryParser.parse(body == null ? null : body.get("query")));
+        Object limit = body == null ? null : body.get("limit");
+        if (limit != null && !(limit instanceof Number)) {
+            throw new IllegalArgumentException("limit must be a number");
+        }
+        if (!streams.tryAcquire()) {
+            throw new RejectedExecutionException("too many concurrent search streams");
+        }
+        try {
+            response.setContentType(NDJSON);
+            scanService.writeSources(query, limit == null ? Long.MAX_VALUE : ((Number) limit).longValue(),
+                    response.getOutputStream());
+        } finally {
+            streams.release();
+        }
+    }
+
+    // 按前缀联想name、address的取值,未开启时返回404
+    @GetMapping("/suggest")
+    public ResponseEntity<List<Suggestion>> suggest(@RequestParam(defaultValue = "name") String field,
+                                                    @RequestParam String prefix,
+                                                    @RequestParam(required = false) Integer size) {
+        if (!suggester.isEnabled()) {
+            return ResponseEntity.notFound().build();
+        }
+        if (!suggester.getFields().contains(field)) {
+            return ResponseEntity.badRequest().build();
+        }
+        return ResponseEntity.ok(size == null ? suggester.suggest(field, prefix) : suggester.suggest(field, prefix, size));
+    }
+
+    @PutMapping("/{id}")
+    public CompletableFuture<String> index(@PathVariable String id, @RequestBody Person person) {
+        return repository.index(id, person).thenApply(response -> response.getResult().getLowercase());
+    }
+
+    @PatchMapping("/{id}")
+    public CompletableFuture<String> update(@PathVariable String id, @RequestBody Map<String, Object> doc) {
+        return repository.update(id, doc).thenApply(response -> response.getResult().getLowercase());
+    }
+
+    @DeleteMapping("/{id}")
+    public CompletableFuture<String> delete(@PathVariable String id) {
+        return repository.delete(id).thenApply(response -> response.getResult().getLowercase());
+    }
+
+    // 查询格式不对
+    @ExceptionHandler(IllegalArgumentException.class)
+    @ResponseStatus(HttpStatus.BAD_REQUEST)
+    public String badRequest(IllegalArgumentException e) {
+        return e.getMessage();
+    }
+
+    // 在途和排队都满了,让调用方稍后重试
+    @ExceptionHandler(RejectedExecutionException.class)
+    @ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+    public String rejected(RejectedExecutionException e) {
+        return e.getMessage();
+    }
+}
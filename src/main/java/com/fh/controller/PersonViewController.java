@@ -0,0 +1,37 @@
+package com.fh.controller;
+
+import com.fh.paging.PersonCursorPager;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.servlet.ModelAndView;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Person列表页面(templates/persons.html),用游标翻页,链接里只带next/previous游标,不带页码
+ */
+@Controller
+public class PersonViewController {
+
+    private final PersonCursorPager pager;
+
+    public PersonViewController(PersonCursorPager pager) {
+        this.pager = pager;
+    }
+
+    @GetMapping("/persons/view")
+    public CompletableFuture<ModelAndView> view(@RequestParam(defaultValue = "") String q,
+                                                @RequestParam(defaultValue = "") String sort,
+                                                @RequestParam(required = false) String cursor) {
+        return pager.page(q.isEmpty() ? QueryBuilders.matchAllQuery() : QueryBuilders.simpleQueryStringQuery(q),
+                PersonCursorPager.sorts(sort), pager.getDefaultSize(), cursor, false).thenApply(page -> {
+                    ModelAndView view = new ModelAndView("persons");
+                    view.addObject("page", page);
+                    view.addObject("q", q);
+                    view.addObject("sort", sort);
+                    return view;
+                });
+    }
+}
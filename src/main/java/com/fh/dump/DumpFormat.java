@@ -0,0 +1,17 @@
+package com.fh.dump;
+
+import java.nio.file.Path;
+
+/**
+ * 导出文件的格式
+ * NDJSON每行一个Person的_source(POST /persons/search的输出),或者带_id的命中{"_id": ..., "_source": {...}};
+ * CSV第一行为列名,可用的列为id、name、age、address、interests、birth,其他列忽略,字段内不能换行
+ */
+public enum DumpFormat {
+    NDJSON, CSV;
+
+    // 按扩展名判断,.csv以外都当作NDJSON
+    public static DumpFormat of(Path file) {
+        return file.getFileName().toString().toLowerCase().endsWith(".csv") ? CSV : NDJSON;
+    }
+}
@@ -0,0 +1,23 @@
+package com.fh.dump;
+
+import lombok.Data;
+
+/**
+ * 导入进度快照
+ */
+@Data
+public class DumpLoadStats {
+    private final boolean running;
+    private final String file;
+    // 文件大小和本次已处理的字节数
+    private final long totalBytes;
+    private final long bytesRead;
+    private final long docsIndexed;
+    private final long failedDocs;
+    private final double megabytesPerSecond;
+    private final double docsPerSecond;
+    // 这个偏移之前的内容都已写入,中断后从这里继续
+    private final long committedOffset;
+    // 导入中止的原因,正常时为null
+    private final String error;
+}
@@ -0,0 +1,277 @@
+package com.fh.dump;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+import com.fh.entity.Person;
+import com.fh.es.PersonCodec;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.UUIDs;
+import org.elasticsearch.common.bytes.ByteBufferReference;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.bytes.CompositeBytesReference;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 把导出文件的一行解析成文档
+ * NDJSON行本身就是_source,直接引用映射内存中的这段字节作为bulk的source,不重新编码;
+ * 仍然流式解析一遍得到Person,用于分区、routing和写入事件
+ * 没有id的记录在这里生成id;_source里没有doc_id时在前面拼上,原有字节仍不复制
+ */
+final class DumpRecords {
+
+    private static final JsonFactory FACTORY = new JsonFactory();
+
+    private DumpRecords() {
+    }
+
+    static final class Record {
+        final String id;
+        final Person person;
+        final BytesReference source;
+
+        Record(String id, Person person, BytesReference source) {
+            this.id = id;
+            this.person = person;
+            this.source = source;
+        }
+    }
+
+    // line从position到limit为一行,不含换行符
+    static Record ndjson(ByteBuffer line) throws IOException {
+        try (JsonParser parser = FACTORY.createParser(new ByteBufferBackedInputStream(line.duplicate()))) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("line must be a json object");
+            }
+            String[] docId = new String[1];
+            if (!hit(line)) {
+                Person person = PersonCodec.read(parser, value -> docId[0] = value);
+                return record(null, docId[0], person, new MappedBytes(line.slice()));
+            }
+            String id = null;
+            Person person = null;
+            BytesReference source = null;
+            String field;
+            while ((field = parser.nextFieldName()) != null) {
+                JsonToken token = parser.nextToken();
+                if ("_id".equals(field)) {
+                    id = parser.getValueAsString();
+                } else if ("_source".equals(field) && token == JsonToken.START_OBJECT) {
+                    int start = (int) parser.getTokenLocation().getByteOffset();
+                    person = PersonCodec.read(parser, value -> docId[0] = value);
+                    int end = (int) parser.getCurrentLocation().getByteOffset();
+                    ByteBuffer slice = line.duplicate();
+                    slice.position(line.position() + start).limit(line.position() + end);
+                    source = new MappedBytes(slice.slice());
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            if (source == null) {
+                throw new IOException("hit has no _source object");
+            }
+            return record(id, docId[0], person, source);
+        }
+    }
+
+    // docId为_source中已有的doc_id,没有_id时沿用它
+    private static Record record(String id, String docId, Person person, BytesReference source) {
+        if (id == null) {
+            id = docId != null ? docId : UUIDs.base64UUID();
+        }
+        if (docId != null) {
+            return new Record(id, person, source);
+        }
+        int brace = 0;
+        while (source.get(brace) != '{') {
+            brace++;
+        }
+        BytesReference rest = source.slice(brace + 1, source.length() - brace - 1);
+        int next = 0;
+        while (next < rest.length() && Character.isWhitespace(rest.get(next))) {
+            next++;
+        }
+        // 空对象后面不能跟逗号
+        boolean empty = next < rest.length() && rest.get(next) == '}';
+        String quoted = new String(JsonStringEncoder.getInstance().quoteAsString(id));
+        String prefix = "{\"" + PersonCodec.ID_FIELD + "\":\"" + quoted + (empty ? "\"" : "\",");
+        return new Record(id, person, new CompositeBytesReference(
+                new BytesArray(prefix.getBytes(StandardCharsets.UTF_8)), rest));
+    }
+
+    // 第一个字段名以下划线开头时按命中格式解析
+    private static boolean hit(ByteBuffer line) {
+        int i = line.position();
+        while (i < line.limit() && line.get(i) != '{') {
+            i++;
+        }
+        i++;
+        while (i < line.limit() && Character.isWhitespace(line.get(i))) {
+            i++;
+        }
+        return i + 1 < line.limit() && line.get(i) == '"' && line.get(i + 1) == '_';
+    }
+
+    /**
+     * ByteBufferReference.toBytesRef对非堆内存用相对读,会移动position,第二次序列化(bulk重试)就读不到数据了;
+     * 这里每次都从duplicate读
+     */
+    private static final class MappedBytes extends ByteBufferReference {
+        private final ByteBuffer buffer;
+
+        MappedBytes(ByteBuffer buffer) {
+            super(buffer);
+            this.buffer = buffer;
+        }
+
+        @Override
+        public BytesReference slice(int from, int length) {
+            if (from < 0 || from + length > length()) {
+                throw new IllegalArgumentException("can't slice a buffer with length [" + length()
+                        + "], with slice parameters from [" + from + "], length [" + length + "]");
+            }
+            ByteBuffer slice = buffer.duplicate();
+            slice.position(from).limit(from + length);
+            return new MappedBytes(slice.slice());
+        }
+
+        @Override
+        public BytesRef toBytesRef() {
+            byte[] copy = new byte[length()];
+            buffer.duplicate().get(copy);
+            return new BytesRef(copy);
+        }
+    }
+
+    /**
+     * CSV的列,由第一行列名确定;字段可以用双引号包起来,引号内的""表示一个引号
+     */
+    static final class Csv {
+        private final List<String> columns;
+        // 逐行复用,把映射内存中的一行拷出来解码
+        private byte[] scratch = new byte[1024];
+
+        Csv(List<String> columns) {
+            this.columns = columns;
+        }
+
+        static Csv header(String line) {
+            // excel导出的文件开头带BOM
+            byte[] bytes = (line.startsWith("\uFEFF") ? line.substring(1) : line).getBytes(StandardCharsets.UTF_8);
+            List<String> columns = new ArrayList<>();
+            for (String column : split(bytes, 0, bytes.length)) {
+                columns.add(column.trim().toLowerCase());
+            }
+            return new Csv(columns);
+        }
+
+        // 每个解析线程使用自己的副本
+        Csv copy() {
+            return new Csv(columns);
+        }
+
+        Record parse(ByteBuffer line) throws IOException {
+            int length = line.remaining();
+            if (scratch.length < length) {
+                scratch = new byte[Math.max(length, scratch.length * 2)];
+            }
+            line.duplicate().get(scratch, 0, length);
+            List<String> values = split(scratch, 0, length);
+            if (values.size() > columns.size()) {
+                throw new IOException("row has " + values.size() + " fields but header has " + columns.size());
+            }
+            String id = null;
+            Person person = new Person();
+            for (int i = 0; i < values.size(); i++) {
+                String value = values.get(i);
+                switch (columns.get(i)) {
+                    case "id":
+                        id = value.isEmpty() ? null : value;
+                        break;
+                    case "name":
+                        person.setName(value);
+                        break;
+                    case "age":
+                        person.setAge(value.trim().isEmpty() ? 0 : parseAge(value.trim()));
+                        break;
+                    case "address":
+                        person.setAddress(value);
+                        break;
+                    case "interests":
+                        person.setInterests(value);
+                        break;
+                    case "birth":
+                        person.setBirth(value);
+                        break;
+                    default:
+                        break;
+                }
+            }
+            if (id == null) {
+                id = UUIDs.base64UUID();
+            }
+            return new Record(id, person, PersonCodec.encode(id, person));
+        }
+
+        private static int parseAge(String value) throws IOException {
+            try {
+                return Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                throw new IOException("invalid age: " + value);
+            }
+        }
+
+        private static List<String> split(byte[] bytes, int offset, int length) {
+            List<String> values = new ArrayList<>();
+            int end = offset + length;
+            int i = offset;
+            while (true) {
+                if (i < end && bytes[i] == '"') {
+                    // 引号字段,""还原成"
+                    StringBuilder value = new StringBuilder();
+                    int start = ++i;
+                    while (i < end) {
+                        if (bytes[i] == '"') {
+                            value.append(new String(bytes, start, i - start, StandardCharsets.UTF_8));
+                            if (i + 1 < end && bytes[i + 1] == '"') {
+                                value.append('"');
+                                i += 2;
+                                start = i;
+                                continue;
+                            }
+                            i++;
+                            start = -1;
+                            break;
+                        }
+                        i++;
+                    }
+                    if (start >= 0) {
+                        value.append(new String(bytes, start, i - start, StandardCharsets.UTF_8));
+                    }
+                    values.add(value.toString());
+                    while (i < end && bytes[i] != ',') {
+                        i++;
+                    }
+                } else {
+                    int start = i;
+                    while (i < end && bytes[i] != ',') {
+                        i++;
+                    }
+                    values.add(new String(bytes, start, i - start, StandardCharsets.UTF_8));
+                }
+                if (i >= end) {
+                    return values;
+                }
+                i++;
+            }
+        }
+    }
+}
@@ -0,0 +1,539 @@
+package com.fh.dump;
+
+import com.carrotsearch.hppc.cursors.ObjectObjectCursor;
+import com.fh.config.DumpProperties;
+import com.fh.entity.Person;
+import com.fh.es.PersonIndex;
+import com.fh.es.PersonWriteEvent;
+import com.fh.es.PersonWriteEvents;
+import com.fh.partition.PersonPartitions;
+import com.fh.routing.PersonLocator;
+import com.fh.routing.PersonLocator.Location;
+import com.fh.sync.OrderedCheckpointTracker;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BackoffPolicy;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.rest.RestStatus;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 把NDJSON/CSV导出文件批量导入es
+ * 读线程把文件按块内存映射,在块大小之后的第一个换行处切开,交给解析线程并行解析,不经过堆上的读缓冲;
+ * 解析线程攒满一个bulk就异步发送,在途bulk数受限形成背压,被拒绝(429)的条目按指数退避重试;
+ * 只有连续完成的块才推进已提交偏移,保存在导出文件旁的.offset文件里,中断后从这个偏移继续;
+ * 开启分区或routing时每个bulk发送前先删掉换了位置的旧文档,见PersonLocator.removeMoved;
+ * 导入期间关闭refresh、副本数设为0,结束后(包括失败)恢复原值并refresh一次
+ */
+@Slf4j
+@Service
+public class PersonDumpLoader {
+
+    private static final String REFRESH_INTERVAL = "index.refresh_interval";
+    private static final String REPLICAS = "index.number_of_replicas";
+    // 单条失败最多记录的日志数,避免整个文件格式不对时刷屏
+    private static final int MAX_LOGGED_FAILURES = 20;
+
+    private final Client client;
+    private final DumpProperties properties;
+    private final PersonWriteEvents events;
+    private final PersonPartitions partitions;
+    private final PersonLocator locator;
+    private final ExecutorService workers;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "person-dump-scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong docsIndexed = new AtomicLong();
+    private final AtomicLong failedDocs = new AtomicLong();
+    private final AtomicInteger loggedFailures = new AtomicInteger();
+    private volatile boolean running;
+    private volatile String file;
+    private volatile long totalBytes;
+    private volatile long committedOffset;
+    private volatile String error;
+    private volatile long startedAt;
+    private volatile long finishedAt;
+
+    public PersonDumpLoader(Client client, DumpProperties properties, PersonWriteEvents events,
+                            PersonPartitions partitions, PersonLocator locator) {
+        this.client = client;
+        this.properties = properties;
+        this.events = events;
+        this.partitions = partitions;
+        this.locator = locator;
+        AtomicInteger counter = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(properties.getParallelism(), r -> {
+            Thread thread = new Thread(r, "person-dump-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 导出目录下的文件,不允许用..跳出目录
+     */
+    public Path resolve(String name) {
+        Path directory = Paths.get(properties.getDirectory()).toAbsolutePath().normalize();
+        Path file = directory.resolve(name).normalize();
+        if (!file.startsWith(directory) || !Files.isRegularFile(file)) {
+            throw new IllegalArgumentException("no dump file " + name + " in " + directory);
+        }
+        return file;
+    }
+
+    // 上次导入保存的已提交偏移,没有时为0
+    public long savedOffset(Path file) throws IOException {
+        Path offsetFile = offsetFile(file);
+        return Files.exists(offsetFile)
+                ? Long.parseLong(new String(Files.readAllBytes(offsetFile), StandardCharsets.UTF_8).trim()) : 0;
+    }
+
+    /**
+     * 在后台线程导入,已经有导入在进行时抛出IllegalStateException
+     */
+    public synchronized DumpLoadStats start(Path file, DumpFormat format, long from) {
+        if (running) {
+            throw new IllegalStateException("a dump load is already running: " + this.file);
+        }
+        running = true;
+        this.file = file.toString();
+        Thread thread = new Thread(() -> {
+            try {
+                load(file, format, from);
+            } catch (Exception e) {
+                log.error("dump load of {} failed", file, e);
+            }
+        }, "person-dump-reader");
+        thread.setDaemon(true);
+        thread.start();
+        return stats();
+    }
+
+    /**
+     * 从from开始导入,from不在行首时从下一行开始;返回时所有bulk都已结束
+     */
+    public DumpLoadStats load(Path file, DumpFormat format, long from) throws IOException, InterruptedException {
+        synchronized (this) {
+            this.file = file.toString();
+            bytesRead.set(0);
+            docsIndexed.set(0);
+            failedDocs.set(0);
+            loggedFailures.set(0);
+            error = null;
+            startedAt = System.nanoTime();
+            running = true;
+        }
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        ScheduledFuture<?> report = null;
+        Map<String, Settings> tuned = null;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            totalBytes = channel.size();
+            DumpRecords.Csv csv = null;
+            long start = lineStart(channel, from);
+            if (format == DumpFormat.CSV) {
+                long headerEnd = lineStart(channel, 1);
+                csv = DumpRecords.Csv.header(line(channel, 0, headerEnd));
+                start = Math.max(start, headerEnd);
+            }
+            committedOffset = start;
+            String[] indices = partitions.searchIndices(QueryBuilders.matchAllQuery());
+            tuned = properties.isTuneSettings() ? tune(indices) : null;
+            long interval = properties.getReportInterval().toMillis();
+            report = scheduler.scheduleAtFixedRate(() -> log.info("dump load progress: {}", stats()),
+                    interval, interval, TimeUnit.MILLISECONDS);
+            read(file, channel, start, csv, failure);
+        } finally {
+            if (report != null) {
+                report.cancel(false);
+            }
+            if (tuned != null) {
+                restore(tuned);
+            }
+            running = false;
+            finishedAt = System.nanoTime();
+        }
+        if (failure.get() != null) {
+            error = failure.get().toString();
+            log.error("dump load of {} stopped at offset {}", file, committedOffset, failure.get());
+        }
+        DumpLoadStats stats = stats();
+        log.info("dump load finished: {}", stats);
+        return stats;
+    }
+
+    private void read(Path file, FileChannel channel, long start, DumpRecords.Csv csv,
+                      AtomicReference<Exception> failure) throws IOException, InterruptedException {
+        long size = channel.size();
+        int maxInFlight = properties.getParallelism() * 2;
+        Semaphore chunks = new Semaphore(maxInFlight);
+        Semaphore bulks = new Semaphore(properties.getConcurrentBulks());
+        OrderedCheckpointTracker<Long> tracker = new OrderedCheckpointTracker<>(start);
+        ThreadLocal<DumpRecords.Csv> parsers = csv == null ? null : ThreadLocal.withInitial(csv::copy);
+        long position = start;
+        long seq = 0;
+        while (position < size && failure.get() == null) {
+            // 多映射一段用来找块末尾的换行
+            long window = Math.min(size - position, (long) properties.getChunkSizeBytes() + properties.getMaxLineBytes());
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, window);
+            int length = chunkLength(mapped, position + window == size);
+            mapped.limit(length);
+            Chunk chunk = new Chunk(file, seq++, position + length, length, tracker, chunks);
+            chunks.acquire();
+            workers.execute(() -> {
+                try {
+                    parse(mapped, chunk, parsers, bulks, failure);
+                } catch (Exception e) {
+                    chunk.failed = true;
+                    failure.compareAndSet(null, e);
+                } finally {
+                    chunk.done();
+                }
+            });
+            position += length;
+        }
+        // 等待所有在途块结束
+        chunks.acquire(maxInFlight);
+        chunks.release(maxInFlight);
+    }
+
+    // 块的长度:块大小之后的第一个换行为止,文件末尾时到末尾为止
+    private int chunkLength(ByteBuffer mapped, boolean last) {
+        int chunkSize = properties.getChunkSizeBytes();
+        if (last && mapped.limit() <= chunkSize) {
+            return mapped.limit();
+        }
+        for (int i = Math.min(chunkSize, mapped.limit()) - 1; i < mapped.limit(); i++) {
+            if (mapped.get(i) == '\n') {
+                return i + 1;
+            }
+        }
+        if (last) {
+            return mapped.limit();
+        }
+        throw new IllegalStateException("line longer than " + properties.getMaxLineBytes() + " bytes");
+    }
+
+    private void parse(ByteBuffer chunk, Chunk state, ThreadLocal<DumpRecords.Csv> parsers, Semaphore bulks,
+                       AtomicReference<Exception> failure) throws InterruptedException {
+        DumpRecords.Csv csv = parsers == null ? null : parsers.get();
+        Batch batch = new Batch();
+        int lineStart = 0;
+        int limit = chunk.limit();
+        for (int i = 0; i <= limit && failure.get() == null; i++) {
+            if (i < limit && chunk.get(i) != '\n') {
+                continue;
+            }
+            int lineEnd = i > lineStart && chunk.get(i - 1) == '\r' ? i - 1 : i;
+            if (lineEnd > lineStart) {
+                ByteBuffer line = chunk.duplicate();
+                line.position(lineStart).limit(lineEnd);
+                try {
+                    DumpRecords.Record record = csv == null ? DumpRecords.ndjson(line) : csv.parse(line);
+                    batch.add(record);
+                } catch (IOException | RuntimeException e) {
+                    failedDocs.incrementAndGet();
+                    logFailure("line at offset {} of {} skipped: {}",
+                            state.end - state.length + lineStart, state.file, e.toString());
+                }
+                if (batch.full()) {
+                    send(batch, state, bulks, failure);
+                    batch = new Batch();
+                }
+            }
+            lineStart = i + 1;
+        }
+        // 其他块失败时提前停下,没发出的行不能算进已提交偏移
+        if (failure.get() != null) {
+            state.failed = true;
+            return;
+        }
+        if (batch.request.numberOfActions() > 0) {
+            send(batch, state, bulks, failure);
+        }
+        bytesRead.addAndGet(state.length);
+    }
+
+    private void send(Batch batch, Chunk chunk, Semaphore bulks, AtomicReference<Exception> failure)
+            throws InterruptedException {
+        bulks.acquire();
+        chunk.pending.incrementAndGet();
+        Iterator<TimeValue> backoff = BackoffPolicy.exponentialBackoff(
+                TimeValue.timeValueMillis(properties.getRetryInitialDelay().toMillis()), properties.getMaxRetries())
+                .iterator();
+        Runnable finished = () -> {
+            bulks.release();
+            chunk.done();
+        };
+        // 换了分区或routing的文档先删掉旧位置上的那份
+        locator.removeMoved(batch.targets).whenComplete((v, e) -> {
+            if (e == null) {
+                execute(batch, chunk, backoff, finished, failure);
+                return;
+            }
+            chunk.failed = true;
+            failedDocs.addAndGet(batch.persons.size());
+            failure.compareAndSet(null, e instanceof CompletionException && e.getCause() instanceof Exception
+                    ? (Exception) e.getCause() : new IllegalStateException(e));
+            finished.run();
+        });
+    }
+
+    private void execute(Batch batch, Chunk chunk, Iterator<TimeValue> backoff, Runnable finished,
+                         AtomicReference<Exception> failure) {
+        client.bulk(batch.request, new ActionListener<BulkResponse>() {
+            @Override
+            public void onResponse(BulkResponse response) {
+                Batch retry = new Batch();
+                BulkItemResponse[] items = response.getItems();
+                for (int i = 0; i < items.length; i++) {
+                    BulkItemResponse item = items[i];
+                    Person person = batch.persons.get(i);
+                    if (!item.isFailed()) {
+                        docsIndexed.incrementAndGet();
+                        String key = ((IndexRequest) batch.request.requests().get(i)).routing();
+                        locator.remember(item.getId(), new Location(item.getIndex(), key));
+                        events.publish(PersonWriteEvent.index(PersonIndex.INDEX, item.getId(), person));
+                    } else if (item.status() == RestStatus.TOO_MANY_REQUESTS && backoff.hasNext()) {
+                        retry.add((IndexRequest) batch.request.requests().get(i), person);
+                    } else {
+                        // 单条失败(例如字段类型不符)不阻塞已提交偏移,只记录
+                        failedDocs.incrementAndGet();
+                        logFailure("dump person [{}] in {} failed: {}", item.getId(), chunk.file,
+                                item.getFailureMessage());
+                    }
+                }
+                if (retry.persons.isEmpty()) {
+                    finished.run();
+                } else {
+                    retry(retry, chunk, backoff, finished, failure);
+                }
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                if (ExceptionsHelper.status(e) == RestStatus.TOO_MANY_REQUESTS && backoff.hasNext()) {
+                    retry(batch, chunk, backoff, finished, failure);
+                    return;
+                }
+                chunk.failed = true;
+                failedDocs.addAndGet(batch.persons.size());
+                failure.compareAndSet(null, e);
+                finished.run();
+            }
+        });
+    }
+
+    private void retry(Batch batch, Chunk chunk, Iterator<TimeValue> backoff, Runnable finished,
+                       AtomicReference<Exception> failure) {
+        scheduler.schedule(() -> execute(batch, chunk, backoff, finished, failure),
+                backoff.next().millis(), TimeUnit.MILLISECONDS);
+    }
+
+    // 记下原值后关闭refresh、去掉副本
+    private Map<String, Settings> tune(String[] indices) {
+        Map<String, Settings> original = new LinkedHashMap<>();
+        for (ObjectObjectCursor<String, Settings> cursor : client.admin().indices().prepareGetSettings(indices)
+                .setNames(REFRESH_INTERVAL, REPLICAS).get().getIndexToSettings()) {
+            original.put(cursor.key, cursor.value);
+        }
+        client.admin().indices().prepareUpdateSettings(indices)
+                .setSettings(Settings.builder().put(REFRESH_INTERVAL, "-1").put(REPLICAS, 0)).get();
+        log.info("tuned {} for dump load, original settings {}", original.keySet(), original);
+        return original;
+    }
+
+    // 原来没有设置的refresh_interval恢复成默认值
+    private void restore(Map<String, Settings> original) {
+        original.forEach((index, settings) -> {
+            try {
+                Settings.Builder restored = Settings.builder();
+                if (settings.get(REFRESH_INTERVAL) == null) {
+                    restored.putNull(REFRESH_INTERVAL);
+                } else {
+                    restored.put(REFRESH_INTERVAL, settings.get(REFRESH_INTERVAL));
+                }
+                if (settings.get(REPLICAS) != null) {
+                    restored.put(REPLICAS, settings.get(REPLICAS));
+                }
+                client.admin().indices().prepareUpdateSettings(index).setSettings(restored).get();
+                client.admin().indices().prepareRefresh(index).get();
+            } catch (Exception e) {
+                log.error("failed to restore settings {} of {}, restore them manually", settings, index, e);
+            }
+        });
+    }
+
+    // from所在行不完整时跳到下一行
+    private static long lineStart(FileChannel channel, long from) throws IOException {
+        if (from <= 0) {
+            return 0;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        long position = from - 1;
+        while (position < channel.size()) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return channel.size();
+    }
+
+    private static String line(FileChannel channel, long start, long end) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) (end - start));
+        channel.read(buffer, start);
+        return new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8).trim();
+    }
+
+    private static Path offsetFile(Path file) {
+        return file.resolveSibling(file.getFileName() + ".offset");
+    }
+
+    // 先写临时文件再原子替换
+    private static void saveOffset(Path file, long offset) {
+        try {
+            Path target = offsetFile(file);
+            Path tmp = Files.createTempFile(target.toAbsolutePath().getParent(), target.getFileName().toString(), ".tmp");
+            Files.write(tmp, Long.toString(offset).getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void logFailure(String format, Object... args) {
+        if (loggedFailures.incrementAndGet() <= MAX_LOGGED_FAILURES) {
+            log.warn(format, args);
+        }
+    }
+
+    public DumpLoadStats stats() {
+        long end = running ? System.nanoTime() : finishedAt;
+        double seconds = (end - startedAt) / 1_000_000_000.0;
+        double megabytes = bytesRead.get() / (1024.0 * 1024.0);
+        return new DumpLoadStats(running, file, totalBytes, bytesRead.get(), docsIndexed.get(), failedDocs.get(),
+                seconds > 0 ? megabytes / seconds : 0, seconds > 0 ? docsIndexed.get() / seconds : 0,
+                committedOffset, error);
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        workers.shutdown();
+        workers.awaitTermination(30, TimeUnit.SECONDS);
+        scheduler.shutdownNow();
+    }
+
+    // 一个bulk的请求和对应的Person,写入成功后发布事件
+    private final class Batch {
+        private final BulkRequest request = new BulkRequest();
+        private final List<Person> persons = new ArrayList<>();
+        // 新读到的记录的写入位置,重试的批次不再需要
+        private final Map<String, Location> targets = new HashMap<>();
+
+        void add(DumpRecords.Record record) {
+            Location target = locator.target(record.person);
+            targets.put(record.id, target);
+            add(new IndexRequest(target.getIndex(), PersonIndex.TYPE, record.id)
+                    .routing(target.getRouting()).source(record.source, XContentType.JSON), record.person);
+        }
+
+        void add(IndexRequest request, Person person) {
+            this.request.add(request);
+            persons.add(person);
+        }
+
+        boolean full() {
+            return request.numberOfActions() >= properties.getBulkActions()
+                    || request.estimatedSizeInBytes() >= properties.getBulkSizeBytes();
+        }
+    }
+
+    // 一个块的解析和它的全部bulk都结束后才算完成;有bulk整体失败时不推进已提交偏移
+    private final class Chunk {
+        private final Path file;
+        private final long seq;
+        private final long end;
+        private final int length;
+        private final OrderedCheckpointTracker<Long> tracker;
+        private final Semaphore chunks;
+        // 解析本身算一个
+        private final AtomicInteger pending = new AtomicInteger(1);
+        private volatile boolean failed;
+
+        Chunk(Path file, long seq, long end, int length, OrderedCheckpointTracker<Long> tracker, Semaphore chunks) {
+            this.file = file;
+            this.seq = seq;
+            this.end = end;
+            this.length = length;
+            this.tracker = tracker;
+            this.chunks = chunks;
+        }
+
+        void done() {
+            if (pending.decrementAndGet() != 0) {
+                return;
+            }
+            try {
+                if (!failed) {
+                    // 推进和保存放在同一把锁里,避免较旧的偏移晚于较新的写入文件
+                    synchronized (tracker) {
+                        long before = tracker.committed();
+                        long after = tracker.complete(seq, end);
+                        if (after != before) {
+                            committedOffset = after;
+                            saveOffset(file, after);
+                        }
+                    }
+                }
+            } finally {
+                chunks.release();
+            }
+        }
+    }
+}
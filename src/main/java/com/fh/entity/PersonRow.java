@@ -0,0 +1,29 @@
+package com.fh.entity;
+
+import lombok.Data;
+
+import java.util.Date;
+
+/**
+ * mysql中person表的一行,比es文档多出主键和修改时间
+ */
+@Data
+public class PersonRow {
+    private long id;
+    private String name;
+    private String address;
+    private int age;
+    private String interests;
+    private String birth;
+    private Date updateTime;
+
+    public Person toPerson() {
+        Person person = new Person();
+        person.setName(name);
+        person.setAddress(address);
+        person.setAge(age);
+        person.setInterests(interests);
+        person.setBirth(birth);
+        return person;
+    }
+}
@@ -0,0 +1,111 @@
+package com.fh.es;
+
+import com.fh.config.AdmissionProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 一类es操作的自适应在途上限,不阻塞调用线程
+ * 上限由延迟梯度调整:近期延迟接近长期延迟时每个样本加一点(约sqrt(上限)),近期延迟明显变高说明请求在集群里排队,按比例降低;
+ * 集群拒绝请求(429)时乘性减小;上次减小之前发出的请求再被拒绝不重复减小,避免同一批被拒的请求把上限连续砍到底
+ * 排队和拒绝沿用AsyncLimiter:超过上限的请求排队,队列满或排队超时的请求以EsRejectedExecutionException拒绝
+ */
+public class AdaptiveLimiter extends AsyncLimiter {
+
+    // 近期延迟和长期延迟EWMA中新样本的权重
+    private static final double SHORT_ALPHA = 0.2;
+    private static final double LONG_ALPHA = 0.01;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double backoffRatio;
+    private final double tolerance;
+    private final double smoothing;
+    private final Map<String, Counter> shed = new HashMap<>();
+    private final Counter overloads;
+    private volatile double limit;
+    private double shortRtt;
+    private double longRtt;
+    private long lastDecrease;
+
+    public AdaptiveLimiter(String operation, AdmissionProperties properties, MeterRegistry registry) {
+        super(operation, Integer.MAX_VALUE, properties.getMaxQueued(), properties.getMaxQueueWait());
+        this.minLimit = Math.max(1, properties.getMinLimit());
+        this.maxLimit = Math.max(minLimit, properties.getMaxLimit());
+        this.backoffRatio = properties.getBackoffRatio();
+        this.tolerance = properties.getTolerance();
+        this.smoothing = properties.getSmoothing();
+        this.limit = Math.min(maxLimit, Math.max(minLimit, properties.getInitialLimit()));
+        this.lastDecrease = System.nanoTime() - 1;
+        for (String reason : new String[]{"queue_full", "queue_timeout"}) {
+            shed.put(reason, registry.counter("es.admission.shed", "op", operation, "reason", reason));
+        }
+        this.overloads = registry.counter("es.admission.overloads", "op", operation);
+        Gauge.builder("es.admission.limit", this, AdaptiveLimiter::limit).tag("op", operation).register(registry);
+        Gauge.builder("es.admission.inflight", this, AdaptiveLimiter::inFlight).tag("op", operation)
+                .register(registry);
+        Gauge.builder("es.admission.queued", this, AdaptiveLimiter::queued).tag("op", operation).register(registry);
+    }
+
+    // 正常完成,startNanos为请求发出的时间;submit的task发出请求时记下System.nanoTime(),
+    // 完成时必须以它调用一次onSuccess或onOverload,或者调用onIgnore,代替release
+    public void onSuccess(long startNanos) {
+        long rttNanos = System.nanoTime() - startNanos;
+        synchronized (this) {
+            if (shortRtt == 0) {
+                shortRtt = rttNanos;
+                longRtt = rttNanos;
+            } else {
+                shortRtt = SHORT_ALPHA * rttNanos + (1 - SHORT_ALPHA) * shortRtt;
+                longRtt = LONG_ALPHA * rttNanos + (1 - LONG_ALPHA) * longRtt;
+            }
+            // 集群恢复后近期延迟远低于长期延迟,让长期延迟尽快跟下来
+            if (longRtt > 2 * shortRtt) {
+                longRtt *= 0.95;
+            }
+            double current = limit;
+            double gradient = Math.max(0.5, Math.min(1.0, tolerance * longRtt / shortRtt));
+            double target = current * gradient + Math.sqrt(current);
+            // 在途数远低于上限时请求量本身不大,延迟说明不了还能承受多少,不往上加
+            if (target <= current || inFlight() >= current / 2) {
+                limit = clamp(current * (1 - smoothing) + target * smoothing);
+            }
+        }
+        release();
+    }
+
+    // 集群拒绝或超时
+    public void onOverload(long startNanos) {
+        overloads.increment();
+        synchronized (this) {
+            if (startNanos - lastDecrease > 0) {
+                limit = clamp(limit * backoffRatio);
+                lastDecrease = System.nanoTime();
+            }
+        }
+        release();
+    }
+
+    // 其他失败,不影响上限
+    public void onIgnore() {
+        release();
+    }
+
+    @Override
+    public int limit() {
+        return (int) limit;
+    }
+
+    @Override
+    protected void onShed(String reason) {
+        shed.get(reason).increment();
+    }
+
+    private double clamp(double value) {
+        return Math.max(minLimit, Math.min(maxLimit, value));
+    }
+}
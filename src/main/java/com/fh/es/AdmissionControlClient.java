@@ -0,0 +1,144 @@
+package com.fh.es;
+
+import com.fh.config.AdmissionProperties;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.ShardSearchFailure;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.FilterClient;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.transport.ReceiveTimeoutTransportException;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 对search、bulk、update、mget四类请求分别做自适应并发限制,见AdaptiveLimiter
+ * index、delete归入bulk,get归入mget,scroll、msearch归入search;其他请求(管理操作、by-query任务、清理scroll)不限制
+ * 集群的拒绝包括整个请求429、bulk条目429、查询分片429和传输超时,都会降低对应类别的上限
+ */
+public class AdmissionControlClient extends FilterClient {
+
+    private final Map<String, AdaptiveLimiter> limiters = new HashMap<>();
+
+    public AdmissionControlClient(Client in, AdmissionProperties properties, MeterRegistry registry) {
+        super(in);
+        for (String operation : new String[]{"search", "bulk", "update", "mget"}) {
+            limiters.put(operation, new AdaptiveLimiter(operation, properties, registry));
+        }
+    }
+
+    // 没有这个类别时抛出IllegalArgumentException
+    public AdaptiveLimiter limiter(String operation) {
+        AdaptiveLimiter limiter = limiters.get(operation);
+        if (limiter == null) {
+            throw new IllegalArgumentException("unknown operation class: " + operation);
+        }
+        return limiter;
+    }
+
+    @Override
+    protected <Request extends ActionRequest, Response extends ActionResponse,
+            RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder>> void doExecute(
+            Action<Request, Response, RequestBuilder> action, Request request, ActionListener<Response> listener) {
+        AdaptiveLimiter limiter = limiters.get(category(InstrumentedClient.operation(action, request)));
+        if (limiter == null) {
+            super.doExecute(action, request, listener);
+            return;
+        }
+        limiter.submit(() -> {
+            long start = System.nanoTime();
+            ActionListener<Response> tracked = new ActionListener<Response>() {
+                @Override
+                public void onResponse(Response response) {
+                    if (overloaded(response)) {
+                        limiter.onOverload(start);
+                    } else {
+                        limiter.onSuccess(start);
+                    }
+                    listener.onResponse(response);
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    if (overloaded(e)) {
+                        limiter.onOverload(start);
+                    } else {
+                        limiter.onIgnore();
+                    }
+                    listener.onFailure(e);
+                }
+            };
+            try {
+                super.doExecute(action, request, tracked);
+            } catch (Exception e) {
+                tracked.onFailure(e);
+            }
+        }, listener::onFailure);
+    }
+
+    private static String category(String operation) {
+        switch (operation) {
+            case "search":
+            case "scroll":
+            case "msearch":
+                return "search";
+            case "bulk":
+            case "index":
+            case "delete":
+                return "bulk";
+            case "update":
+            case "upsert":
+                return "update";
+            case "get":
+            case "mget":
+                return "mget";
+            default:
+                return null;
+        }
+    }
+
+    private static boolean overloaded(Exception e) {
+        return ExceptionsHelper.status(e) == RestStatus.TOO_MANY_REQUESTS
+                || ExceptionsHelper.unwrap(e, ReceiveTimeoutTransportException.class) != null;
+    }
+
+    // 请求整体成功,但部分条目或分片被拒绝
+    private static boolean overloaded(ActionResponse response) {
+        if (response instanceof BulkResponse && ((BulkResponse) response).hasFailures()) {
+            for (BulkItemResponse item : (BulkResponse) response) {
+                if (item.isFailed() && item.status() == RestStatus.TOO_MANY_REQUESTS) {
+                    return true;
+                }
+            }
+        } else if (response instanceof SearchResponse) {
+            return overloaded((SearchResponse) response);
+        } else if (response instanceof MultiSearchResponse) {
+            for (MultiSearchResponse.Item item : (MultiSearchResponse) response) {
+                if (item.isFailure() ? ExceptionsHelper.status(item.getFailure()) == RestStatus.TOO_MANY_REQUESTS
+                        : overloaded(item.getResponse())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean overloaded(SearchResponse response) {
+        for (ShardSearchFailure failure : response.getShardFailures()) {
+            if (failure.status() == RestStatus.TOO_MANY_REQUESTS) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
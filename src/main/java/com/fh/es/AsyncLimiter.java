@@ -0,0 +1,188 @@
+package com.fh.es;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * 限制同时在途的异步请求数,不阻塞调用线程
+ * 超过上限的请求进入队列,前面的请求完成时在完成回调的线程上发出;队列也满时立即失败
+ * 设置了排队时间上限时每个排队的请求各自定时,到时从队列中移除并拒绝,不依赖其他请求完成;
+ * 上限由limit()决定,子类可以覆盖它动态调整,见AdaptiveLimiter
+ */
+public class AsyncLimiter {
+
+    // 所有限流器共用的排队超时定时器
+    private static final ScheduledThreadPoolExecutor TIMER = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread thread = new Thread(r, "es-limiter-timeout");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        TIMER.setRemoveOnCancelPolicy(true);
+    }
+
+    private final String operation;
+    private final int maxInFlight;
+    private final int maxQueued;
+    private final long maxQueueWaitNanos;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final ConcurrentLinkedQueue<Waiter> queue = new ConcurrentLinkedQueue<>();
+
+    public AsyncLimiter(int maxInFlight, int maxQueued) {
+        this("", maxInFlight, maxQueued, Duration.ZERO);
+    }
+
+    /**
+     * maxQueueWait为null或0时排队不限时间
+     */
+    public AsyncLimiter(String operation, int maxInFlight, int maxQueued, Duration maxQueueWait) {
+        this.operation = operation.isEmpty() ? "" : operation + " ";
+        this.maxInFlight = maxInFlight;
+        this.maxQueued = maxQueued;
+        this.maxQueueWaitNanos = maxQueueWait == null ? 0 : maxQueueWait.toNanos();
+    }
+
+    // 不限制在途数,只计数
+    public static AsyncLimiter unlimited() {
+        return new AsyncLimiter(Integer.MAX_VALUE, 0);
+    }
+
+    /**
+     * call中发出请求并把结果交给传入的listener
+     */
+    public <T> CompletableFuture<T> submit(Consumer<ActionListener<T>> call) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        submit(() -> {
+            ActionListener<T> listener = new ActionListener<T>() {
+                @Override
+                public void onResponse(T response) {
+                    release();
+                    future.complete(response);
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    release();
+                    future.completeExceptionally(e);
+                }
+            };
+            try {
+                call.accept(listener);
+            } catch (Exception e) {
+                listener.onFailure(e);
+            }
+        }, future::completeExceptionally);
+        return future;
+    }
+
+    /**
+     * 有空位时在调用线程上执行task,否则排队;task发出的请求结束时必须调用一次release
+     * 被拒绝时不执行task,把EsRejectedExecutionException交给reject
+     */
+    public void submit(Runnable task, Consumer<Exception> reject) {
+        if (tryAcquire()) {
+            task.run();
+        } else if (queued.incrementAndGet() <= maxQueued) {
+            Waiter waiter = new Waiter(task, reject);
+            queue.add(waiter);
+            if (maxQueueWaitNanos > 0) {
+                waiter.deadline = TIMER.schedule(() -> expire(waiter), maxQueueWaitNanos, TimeUnit.NANOSECONDS);
+            }
+            // 入队期间可能已有请求完成
+            drain();
+        } else {
+            queued.decrementAndGet();
+            onShed("queue_full");
+            reject.accept(new EsRejectedExecutionException("too many es " + operation + "requests: " + inFlight.get()
+                    + " in flight (limit " + limit() + ") and " + maxQueued + " queued"));
+        }
+    }
+
+    // 请求结束,让出位置给排队的请求
+    public void release() {
+        inFlight.decrementAndGet();
+        drain();
+    }
+
+    public int limit() {
+        return maxInFlight;
+    }
+
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    public int queued() {
+        return queued.get();
+    }
+
+    // 请求因queue_full或queue_timeout被拒绝
+    protected void onShed(String reason) {
+    }
+
+    private void expire(Waiter waiter) {
+        if (!waiter.claimed.compareAndSet(false, true)) {
+            return;
+        }
+        queue.remove(waiter);
+        queued.decrementAndGet();
+        onShed("queue_timeout");
+        waiter.reject.accept(new EsRejectedExecutionException("es " + operation + "request waited "
+                + TimeUnit.NANOSECONDS.toMillis(maxQueueWaitNanos) + "ms in queue (limit " + limit() + ")"));
+    }
+
+    private void drain() {
+        while (!queue.isEmpty() && tryAcquire()) {
+            Waiter waiter = queue.poll();
+            // 队列已被取空,或者这个请求刚好到时被拒绝
+            if (waiter == null || !waiter.claimed.compareAndSet(false, true)) {
+                inFlight.decrementAndGet();
+                if (waiter == null) {
+                    return;
+                }
+                continue;
+            }
+            queued.decrementAndGet();
+            if (waiter.deadline != null) {
+                waiter.deadline.cancel(false);
+            }
+            waiter.task.run();
+        }
+    }
+
+    private boolean tryAcquire() {
+        int current;
+        do {
+            current = inFlight.get();
+            if (current >= limit()) {
+                return false;
+            }
+        } while (!inFlight.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    private static final class Waiter {
+        private final Runnable task;
+        private final Consumer<Exception> reject;
+        // 发出和超时只有一个生效
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private volatile ScheduledFuture<?> deadline;
+
+        Waiter(Runnable task, Consumer<Exception> reject) {
+            this.task = task;
+            this.reject = reject;
+        }
+    }
+}
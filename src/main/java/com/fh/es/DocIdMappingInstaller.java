@@ -0,0 +1,77 @@
+package com.fh.es;
+
+import com.fh.config.JobsProperties;
+import com.fh.jobs.ByQueryJobStatus;
+import com.fh.jobs.PersonByQueryJobs;
+import com.fh.partition.PersonPartitions;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.script.Script;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * 游标分页以doc_id为tiebreaker时(默认)启动后给lib加上doc_id的mapping,lib不存在时带着它创建,
+ * 再用后台update_by_query给还没有doc_id的文档补上;开启分区时改为已有的每个分区,之后新建的分区由索引模板带上
+ * 回填完成(见/jobs)之前,没有doc_id的文档在tiebreaker上取值相同,翻页时可能重复或遗漏;已冻结的分区无法回填
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "es.paging", name = "tiebreaker", havingValue = PersonCodec.ID_FIELD,
+        matchIfMissing = true)
+public class DocIdMappingInstaller {
+
+    private final Client client;
+    private final PersonByQueryJobs jobs;
+    private final JobsProperties jobsProperties;
+    private final PersonPartitions partitions;
+
+    public DocIdMappingInstaller(Client client, PersonByQueryJobs jobs, JobsProperties jobsProperties,
+                                 PersonPartitions partitions) {
+        this.client = client;
+        this.jobs = jobs;
+        this.jobsProperties = jobsProperties;
+        this.partitions = partitions;
+    }
+
+    @PostConstruct
+    public void install() {
+        Collection<String> indices = partitions.isEnabled() ? partitions.partitions()
+                : Collections.singleton(PersonIndex.INDEX);
+        if (indices.isEmpty()) {
+            return;
+        }
+        try {
+            for (String index : indices) {
+                if (client.admin().indices().prepareExists(index).get().isExists()) {
+                    client.admin().indices().preparePutMapping(index).setType(PersonIndex.TYPE)
+                            .setSource(PersonMapping.idMapping()).get();
+                } else {
+                    // 自动创建时doc_id会被动态mapping成text,不能排序
+                    client.admin().indices().prepareCreate(index)
+                            .addMapping(PersonIndex.TYPE, PersonMapping.idMapping()).get();
+                }
+            }
+            QueryBuilder missing = QueryBuilders.boolQuery()
+                    .mustNot(QueryBuilders.existsQuery(PersonCodec.ID_FIELD));
+            long count = client.prepareSearch(partitions.readIndex()).setQuery(missing).setSize(0).get()
+                    .getHits().getTotalHits();
+            if (count > 0) {
+                ByQueryJobStatus job = jobs.updateByQuery(missing,
+                        new Script("ctx._source." + PersonCodec.ID_FIELD + " = ctx._id"),
+                        jobsProperties.getRequestsPerSecond());
+                log.info("{} documents in {} have no {}, backfill job {}", count, indices, PersonCodec.ID_FIELD,
+                        job.getId());
+            }
+        } catch (Exception e) {
+            // 集群不可用时不影响启动,下次启动再装
+            log.error("failed to install {} mapping on {}", PersonCodec.ID_FIELD, indices, e);
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.fh.es;
+
+import lombok.Data;
+
+/**
+ * 客户端健康状态快照
+ */
+@Data
+public class EsClientHealth {
+
+    public enum Status {
+        // 尚未完成检查
+        UNKNOWN,
+        GREEN,
+        YELLOW,
+        RED,
+        // 没有可用节点
+        UNAVAILABLE
+    }
+
+    private final Status status;
+    // 当前已连接的节点数
+    private final int connectedNodes;
+    // 检查时间
+    private final long checkedAt;
+    // 最近一次失败的原因
+    private final String error;
+}
@@ -0,0 +1,102 @@
+package com.fh.es;
+
+import com.fh.config.EsClientProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthResponse;
+import org.elasticsearch.client.transport.TransportClient;
+import org.elasticsearch.common.unit.TimeValue;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 管理共享客户端的生命周期:启动预热,后台健康检查,优雅关闭
+ * 节点列表的刷新由TransportClient自身的sniff采样完成
+ */
+@Slf4j
+@Component
+public class EsClientManager {
+
+    private final TransportClient client;
+    private final EsClientProperties properties;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "es-client-health");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile EsClientHealth health =
+            new EsClientHealth(EsClientHealth.Status.UNKNOWN, 0, System.currentTimeMillis(), null);
+
+    public EsClientManager(TransportClient client, EsClientProperties properties) {
+        this.client = client;
+        this.properties = properties;
+    }
+
+    // 启动时同步做一次健康检查,建立到各节点的连接;集群不可用时只记录日志不阻止启动
+    @PostConstruct
+    public void warmUp() {
+        try {
+            ClusterHealthResponse response = client.admin().cluster().prepareHealth()
+                    .setTimeout(TimeValue.timeValueMillis(properties.getWarmupTimeout().toMillis()))
+                    .get(TimeValue.timeValueMillis(properties.getWarmupTimeout().toMillis()));
+            update(response);
+            log.info("es client warmed up, connected nodes: {}", client.connectedNodes().size());
+        } catch (Exception e) {
+            update(e);
+            log.warn("es client warm up failed: {}", e.getMessage());
+        }
+        long interval = properties.getHealthCheckInterval().toMillis();
+        scheduler.scheduleWithFixedDelay(this::check, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    // 后台异步检查,不占用调度线程等待
+    private void check() {
+        try {
+            client.admin().cluster().prepareHealth().execute(new ActionListener<ClusterHealthResponse>() {
+                @Override
+                public void onResponse(ClusterHealthResponse response) {
+                    update(response);
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    update(e);
+                }
+            });
+        } catch (Exception e) {
+            update(e);
+        }
+    }
+
+    private void update(ClusterHealthResponse response) {
+        EsClientHealth.Status status = EsClientHealth.Status.valueOf(response.getStatus().name());
+        health = new EsClientHealth(status, client.connectedNodes().size(), System.currentTimeMillis(), null);
+    }
+
+    private void update(Exception e) {
+        health = new EsClientHealth(EsClientHealth.Status.UNAVAILABLE, client.connectedNodes().size(),
+                System.currentTimeMillis(), e.getMessage());
+    }
+
+    public EsClientHealth health() {
+        return health;
+    }
+
+    public boolean isAvailable() {
+        EsClientHealth current = health;
+        return current.getStatus() != EsClientHealth.Status.UNAVAILABLE && current.getConnectedNodes() > 0;
+    }
+
+    // 客户端本身由ElasticsearchConfig中的destroyMethod关闭,这里只停止后台检查
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        scheduler.shutdown();
+        scheduler.awaitTermination(5, TimeUnit.SECONDS);
+    }
+}
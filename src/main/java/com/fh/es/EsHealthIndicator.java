@@ -0,0 +1,43 @@
+package com.fh.es;
+
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.stereotype.Component;
+
+/**
+ * actuator健康检查,直接读取EsClientManager定时检查的结果,不额外访问集群
+ * bean名称与spring boot自带的es健康检查相同,用来替换它
+ */
+@Component("elasticsearchHealthIndicator")
+public class EsHealthIndicator implements HealthIndicator {
+
+    private final EsClientManager manager;
+
+    public EsHealthIndicator(EsClientManager manager) {
+        this.manager = manager;
+    }
+
+    @Override
+    public Health health() {
+        EsClientHealth health = manager.health();
+        Health.Builder builder;
+        switch (health.getStatus()) {
+            case GREEN:
+            case YELLOW:
+                builder = Health.up();
+                break;
+            case UNKNOWN:
+                builder = Health.unknown();
+                break;
+            default:
+                builder = Health.down();
+        }
+        builder.withDetail("status", health.getStatus())
+                .withDetail("connectedNodes", health.getConnectedNodes())
+                .withDetail("checkedAt", health.getCheckedAt());
+        if (health.getError() != null) {
+            builder.withDetail("error", health.getError());
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,208 @@
+package com.fh.es;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.bulk.BulkAction;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteAction;
+import org.elasticsearch.action.get.GetAction;
+import org.elasticsearch.action.get.MultiGetAction;
+import org.elasticsearch.action.index.IndexAction;
+import org.elasticsearch.action.search.MultiSearchAction;
+import org.elasticsearch.action.search.SearchAction;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchScrollAction;
+import org.elasticsearch.action.update.UpdateAction;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.FilterClient;
+import org.elasticsearch.index.reindex.AbstractBulkByScrollRequest;
+import org.elasticsearch.index.reindex.BulkByScrollResponse;
+import org.elasticsearch.index.reindex.DeleteByQueryAction;
+import org.elasticsearch.index.reindex.UpdateByQueryAction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 给所有经过的es请求记录指标
+ * 按操作类型记录客户端延迟、服务端took以及两者之差(序列化、网络、排队),
+ * bulk记录条目数和失败条目数,scroll每页单独计时;超过阈值的请求输出到慢查询日志
+ * 命中映射成Person发生在响应返回之后,不在overhead里,单独记为es.client.mapping,由PersonCodec解码时记录
+ * 每种操作的meter只在第一次出现时注册,热路径上只有两次nanoTime和一次记录
+ */
+public class InstrumentedClient extends FilterClient {
+
+    private static final Logger SLOW_LOG = LoggerFactory.getLogger("es.slowlog");
+
+    private final MeterRegistry registry;
+    private final long slowNanos;
+    private final boolean histogram;
+    private final Map<String, Meters> meters = new ConcurrentHashMap<>();
+    private final Counter bulkItems;
+    private final Counter bulkItemFailures;
+    private final Timer mapping;
+
+    public InstrumentedClient(Client in, MeterRegistry registry, Duration slowThreshold, boolean histogram) {
+        super(in);
+        this.registry = registry;
+        this.slowNanos = slowThreshold.toNanos();
+        this.histogram = histogram;
+        this.bulkItems = registry.counter("es.client.bulk.items");
+        this.bulkItemFailures = registry.counter("es.client.bulk.item.failures");
+        this.mapping = Timer.builder("es.client.mapping").tag("type", "person")
+                .publishPercentileHistogram(histogram).register(registry);
+    }
+
+    // _source映射成Person的耗时,交给PersonCodec.instrument
+    public Timer mapping() {
+        return mapping;
+    }
+
+    @Override
+    protected <Request extends ActionRequest, Response extends ActionResponse,
+            RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder>> void doExecute(
+            Action<Request, Response, RequestBuilder> action, Request request, ActionListener<Response> listener) {
+        String operation = operation(action, request);
+        Meters op = meters.computeIfAbsent(operation, Meters::new);
+        long start = System.nanoTime();
+        super.doExecute(action, request, new ActionListener<Response>() {
+            @Override
+            public void onResponse(Response response) {
+                long elapsed = System.nanoTime() - start;
+                op.success.record(elapsed, TimeUnit.NANOSECONDS);
+                long took = took(response);
+                if (took >= 0) {
+                    op.took.record(took, TimeUnit.MILLISECONDS);
+                    op.overhead.record(Math.max(0, elapsed - TimeUnit.MILLISECONDS.toNanos(took)),
+                            TimeUnit.NANOSECONDS);
+                }
+                if (response instanceof BulkResponse) {
+                    countItems((BulkResponse) response);
+                }
+                if (elapsed > slowNanos) {
+                    logSlow(operation, request, elapsed, took);
+                }
+                listener.onResponse(response);
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                long elapsed = System.nanoTime() - start;
+                op.failure.record(elapsed, TimeUnit.NANOSECONDS);
+                if (elapsed > slowNanos) {
+                    logSlow(operation, request, elapsed, -1);
+                }
+                listener.onFailure(e);
+            }
+        });
+    }
+
+    private void countItems(BulkResponse response) {
+        bulkItems.increment(response.getItems().length);
+        if (response.hasFailures()) {
+            int failures = 0;
+            for (BulkItemResponse item : response) {
+                if (item.isFailed()) {
+                    failures++;
+                }
+            }
+            bulkItemFailures.increment(failures);
+        }
+    }
+
+    // 只在慢请求上格式化查询,正常请求没有额外开销
+    private void logSlow(String operation, ActionRequest request, long elapsedNanos, long took) {
+        Object query = request;
+        if (request instanceof SearchRequest) {
+            query = ((SearchRequest) request).source();
+        } else if (request instanceof AbstractBulkByScrollRequest) {
+            query = ((AbstractBulkByScrollRequest<?>) request).getSearchRequest().source();
+        }
+        SLOW_LOG.warn("slow es {} took {}ms (server {}ms): {}", operation,
+                TimeUnit.NANOSECONDS.toMillis(elapsedNanos), took, query);
+    }
+
+    static String operation(Action<?, ?, ?> action, ActionRequest request) {
+        String name = action.name();
+        if (IndexAction.NAME.equals(name)) {
+            return "index";
+        }
+        if (UpdateAction.NAME.equals(name)) {
+            UpdateRequest update = (UpdateRequest) request;
+            return update.upsertRequest() != null || update.docAsUpsert() ? "upsert" : "update";
+        }
+        if (DeleteAction.NAME.equals(name)) {
+            return "delete";
+        }
+        if (DeleteByQueryAction.NAME.equals(name)) {
+            return "delete_by_query";
+        }
+        if (UpdateByQueryAction.NAME.equals(name)) {
+            return "update_by_query";
+        }
+        if (GetAction.NAME.equals(name)) {
+            return "get";
+        }
+        if (MultiGetAction.NAME.equals(name)) {
+            return "mget";
+        }
+        if (BulkAction.NAME.equals(name)) {
+            return "bulk";
+        }
+        if (SearchAction.NAME.equals(name)) {
+            return "search";
+        }
+        if (SearchScrollAction.NAME.equals(name)) {
+            return "scroll";
+        }
+        if (MultiSearchAction.NAME.equals(name)) {
+            return "msearch";
+        }
+        return "other";
+    }
+
+    // 服务端耗时,没有took的响应返回-1
+    private static long took(ActionResponse response) {
+        if (response instanceof SearchResponse) {
+            return ((SearchResponse) response).getTook().millis();
+        }
+        if (response instanceof BulkResponse) {
+            return ((BulkResponse) response).getTook().millis();
+        }
+        if (response instanceof BulkByScrollResponse) {
+            return ((BulkByScrollResponse) response).getTook().millis();
+        }
+        return -1;
+    }
+
+    private final class Meters {
+        private final Timer success;
+        private final Timer failure;
+        private final Timer took;
+        private final Timer overhead;
+
+        Meters(String operation) {
+            this.success = timer("es.client.requests", operation).tag("outcome", "success").register(registry);
+            this.failure = timer("es.client.requests", operation).tag("outcome", "failure").register(registry);
+            this.took = timer("es.client.took", operation).register(registry);
+            this.overhead = timer("es.client.overhead", operation).register(registry);
+        }
+
+        private Timer.Builder timer(String name, String operation) {
+            return Timer.builder(name).tag("op", operation).publishPercentileHistogram(histogram);
+        }
+    }
+}
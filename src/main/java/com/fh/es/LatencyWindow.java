@@ -0,0 +1,42 @@
+package com.fh.es;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 最近若干次请求的延迟,用于估算分位数
+ * 环形数组记录样本,每写入十分之一窗口重新排序计算一次,读取只是一次volatile读
+ */
+final class LatencyWindow {
+
+    private final long[] samples;
+    private final double percentile;
+    private final AtomicLong count = new AtomicLong();
+    private final int refreshEvery;
+    private volatile long value = -1;
+
+    LatencyWindow(int size, double percentile) {
+        this.samples = new long[size];
+        this.percentile = percentile;
+        this.refreshEvery = Math.max(1, size / 10);
+    }
+
+    void record(long nanos) {
+        long n = count.getAndIncrement();
+        samples[(int) (n % samples.length)] = nanos;
+        if ((n + 1) % refreshEvery == 0 && n + 1 >= samples.length / 2) {
+            refresh(Math.min(n + 1, samples.length));
+        }
+    }
+
+    // 样本不足时返回-1
+    long percentile() {
+        return value;
+    }
+
+    private void refresh(long size) {
+        long[] sorted = Arrays.copyOf(samples, (int) size);
+        Arrays.sort(sorted);
+        value = sorted[(int) Math.min(size - 1, (long) Math.ceil(percentile * size) - 1)];
+    }
+}
@@ -0,0 +1,62 @@
+package com.fh.es;
+
+import com.fh.config.JobsProperties;
+import com.fh.config.NgramProperties;
+import com.fh.jobs.ByQueryJobStatus;
+import com.fh.jobs.PersonByQueryJobs;
+import com.fh.partition.PersonPartitions;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * es.ngram.install=true时启动后给lib加上n-gram子字段,并用后台update_by_query回填已有文档
+ * 开启分区时改为给已有的每个分区加上,之后新建的分区由索引模板带上
+ * 回填完成(见/jobs)之后再打开es.ngram.enabled
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "es.ngram", name = "install", havingValue = "true")
+public class NgramMappingInstaller {
+
+    private final Client client;
+    private final NgramProperties properties;
+    private final PersonByQueryJobs jobs;
+    private final JobsProperties jobsProperties;
+    private final PersonPartitions partitions;
+
+    public NgramMappingInstaller(Client client, NgramProperties properties, PersonByQueryJobs jobs,
+                                 JobsProperties jobsProperties, PersonPartitions partitions) {
+        this.client = client;
+        this.properties = properties;
+        this.jobs = jobs;
+        this.jobsProperties = jobsProperties;
+        this.partitions = partitions;
+    }
+
+    @PostConstruct
+    public void install() {
+        Collection<String> indices = partitions.isEnabled() ? partitions.partitions()
+                : Collections.singleton(PersonIndex.INDEX);
+        try {
+            boolean backfill = false;
+            for (String index : indices) {
+                backfill |= PersonMapping.apply(client, index, properties);
+            }
+            if (backfill) {
+                ByQueryJobStatus job = jobs.updateByQuery(QueryBuilders.matchAllQuery(), null,
+                        jobsProperties.getRequestsPerSecond());
+                log.info("n-gram subfields added to {}, backfill job {}", indices, job.getId());
+            }
+        } catch (Exception e) {
+            // 集群不可用时不影响启动,下次启动再装
+            log.error("failed to install n-gram subfields on {}", indices, e);
+        }
+    }
+}
@@ -0,0 +1,321 @@
+package com.fh.es;
+
+import com.fh.config.NodeSelectorProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.search.SearchAction;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.support.AbstractClient;
+import org.elasticsearch.client.transport.NoNodeAvailableException;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.transport.ConnectTransportException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 在多个节点的客户端之间按延迟选择协调节点,代替TransportClient的轮询
+ * 每个节点记录延迟的EWMA和在途请求数,得分为(EWMA + 拒绝惩罚) * (在途数 + 1),选得分最低的节点;
+ * 节点拒绝请求(429)或连不上时加一份惩罚,惩罚按半衰期衰减;长时间没被选中的节点偶尔发一个请求探测,刷新它的延迟
+ * 开启对冲时,不带scroll的查询超过延迟分位数还没返回,就向另一个节点再发一次,用先返回的结果,另一个结果丢弃
+ */
+public class NodeSelectingClient extends AbstractClient {
+
+    private final List<Node> nodes = new ArrayList<>();
+    private final double alpha;
+    private final long penaltyNanos;
+    private final long halfLifeNanos;
+    private final long probeNanos;
+    private final boolean hedge;
+    private final long hedgeMinDelayNanos;
+    private final LatencyWindow searchLatency;
+    private final Counter hedges;
+    private final Counter hedgeWins;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "es-hedge");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // clients为节点名到只连这一个节点的客户端,关闭时一起关闭
+    public NodeSelectingClient(Map<String, ? extends Client> clients, NodeSelectorProperties properties,
+                               MeterRegistry registry) {
+        super(clients.values().iterator().next().settings(), clients.values().iterator().next().threadPool());
+        this.alpha = properties.getAlpha();
+        this.penaltyNanos = properties.getRejectionPenalty().toNanos();
+        this.halfLifeNanos = Math.max(1, properties.getPenaltyHalfLife().toNanos());
+        this.probeNanos = properties.getProbeInterval().toNanos();
+        this.hedge = properties.isHedge() && clients.size() > 1;
+        this.hedgeMinDelayNanos = properties.getHedgeMinDelay().toNanos();
+        this.searchLatency = new LatencyWindow(properties.getHedgeWindow(), properties.getHedgePercentile());
+        this.hedges = registry.counter("es.nodes.hedges");
+        this.hedgeWins = registry.counter("es.nodes.hedge.wins");
+        long now = System.nanoTime();
+        clients.forEach((name, client) -> nodes.add(new Node(name, client, now, registry)));
+    }
+
+    public List<String> nodeNames() {
+        List<String> names = new ArrayList<>();
+        for (Node node : nodes) {
+            names.add(node.name);
+        }
+        return Collections.unmodifiableList(names);
+    }
+
+    // 节点当前的延迟EWMA,还没有样本时为0
+    public long latencyNanos(String name) {
+        return (long) node(name).ewma;
+    }
+
+    public long penaltyNanos(String name) {
+        return (long) node(name).penalty(System.nanoTime());
+    }
+
+    @Override
+    protected <Request extends ActionRequest, Response extends ActionResponse,
+            RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder>> void doExecute(
+            Action<Request, Response, RequestBuilder> action, Request request, ActionListener<Response> listener) {
+        Node node = select(null);
+        // scroll查询会在节点上留下上下文,不能重复发
+        if (!SearchAction.NAME.equals(action.name()) || ((SearchRequest) request).scroll() != null) {
+            node.execute(action, request, listener, null);
+            return;
+        }
+        long delay = searchLatency.percentile();
+        if (!hedge || delay < 0) {
+            node.execute(action, request, listener, searchLatency);
+            return;
+        }
+        Hedge<Response> hedged = new Hedge<>(listener);
+        node.execute(action, request, hedged.attempt(false), searchLatency);
+        hedged.timer = scheduler.schedule(() -> {
+            if (hedged.launch()) {
+                hedges.increment();
+                select(node).execute(action, request, hedged.attempt(true), searchLatency);
+            }
+        }, Math.max(delay, hedgeMinDelayNanos), TimeUnit.NANOSECONDS);
+    }
+
+    // 选得分最低的节点,exclude为对冲时已经发过的节点
+    private Node select(Node exclude) {
+        long now = System.nanoTime();
+        Node best = null;
+        double bestScore = Double.MAX_VALUE;
+        for (Node node : nodes) {
+            if (node == exclude) {
+                continue;
+            }
+            if (node.probe(now)) {
+                return node;
+            }
+            double score = node.score(now);
+            if (best == null || score < bestScore
+                    || score == bestScore && node.outstanding.get() < best.outstanding.get()) {
+                best = node;
+                bestScore = score;
+            }
+        }
+        best.lastSelected.set(now);
+        return best;
+    }
+
+    private Node node(String name) {
+        for (Node node : nodes) {
+            if (node.name.equals(name)) {
+                return node;
+            }
+        }
+        throw new IllegalArgumentException("unknown node: " + name);
+    }
+
+    // 队列满(429)或节点连不上,说明节点过载或不可用
+    private static boolean rejected(Exception e) {
+        return ExceptionsHelper.status(e) == RestStatus.TOO_MANY_REQUESTS
+                || ExceptionsHelper.unwrap(e, ConnectTransportException.class, NoNodeAvailableException.class) != null;
+    }
+
+    private static boolean rejected(ActionResponse response) {
+        if (response instanceof BulkResponse && ((BulkResponse) response).hasFailures()) {
+            for (BulkItemResponse item : (BulkResponse) response) {
+                if (item.isFailed() && item.status() == RestStatus.TOO_MANY_REQUESTS) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        for (Node node : nodes) {
+            node.client.close();
+        }
+    }
+
+    private final class Node {
+        private final String name;
+        private final Client client;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final AtomicLong lastSelected;
+        private final Counter rejections;
+        private volatile double ewma;
+        private volatile double penalty;
+        private volatile long penaltyAt;
+
+        Node(String name, Client client, long now, MeterRegistry registry) {
+            this.name = name;
+            this.client = client;
+            this.lastSelected = new AtomicLong(now);
+            this.penaltyAt = now;
+            this.rejections = registry.counter("es.nodes.rejections", "node", name);
+            Gauge.builder("es.nodes.latency", this, node -> node.ewma / 1e6).tag("node", name)
+                    .baseUnit("milliseconds").register(registry);
+            Gauge.builder("es.nodes.penalty", this, node -> node.penalty(System.nanoTime()) / 1e6)
+                    .tag("node", name).baseUnit("milliseconds").register(registry);
+            Gauge.builder("es.nodes.outstanding", outstanding, AtomicInteger::get).tag("node", name)
+                    .register(registry);
+        }
+
+        <Request extends ActionRequest, Response extends ActionResponse,
+                RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder>> void execute(
+                Action<Request, Response, RequestBuilder> action, Request request, ActionListener<Response> listener,
+                LatencyWindow window) {
+            outstanding.incrementAndGet();
+            long start = System.nanoTime();
+            ActionListener<Response> tracked = new ActionListener<Response>() {
+                @Override
+                public void onResponse(Response response) {
+                    outstanding.decrementAndGet();
+                    long elapsed = System.nanoTime() - start;
+                    if (rejected(response)) {
+                        penalize();
+                    } else {
+                        record(elapsed);
+                        if (window != null) {
+                            window.record(elapsed);
+                        }
+                    }
+                    listener.onResponse(response);
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    outstanding.decrementAndGet();
+                    // 被拒绝的请求返回得很快,不能计入延迟,否则过载的节点反而显得快
+                    if (rejected(e)) {
+                        penalize();
+                    } else {
+                        record(System.nanoTime() - start);
+                    }
+                    listener.onFailure(e);
+                }
+            };
+            try {
+                client.execute(action, request, tracked);
+            } catch (Exception e) {
+                tracked.onFailure(e);
+            }
+        }
+
+        double score(long now) {
+            return (ewma + penalty(now)) * (outstanding.get() + 1);
+        }
+
+        // 有惩罚的节点靠惩罚衰减恢复,不探测
+        boolean probe(long now) {
+            long last = lastSelected.get();
+            return now - last > probeNanos && penalty(now) < ewma && lastSelected.compareAndSet(last, now);
+        }
+
+        double penalty(long now) {
+            double current = penalty;
+            return current == 0 ? 0 : current * Math.pow(0.5, (double) (now - penaltyAt) / halfLifeNanos);
+        }
+
+        synchronized void record(long nanos) {
+            ewma = ewma == 0 ? nanos : alpha * nanos + (1 - alpha) * ewma;
+        }
+
+        synchronized void penalize() {
+            long now = System.nanoTime();
+            penalty = penalty(now) + penaltyNanos;
+            penaltyAt = now;
+            rejections.increment();
+        }
+    }
+
+    // 一个查询的两次尝试,第一个成功的结果返回给调用方,都失败时返回最后一个失败
+    private final class Hedge<Response> {
+        private final ActionListener<Response> listener;
+        private int pending = 1;
+        private boolean done;
+        private volatile ScheduledFuture<?> timer;
+
+        Hedge(ActionListener<Response> listener) {
+            this.listener = listener;
+        }
+
+        synchronized boolean launch() {
+            if (done) {
+                return false;
+            }
+            pending++;
+            return true;
+        }
+
+        ActionListener<Response> attempt(boolean second) {
+            return new ActionListener<Response>() {
+                @Override
+                public void onResponse(Response response) {
+                    if (finish(false)) {
+                        if (second) {
+                            hedgeWins.increment();
+                        }
+                        listener.onResponse(response);
+                    }
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    if (finish(true)) {
+                        listener.onFailure(e);
+                    }
+                }
+            };
+        }
+
+        private boolean finish(boolean failed) {
+            synchronized (this) {
+                pending--;
+                if (done || failed && pending > 0) {
+                    return false;
+                }
+                done = true;
+            }
+            ScheduledFuture<?> scheduled = timer;
+            if (scheduled != null) {
+                scheduled.cancel(false);
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.fh.es;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import com.fh.entity.Person;
+import io.micrometer.core.instrument.Timer;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Person与_source之间的专用编解码,代替反射式的实体映射
+ * 编码写入线程复用的缓冲区,解码用流式解析直接填充字段,不生成中间Map
+ * 开启指标后每次解码记入es.client.mapping
+ */
+public final class PersonCodec {
+
+    // 文档id的keyword副本,有doc_values,游标分页用它做tiebreaker,不必对_id排序
+    public static final String ID_FIELD = "doc_id";
+
+    private static final JsonFactory FACTORY = new JsonFactory();
+    // 单个缓冲超过该大小后不再复用,避免偶发的大文档长期占用内存
+    private static final int MAX_REUSED_BUFFER = 64 * 1024;
+    private static final ThreadLocal<ByteArrayBuilder> BUFFER = ThreadLocal.withInitial(() -> new ByteArrayBuilder(512));
+    private static volatile Timer mapping;
+
+    private PersonCodec() {
+    }
+
+    // 编码为_source字节
+    public static BytesReference encode(Person person) {
+        return encode(null, person);
+    }
+
+    // 带上doc_id的_source,id为null(由es生成)时不写
+    public static BytesReference encode(String id, Person person) {
+        ByteArrayBuilder buffer = BUFFER.get();
+        buffer.reset();
+        try (JsonGenerator generator = FACTORY.createGenerator(buffer, JsonEncoding.UTF8)) {
+            write(id, person, generator);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        BytesArray source = new BytesArray(buffer.toByteArray());
+        if (source.length() > MAX_REUSED_BUFFER) {
+            BUFFER.remove();
+        }
+        return source;
+    }
+
+    public static String encodeToString(Person person) {
+        return encode(person).utf8ToString();
+    }
+
+    // 字段与原先XContentBuilder写法一致,null值照常写出
+    public static void write(Person person, JsonGenerator generator) throws IOException {
+        write(null, person, generator);
+    }
+
+    public static void write(String id, Person person, JsonGenerator generator) throws IOException {
+        generator.writeStartObject();
+        if (id != null) {
+            generator.writeStringField(ID_FIELD, id);
+        }
+        generator.writeStringField("name", person.getName());
+        generator.writeNumberField("age", person.getAge());
+        generator.writeStringField("address", person.getAddress());
+        generator.writeStringField("interests", person.getInterests());
+        generator.writeStringField("birth", person.getBirth());
+        generator.writeEndObject();
+    }
+
+    /**
+     * 解码计时,见InstrumentedClient.mapping;传null时不再计时
+     */
+    public static void instrument(Timer timer) {
+        mapping = timer;
+    }
+
+    // 从_source字节解码
+    public static Person decode(BytesReference source) {
+        Timer timer = mapping;
+        long start = timer == null ? 0 : System.nanoTime();
+        BytesRef bytes = source.toBytesRef();
+        try (JsonParser parser = FACTORY.createParser(bytes.bytes, bytes.offset, bytes.length)) {
+            return read(parser);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            if (timer != null) {
+                timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    public static Person decode(String source) {
+        Timer timer = mapping;
+        long start = timer == null ? 0 : System.nanoTime();
+        try (JsonParser parser = FACTORY.createParser(source)) {
+            return read(parser);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            if (timer != null) {
+                timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    // 未知字段和doc_id整体跳过,数字字段兼容字符串写法;已知字段的值是数组或对象时也整体跳过,不填这个字段,
+    // 解析结束时parser一定停在这个对象的END_OBJECT上,调用方据此截取_source
+    public static Person read(JsonParser parser) throws IOException {
+        return read(parser, null);
+    }
+
+    // 读到doc_id时把它的值交给id
+    public static Person read(JsonParser parser, Consumer<String> id) throws IOException {
+        if (parser.currentToken() == null && parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new IOException("person source must be a json object");
+        }
+        Person person = new Person();
+        String field;
+        while ((field = parser.nextFieldName()) != null) {
+            JsonToken token = parser.nextToken();
+            if (token == JsonToken.VALUE_NULL) {
+                continue;
+            }
+            if (token.isStructStart()) {
+                parser.skipChildren();
+                continue;
+            }
+            switch (field) {
+                case "name":
+                    person.setName(parser.getValueAsString());
+                    break;
+                case "age":
+                    person.setAge(parser.getValueAsInt());
+                    break;
+                case "address":
+                    person.setAddress(parser.getValueAsString());
+                    break;
+                case "interests":
+                    person.setInterests(parser.getValueAsString());
+                    break;
+                case "birth":
+                    person.setBirth(parser.getValueAsString());
+                    break;
+                case ID_FIELD:
+                    if (id != null) {
+                        id.accept(parser.getValueAsString());
+                    }
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+        return person;
+    }
+}
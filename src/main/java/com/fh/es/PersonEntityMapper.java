@@ -0,0 +1,36 @@
+package com.fh.es;
+
+import com.fh.entity.Person;
+import org.springframework.data.elasticsearch.core.EntityMapper;
+
+import java.io.IOException;
+
+/**
+ * ElasticsearchTemplate使用的实体映射,Person走PersonCodec,其他类型仍交给默认的映射
+ * Person的映射耗时由PersonCodec记入es.client.mapping
+ */
+public class PersonEntityMapper implements EntityMapper {
+
+    private final EntityMapper delegate;
+
+    public PersonEntityMapper(EntityMapper delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public String mapToString(Object object) throws IOException {
+        if (object instanceof Person) {
+            return PersonCodec.encodeToString((Person) object);
+        }
+        return delegate.mapToString(object);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T mapToObject(String source, Class<T> clazz) throws IOException {
+        if (clazz == Person.class) {
+            return (T) PersonCodec.decode(source);
+        }
+        return delegate.mapToObject(source, clazz);
+    }
+}
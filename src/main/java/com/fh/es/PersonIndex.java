@@ -0,0 +1,16 @@
+package com.fh.es;
+
+import com.fh.entity.Person;
+import org.springframework.data.elasticsearch.annotations.Document;
+
+/**
+ * Person所在的索引和类型,统一从实体的@Document注解读取
+ */
+public final class PersonIndex {
+
+    public static final String INDEX = Person.class.getAnnotation(Document.class).indexName();
+    public static final String TYPE = Person.class.getAnnotation(Document.class).type();
+
+    private PersonIndex() {
+    }
+}
@@ -0,0 +1,117 @@
+package com.fh.es;
+
+import com.fh.config.NgramProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * name、address的mapping扩展
+ * 在原来的text和keyword之外加三个子字段,都以整个字段值为一个词再切分,与keyword的整值语义一致:
+ * edge为前缀,ngram为长度在minGram到maxGram之间的子串,reverse为倒序后的整值
+ * 另外固定带上游标分页用的doc_id
+ */
+@Slf4j
+public final class PersonMapping {
+
+    public static final String EDGE = "edge";
+    public static final String NGRAM = "ngram";
+    public static final String REVERSE = "reverse";
+
+    private PersonMapping() {
+    }
+
+    // 子字段用到的分析器
+    public static Settings analysis(NgramProperties properties) {
+        return Settings.builder()
+                .put("index.max_ngram_diff", properties.getMaxGram() - properties.getMinGram())
+                .put("index.analysis.filter.person_edge.type", "edge_ngram")
+                .put("index.analysis.filter.person_edge.min_gram", 1)
+                .put("index.analysis.filter.person_edge.max_gram", properties.getEdgeMaxGram())
+                .put("index.analysis.filter.person_ngram.type", "ngram")
+                .put("index.analysis.filter.person_ngram.min_gram", properties.getMinGram())
+                .put("index.analysis.filter.person_ngram.max_gram", properties.getMaxGram())
+                .put("index.analysis.analyzer.person_edge.tokenizer", "keyword")
+                .putList("index.analysis.analyzer.person_edge.filter", "person_edge")
+                .put("index.analysis.analyzer.person_ngram.tokenizer", "keyword")
+                .putList("index.analysis.analyzer.person_ngram.filter", "person_ngram")
+                .put("index.analysis.analyzer.person_reverse.tokenizer", "keyword")
+                .putList("index.analysis.analyzer.person_reverse.filter", "reverse")
+                .build();
+    }
+
+    // 只包含配置字段和doc_id的mapping,其他字段仍由动态mapping决定
+    public static XContentBuilder mapping(NgramProperties properties) {
+        try {
+            XContentBuilder mapping = XContentFactory.jsonBuilder().startObject().startObject("properties");
+            idField(mapping);
+            for (String field : properties.getFields()) {
+                mapping.startObject(field)
+                        .field("type", "text")
+                        .startObject("fields")
+                        .startObject("keyword").field("type", "keyword").field("ignore_above", 256).endObject()
+                        .startObject(EDGE).field("type", "text").field("analyzer", "person_edge")
+                        .field("search_analyzer", "keyword").endObject()
+                        .startObject(NGRAM).field("type", "text").field("analyzer", "person_ngram")
+                        .field("search_analyzer", "keyword").endObject()
+                        .startObject(REVERSE).field("type", "text").field("analyzer", "person_reverse")
+                        .field("search_analyzer", "keyword").endObject()
+                        .endObject()
+                        .endObject();
+            }
+            return mapping.endObject().endObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // 只包含doc_id的mapping
+    public static XContentBuilder idMapping() {
+        try {
+            XContentBuilder mapping = XContentFactory.jsonBuilder().startObject().startObject("properties");
+            return idField(mapping).endObject().endObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // keyword默认带doc_values,排序时不用把_id载入fielddata
+    private static XContentBuilder idField(XContentBuilder mapping) throws IOException {
+        return mapping.startObject(PersonCodec.ID_FIELD).field("type", "keyword").endObject();
+    }
+
+    /**
+     * 索引不存在时带着子字段创建;已存在时补上分析器和子字段,缺分析器时需要短暂关闭索引
+     * 返回true表示给已有索引加了子字段,已有文档需要回填
+     */
+    public static boolean apply(Client client, String index, NgramProperties properties) {
+        if (!client.admin().indices().prepareExists(index).get().isExists()) {
+            client.admin().indices().prepareCreate(index)
+                    .setSettings(analysis(properties))
+                    .addMapping(PersonIndex.TYPE, mapping(properties))
+                    .get();
+            return false;
+        }
+        IndexMetaData metaData = client.admin().cluster().prepareState().setIndices(index).get()
+                .getState().metaData().index(index);
+        if (!metaData.getSettings().hasValue("index.analysis.analyzer.person_ngram.tokenizer")) {
+            // 分析器属于静态设置,只能在关闭状态下修改
+            log.info("closing {} to add n-gram analyzers", index);
+            client.admin().indices().prepareClose(index).get();
+            try {
+                client.admin().indices().prepareUpdateSettings(index).setSettings(analysis(properties)).get();
+            } finally {
+                client.admin().indices().prepareOpen(index).get();
+            }
+        }
+        client.admin().indices().preparePutMapping(index).setType(PersonIndex.TYPE)
+                .setSource(mapping(properties)).get();
+        return true;
+    }
+}
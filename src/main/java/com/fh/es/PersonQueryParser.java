@@ -0,0 +1,165 @@
+package com.fh.es;
+
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.MatchQueryBuilder;
+import org.elasticsearch.index.query.Operator;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.query.RangeQueryBuilder;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * 把http请求里的查询(已解析成Map的json)转换成QueryBuilder
+ * 只支持es查询dsl的一个子集:match_all、match、term、terms、range、bool,写法与es相同,例如
+ * {"bool": {"must": {"match": {"address": "宿迁"}}, "must_not": {"match": {"interests": "看报"}},
+ * "filter": {"range": {"age": {"gte": 23}}}}}
+ * 格式不对或用了不支持的查询时抛出IllegalArgumentException
+ */
+public final class PersonQueryParser {
+
+    private PersonQueryParser() {
+    }
+
+    // query为null或空对象时返回match_all
+    public static QueryBuilder parse(Object query) {
+        if (query == null || query instanceof Map && ((Map<?, ?>) query).isEmpty()) {
+            return QueryBuilders.matchAllQuery();
+        }
+        Map.Entry<String, Object> clause = single(object(query, "query"), "query");
+        String type = clause.getKey();
+        switch (type) {
+            case "match_all":
+                return QueryBuilders.matchAllQuery();
+            case "match":
+                return match(single(object(clause.getValue(), type), type));
+            case "term": {
+                Map.Entry<String, Object> field = single(object(clause.getValue(), type), type);
+                Object value = field.getValue() instanceof Map
+                        ? object(field.getValue(), type).get("value") : field.getValue();
+                return QueryBuilders.termQuery(field.getKey(), scalar(value, type));
+            }
+            case "terms": {
+                Map.Entry<String, Object> field = single(object(clause.getValue(), type), type);
+                if (!(field.getValue() instanceof Collection)) {
+                    throw new IllegalArgumentException("terms of " + field.getKey() + " must be an array");
+                }
+                return QueryBuilders.termsQuery(field.getKey(), (Collection<?>) field.getValue());
+            }
+            case "range":
+                return range(single(object(clause.getValue(), type), type));
+            case "bool":
+                return bool(object(clause.getValue(), type));
+            default:
+                throw new IllegalArgumentException("unsupported query: " + type);
+        }
+    }
+
+    private static QueryBuilder match(Map.Entry<String, Object> field) {
+        if (!(field.getValue() instanceof Map)) {
+            return QueryBuilders.matchQuery(field.getKey(), scalar(field.getValue(), "match"));
+        }
+        Map<String, Object> options = object(field.getValue(), "match");
+        MatchQueryBuilder match = QueryBuilders.matchQuery(field.getKey(), scalar(options.get("query"), "match"));
+        options.forEach((name, value) -> {
+            switch (name) {
+                case "query":
+                    break;
+                case "operator":
+                    match.operator(Operator.fromString(String.valueOf(value)));
+                    break;
+                case "minimum_should_match":
+                    match.minimumShouldMatch(String.valueOf(value));
+                    break;
+                default:
+                    throw new IllegalArgumentException("unsupported match option: " + name);
+            }
+        });
+        return match;
+    }
+
+    private static QueryBuilder range(Map.Entry<String, Object> field) {
+        RangeQueryBuilder range = QueryBuilders.rangeQuery(field.getKey());
+        object(field.getValue(), "range").forEach((name, value) -> {
+            switch (name) {
+                case "gt":
+                    range.gt(scalar(value, name));
+                    break;
+                case "gte":
+                    range.gte(scalar(value, name));
+                    break;
+                case "lt":
+                    range.lt(scalar(value, name));
+                    break;
+                case "lte":
+                    range.lte(scalar(value, name));
+                    break;
+                case "format":
+                    range.format(String.valueOf(value));
+                    break;
+                default:
+                    throw new IllegalArgumentException("unsupported range option: " + name);
+            }
+        });
+        return range;
+    }
+
+    private static QueryBuilder bool(Map<String, Object> options) {
+        BoolQueryBuilder bool = QueryBuilders.boolQuery();
+        options.forEach((name, value) -> {
+            switch (name) {
+                case "must":
+                    clauses(value, bool::must);
+                    break;
+                case "filter":
+                    clauses(value, bool::filter);
+                    break;
+                case "should":
+                    clauses(value, bool::should);
+                    break;
+                case "must_not":
+                    clauses(value, bool::mustNot);
+                    break;
+                case "minimum_should_match":
+                    bool.minimumShouldMatch(String.valueOf(value));
+                    break;
+                default:
+                    throw new IllegalArgumentException("unsupported bool option: " + name);
+            }
+        });
+        return bool;
+    }
+
+    // 子句可以是单个查询,也可以是查询数组
+    private static void clauses(Object value, Consumer<QueryBuilder> sink) {
+        Collection<?> clauses = value instanceof Collection ? (Collection<?>) value : Collections.singleton(value);
+        for (Object clause : clauses) {
+            sink.accept(parse(clause));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> object(Object value, String name) {
+        if (!(value instanceof Map)) {
+            throw new IllegalArgumentException(name + " must be an object");
+        }
+        return (Map<String, Object>) value;
+    }
+
+    private static Map.Entry<String, Object> single(Map<String, Object> object, String name) {
+        if (object.size() != 1) {
+            throw new IllegalArgumentException(name + " must have exactly one key, got " + object.keySet());
+        }
+        return object.entrySet().iterator().next();
+    }
+
+    private static Object scalar(Object value, String name) {
+        if (value == null || value instanceof Map || value instanceof Collection) {
+            throw new IllegalArgumentException(name + " must be a string, number or boolean");
+        }
+        return value;
+    }
+}
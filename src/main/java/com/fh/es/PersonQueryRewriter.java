@@ -0,0 +1,150 @@
+package com.fh.es;
+
+import com.fh.config.NgramProperties;
+import org.elasticsearch.index.query.AbstractQueryBuilder;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.ConstantScoreQueryBuilder;
+import org.elasticsearch.index.query.PrefixQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.query.WildcardQueryBuilder;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+/**
+ * 把name、address上扫描词典的通配符和前缀查询改写成子字段上的词查询,结果不变
+ * 只改写字段.keyword上的整值匹配:
+ * 前缀(abc*)改为edge上的term,中缀(*abc*)改为ngram上的term,以通配符开头的改为reverse上倒序后的通配符;
+ * 分词字段上的通配符是逐个词匹配的,改写会改变结果,保持不变;fuzzy按编辑距离匹配,n-gram无法等价表达,也不改写
+ */
+@Component
+public class PersonQueryRewriter {
+
+    private final NgramProperties properties;
+
+    public PersonQueryRewriter(NgramProperties properties) {
+        this.properties = properties;
+    }
+
+    // 不改写任何查询的实例,用于测试等不需要子字段的场景
+    public static PersonQueryRewriter disabled() {
+        return new PersonQueryRewriter(new NgramProperties());
+    }
+
+    public QueryBuilder rewrite(QueryBuilder query) {
+        return properties.isEnabled() && query != null ? doRewrite(query) : query;
+    }
+
+    private QueryBuilder doRewrite(QueryBuilder query) {
+        if (query instanceof PrefixQueryBuilder) {
+            PrefixQueryBuilder prefix = (PrefixQueryBuilder) query;
+            String field = field(prefix.fieldName());
+            return field == null ? query : leaf(prefix, prefix(field, prefix.value()));
+        }
+        if (query instanceof WildcardQueryBuilder) {
+            WildcardQueryBuilder wildcard = (WildcardQueryBuilder) query;
+            String field = field(wildcard.fieldName());
+            return field == null ? query : leaf(wildcard, wildcard(field, wildcard.value()));
+        }
+        if (query instanceof ConstantScoreQueryBuilder) {
+            ConstantScoreQueryBuilder constantScore = (ConstantScoreQueryBuilder) query;
+            QueryBuilder inner = doRewrite(constantScore.innerQuery());
+            return inner == constantScore.innerQuery() ? query : copy(constantScore, QueryBuilders.constantScoreQuery(inner));
+        }
+        if (query instanceof BoolQueryBuilder) {
+            BoolQueryBuilder bool = (BoolQueryBuilder) query;
+            BoolQueryBuilder rewritten = QueryBuilders.boolQuery()
+                    .minimumShouldMatch(bool.minimumShouldMatch())
+                    .adjustPureNegative(bool.adjustPureNegative());
+            boolean changed = false;
+            changed |= rewrite(bool.must(), rewritten.must());
+            changed |= rewrite(bool.filter(), rewritten.filter());
+            changed |= rewrite(bool.should(), rewritten.should());
+            changed |= rewrite(bool.mustNot(), rewritten.mustNot());
+            return changed ? copy(bool, rewritten) : query;
+        }
+        return query;
+    }
+
+    private boolean rewrite(List<QueryBuilder> clauses, List<QueryBuilder> target) {
+        boolean changed = false;
+        for (QueryBuilder clause : clauses) {
+            QueryBuilder rewritten = doRewrite(clause);
+            changed |= rewritten != clause;
+            target.add(rewritten);
+        }
+        return changed;
+    }
+
+    // 字段.keyword对应的原字段,不是配置的字段时为null
+    private String field(String fieldName) {
+        for (String field : properties.getFields()) {
+            if (fieldName.equals(field + ".keyword")) {
+                return field;
+            }
+        }
+        return null;
+    }
+
+    // edge n-gram最长为edgeMaxGram,更长的前缀只能留在keyword上
+    private QueryBuilder prefix(String field, String value) {
+        int length = value.codePointCount(0, value.length());
+        if (length == 0 || length > properties.getEdgeMaxGram()) {
+            return null;
+        }
+        return QueryBuilders.termQuery(field + "." + PersonMapping.EDGE, value);
+    }
+
+    private QueryBuilder wildcard(String field, String pattern) {
+        // 含转义时不改写,避免处理转义规则
+        if (pattern.isEmpty() || pattern.indexOf('\\') >= 0) {
+            return null;
+        }
+        String literal = pattern.replaceAll("^\\*+|\\*+$", "");
+        boolean leading = pattern.charAt(0) == '*';
+        boolean trailing = pattern.charAt(pattern.length() - 1) == '*';
+        boolean plain = !literal.isEmpty() && literal.indexOf('*') < 0 && literal.indexOf('?') < 0;
+        if (plain && !leading && trailing) {
+            return prefix(field, literal);
+        }
+        if (plain && leading && trailing) {
+            int length = literal.codePointCount(0, literal.length());
+            if (length >= properties.getMinGram() && length <= properties.getMaxGram()) {
+                return QueryBuilders.termQuery(field + "." + PersonMapping.NGRAM, literal);
+            }
+            return null;
+        }
+        // 以通配符开头、以字面字符结尾时,倒序后通配符移到末尾,可以从词典中定位
+        char first = pattern.charAt(0);
+        if ((first == '*' || first == '?') && !trailing && pattern.charAt(pattern.length() - 1) != '?') {
+            String reversed = new StringBuilder(pattern).reverse().toString();
+            String reverseField = field + "." + PersonMapping.REVERSE;
+            return plain
+                    ? QueryBuilders.prefixQuery(reverseField, reversed.substring(0, reversed.length() - leadingStars(pattern)))
+                    : QueryBuilders.wildcardQuery(reverseField, reversed);
+        }
+        return null;
+    }
+
+    private static int leadingStars(String pattern) {
+        int count = 0;
+        while (count < pattern.length() && pattern.charAt(count) == '*') {
+            count++;
+        }
+        return count;
+    }
+
+    // 前缀和通配符查询默认以boost为固定得分,改写后套一层constant_score保持得分不变;无法改写时返回原查询
+    private static QueryBuilder leaf(AbstractQueryBuilder<?> original, QueryBuilder rewritten) {
+        if (rewritten == null) {
+            return original;
+        }
+        return QueryBuilders.constantScoreQuery(rewritten).boost(original.boost()).queryName(original.queryName());
+    }
+
+    // 保留原查询的boost和名称
+    private static QueryBuilder copy(AbstractQueryBuilder<?> original, AbstractQueryBuilder<?> rewritten) {
+        return rewritten.boost(original.boost()).queryName(original.queryName());
+    }
+}
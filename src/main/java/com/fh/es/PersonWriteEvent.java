@@ -0,0 +1,102 @@
+package com.fh.es;
+
+import com.fh.entity.Person;
+import lombok.Data;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 应用写入Person文档成功后发出的事件,供缓存、联想词等本地数据同步更新
+ */
+@Data
+public class PersonWriteEvent {
+
+    public enum Type {
+        INDEX,
+        UPDATE,
+        UPSERT,
+        DELETE,
+        DELETE_BY_QUERY,
+        UPDATE_BY_QUERY
+    }
+
+    private final Type type;
+    private final String index;
+    // 按条件批量修改时为null
+    private final String id;
+    // INDEX时为完整文档,UPSERT时为文档不存在时写入的内容
+    private final Person document;
+    // UPDATE和UPSERT的局部修改内容
+    private final Map<String, Object> changes;
+
+    public static PersonWriteEvent index(String index, String id, Person person) {
+        return new PersonWriteEvent(Type.INDEX, index, id, person, Collections.emptyMap());
+    }
+
+    public static PersonWriteEvent update(String index, String id, Map<String, Object> changes) {
+        return new PersonWriteEvent(Type.UPDATE, index, id, null, changes);
+    }
+
+    public static PersonWriteEvent upsert(String index, String id, Map<String, Object> changes, Person person) {
+        return new PersonWriteEvent(Type.UPSERT, index, id, person, changes);
+    }
+
+    public static PersonWriteEvent delete(String index, String id) {
+        return new PersonWriteEvent(Type.DELETE, index, id, null, Collections.emptyMap());
+    }
+
+    public static PersonWriteEvent deleteByQuery(String index) {
+        return new PersonWriteEvent(Type.DELETE_BY_QUERY, index, null, null, Collections.emptyMap());
+    }
+
+    public static PersonWriteEvent updateByQuery(String index) {
+        return new PersonWriteEvent(Type.UPDATE_BY_QUERY, index, null, null, Collections.emptyMap());
+    }
+
+    // 换成另一个索引名,例如把分区索引换回逻辑索引lib
+    public PersonWriteEvent withIndex(String index) {
+        return new PersonWriteEvent(type, index, id, document, changes);
+    }
+
+    // 按条件批量修改,不知道具体影响了哪些文档
+    public boolean isByQuery() {
+        return type == Type.DELETE_BY_QUERY || type == Type.UPDATE_BY_QUERY;
+    }
+
+    // 由原始的写请求还原事件,用于调用方自己拼装的bulk
+    public static PersonWriteEvent of(DocWriteRequest<?> request) {
+        if (request instanceof IndexRequest) {
+            return index(request.index(), request.id(), PersonCodec.decode(((IndexRequest) request).source()));
+        }
+        if (request instanceof DeleteRequest) {
+            return delete(request.index(), request.id());
+        }
+        UpdateRequest update = (UpdateRequest) request;
+        Map<String, Object> changes = update.doc() == null
+                ? Collections.emptyMap() : update.doc().sourceAsMap();
+        if (update.upsertRequest() != null) {
+            return upsert(update.index(), update.id(), changes, PersonCodec.decode(update.upsertRequest().source()));
+        }
+        return update(update.index(), update.id(), changes);
+    }
+
+    // 本次写入可能出现在文档中的字段值,包括完整文档和局部修改
+    public Map<String, Object> writtenValues() {
+        Map<String, Object> values = new LinkedHashMap<>();
+        if (document != null) {
+            values.put("name", document.getName());
+            values.put("age", document.getAge());
+            values.put("address", document.getAddress());
+            values.put("interests", document.getInterests());
+            values.put("birth", document.getBirth());
+        }
+        values.putAll(changes);
+        return values;
+    }
+}
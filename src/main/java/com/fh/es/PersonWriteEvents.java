@@ -0,0 +1,52 @@
+package com.fh.es;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * 把写入事件分发给所有PersonWriteListener
+ * 监听器在第一次发布时才解析,避免监听器与写入服务之间的循环依赖
+ */
+@Slf4j
+@Component
+public class PersonWriteEvents {
+
+    private final Supplier<List<PersonWriteListener>> resolver;
+    private volatile List<PersonWriteListener> listeners;
+
+    @Autowired
+    public PersonWriteEvents(ObjectProvider<PersonWriteListener> provider) {
+        this(() -> provider.orderedStream().collect(Collectors.toList()));
+    }
+
+    private PersonWriteEvents(Supplier<List<PersonWriteListener>> resolver) {
+        this.resolver = resolver;
+    }
+
+    public static PersonWriteEvents of(PersonWriteListener... listeners) {
+        List<PersonWriteListener> list = Arrays.asList(listeners);
+        return new PersonWriteEvents(() -> list);
+    }
+
+    // 单个监听器出错不影响其他监听器和写入本身
+    public void publish(PersonWriteEvent event) {
+        List<PersonWriteListener> current = listeners;
+        if (current == null) {
+            current = listeners = resolver.get();
+        }
+        for (PersonWriteListener listener : current) {
+            try {
+                listener.onWrite(event);
+            } catch (Exception e) {
+                log.warn("person write listener {} failed on {}", listener, event, e);
+            }
+        }
+    }
+}
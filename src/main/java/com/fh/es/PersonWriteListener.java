@@ -0,0 +1,10 @@
+package com.fh.es;
+
+/**
+ * 接收Person写入事件,注册为spring bean即可生效
+ * 在写入完成的回调线程上调用,实现中不要做阻塞操作
+ */
+public interface PersonWriteListener {
+
+    void onWrite(PersonWriteEvent event);
+}
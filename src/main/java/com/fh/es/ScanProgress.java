@@ -0,0 +1,80 @@
+package com.fh.es;
+
+import lombok.Getter;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 一次全量遍历的进度,遍历过程中可在其他线程读取
+ */
+public class ScanProgress {
+
+    @Getter
+    private final String index;
+    @Getter
+    private final int slices;
+    private final long startedAt = System.nanoTime();
+    private final AtomicLong totalHits = new AtomicLong();
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private volatile long finishedAt;
+
+    public ScanProgress(String index, int slices) {
+        this.index = index;
+        this.slices = slices;
+    }
+
+    void addTotalHits(long hits) {
+        totalHits.addAndGet(hits);
+    }
+
+    void addProcessed(long count) {
+        processed.addAndGet(count);
+    }
+
+    void addFailed(long count) {
+        failed.addAndGet(count);
+    }
+
+    void finish() {
+        finishedAt = System.nanoTime();
+    }
+
+    // 各slice首页返回后才准确
+    public long getTotalHits() {
+        return totalHits.get();
+    }
+
+    public long getProcessed() {
+        return processed.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public boolean isFinished() {
+        return finishedAt != 0;
+    }
+
+    public long getElapsedMillis() {
+        long end = finishedAt != 0 ? finishedAt : System.nanoTime();
+        return (end - startedAt) / 1_000_000;
+    }
+
+    public double getDocsPerSecond() {
+        long millis = getElapsedMillis();
+        return millis == 0 ? 0 : processed.get() * 1000.0 / millis;
+    }
+
+    public double getPercent() {
+        long total = totalHits.get();
+        return total == 0 ? 0 : processed.get() * 100.0 / total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d/%d docs, %d failed, %.0f docs/s, %d ms", index, processed.get(),
+                totalHits.get(), failed.get(), getDocsPerSecond(), getElapsedMillis());
+    }
+}
@@ -0,0 +1,111 @@
+package com.fh.es;
+
+import org.elasticsearch.action.ActionFuture;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.search.SearchHit;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * 基于scroll逐页拉取命中结果
+ * 拿到一页后立即异步请求下一页,调用方处理当前页时下一页已在路上;
+ * 任意时刻最多持有两页数据,内存占用与结果总数无关
+ * 非线程安全,用完必须close以释放服务端的scroll上下文
+ */
+public class ScrollIterator implements Iterator<SearchHit>, Closeable {
+
+    private static final SearchHit[] EMPTY = new SearchHit[0];
+
+    private final Client client;
+    private final TimeValue keepAlive;
+
+    private ActionFuture<SearchResponse> next;
+    private SearchHit[] page = EMPTY;
+    private int position;
+    private String scrollId;
+    private long fetched;
+    private long totalHits = -1;
+    private boolean cleared;
+
+    public ScrollIterator(Client client, SearchRequestBuilder request, TimeValue keepAlive) {
+        this.client = client;
+        this.keepAlive = keepAlive;
+        this.next = request.setScroll(keepAlive).execute();
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (position >= page.length) {
+            if (next == null) {
+                return false;
+            }
+            SearchResponse response = next.actionGet();
+            next = null;
+            accept(response);
+        }
+        return true;
+    }
+
+    @Override
+    public SearchHit next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return page[position++];
+    }
+
+    // 按页消费,返回当前页中尚未消费的部分
+    public SearchHit[] nextPage() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        SearchHit[] rest = position == 0 ? page : Arrays.copyOfRange(page, position, page.length);
+        position = page.length;
+        return rest;
+    }
+
+    // 收到一页后先预取下一页,再把当前页交给调用方
+    private void accept(SearchResponse response) {
+        scrollId = response.getScrollId();
+        totalHits = response.getHits().getTotalHits();
+        page = response.getHits().getHits();
+        position = 0;
+        fetched += page.length;
+        if (page.length == 0 || fetched >= totalHits) {
+            clearScroll();
+        } else {
+            next = client.prepareSearchScroll(scrollId).setScroll(keepAlive).execute();
+        }
+    }
+
+    // 命中总数,第一页返回前为-1
+    public long getTotalHits() {
+        return totalHits;
+    }
+
+    // 提前关闭时丢弃未消费的数据
+    @Override
+    public void close() {
+        page = EMPTY;
+        position = 0;
+        next = null;
+        clearScroll();
+    }
+
+    private void clearScroll() {
+        if (cleared) {
+            return;
+        }
+        cleared = true;
+        if (scrollId != null) {
+            // 不等待清理结果,scroll过期后服务端也会自行回收
+            client.prepareClearScroll().addScrollId(scrollId).execute();
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package com.fh.es;
+
+import com.carrotsearch.hppc.cursors.ObjectCursor;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsResponse;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.document.DocumentField;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.mapper.RoutingFieldMapper;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.slice.SliceBuilder;
+import org.elasticsearch.search.sort.FieldSortBuilder;
+import org.elasticsearch.search.sort.SortOrder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
+/**
+ * 把一个查询按sliced scroll拆成多片并发遍历
+ * 各片在有界线程池上执行,结果可以汇总给一个消费者,也可以交给每片各自的sink
+ */
+@Slf4j
+public class SlicedScanner {
+
+    // 汇总模式下表示所有slice结束
+    private static final SearchHit[] END = new SearchHit[0];
+
+    private final Client client;
+    private final ExecutorService executor;
+    private final int threads;
+    private final int pageSize;
+    private final TimeValue keepAlive;
+    private final Set<ScanProgress> active = new CopyOnWriteArraySet<>();
+
+    public SlicedScanner(Client client, ExecutorService executor, int threads, int pageSize, TimeValue keepAlive) {
+        this.client = client;
+        this.executor = executor;
+        this.threads = threads;
+        this.pageSize = pageSize;
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * 每个slice的命中交给各自的sink,sink只会被该slice的线程调用;阻塞到全部slice结束
+     */
+    public ScanProgress scanPages(String index, QueryBuilder query, int slices,
+                                  IntFunction<Consumer<SearchHit[]>> sinks) throws InterruptedException {
+        int max = slices > 0 ? slices : shards(index);
+        return scanPages(new ScanProgress(index, max), query, sinks);
+    }
+
+    private ScanProgress scanPages(ScanProgress progress, QueryBuilder query,
+                                   IntFunction<Consumer<SearchHit[]>> sinks) throws InterruptedException {
+        String index = progress.getIndex();
+        int max = progress.getSlices();
+        active.add(progress);
+        try {
+            List<Future<?>> futures = new ArrayList<>(max);
+            for (int i = 0; i < max; i++) {
+                int sliceId = i;
+                futures.add(executor.submit(() -> runSlice(index, query, sliceId, max, sinks.apply(sliceId),
+                        progress, null)));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    futures.forEach(f -> f.cancel(true));
+                    throw new IllegalStateException("scan of " + index + " failed", e.getCause());
+                }
+            }
+            return progress;
+        } finally {
+            progress.finish();
+            active.remove(progress);
+        }
+    }
+
+    /**
+     * 所有slice的命中汇总到调用线程上的一个消费者;队列有界,消费慢时各slice会等待
+     */
+    public ScanProgress scan(String index, QueryBuilder query, int slices, Consumer<SearchHit> consumer)
+            throws InterruptedException {
+        int max = slices > 0 ? slices : shards(index);
+        ScanProgress progress = new ScanProgress(index, max);
+        BlockingQueue<SearchHit[]> pages = new ArrayBlockingQueue<>(threads * 2);
+        AtomicBoolean cancelled = new AtomicBoolean();
+        List<Throwable> failures = new CopyOnWriteArrayList<>();
+        active.add(progress);
+        List<Future<?>> futures = new ArrayList<>(max);
+        try {
+            for (int i = 0; i < max; i++) {
+                int sliceId = i;
+                futures.add(executor.submit(() -> {
+                    try {
+                        runSlice(index, query, sliceId, max, page -> put(pages, page), progress, cancelled);
+                    } catch (RuntimeException e) {
+                        failures.add(e);
+                    } finally {
+                        put(pages, END);
+                    }
+                }));
+            }
+            int finished = 0;
+            while (finished < max) {
+                SearchHit[] page = pages.take();
+                if (page == END) {
+                    finished++;
+                    continue;
+                }
+                for (SearchHit hit : page) {
+                    consumer.accept(hit);
+                }
+            }
+            if (!failures.isEmpty()) {
+                throw new IllegalStateException("scan of " + index + " failed", failures.get(0));
+            }
+            return progress;
+        } finally {
+            cancelled.set(true);
+            // 消费者异常退出时让阻塞在队列上的slice尽快结束
+            pages.clear();
+            futures.forEach(f -> f.cancel(true));
+            progress.finish();
+            active.remove(progress);
+        }
+    }
+
+    /**
+     * 把source索引中匹配query的文档原样复制到target索引,_source字节不做解析
+     * 文档带routing时按原routing写入,否则target中会出现routing不同的第二份
+     */
+    public ScanProgress copy(String source, String target, QueryBuilder query, int slices)
+            throws InterruptedException {
+        ScanProgress progress = new ScanProgress(source, slices > 0 ? slices : shards(source));
+        return scanPages(progress, query, sliceId -> page -> {
+            BulkRequest bulk = new BulkRequest();
+            for (SearchHit hit : page) {
+                DocumentField routing = hit.field(RoutingFieldMapper.NAME);
+                bulk.add(new IndexRequest(target, hit.getType(), hit.getId())
+                        .routing(routing == null ? null : routing.getValue())
+                        .source(hit.getSourceRef(), XContentType.JSON));
+            }
+            BulkResponse response = client.bulk(bulk).actionGet();
+            if (response.hasFailures()) {
+                for (BulkItemResponse item : response) {
+                    if (item.isFailed()) {
+                        progress.addFailed(1);
+                        log.warn("copy [{}] to {} failed: {}", item.getId(), target, item.getFailureMessage());
+                    }
+                }
+            }
+        });
+    }
+
+    private void runSlice(String index, QueryBuilder query, int sliceId, int max, Consumer<SearchHit[]> sink,
+                          ScanProgress progress, AtomicBoolean cancelled) {
+        SearchRequestBuilder request = client.prepareSearch(index)
+                .setQuery(query)
+                .setSize(pageSize)
+                .addSort(FieldSortBuilder.DOC_FIELD_NAME, SortOrder.ASC);
+        // 只有一片时不能带slice参数
+        if (max > 1) {
+            request.slice(new SliceBuilder(sliceId, max));
+        }
+        try (ScrollIterator iterator = new ScrollIterator(client, request, keepAlive)) {
+            boolean first = true;
+            while ((cancelled == null || !cancelled.get()) && iterator.hasNext()) {
+                if (first) {
+                    progress.addTotalHits(iterator.getTotalHits());
+                    first = false;
+                }
+                SearchHit[] page = iterator.nextPage();
+                sink.accept(page);
+                progress.addProcessed(page.length);
+            }
+        }
+    }
+
+    private static void put(BlockingQueue<SearchHit[]> pages, SearchHit[] page) {
+        try {
+            pages.put(page);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("scan interrupted", e);
+        }
+    }
+
+    // 默认按主分片数切片,这是es推荐的slice数
+    public int shards(String index) {
+        GetSettingsResponse response = client.admin().indices().prepareGetSettings(index).get();
+        int shards = 0;
+        for (ObjectCursor<Settings> settings : response.getIndexToSettings().values()) {
+            shards += settings.value.getAsInt("index.number_of_shards", 1);
+        }
+        return Math.max(shards, 1);
+    }
+
+    // 正在进行的遍历
+    public Set<ScanProgress> active() {
+        return active;
+    }
+}
@@ -0,0 +1,48 @@
+package com.fh.jobs;
+
+import lombok.Data;
+
+/**
+ * 后台任务的进度快照
+ */
+@Data
+public class ByQueryJobStatus {
+
+    public enum Type {
+        DELETE_BY_QUERY,
+        UPDATE_BY_QUERY
+    }
+
+    public enum State {
+        // 已提交,还没在es中找到对应的task
+        PENDING,
+        RUNNING,
+        COMPLETED,
+        CANCELLED,
+        FAILED
+    }
+
+    private final String id;
+    private final Type type;
+    private final State state;
+    private final String query;
+    // 当前限速,Float.POSITIVE_INFINITY表示不限速
+    private final float requestsPerSecond;
+    // 需要处理的文档总数
+    private final long total;
+    // 已删除或已修改的文档数
+    private final long processed;
+    private final int batches;
+    private final long versionConflicts;
+    private final long failures;
+    private final long startedAt;
+    // 未结束时为0
+    private final long finishedAt;
+    // es中的task id,找到之前为null
+    private final String taskId;
+    private final String error;
+
+    public double getPercent() {
+        return total <= 0 ? (state == State.COMPLETED ? 100 : 0) : Math.min(100, processed * 100.0 / total);
+    }
+}
@@ -0,0 +1,284 @@
+package com.fh.jobs;
+
+import com.fh.config.JobsProperties;
+import com.fh.es.PersonIndex;
+import com.fh.es.PersonWriteEvent;
+import com.fh.es.PersonWriteEvents;
+import com.fh.jobs.ByQueryJobStatus.State;
+import com.fh.jobs.ByQueryJobStatus.Type;
+import com.fh.partition.PersonPartitions;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.cluster.node.tasks.list.ListTasksResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.reindex.AbstractBulkByScrollRequest;
+import org.elasticsearch.index.reindex.BulkByScrollResponse;
+import org.elasticsearch.index.reindex.BulkByScrollTask;
+import org.elasticsearch.index.reindex.DeleteByQueryAction;
+import org.elasticsearch.index.reindex.DeleteByQueryRequest;
+import org.elasticsearch.index.reindex.RethrottleAction;
+import org.elasticsearch.index.reindex.UpdateByQueryAction;
+import org.elasticsearch.index.reindex.UpdateByQueryRequest;
+import org.elasticsearch.script.Script;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.tasks.Task;
+import org.elasticsearch.tasks.TaskId;
+import org.elasticsearch.tasks.TaskInfo;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * 后台执行的delete-by-query/update-by-query任务
+ * 请求带上X-Opaque-Id头,es中的task会继承这个头,据此用tasks接口找到task来查询进度、调整限速和取消;
+ * 默认按主分片数自动切片并行执行,限速可在运行中调整,低峰期全速、高峰期让出集群资源
+ */
+@Slf4j
+@Service
+public class PersonByQueryJobs {
+
+    private final Client client;
+    private final PersonWriteEvents events;
+    private final JobsProperties properties;
+    private final PersonPartitions partitions;
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+
+    public PersonByQueryJobs(Client client, PersonWriteEvents events, JobsProperties properties,
+                             PersonPartitions partitions) {
+        this.client = client;
+        this.events = events;
+        this.properties = properties;
+        this.partitions = partitions;
+    }
+
+    public ByQueryJobStatus deleteByQuery(QueryBuilder query) {
+        return deleteByQuery(query, properties.getRequestsPerSecond());
+    }
+
+    public ByQueryJobStatus deleteByQuery(QueryBuilder query, float requestsPerSecond) {
+        DeleteByQueryRequest request = new DeleteByQueryRequest(search(query));
+        return start(Type.DELETE_BY_QUERY, query, configure(request, requestsPerSecond));
+    }
+
+    /**
+     * script为null时只重新索引命中的文档,用于mapping变更后刷新字段
+     */
+    public ByQueryJobStatus updateByQuery(QueryBuilder query, Script script, float requestsPerSecond) {
+        UpdateByQueryRequest request = new UpdateByQueryRequest(search(query));
+        if (script != null) {
+            request.setScript(script);
+        }
+        return start(Type.UPDATE_BY_QUERY, query, configure(request, requestsPerSecond));
+    }
+
+    private SearchRequest search(QueryBuilder query) {
+        String[] indices = partitions.searchIndices(query);
+        // 空数组会被es当作全部索引;条件不可能命中任何分区时任务照常执行,只是没有文档
+        return new SearchRequest(indices.length == 0 ? new String[]{partitions.readIndex()} : indices)
+                .source(new SearchSourceBuilder().query(query));
+    }
+
+    private <R extends AbstractBulkByScrollRequest<R>> R configure(R request, float requestsPerSecond) {
+        request.setSlices(properties.getSlices() > 0 ? properties.getSlices() : AbstractBulkByScrollRequest.AUTO_SLICES);
+        request.setRequestsPerSecond(throttle(requestsPerSecond));
+        request.setAbortOnVersionConflict(!properties.isProceedOnConflicts());
+        return request;
+    }
+
+    private ByQueryJobStatus start(Type type, QueryBuilder query, AbstractBulkByScrollRequest<?> request) {
+        Job job = new Job(UUID.randomUUID().toString(), type, query.toString(), request.getRequestsPerSecond());
+        jobs.put(job.id, job);
+        // 任务期间被修改的文档无法逐一通知,开始和结束时各通知一次
+        events.publish(event(type));
+        ActionListener<BulkByScrollResponse> listener = ActionListener.wrap(job::finish, job::fail);
+        Client tagged = client.filterWithHeader(Collections.singletonMap(Task.X_OPAQUE_ID, job.id));
+        if (type == Type.DELETE_BY_QUERY) {
+            tagged.execute(DeleteByQueryAction.INSTANCE, (DeleteByQueryRequest) request, listener);
+        } else {
+            tagged.execute(UpdateByQueryAction.INSTANCE, (UpdateByQueryRequest) request, listener);
+        }
+        log.info("started {} job {} for {}", type, job.id, job.query);
+        return job.status();
+    }
+
+    /**
+     * 查询进度,运行中的任务从tasks接口读取最新状态
+     */
+    public ByQueryJobStatus status(String id) {
+        Job job = job(id);
+        if (!job.finished()) {
+            TaskInfo task = findTask(job);
+            if (task != null && task.getStatus() instanceof BulkByScrollTask.Status) {
+                job.progress((BulkByScrollTask.Status) task.getStatus());
+            }
+        }
+        return job.status();
+    }
+
+    // 最近的任务在前
+    public List<ByQueryJobStatus> list() {
+        List<Job> all = new ArrayList<>(jobs.values());
+        all.sort(Comparator.comparingLong((Job job) -> job.startedAt).reversed());
+        return all.stream().map(Job::status).collect(Collectors.toList());
+    }
+
+    /**
+     * 调整运行中任务的限速,小于等于0表示不限速
+     */
+    public ByQueryJobStatus rethrottle(String id, float requestsPerSecond) {
+        Job job = running(id);
+        float throttle = throttle(requestsPerSecond);
+        RethrottleAction.INSTANCE.newRequestBuilder(client)
+                .setTaskId(taskId(job))
+                .setRequestsPerSecond(throttle)
+                .get();
+        job.requestsPerSecond = throttle;
+        return status(id);
+    }
+
+    // 取消后es在处理完当前批次时停止,结束回调里状态变为CANCELLED
+    public ByQueryJobStatus cancel(String id) {
+        Job job = running(id);
+        client.admin().cluster().prepareCancelTasks().setTaskId(taskId(job)).get();
+        return job.status();
+    }
+
+    private Job job(String id) {
+        Job job = jobs.get(id);
+        if (job == null) {
+            throw new IllegalArgumentException("no such job: " + id);
+        }
+        return job;
+    }
+
+    private Job running(String id) {
+        Job job = job(id);
+        if (job.finished()) {
+            throw new IllegalStateException("job " + id + " is already " + job.state);
+        }
+        return job;
+    }
+
+    private TaskId taskId(Job job) {
+        TaskInfo task = findTask(job);
+        if (task == null) {
+            throw new IllegalStateException("task of job " + job.id + " not found yet");
+        }
+        return task.getTaskId();
+    }
+
+    // 切片任务的子task也带同样的头,取没有父task的那个
+    private TaskInfo findTask(Job job) {
+        TaskId known = job.taskId;
+        ListTasksResponse response = known != null
+                ? client.admin().cluster().prepareListTasks().setTaskId(known).setDetailed(true).get()
+                : client.admin().cluster().prepareListTasks()
+                .setActions(job.type == Type.DELETE_BY_QUERY ? DeleteByQueryAction.NAME : UpdateByQueryAction.NAME)
+                .setDetailed(true).get();
+        for (TaskInfo task : response.getTasks()) {
+            if (job.id.equals(task.getHeaders().get(Task.X_OPAQUE_ID)) && !task.getParentTaskId().isSet()) {
+                job.taskId = task.getTaskId();
+                return task;
+            }
+        }
+        return null;
+    }
+
+    private static float throttle(float requestsPerSecond) {
+        return requestsPerSecond > 0 ? requestsPerSecond : Float.POSITIVE_INFINITY;
+    }
+
+    private static PersonWriteEvent event(Type type) {
+        return type == Type.DELETE_BY_QUERY
+                ? PersonWriteEvent.deleteByQuery(PersonIndex.INDEX) : PersonWriteEvent.updateByQuery(PersonIndex.INDEX);
+    }
+
+    // 只保留最近的若干个已结束任务
+    private void trim() {
+        List<Job> finished = jobs.values().stream().filter(Job::finished)
+                .sorted(Comparator.comparingLong(job -> job.finishedAt)).collect(Collectors.toList());
+        for (int i = 0; i < finished.size() - properties.getRetainFinished(); i++) {
+            jobs.remove(finished.get(i).id);
+        }
+    }
+
+    private class Job {
+        private final String id;
+        private final Type type;
+        private final String query;
+        private final long startedAt = System.currentTimeMillis();
+        private volatile float requestsPerSecond;
+        private volatile TaskId taskId;
+        private volatile State state = State.PENDING;
+        private volatile BulkByScrollTask.Status progress;
+        private volatile long failures;
+        private volatile long finishedAt;
+        private volatile String error;
+
+        Job(String id, Type type, String query, float requestsPerSecond) {
+            this.id = id;
+            this.type = type;
+            this.query = query;
+            this.requestsPerSecond = requestsPerSecond;
+        }
+
+        boolean finished() {
+            return state != State.PENDING && state != State.RUNNING;
+        }
+
+        void progress(BulkByScrollTask.Status status) {
+            if (!finished()) {
+                progress = status;
+                requestsPerSecond = status.getRequestsPerSecond();
+                state = State.RUNNING;
+            }
+        }
+
+        void finish(BulkByScrollResponse response) {
+            progress = response.getStatus();
+            failures = response.getBulkFailures().size() + response.getSearchFailures().size();
+            if (response.getReasonCancelled() != null) {
+                state = State.CANCELLED;
+                error = response.getReasonCancelled();
+            } else if (failures > 0 || response.isTimedOut()) {
+                state = State.FAILED;
+                error = response.isTimedOut() ? "timed out" : failures + " failures";
+            } else {
+                state = State.COMPLETED;
+            }
+            done();
+        }
+
+        void fail(Exception e) {
+            state = State.FAILED;
+            error = e.toString();
+            done();
+        }
+
+        private void done() {
+            finishedAt = System.currentTimeMillis();
+            events.publish(event(type));
+            log.info("{} job {} {}: {}", type, id, state, progress);
+            trim();
+        }
+
+        ByQueryJobStatus status() {
+            BulkByScrollTask.Status current = progress;
+            long total = current == null ? 0 : current.getTotal();
+            long processed = current == null ? 0
+                    : type == Type.DELETE_BY_QUERY ? current.getDeleted() : current.getUpdated();
+            return new ByQueryJobStatus(id, type, state, query, requestsPerSecond, total, processed,
+                    current == null ? 0 : current.getBatches(), current == null ? 0 : current.getVersionConflicts(),
+                    failures, startedAt, finishedAt, taskId == null ? null : taskId.toString(), error);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.fh.mapper;
+
+import com.fh.entity.PersonRow;
+import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Options;
+import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.annotations.ResultType;
+import org.apache.ibatis.annotations.Select;
+import org.apache.ibatis.mapping.ResultSetType;
+import org.apache.ibatis.session.ResultHandler;
+
+import java.util.Date;
+
+/**
+ * person表,update_time和id上需要联合索引
+ */
+@Mapper
+public interface PersonMapper {
+
+    // 按(update_time, id)顺序流式读取高水位之后的行,mysql需在连接串上开启useCursorFetch
+    @Select("SELECT id, name, address, age, interests, birth, update_time AS updateTime FROM person"
+            + " WHERE update_time > #{since} OR (update_time = #{since} AND id > #{lastId})"
+            + " ORDER BY update_time, id")
+    @Options(resultSetType = ResultSetType.FORWARD_ONLY, fetchSize = 1000)
+    @ResultType(PersonRow.class)
+    void scanSince(@Param("since") Date since, @Param("lastId") long lastId, ResultHandler<PersonRow> handler);
+
+    @Select("SELECT MAX(update_time) FROM person")
+    Date selectMaxUpdateTime();
+}
@@ -0,0 +1,18 @@
+package com.fh.paging;
+
+import com.fh.entity.Person;
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * 一页结果,next、previous为翻到下一页、上一页的游标,没有时为null
+ */
+@Data
+public class CursorPage {
+    private final List<Person> content;
+    // 查询命中的总数
+    private final long total;
+    private final String next;
+    private final String previous;
+}
@@ -0,0 +1,68 @@
+package com.fh.paging;
+
+import lombok.Data;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 游标的内容,编码成base64的json交给调用方,服务端不保存
+ * search_after模式记录翻页起点的排序值和方向;一致性模式记录scroll id和已经返回的条数
+ */
+@Data
+class PageCursor {
+
+    // 查询和排序的哈希,防止游标被用在别的查询上
+    private final long query;
+    // 上一页最后一条(向后翻)或第一条(向前翻)的排序值
+    private final Object[] after;
+    private final boolean backward;
+    private final String scrollId;
+    private final long offset;
+
+    static PageCursor after(long query, Object[] sortValues, boolean backward) {
+        return new PageCursor(query, sortValues, backward, null, 0);
+    }
+
+    static PageCursor scroll(long query, String scrollId, long offset) {
+        return new PageCursor(query, null, false, scrollId, offset);
+    }
+
+    String encode() {
+        try {
+            XContentBuilder builder = XContentFactory.jsonBuilder().startObject().field("q", query);
+            if (scrollId != null) {
+                builder.field("s", scrollId).field("o", offset);
+            } else {
+                builder.array("a", after).field("b", backward);
+            }
+            byte[] json = BytesReference.toBytes(BytesReference.bytes(builder.endObject()));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(json);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static PageCursor decode(String token) {
+        try {
+            byte[] json = Base64.getUrlDecoder().decode(token);
+            Map<String, Object> map = XContentHelper.convertToMap(new BytesArray(json), false, XContentType.JSON).v2();
+            long query = ((Number) map.get("q")).longValue();
+            if (map.containsKey("s")) {
+                return scroll(query, (String) map.get("s"), ((Number) map.get("o")).longValue());
+            }
+            return after(query, ((List<?>) map.get("a")).toArray(), (Boolean) map.get("b"));
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("invalid cursor", e);
+        }
+    }
+}
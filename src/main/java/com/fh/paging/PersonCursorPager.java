@@ -0,0 +1,242 @@
+package com.fh.paging;
+
+import com.fh.config.PagingProperties;
+import com.fh.entity.Person;
+import com.fh.es.PersonCodec;
+import com.fh.es.PersonIndex;
+import com.fh.es.PersonQueryRewriter;
+import com.fh.partition.PersonPartitions;
+import com.fh.routing.PersonRouting;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchScrollRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.hash.MurmurHash3;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchContextMissingException;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.sort.FieldSortBuilder;
+import org.elasticsearch.search.sort.SortBuilder;
+import org.elasticsearch.search.sort.SortBuilders;
+import org.elasticsearch.search.sort.SortOrder;
+import org.springframework.data.elasticsearch.core.query.SearchQuery;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * 基于search_after的游标分页,代替from/size:每页只取size+1条,第N页和第1页开销相同,也不受max_result_window限制
+ * 排序字段最后固定加上tiebreaker保证顺序稳定;上一页用反向排序从当前页第一条往前取
+ * 游标只在调用方手里,服务端不保存状态;consistent时改用短时scroll,翻页期间看到的是同一份快照,但只能往后翻
+ */
+@Service
+public class PersonCursorPager {
+
+    private static final String FIRST = "_first";
+    private static final String LAST = "_last";
+
+    private final Client client;
+    private final PagingProperties properties;
+    private final PersonPartitions partitions;
+    private final PersonRouting routing;
+    private final PersonQueryRewriter rewriter;
+
+    public PersonCursorPager(Client client, PagingProperties properties, PersonPartitions partitions,
+                             PersonRouting routing, PersonQueryRewriter rewriter) {
+        this.client = client;
+        this.properties = properties;
+        this.partitions = partitions;
+        this.routing = routing;
+        this.rewriter = rewriter;
+    }
+
+    public int getDefaultSize() {
+        return properties.getSize();
+    }
+
+    /**
+     * ElasticsearchTemplate的查询:用其中的query、filter、排序和每页条数,pageable的页码由游标代替
+     */
+    public CompletableFuture<CursorPage> page(SearchQuery searchQuery, String cursor) {
+        QueryBuilder query = searchQuery.getQuery() == null ? QueryBuilders.matchAllQuery() : searchQuery.getQuery();
+        if (searchQuery.getFilter() != null) {
+            query = QueryBuilders.boolQuery().must(query).filter(searchQuery.getFilter());
+        }
+        List<SortBuilder> sorts = searchQuery.getElasticsearchSorts() == null
+                ? Collections.emptyList() : searchQuery.getElasticsearchSorts();
+        List<FieldSortBuilder> fieldSorts = new ArrayList<>();
+        for (SortBuilder sort : sorts) {
+            if (!(sort instanceof FieldSortBuilder)) {
+                throw new IllegalArgumentException("only field sorts can be paged with a cursor: " + sort);
+            }
+            fieldSorts.add((FieldSortBuilder) sort);
+        }
+        int size = searchQuery.getPageable().isPaged() ? searchQuery.getPageable().getPageSize() : properties.getSize();
+        return page(query, fieldSorts, size, cursor, false);
+    }
+
+    /**
+     * cursor为null时返回第一页,之后传上一次结果中的next或previous
+     * 游标必须与生成它的query、sorts、consistent一起使用,否则抛出IllegalArgumentException
+     */
+    public CompletableFuture<CursorPage> page(QueryBuilder query, List<FieldSortBuilder> sorts, int size,
+                                              String cursor, boolean consistent) {
+        if (size <= 0 || size > properties.getMaxSize()) {
+            throw new IllegalArgumentException("page size must be between 1 and " + properties.getMaxSize());
+        }
+        List<FieldSortBuilder> order = new ArrayList<>(sorts);
+        // 还没有doc_id mapping的分区按缺失值排序,不报错
+        order.add(SortBuilders.fieldSort(properties.getTiebreaker()).order(SortOrder.ASC).unmappedType("keyword"));
+        long hash = hash(query, order, consistent);
+        PageCursor current = cursor == null ? null : PageCursor.decode(cursor);
+        if (current != null && current.getQuery() != hash) {
+            throw new IllegalArgumentException("cursor does not belong to this query");
+        }
+        if (current != null && current.getScrollId() != null) {
+            return scroll(hash, current, size);
+        }
+
+        String[] indices = partitions.searchIndices(query);
+        if (indices.length == 0) {
+            return CompletableFuture.completedFuture(new CursorPage(Collections.emptyList(), 0, null, null));
+        }
+        boolean backward = current != null && current.isBackward();
+        // 一致性模式的scroll每页条数固定,不能多取一条判断是否还有下一页
+        SearchSourceBuilder source = new SearchSourceBuilder().query(rewriter.rewrite(query))
+                .size(consistent ? size : size + 1);
+        for (FieldSortBuilder sort : order) {
+            source.sort(backward ? reverse(sort) : sort);
+        }
+        if (current != null) {
+            source.searchAfter(current.getAfter());
+        }
+        SearchRequest request = new SearchRequest(indices).types(PersonIndex.TYPE).routing(routing.routing(query))
+                .source(source);
+        if (consistent) {
+            request.scroll(keepAlive());
+        }
+        return execute(listener -> client.search(request, listener)).thenApply(response -> consistent
+                ? scrollPage(hash, response, 0, size)
+                : afterPage(hash, response, current, size));
+    }
+
+    // 解析"age:desc,name.keyword"形式的排序,省略方向时为升序
+    public static List<FieldSortBuilder> sorts(String spec) {
+        List<FieldSortBuilder> sorts = new ArrayList<>();
+        if (spec == null || spec.trim().isEmpty()) {
+            return sorts;
+        }
+        for (String part : spec.split(",")) {
+            String[] fieldAndOrder = part.trim().split(":");
+            if (fieldAndOrder[0].isEmpty() || fieldAndOrder.length > 2) {
+                throw new IllegalArgumentException("invalid sort: " + part);
+            }
+            sorts.add(SortBuilders.fieldSort(fieldAndOrder[0])
+                    .order(fieldAndOrder.length == 2 ? SortOrder.fromString(fieldAndOrder[1]) : SortOrder.ASC));
+        }
+        return sorts;
+    }
+
+    private CursorPage afterPage(long hash, SearchResponse response, PageCursor current, int size) {
+        SearchHit[] hits = response.getHits().getHits();
+        boolean more = hits.length > size;
+        List<SearchHit> page = new ArrayList<>(Arrays.asList(hits).subList(0, Math.min(size, hits.length)));
+        boolean backward = current != null && current.isBackward();
+        if (backward) {
+            Collections.reverse(page);
+        }
+        if (page.isEmpty()) {
+            return new CursorPage(Collections.emptyList(), response.getHits().getTotalHits(), null, null);
+        }
+        Object[] first = page.get(0).getSortValues();
+        Object[] last = page.get(page.size() - 1).getSortValues();
+        // 向后翻时多取的一条说明后面还有,向前翻时说明前面还有;来的方向上一定还有
+        String next = !backward && !more ? null : PageCursor.after(hash, last, false).encode();
+        String previous = current == null || backward && !more ? null : PageCursor.after(hash, first, true).encode();
+        return new CursorPage(persons(page), response.getHits().getTotalHits(), next, previous);
+    }
+
+    private CompletableFuture<CursorPage> scroll(long hash, PageCursor current, int size) {
+        SearchScrollRequest request = new SearchScrollRequest(current.getScrollId()).scroll(keepAlive());
+        CompletableFuture<SearchResponse> response = execute(listener -> client.searchScroll(request, listener));
+        return response.handle((result, failure) -> {
+            if (failure != null) {
+                if (ExceptionsHelper.unwrapCause(unwrap(failure)) instanceof SearchContextMissingException) {
+                    throw new IllegalArgumentException("cursor expired", failure);
+                }
+                throw new IllegalStateException(unwrap(failure));
+            }
+            return scrollPage(hash, result, current.getOffset(), size);
+        });
+    }
+
+    private CursorPage scrollPage(long hash, SearchResponse response, long offset, int size) {
+        SearchHit[] hits = response.getHits().getHits();
+        long total = response.getHits().getTotalHits();
+        long fetched = offset + hits.length;
+        String next = null;
+        if (hits.length > 0 && fetched < total) {
+            next = PageCursor.scroll(hash, response.getScrollId(), fetched).encode();
+        } else if (response.getScrollId() != null) {
+            // 已经到最后一页,不等待清理结果
+            client.prepareClearScroll().addScrollId(response.getScrollId()).execute();
+        }
+        return new CursorPage(persons(Arrays.asList(hits)), total, next, null);
+    }
+
+    private static List<Person> persons(List<SearchHit> hits) {
+        List<Person> persons = new ArrayList<>(hits.size());
+        for (SearchHit hit : hits) {
+            persons.add(PersonCodec.decode(hit.getSourceRef()));
+        }
+        return persons;
+    }
+
+    // 反向排序,缺失值的位置也要反过来,否则往前翻时缺失值文档的顺序对不上
+    private static FieldSortBuilder reverse(FieldSortBuilder sort) {
+        FieldSortBuilder reversed = new FieldSortBuilder(sort)
+                .order(sort.order() == SortOrder.ASC ? SortOrder.DESC : SortOrder.ASC);
+        Object missing = sort.missing() == null ? LAST : sort.missing();
+        if (LAST.equals(missing)) {
+            reversed.missing(FIRST);
+        } else if (FIRST.equals(missing)) {
+            reversed.missing(LAST);
+        }
+        return reversed;
+    }
+
+    private static long hash(QueryBuilder query, List<FieldSortBuilder> order, boolean consistent) {
+        byte[] bytes = (query.toString() + order + consistent).getBytes(StandardCharsets.UTF_8);
+        return MurmurHash3.hash128(bytes, 0, bytes.length, 0, new MurmurHash3.Hash128()).h1;
+    }
+
+    private TimeValue keepAlive() {
+        return TimeValue.timeValueMillis(properties.getScrollKeepAlive().toMillis());
+    }
+
+    private static Throwable unwrap(Throwable failure) {
+        return failure instanceof CompletionException && failure.getCause() != null
+                ? failure.getCause() : failure;
+    }
+
+    private interface Call {
+        void execute(ActionListener<SearchResponse> listener);
+    }
+
+    private static CompletableFuture<SearchResponse> execute(Call call) {
+        CompletableFuture<SearchResponse> future = new CompletableFuture<>();
+        call.execute(ActionListener.wrap(future::complete, future::completeExceptionally));
+        return future;
+    }
+}
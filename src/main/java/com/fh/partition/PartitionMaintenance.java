@@ -0,0 +1,60 @@
+package com.fh.partition;
+
+import com.fh.config.PartitionProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * es.partition.enabled=true时定时冻结旧分区,freeze-after-periods为0时不做任何事
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "es.partition", name = "enabled", havingValue = "true")
+public class PartitionMaintenance {
+
+    private final PersonPartitions partitions;
+    private final PartitionProperties properties;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "person-partition-maintenance");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public PartitionMaintenance(PersonPartitions partitions, PartitionProperties properties) {
+        this.partitions = partitions;
+        this.properties = properties;
+    }
+
+    @PostConstruct
+    public void start() {
+        if (properties.getFreezeAfterPeriods() <= 0) {
+            return;
+        }
+        long interval = properties.getMaintenanceInterval().toMillis();
+        scheduler.scheduleWithFixedDelay(this::freeze, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private void freeze() {
+        try {
+            int frozen = partitions.freezeOldPartitions();
+            if (frozen > 0) {
+                log.info("person partition maintenance: froze {} partitions", frozen);
+            }
+        } catch (Exception e) {
+            log.error("person partition maintenance failed", e);
+        }
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        scheduler.shutdown();
+        scheduler.awaitTermination(30, TimeUnit.SECONDS);
+    }
+}
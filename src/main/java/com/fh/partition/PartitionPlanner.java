@@ -0,0 +1,153 @@
+package com.fh.partition;
+
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.ConstantScoreQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.RangeQueryBuilder;
+import org.elasticsearch.index.query.TermQueryBuilder;
+import org.elasticsearch.index.query.TermsQueryBuilder;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 从查询条件中推出分区字段的取值范围,用来只查询可能命中的分区
+ * 识别range、term、terms以及bool的must/filter(取交集)和should(取并集),
+ * 其他无法判断的条件一律视为不限,结果只会多查分区而不会漏查
+ */
+public class PartitionPlanner {
+
+    // 明确以日期解析的format,其他format(例如YYYY-MM-DD中的DD表示一年中的第几天)不做推断
+    private static final Set<String> DATE_FORMATS = new HashSet<>(Arrays.asList(
+            "yyyy", "yyyy-MM", "yyyy-MM-dd", "date", "strict_date", "date_optional_time",
+            "strict_date_optional_time", "year_month_day", "strict_year_month_day"));
+
+    private final String field;
+    private final PartitionScheme scheme;
+
+    public PartitionPlanner(String field, PartitionScheme scheme) {
+        this.field = field;
+        this.scheme = scheme;
+    }
+
+    /**
+     * 从partitions中挑出可能命中的分区,返回null表示无法缩小范围,需要查询全部分区
+     */
+    public List<String> plan(QueryBuilder query, Collection<String> partitions) {
+        Bounds bounds = bounds(query);
+        if (bounds.isAll()) {
+            return null;
+        }
+        List<String> targets = new ArrayList<>();
+        if (!bounds.empty) {
+            for (String partition : partitions) {
+                if (scheme.overlaps(partition, bounds.from, bounds.to)) {
+                    targets.add(partition);
+                }
+            }
+        }
+        return targets;
+    }
+
+    Bounds bounds(QueryBuilder query) {
+        if (query instanceof RangeQueryBuilder) {
+            RangeQueryBuilder range = (RangeQueryBuilder) query;
+            if (!field.equals(range.fieldName()) || (range.format() != null && !DATE_FORMATS.contains(range.format()))
+                    || range.timeZone() != null) {
+                return Bounds.ALL;
+            }
+            // 有取值却解析不了(例如now-1d)时该侧视为不限
+            return Bounds.of(PartitionScheme.parse(range.from(), false), PartitionScheme.parse(range.to(), true));
+        }
+        if (query instanceof TermQueryBuilder && field.equals(((TermQueryBuilder) query).fieldName())) {
+            Object value = ((TermQueryBuilder) query).value();
+            return Bounds.of(PartitionScheme.parse(value, false), PartitionScheme.parse(value, true));
+        }
+        if (query instanceof TermsQueryBuilder && field.equals(((TermsQueryBuilder) query).fieldName())) {
+            Bounds union = Bounds.EMPTY;
+            for (Object value : ((TermsQueryBuilder) query).values()) {
+                union = union.union(Bounds.of(PartitionScheme.parse(value, false), PartitionScheme.parse(value, true)));
+            }
+            return union;
+        }
+        if (query instanceof ConstantScoreQueryBuilder) {
+            return bounds(((ConstantScoreQueryBuilder) query).innerQuery());
+        }
+        if (query instanceof BoolQueryBuilder) {
+            BoolQueryBuilder bool = (BoolQueryBuilder) query;
+            Bounds result = Bounds.ALL;
+            for (QueryBuilder clause : bool.must()) {
+                result = result.intersect(bounds(clause));
+            }
+            for (QueryBuilder clause : bool.filter()) {
+                result = result.intersect(bounds(clause));
+            }
+            // 没有must/filter时至少要满足一个should
+            if (bool.must().isEmpty() && bool.filter().isEmpty() && !bool.should().isEmpty()
+                    && !"0".equals(bool.minimumShouldMatch())) {
+                Bounds union = Bounds.EMPTY;
+                for (QueryBuilder clause : bool.should()) {
+                    union = union.union(bounds(clause));
+                }
+                result = result.intersect(union);
+            }
+            return result;
+        }
+        return Bounds.ALL;
+    }
+
+    /**
+     * 闭区间[from, to],null表示该侧不限;empty表示不可能命中任何文档
+     */
+    static final class Bounds {
+        static final Bounds ALL = new Bounds(null, null, false);
+        static final Bounds EMPTY = new Bounds(null, null, true);
+
+        final LocalDate from;
+        final LocalDate to;
+        final boolean empty;
+
+        private Bounds(LocalDate from, LocalDate to, boolean empty) {
+            this.from = from;
+            this.to = to;
+            this.empty = empty;
+        }
+
+        static Bounds of(LocalDate from, LocalDate to) {
+            if (from != null && to != null && from.isAfter(to)) {
+                return EMPTY;
+            }
+            return new Bounds(from, to, false);
+        }
+
+        boolean isAll() {
+            return !empty && from == null && to == null;
+        }
+
+        Bounds intersect(Bounds other) {
+            if (empty || other.empty) {
+                return EMPTY;
+            }
+            LocalDate start = from == null ? other.from : other.from == null || from.isAfter(other.from) ? from : other.from;
+            LocalDate end = to == null ? other.to : other.to == null || to.isBefore(other.to) ? to : other.to;
+            return of(start, end);
+        }
+
+        Bounds union(Bounds other) {
+            if (empty) {
+                return other;
+            }
+            if (other.empty) {
+                return this;
+            }
+            LocalDate start = from == null || other.from == null ? null : from.isBefore(other.from) ? from : other.from;
+            LocalDate end = to == null || other.to == null ? null : to.isAfter(other.to) ? to : other.to;
+            return new Bounds(start, end, false);
+        }
+    }
+}
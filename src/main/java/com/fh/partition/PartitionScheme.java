@@ -0,0 +1,102 @@
+package com.fh.partition;
+
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 日期与分区索引名之间的换算,按年时为 前缀yyyy,按月时为 前缀yyyy-MM
+ */
+public class PartitionScheme {
+
+    public enum Granularity {
+        YEAR,
+        MONTH
+    }
+
+    // 只接受不带时区偏移的时间部分,日期运算(||+1y、now)和偏移会改变实际日期,不能用来裁剪分区
+    private static final Pattern DATE = Pattern.compile(
+            "^(\\d{4})(?:-(\\d{2})(?:-(\\d{2})(?:[T ]\\d{2}(?::\\d{2}(?::\\d{2}(?:[.,]\\d{1,9})?)?)?Z?)?)?)?$");
+
+    private final String prefix;
+    private final Granularity granularity;
+
+    public PartitionScheme(String prefix, Granularity granularity) {
+        this.prefix = prefix;
+        this.granularity = granularity;
+    }
+
+    public String indexFor(LocalDate date) {
+        return granularity == Granularity.YEAR
+                ? prefix + String.format("%04d", date.getYear())
+                : prefix + String.format("%04d-%02d", date.getYear(), date.getMonthValue());
+    }
+
+    /**
+     * 分区覆盖的第一天,不是本方案的分区索引返回null
+     */
+    public LocalDate start(String index) {
+        if (!index.startsWith(prefix)) {
+            return null;
+        }
+        String suffix = index.substring(prefix.length());
+        if (granularity == Granularity.YEAR ? !suffix.matches("\\d{4}") : !suffix.matches("\\d{4}-\\d{2}")) {
+            return null;
+        }
+        return parse(suffix, false);
+    }
+
+    // 分区覆盖的最后一天
+    public LocalDate end(LocalDate start) {
+        return granularity == Granularity.YEAR ? start.plusYears(1).minusDays(1) : start.plusMonths(1).minusDays(1);
+    }
+
+    // 往前数periods个周期的分区起始日
+    public LocalDate minus(LocalDate start, int periods) {
+        return granularity == Granularity.YEAR ? start.minusYears(periods) : start.minusMonths(periods);
+    }
+
+    /**
+     * 分区与[from, to]是否有交集,null表示该侧不限
+     */
+    public boolean overlaps(String index, LocalDate from, LocalDate to) {
+        LocalDate start = start(index);
+        if (start == null) {
+            return false;
+        }
+        return (to == null || !start.isAfter(to)) && (from == null || !end(start).isBefore(from));
+    }
+
+    /**
+     * 解析yyyy、yyyy-MM、yyyy-MM-dd(可带时间)的字符串或毫秒时间戳,无法解析或带日期运算、时区偏移时返回null
+     * upper为true时把省略的部分补到该年或该月的最后一天,作为区间上界时不会漏掉分区
+     */
+    public static LocalDate parse(Object value, boolean upper) {
+        if (value instanceof Number) {
+            return Instant.ofEpochMilli(((Number) value).longValue()).atZone(ZoneOffset.UTC).toLocalDate();
+        }
+        if (value == null) {
+            return null;
+        }
+        Matcher matcher = DATE.matcher(value.toString().trim());
+        if (!matcher.matches()) {
+            return null;
+        }
+        try {
+            int year = Integer.parseInt(matcher.group(1));
+            if (matcher.group(2) == null) {
+                return upper ? LocalDate.of(year, 12, 31) : LocalDate.of(year, 1, 1);
+            }
+            LocalDate month = LocalDate.of(year, Integer.parseInt(matcher.group(2)), 1);
+            if (matcher.group(3) == null) {
+                return upper ? month.plusMonths(1).minusDays(1) : month;
+            }
+            return month.withDayOfMonth(Integer.parseInt(matcher.group(3)));
+        } catch (DateTimeException e) {
+            return null;
+        }
+    }
+}
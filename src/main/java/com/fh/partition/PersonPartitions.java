@@ -0,0 +1,298 @@
+package com.fh.partition;
+
+import com.fh.config.NgramProperties;
+import com.fh.config.PartitionProperties;
+import com.fh.entity.Person;
+import com.fh.es.PersonIndex;
+import com.fh.es.PersonMapping;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.ResourceAlreadyExistsException;
+import org.elasticsearch.action.admin.indices.alias.Alias;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequestBuilder;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Person按日期字段分区存放
+ * 写入时按字段值算出分区索引,不存在则创建;新分区通过索引模板自动加入读别名,写别名指向最新的分区;
+ * 查询时由PartitionPlanner从条件推出需要的分区,只查这些分区;分区列表整体替换发布,刷新过程中读到的总是完整的旧列表或新列表,
+ * 只查部分分区时列表不能超过planRefreshInterval,否则先刷新,刷新不了就查读别名,避免漏掉其他实例刚建的分区;
+ * 未开启时所有方法都返回lib,调用方不需要区分
+ */
+@Slf4j
+@Component
+public class PersonPartitions {
+
+    private static final String TEMPLATE = "person-partitions";
+
+    private final Client client;
+    private final PartitionProperties properties;
+    private final NgramProperties ngram;
+    private final PartitionScheme scheme;
+    private final PartitionPlanner planner;
+    private final Set<String> frozen = ConcurrentHashMap.newKeySet();
+    // 刷新和本地新建分区都在锁内替换known,查询线程拿不到锁时不等待
+    private final ReentrantLock refreshing = new ReentrantLock();
+    private volatile Set<String> known = Collections.emptySet();
+    private volatile boolean templateReady;
+    private volatile long refreshedAt;
+    private volatile String writeTarget;
+
+    public PersonPartitions(Client client, PartitionProperties properties, NgramProperties ngram) {
+        this.client = client;
+        this.properties = properties;
+        this.ngram = ngram;
+        this.scheme = new PartitionScheme(properties.getIndexPrefix(), properties.getGranularity());
+        this.planner = new PartitionPlanner(properties.getField(), scheme);
+    }
+
+    // 未开启分区的实例,用于测试等不需要es的场景
+    public static PersonPartitions disabled() {
+        return new PersonPartitions(null, new PartitionProperties(), new NgramProperties());
+    }
+
+    public boolean isEnabled() {
+        return properties.isEnabled();
+    }
+
+    /**
+     * 文档应写入的索引,分区字段为空或无法解析时写入写别名(还没有分区时先建当前周期的分区)
+     */
+    public String writeIndex(Person person) {
+        if (!isEnabled()) {
+            return PersonIndex.INDEX;
+        }
+        LocalDate date = PartitionScheme.parse(person.getBirth(), false);
+        if (date == null) {
+            ensureWriteAlias();
+            return properties.getWriteAlias();
+        }
+        String index = scheme.indexFor(date);
+        ensurePartition(index);
+        return index;
+    }
+
+    // 按id修改、删除时找不到文档,发往写别名,由es返回文档不存在
+    public String missingIndex() {
+        if (!isEnabled()) {
+            return PersonIndex.INDEX;
+        }
+        ensureWriteAlias();
+        return properties.getWriteAlias();
+    }
+
+    /**
+     * 查询需要访问的索引,空数组表示条件不可能命中任何分区,调用方应直接返回空结果
+     */
+    public String[] searchIndices(QueryBuilder query) {
+        if (!isEnabled()) {
+            return new String[]{PersonIndex.INDEX};
+        }
+        List<String> targets = planner.plan(query, partitions());
+        if (targets == null) {
+            return new String[]{properties.getReadAlias()};
+        }
+        if (!refresh(properties.getPlanRefreshInterval().toMillis())) {
+            return new String[]{properties.getReadAlias()};
+        }
+        return planner.plan(query, known).toArray(new String[0]);
+    }
+
+    // 遍历或汇总全部文档时使用的索引,只能传一个索引名的接口用它代替searchIndices
+    public String readIndex() {
+        return isEnabled() ? properties.getReadAlias() : PersonIndex.INDEX;
+    }
+
+    // 读写别名指向的分区会变,按id记录文档位置时不能记别名
+    public boolean isAlias(String index) {
+        return isEnabled() && (index.equals(properties.getReadAlias()) || index.equals(properties.getWriteAlias()));
+    }
+
+    // 索引名是否属于Person,包括lib、分区和读写别名
+    public boolean isPersonIndex(String index) {
+        if (PersonIndex.INDEX.equals(index)) {
+            return true;
+        }
+        return isEnabled() && (index.equals(properties.getReadAlias()) || index.equals(properties.getWriteAlias())
+                || scheme.start(index) != null);
+    }
+
+    // 修改不能改变分区字段,否则文档会留在旧分区里
+    public void checkUpdate(Map<String, Object> doc) {
+        if (isEnabled() && doc.containsKey(properties.getField())) {
+            throw new IllegalArgumentException("partition field [" + properties.getField()
+                    + "] cannot be changed by a partial update, index the whole document instead");
+        }
+    }
+
+    // 本地已知的全部分区,定期从集群刷新
+    public Set<String> partitions() {
+        refresh(properties.getRefreshInterval().toMillis());
+        return known;
+    }
+
+    /**
+     * 把比最新分区早freezeAfterPeriods个周期以上的分区合并为一个段并禁止写入,返回本次处理的分区数
+     * 6.4没有freeze接口,用index.blocks.write代替;之后分区字段落在这些分区的文档(例如按birth分区时出生较早的新人员)
+     * 无法写入、修改和删除,只适合旧周期不会再有写入的数据
+     */
+    public int freezeOldPartitions() {
+        if (!isEnabled() || properties.getFreezeAfterPeriods() <= 0) {
+            return 0;
+        }
+        TreeSet<LocalDate> starts = new TreeSet<>();
+        partitions().forEach(index -> starts.add(scheme.start(index)));
+        starts.remove(null);
+        if (starts.isEmpty()) {
+            return 0;
+        }
+        LocalDate cutoff = scheme.minus(starts.last(), properties.getFreezeAfterPeriods());
+        int count = 0;
+        for (String index : known) {
+            LocalDate start = scheme.start(index);
+            if (start == null || !start.isBefore(cutoff) || frozen.contains(index)) {
+                continue;
+            }
+            client.admin().indices().prepareForceMerge(index).setMaxNumSegments(1).get();
+            client.admin().indices().prepareUpdateSettings(index)
+                    .setSettings(Settings.builder().put("index.blocks.write", true)).get();
+            frozen.add(index);
+            count++;
+            log.info("froze person partition {}", index);
+        }
+        return count;
+    }
+
+    /**
+     * 分区列表的时间不到maxAgeMillis时返回true,否则从集群刷新;
+     * 其他线程正在刷新或刷新失败时返回false,原列表不变
+     */
+    private boolean refresh(long maxAgeMillis) {
+        return refresh(maxAgeMillis, false);
+    }
+
+    // wait为true时等正在进行的刷新结束,再按maxAgeMillis判断
+    private boolean refresh(long maxAgeMillis, boolean wait) {
+        if (System.currentTimeMillis() - refreshedAt < maxAgeMillis) {
+            return true;
+        }
+        if (wait) {
+            refreshing.lock();
+        } else if (!refreshing.tryLock()) {
+            return false;
+        }
+        try {
+            if (System.currentTimeMillis() - refreshedAt < maxAgeMillis) {
+                return true;
+            }
+            long started = System.currentTimeMillis();
+            String[] indices = client.admin().indices().prepareGetIndex()
+                    .addIndices(properties.getIndexPrefix() + "*").get().getIndices();
+            Set<String> partitions = new TreeSet<>();
+            Arrays.stream(indices).filter(index -> scheme.start(index) != null).forEach(partitions::add);
+            known = Collections.unmodifiableSet(partitions);
+            refreshedAt = started;
+            return true;
+        } catch (Exception e) {
+            log.warn("failed to refresh person partitions, using {} cached", known.size(), e);
+            return false;
+        } finally {
+            refreshing.unlock();
+        }
+    }
+
+    // 模板让新分区自动加入读别名
+    private void ensureTemplate() {
+        if (templateReady) {
+            return;
+        }
+        client.admin().indices().preparePutTemplate(TEMPLATE)
+                .setPatterns(Collections.singletonList(properties.getIndexPrefix() + "*"))
+                .setSettings(Settings.builder()
+                        .put("index.number_of_shards", properties.getShards())
+                        .put("index.number_of_replicas", properties.getReplicas())
+                        .put(PersonMapping.analysis(ngram)))
+                // 分区一开始就带n-gram子字段,查询改写不需要区分分区
+                .addMapping(PersonIndex.TYPE, PersonMapping.mapping(ngram))
+                .addAlias(new Alias(properties.getReadAlias()))
+                .get();
+        templateReady = true;
+    }
+
+    private void ensurePartition(String index) {
+        if (known.contains(index)) {
+            return;
+        }
+        // 刚启动时列表是空的,先从集群刷新,已有的分区不重复创建
+        refresh(0, true);
+        if (!known.contains(index)) {
+            ensureTemplate();
+            try {
+                client.admin().indices().prepareCreate(index).get();
+                log.info("created person partition {}", index);
+            } catch (ResourceAlreadyExistsException e) {
+                // 其他节点已经创建
+            }
+            // 等正在进行的刷新发布之后再加入,否则会被刷新前查到的旧列表覆盖
+            refreshing.lock();
+            try {
+                Set<String> partitions = new TreeSet<>(known);
+                partitions.add(index);
+                known = Collections.unmodifiableSet(partitions);
+            } finally {
+                refreshing.unlock();
+            }
+        }
+        moveWriteAlias();
+    }
+
+    // 写别名不存在时直接写它,es会自动建一个同名的普通索引(还会按模板加入读别名),之后写别名就建不起来了
+    private void ensureWriteAlias() {
+        if (writeTarget != null) {
+            return;
+        }
+        refresh(0, true);
+        if (known.isEmpty()) {
+            ensurePartition(scheme.indexFor(LocalDate.now()));
+        } else {
+            moveWriteAlias();
+        }
+    }
+
+    // 写别名指向按名称排序最新的分区,只往后移;其他实例可能已经把它移到了本地还不知道的更新分区上
+    private synchronized void moveWriteAlias() {
+        String latest = Collections.max(known);
+        if (latest.equals(writeTarget)) {
+            return;
+        }
+        List<String> holders = new ArrayList<>();
+        client.admin().indices().prepareGetAliases(properties.getWriteAlias()).get().getAliases()
+                .forEach(cursor -> {
+                    if (!cursor.value.isEmpty()) {
+                        holders.add(cursor.key);
+                    }
+                });
+        if (holders.size() == 1 && holders.get(0).compareTo(latest) >= 0) {
+            writeTarget = holders.get(0);
+            return;
+        }
+        IndicesAliasesRequestBuilder aliases = client.admin().indices().prepareAliases();
+        holders.forEach(index -> aliases.removeAlias(index, properties.getWriteAlias()));
+        aliases.addAlias(latest, properties.getWriteAlias()).get();
+        writeTarget = latest;
+        log.info("moved {} from {} to {}", properties.getWriteAlias(), holders, latest);
+    }
+}
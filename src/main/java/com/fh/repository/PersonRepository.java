@@ -0,0 +1,270 @@
+package com.fh.repository;
+
+import com.fh.config.AsyncProperties;
+import com.fh.entity.Person;
+import com.fh.es.AdmissionControlClient;
+import com.fh.es.AsyncLimiter;
+import com.fh.es.PersonCodec;
+import com.fh.es.PersonIndex;
+import com.fh.es.PersonQueryRewriter;
+import com.fh.es.PersonWriteEvent;
+import com.fh.es.PersonWriteEvents;
+import com.fh.partition.PersonPartitions;
+import com.fh.routing.PersonLocator;
+import com.fh.routing.PersonLocator.Location;
+import com.fh.routing.PersonRouting;
+import com.fh.service.PersonMultiSearch;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.delete.DeleteResponse;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.action.update.UpdateResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * 非阻塞的Person读写,基于ActionListener回调,返回CompletableFuture
+ * 所有请求共用一个在途上限;future在es回调线程上完成,后续处理不要阻塞
+ * 开启分区或routing时同一id的写入按调用顺序依次执行,与PersonIndexer一致
+ */
+@Component
+public class PersonRepository {
+
+    private final Client client;
+    private final PersonWriteEvents events;
+    private final PersonPartitions partitions;
+    private final PersonRouting routing;
+    private final PersonLocator locator;
+    private final PersonMultiSearch multiSearch;
+    private final PersonQueryRewriter rewriter;
+    private final AsyncLimiter limiter;
+    // 每个id最后一个写入结束时完成,后来的写入排在它后面
+    private final Map<String, CompletableFuture<Void>> chains = new ConcurrentHashMap<>();
+
+    public PersonRepository(Client client, PersonWriteEvents events, PersonPartitions partitions,
+                            PersonRouting routing, PersonLocator locator, PersonMultiSearch multiSearch,
+                            PersonQueryRewriter rewriter, AsyncProperties properties) {
+        this.client = client;
+        this.events = events;
+        this.partitions = partitions;
+        this.routing = routing;
+        this.locator = locator;
+        this.multiSearch = multiSearch;
+        this.rewriter = rewriter;
+        // 开启es.admission后客户端已经按操作类别限流排队,这里再限一次只会多排一层队
+        this.limiter = client instanceof AdmissionControlClient ? AsyncLimiter.unlimited()
+                : new AsyncLimiter(properties.getMaxInFlight(), properties.getMaxQueued());
+    }
+
+    // 分区字段或routing变了的文档先从原来的位置删掉,再写到新位置
+    public CompletableFuture<IndexResponse> index(String id, Person person) {
+        Location target = locator.target(person);
+        IndexRequest request = new IndexRequest(target.getIndex(), PersonIndex.TYPE, id).routing(target.getRouting())
+                .source(PersonCodec.encode(id, person), XContentType.JSON);
+        return serialized(id, () -> locator.locate(id, target)
+                .thenCompose(previous -> previous == null || previous.equals(target)
+                        ? CompletableFuture.completedFuture(null)
+                        : limiter.<DeleteResponse>submit(listener -> client.delete(new DeleteRequest(
+                                previous.getIndex(), PersonIndex.TYPE, id).routing(previous.getRouting()), listener)))
+                .thenCompose(v -> limiter.<IndexResponse>submit(listener -> client.index(request, listener)))
+                .thenApply(response -> {
+                    locator.remember(id, new Location(response.getIndex(), target.getRouting()));
+                    return response;
+                })
+                .thenApply(published(PersonWriteEvent.index(PersonIndex.INDEX, id, person))));
+    }
+
+    public CompletableFuture<UpdateResponse> update(String id, Map<String, Object> doc) {
+        locator.checkUpdate(doc);
+        return serialized(id, () -> located(id).thenCompose(location -> limiter.<UpdateResponse>submit(listener ->
+                client.update(new UpdateRequest(location.getIndex(), PersonIndex.TYPE, id)
+                        .routing(location.getRouting()).doc(doc), listener)))
+                .thenApply(published(PersonWriteEvent.update(PersonIndex.INDEX, id, doc))));
+    }
+
+    // 已有文档在它所在的位置修改,没有时按person写到新位置,与index一致
+    public CompletableFuture<UpdateResponse> upsert(String id, Map<String, Object> doc, Person person) {
+        locator.checkUpdate(doc);
+        Location target = locator.target(person);
+        return serialized(id, () -> locator.locate(id, target)
+                .thenCompose(existing -> {
+                    Location location = existing != null ? existing : target;
+                    UpdateRequest request = new UpdateRequest(location.getIndex(), PersonIndex.TYPE, id)
+                            .routing(location.getRouting()).doc(doc)
+                            .upsert(new IndexRequest(location.getIndex(), PersonIndex.TYPE, id)
+                                    .routing(location.getRouting())
+                                    .source(PersonCodec.encode(id, person), XContentType.JSON));
+                    return limiter.<UpdateResponse>submit(listener -> client.update(request, listener))
+                            .thenApply(response -> {
+                                locator.remember(id, new Location(response.getIndex(), location.getRouting()));
+                                return response;
+                            });
+                })
+                .thenApply(published(PersonWriteEvent.upsert(PersonIndex.INDEX, id, doc, person))));
+    }
+
+    public CompletableFuture<DeleteResponse> delete(String id) {
+        return serialized(id, () -> located(id).thenCompose(location -> limiter.<DeleteResponse>submit(listener ->
+                client.delete(new DeleteRequest(location.getIndex(), PersonIndex.TYPE, id)
+                        .routing(location.getRouting()), listener)))
+                .thenApply(response -> {
+                    locator.forget(id);
+                    return response;
+                })
+                .thenApply(published(PersonWriteEvent.delete(PersonIndex.INDEX, id))));
+    }
+
+    // 文档不存在时结果为null
+    public CompletableFuture<Person> get(String id) {
+        return locator.locate(id).thenCompose(location -> {
+            if (location == null) {
+                return CompletableFuture.completedFuture(null);
+            }
+            GetRequest request = new GetRequest(location.getIndex(), PersonIndex.TYPE, id)
+                    .routing(location.getRouting());
+            return limiter.<GetResponse>submit(listener -> client.get(request, listener)).thenApply(response ->
+                    response.isExists() ? PersonCodec.decode(response.getSourceAsBytesRef()) : null);
+        });
+    }
+
+    // 结果按ids顺序排列,不存在的id不出现在结果中
+    public CompletableFuture<Map<String, Person>> multiGet(Collection<String> ids) {
+        if (partitions.isEnabled() || (routing.isEnabled() && ids.stream().anyMatch(id -> routing.known(id) == null))) {
+            return searchByIds(ids);
+        }
+        MultiGetRequest request = new MultiGetRequest();
+        ids.forEach(id -> request.add(new MultiGetRequest.Item(PersonIndex.INDEX, PersonIndex.TYPE, id)
+                .routing(routing.known(id))));
+        return limiter.<MultiGetResponse>submit(listener -> client.multiGet(request, listener)).thenApply(response -> {
+            Map<String, Person> persons = new LinkedHashMap<>();
+            for (MultiGetItemResponse item : response) {
+                if (item.isFailed()) {
+                    throw new ElasticsearchException("get [{}] failed", item.getFailure().getFailure(), item.getId());
+                }
+                if (item.getResponse().isExists()) {
+                    persons.put(item.getId(), PersonCodec.decode(item.getResponse().getSourceAsBytesRef()));
+                }
+            }
+            return persons;
+        });
+    }
+
+    public CompletableFuture<List<Person>> search(QueryBuilder query, int from, int size) {
+        String[] indices = partitions.searchIndices(query);
+        if (indices.length == 0) {
+            return CompletableFuture.completedFuture(Collections.emptyList());
+        }
+        SearchRequest request = new SearchRequest(indices).types(PersonIndex.TYPE).routing(routing.routing(query))
+                .source(new SearchSourceBuilder().query(rewriter.rewrite(query)).from(from).size(size));
+        // 并发的查询由multiSearch合并发送
+        return limiter.<SearchResponse>submit(listener -> multiSearch.execute(request, listener)).thenApply(response -> {
+            List<Person> persons = new ArrayList<>(response.getHits().getHits().length);
+            for (SearchHit hit : response.getHits()) {
+                persons.add(PersonCodec.decode(hit.getSourceRef()));
+            }
+            return persons;
+        });
+    }
+
+    // 分区后读别名指向多个索引,mget不支持;有id的routing未知时mget会查错分片;这两种情况改为ids查询
+    private CompletableFuture<Map<String, Person>> searchByIds(Collection<String> ids) {
+        SearchRequest request = new SearchRequest(partitions.searchIndices(null)).types(PersonIndex.TYPE)
+                .source(new SearchSourceBuilder().query(QueryBuilders.idsQuery().addIds(ids.toArray(new String[0])))
+                        .size(ids.size()));
+        return limiter.<SearchResponse>submit(listener -> client.search(request, listener)).thenApply(response -> {
+            Map<String, Person> found = new HashMap<>();
+            for (SearchHit hit : response.getHits()) {
+                routing.remember(hit);
+                found.put(hit.getId(), PersonCodec.decode(hit.getSourceRef()));
+            }
+            Map<String, Person> persons = new LinkedHashMap<>();
+            for (String id : ids) {
+                if (found.containsKey(id)) {
+                    persons.put(id, found.get(id));
+                }
+            }
+            return persons;
+        });
+    }
+
+    /**
+     * 调用方自己拼装的bulk,单条失败不会让future失败,需检查BulkResponse
+     */
+    public CompletableFuture<BulkResponse> bulk(BulkRequest request) {
+        return limiter.<BulkResponse>submit(listener -> client.bulk(request, listener)).thenApply(response -> {
+            for (BulkItemResponse item : response) {
+                DocWriteRequest<?> write = request.requests().get(item.getItemId());
+                if (!item.isFailed() && partitions.isPersonIndex(write.index())) {
+                    // 事件始终用逻辑索引名,缓存等订阅方不需要知道分区
+                    events.publish(PersonWriteEvent.of(write).withIndex(PersonIndex.INDEX));
+                }
+            }
+            return response;
+        });
+    }
+
+    public AsyncLimiter limiter() {
+        return limiter;
+    }
+
+    /**
+     * 排在同一id前一个写入(包括发布事件)之后执行write,前一个失败不影响后面的写入
+     * 否则并发的两次index各自查到文档不存在(或在旧位置),分别写到不同位置,留下两份文档
+     */
+    private <T> CompletableFuture<T> serialized(String id, Supplier<CompletableFuture<T>> write) {
+        if (!locator.isEnabled()) {
+            return write.get();
+        }
+        CompletableFuture<Void> turn = new CompletableFuture<>();
+        CompletableFuture<Void> previous = chains.put(id, turn);
+        CompletableFuture<T> written = (previous == null ? CompletableFuture.<Void>completedFuture(null) : previous)
+                .thenCompose(v -> write.get());
+        written.whenComplete((response, e) -> {
+            chains.remove(id, turn);
+            turn.complete(null);
+        });
+        return written;
+    }
+
+    // 找不到文档时仍然发出请求,由es返回文档不存在
+    private CompletableFuture<Location> located(String id) {
+        return locator.locate(id).thenApply(location -> location != null ? location : locator.missing());
+    }
+
+    private <T> Function<T, T> published(PersonWriteEvent event) {
+        return response -> {
+            events.publish(event);
+            return response;
+        };
+    }
+}
@@ -0,0 +1,278 @@
+package com.fh.routing;
+
+import com.fh.config.RoutingProperties;
+import com.fh.entity.Person;
+import com.fh.es.PersonIndex;
+import com.fh.partition.PersonPartitions;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetResponse;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.fetch.subphase.FetchSourceContext;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 按id找到文档实际所在的索引和routing
+ * 分区字段或routing字段变了的文档要换位置,只按新值写入会在旧位置留下一份,写入前要找到旧位置并删掉;
+ * 先查本地缓存(本节点写入或查到的位置),写入时再用实时get确认预期位置,都没有时用一次ids查询在全部分区上找;
+ * ids查询看不到还没refresh的文档,其他节点刚写入、本节点没见过的文档可能找不到;
+ * 同步、导入等批量写入用removeMoved一次找出并删掉整批中换了位置的旧文档;
+ * 分区和routing都未开启时文档总在lib,不访问es
+ */
+@Component
+public class PersonLocator {
+
+    private static final Location DEFAULT = new Location(PersonIndex.INDEX, null);
+
+    private final Client client;
+    private final PersonPartitions partitions;
+    private final PersonRouting routing;
+    private final Cache<String, Location> known;
+
+    public PersonLocator(Client client, PersonPartitions partitions, PersonRouting routing,
+                         RoutingProperties properties) {
+        this.client = client;
+        this.partitions = partitions;
+        this.routing = routing;
+        this.known = Caffeine.newBuilder().maximumSize(properties.getCacheSize()).build();
+    }
+
+    // 分区和routing都未开启的实例,用于测试等不需要es的场景
+    public static PersonLocator disabled() {
+        return new PersonLocator(null, PersonPartitions.disabled(), PersonRouting.disabled(), new RoutingProperties());
+    }
+
+    public boolean isEnabled() {
+        return partitions.isEnabled() || routing.isEnabled();
+    }
+
+    // person按当前字段值应写入的位置
+    public Location target(Person person) {
+        return new Location(partitions.writeIndex(person), routing.routing(person));
+    }
+
+    // 找不到文档时按id修改、删除发往的位置,由es返回文档不存在
+    public Location missing() {
+        return new Location(partitions.missingIndex(), null);
+    }
+
+    // 局部修改不能改变分区字段和routing字段
+    public void checkUpdate(Map<String, Object> doc) {
+        partitions.checkUpdate(doc);
+        routing.checkUpdate(doc);
+    }
+
+    /**
+     * 文档所在位置,不存在时为null
+     */
+    public CompletableFuture<Location> locate(String id) {
+        return locate(id, null);
+    }
+
+    /**
+     * 文档所在位置,不存在时为null;expected是写入前预期的位置,先用实时get确认,
+     * 在那里找到时返回expected,写入会直接覆盖它
+     */
+    public CompletableFuture<Location> locate(String id, Location expected) {
+        if (!isEnabled()) {
+            return CompletableFuture.completedFuture(DEFAULT);
+        }
+        Location cached = known.getIfPresent(id);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        if (expected == null) {
+            return search(id);
+        }
+        CompletableFuture<Location> location = new CompletableFuture<>();
+        client.prepareGet(expected.getIndex(), PersonIndex.TYPE, id)
+                .setRouting(expected.getRouting())
+                .setFetchSource(false)
+                .execute(ActionListener.wrap((GetResponse response) -> {
+                    if (response.isExists()) {
+                        location.complete(expected);
+                    } else {
+                        search(id).whenComplete((found, e) -> {
+                            if (e != null) {
+                                location.completeExceptionally(e);
+                            } else {
+                                location.complete(found);
+                            }
+                        });
+                    }
+                }, location::completeExceptionally));
+        return location;
+    }
+
+    /**
+     * 批量写入前删掉换了位置的旧文档,targets为id到这次写入的位置;返回的future完成时旧文档已删除,
+     * 删除失败时异常完成。直接发出删除而不和写入放在同一个bulk里,新旧位置落在同一分片时先写后删会把新文档删掉
+     */
+    public CompletableFuture<Void> removeMoved(Map<String, Location> targets) {
+        if (!isEnabled() || targets.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return locateAll(targets).thenCompose(found -> {
+            BulkRequest deletes = new BulkRequest();
+            found.forEach((id, previous) -> {
+                if (previous != null && !previous.equals(targets.get(id))) {
+                    deletes.add(new DeleteRequest(previous.getIndex(), PersonIndex.TYPE, id)
+                            .routing(previous.getRouting()));
+                }
+            });
+            CompletableFuture<Void> removed = new CompletableFuture<>();
+            if (deletes.numberOfActions() == 0) {
+                removed.complete(null);
+                return removed;
+            }
+            client.bulk(deletes, ActionListener.wrap((BulkResponse response) -> {
+                for (BulkItemResponse item : response) {
+                    // 旧文档已经不在了也算删除成功
+                    if (item.isFailed() && item.status() != RestStatus.NOT_FOUND) {
+                        removed.completeExceptionally(new IllegalStateException("failed to delete moved person ["
+                                + item.getId() + "] from " + item.getIndex() + ": " + item.getFailureMessage()));
+                        return;
+                    }
+                    forget(item.getId());
+                }
+                removed.complete(null);
+            }, removed::completeExceptionally));
+            return removed;
+        });
+    }
+
+    /**
+     * 批量查找文档所在位置,expected为id到预期的位置;结果包含每个id,不存在的为null
+     * 先查本地缓存,再用实时mget在预期位置确认,剩下的用一次ids查询
+     */
+    public CompletableFuture<Map<String, Location>> locateAll(Map<String, Location> expected) {
+        Map<String, Location> found = new HashMap<>();
+        if (!isEnabled()) {
+            expected.keySet().forEach(id -> found.put(id, DEFAULT));
+            return CompletableFuture.completedFuture(found);
+        }
+        MultiGetRequest request = new MultiGetRequest();
+        expected.forEach((id, location) -> {
+            Location cached = known.getIfPresent(id);
+            if (cached != null) {
+                found.put(id, cached);
+            } else {
+                request.add(new MultiGetRequest.Item(location.getIndex(), PersonIndex.TYPE, id)
+                        .routing(location.getRouting()).fetchSourceContext(FetchSourceContext.DO_NOT_FETCH_SOURCE));
+            }
+        });
+        if (request.getItems().isEmpty()) {
+            return CompletableFuture.completedFuture(found);
+        }
+        CompletableFuture<Map<String, Location>> result = new CompletableFuture<>();
+        client.multiGet(request, ActionListener.wrap((MultiGetResponse response) -> {
+            List<String> missing = new ArrayList<>();
+            for (MultiGetItemResponse item : response) {
+                if (!item.isFailed() && item.getResponse().isExists()) {
+                    found.put(item.getId(), expected.get(item.getId()));
+                } else {
+                    missing.add(item.getId());
+                }
+            }
+            if (missing.isEmpty()) {
+                result.complete(found);
+                return;
+            }
+            search(missing).whenComplete((searched, e) -> {
+                if (e != null) {
+                    result.completeExceptionally(e);
+                } else {
+                    missing.forEach(id -> found.put(id, searched.get(id)));
+                    result.complete(found);
+                }
+            });
+        }, result::completeExceptionally));
+        return result;
+    }
+
+    // 写入成功或已加入写入队列后记下位置
+    public void remember(String id, Location location) {
+        if (!isEnabled()) {
+            return;
+        }
+        if (partitions.isAlias(location.getIndex())) {
+            known.invalidate(id);
+        } else {
+            known.put(id, location);
+        }
+        if (location.getRouting() == null) {
+            routing.forget(id);
+        } else {
+            routing.remember(id, location.getRouting());
+        }
+    }
+
+    public void forget(String id) {
+        if (isEnabled()) {
+            known.invalidate(id);
+            routing.forget(id);
+        }
+    }
+
+    private CompletableFuture<Location> search(String id) {
+        return search(Collections.singletonList(id)).thenApply(found -> found.get(id));
+    }
+
+    // 在全部分区上按id查找,找到的位置记入缓存
+    private CompletableFuture<Map<String, Location>> search(List<String> ids) {
+        CompletableFuture<Map<String, Location>> located = new CompletableFuture<>();
+        client.prepareSearch(partitions.readIndex())
+                .setTypes(PersonIndex.TYPE)
+                .setQuery(QueryBuilders.idsQuery().addIds(ids.toArray(new String[0])))
+                .setFetchSource(false)
+                .setSize(ids.size())
+                .execute(ActionListener.wrap((SearchResponse response) -> {
+                    Map<String, Location> found = new HashMap<>();
+                    for (SearchHit hit : response.getHits()) {
+                        Location location = new Location(hit.getIndex(), routing.remember(hit));
+                        remember(hit.getId(), location);
+                        found.put(hit.getId(), location);
+                    }
+                    located.complete(found);
+                }, located::completeExceptionally));
+        return located;
+    }
+
+    /**
+     * 文档所在的索引和routing,routing为null表示按id分布
+     */
+    @Getter
+    @ToString
+    @EqualsAndHashCode
+    public static final class Location {
+        private final String index;
+        private final String routing;
+
+        public Location(String index, String routing) {
+            this.index = index;
+            this.routing = routing;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package com.fh.routing;
+
+import com.fh.config.RoutingProperties;
+import com.fh.entity.Person;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.elasticsearch.common.document.DocumentField;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.ConstantScoreQueryBuilder;
+import org.elasticsearch.index.query.PrefixQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.TermQueryBuilder;
+import org.elasticsearch.index.query.TermsQueryBuilder;
+import org.elasticsearch.search.SearchHit;
+import org.springframework.stereotype.Component;
+
+import java.beans.IntrospectionException;
+import java.beans.PropertyDescriptor;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Person的自定义routing
+ * 写入时从配置字段取出routing,同一routing的文档落在同一分片;
+ * 查询条件锁定了routing时只查对应分片,否则照常查全部分片;
+ * 按id读写需要知道文档的routing,见PersonLocator;这里记着本地已知的routing,供合并读取直接使用
+ */
+@Component
+public class PersonRouting {
+
+    public static final String ROUTING_FIELD = "_routing";
+
+    private final RoutingProperties properties;
+    private final Pattern keyPattern;
+    private final PropertyDescriptor property;
+    private final Cache<String, String> known;
+
+    public PersonRouting(RoutingProperties properties) {
+        this.properties = properties;
+        this.keyPattern = Pattern.compile(properties.getKeyPattern());
+        this.property = properties.isEnabled() ? property(properties.getField()) : null;
+        this.known = Caffeine.newBuilder().maximumSize(properties.getCacheSize()).build();
+    }
+
+    // 未开启routing的实例,用于测试等不需要es的场景
+    public static PersonRouting disabled() {
+        return new PersonRouting(new RoutingProperties());
+    }
+
+    public boolean isEnabled() {
+        return properties.isEnabled();
+    }
+
+    /**
+     * 文档的routing,未开启或字段为空时为null
+     */
+    public String routing(Person person) {
+        if (!isEnabled() || person == null) {
+            return null;
+        }
+        try {
+            Object value = property.getReadMethod().invoke(person);
+            return value == null ? null : key(value.toString());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("cannot read routing field " + properties.getField(), e);
+        }
+    }
+
+    // 字段值对应的routing
+    public String key(String value) {
+        String trimmed = value.trim();
+        if (trimmed.isEmpty()) {
+            return null;
+        }
+        Matcher matcher = keyPattern.matcher(trimmed);
+        return matcher.find() ? matcher.group(1) : trimmed;
+    }
+
+    /**
+     * 查询条件锁定的routing,多个时用逗号分隔;返回null表示需要查询全部分片
+     * 只认精确匹配:字段.keyword上的term、terms、prefix,以及_routing上的term、terms
+     */
+    public String routing(QueryBuilder query) {
+        if (!isEnabled()) {
+            return null;
+        }
+        Set<String> keys = keys(query);
+        // 排序让相同条件得到相同的字符串,便于缓存和日志
+        return keys == null || keys.isEmpty() ? null : String.join(",", new TreeSet<>(keys));
+    }
+
+    // 修改不能改变routing字段,否则文档会留在原来的分片上
+    public void checkUpdate(Map<String, Object> doc) {
+        if (isEnabled() && doc.containsKey(properties.getField())) {
+            throw new IllegalArgumentException("routing field [" + properties.getField()
+                    + "] cannot be changed by a partial update, index the whole document instead");
+        }
+    }
+
+    // 本地已知的routing,没有时为null
+    public String known(String id) {
+        return isEnabled() ? known.getIfPresent(id) : null;
+    }
+
+    public void remember(String id, String routing) {
+        if (isEnabled() && routing != null) {
+            known.put(id, routing);
+        }
+    }
+
+    public void forget(String id) {
+        if (isEnabled()) {
+            known.invalidate(id);
+        }
+    }
+
+    // 从命中结果记下routing,返回该routing
+    public String remember(SearchHit hit) {
+        DocumentField field = hit.field(ROUTING_FIELD);
+        String routing = field == null ? null : field.getValue();
+        remember(hit.getId(), routing);
+        return routing;
+    }
+
+    // null表示不限routing,空集合表示条件矛盾
+    private Set<String> keys(QueryBuilder query) {
+        String exact = properties.getField() + ".keyword";
+        if (query instanceof TermQueryBuilder) {
+            TermQueryBuilder term = (TermQueryBuilder) query;
+            return keys(term.fieldName(), Collections.singletonList(term.value()), exact);
+        }
+        if (query instanceof TermsQueryBuilder) {
+            TermsQueryBuilder terms = (TermsQueryBuilder) query;
+            return keys(terms.fieldName(), terms.values(), exact);
+        }
+        if (query instanceof PrefixQueryBuilder) {
+            PrefixQueryBuilder prefix = (PrefixQueryBuilder) query;
+            // 前缀里已经包含完整的routing时,所有命中文档的routing都相同
+            if (exact.equals(prefix.fieldName())) {
+                Matcher matcher = keyPattern.matcher(prefix.value());
+                return matcher.find() ? Collections.singleton(matcher.group(1)) : null;
+            }
+            return null;
+        }
+        if (query instanceof ConstantScoreQueryBuilder) {
+            return keys(((ConstantScoreQueryBuilder) query).innerQuery());
+        }
+        if (query instanceof BoolQueryBuilder) {
+            BoolQueryBuilder bool = (BoolQueryBuilder) query;
+            Set<String> result = null;
+            for (QueryBuilder clause : concat(bool)) {
+                Set<String> clauseKeys = keys(clause);
+                if (clauseKeys != null) {
+                    if (result == null) {
+                        result = new HashSet<>(clauseKeys);
+                    } else {
+                        result.retainAll(clauseKeys);
+                    }
+                }
+            }
+            // 没有must/filter时至少要满足一个should,每个should都锁定了routing才能合并;有must/filter时should可选
+            if (bool.must().isEmpty() && bool.filter().isEmpty() && !bool.should().isEmpty()
+                    && !"0".equals(bool.minimumShouldMatch())) {
+                Set<String> union = new HashSet<>();
+                for (QueryBuilder clause : bool.should()) {
+                    Set<String> clauseKeys = keys(clause);
+                    if (clauseKeys == null) {
+                        return null;
+                    }
+                    union.addAll(clauseKeys);
+                }
+                return union;
+            }
+            return result;
+        }
+        return null;
+    }
+
+    private Set<String> keys(String fieldName, Iterable<?> values, String exact) {
+        boolean routingField = ROUTING_FIELD.equals(fieldName);
+        if (!routingField && !exact.equals(fieldName)) {
+            return null;
+        }
+        Set<String> keys = new HashSet<>();
+        for (Object value : values) {
+            String key = routingField ? String.valueOf(value) : key(String.valueOf(value));
+            if (key == null) {
+                // 空值的文档没有routing,分布在所有分片
+                return null;
+            }
+            keys.add(key);
+        }
+        return keys;
+    }
+
+    private static Iterable<QueryBuilder> concat(BoolQueryBuilder bool) {
+        List<QueryBuilder> clauses = new ArrayList<>(bool.must());
+        clauses.addAll(bool.filter());
+        return clauses;
+    }
+
+    private static PropertyDescriptor property(String field) {
+        try {
+            return new PropertyDescriptor(field, Person.class);
+        } catch (IntrospectionException e) {
+            throw new IllegalArgumentException("Person has no field " + field, e);
+        }
+    }
+}
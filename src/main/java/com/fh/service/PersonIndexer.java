@@ -0,0 +1,336 @@
+package com.fh.service;
+
+import com.fh.config.IndexerProperties;
+import com.fh.entity.Person;
+import com.fh.es.PersonIndex;
+import com.fh.es.PersonCodec;
+import com.fh.es.PersonWriteEvent;
+import com.fh.es.PersonWriteEvents;
+import com.fh.partition.PersonPartitions;
+import com.fh.routing.PersonLocator;
+import com.fh.routing.PersonLocator.Location;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BackoffPolicy;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.delete.DeleteResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.reindex.BulkByScrollResponse;
+import org.elasticsearch.index.reindex.DeleteByQueryAction;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * 多线程共享的批量写入服务
+ * 单条写入先进入缓冲,按数量、大小、时间任一条件合并成bulk发送;
+ * 在途bulk数量受限,超过后add会阻塞调用线程形成背压;
+ * 按id修改、删除和写入前由PersonLocator找到文档所在的位置,需要访问es时不阻塞调用线程,同一id的写入仍按调用顺序进入缓冲;
+ * 被集群拒绝的条目(EsRejectedExecutionException)按指数退避只重试失败的部分;
+ * 写入成功的条目通过PersonWriteEvents通知本地监听器,按每次尝试(包括重试)响应中的条目位置对应请求,
+ * 同一bulk里同一id有多个写入、只有部分成功时,只发布成功的那些
+ */
+@Slf4j
+@Service
+public class PersonIndexer {
+
+    private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+
+    private final BulkProcessor processor;
+    private final IndexerProperties properties;
+    private final Client client;
+    private final PersonWriteEvents events;
+    private final PersonPartitions partitions;
+    private final PersonLocator locator;
+    // 等待查找位置的写入,按id排队
+    private final Map<String, CompletableFuture<Void>> chains = new ConcurrentHashMap<>();
+    // 在途的bulk,按executionId,重试结束后完成
+    private final Map<Long, CompletableFuture<Void>> inFlight = new ConcurrentHashMap<>();
+    private final ExecutorService locating = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "person-indexer-locate");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong succeeded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong bulks = new AtomicLong();
+    // 写入成功后要发布的事件,按请求对象本身对应;重试时重新组装的bulk里仍是同一批请求对象
+    private final Map<DocWriteRequest<?>, PersonWriteEvent> pending =
+            Collections.synchronizedMap(new IdentityHashMap<>());
+
+    public PersonIndexer(Client client, IndexerProperties properties, PersonWriteEvents events,
+                         PersonPartitions partitions, PersonLocator locator) {
+        this.properties = properties;
+        this.client = client;
+        this.events = events;
+        this.partitions = partitions;
+        this.locator = locator;
+        this.processor = BulkProcessor.builder(this::execute, new Listener())
+                .setBulkActions(properties.getBulkActions())
+                .setBulkSize(new ByteSizeValue(properties.getBulkSizeBytes()))
+                .setFlushInterval(TimeValue.timeValueMillis(properties.getFlushInterval().toMillis()))
+                .setConcurrentRequests(properties.getConcurrentRequests())
+                .setBackoffPolicy(BackoffPolicy.exponentialBackoff(
+                        TimeValue.timeValueMillis(properties.getRetryInitialDelay().toMillis()),
+                        properties.getMaxRetries()))
+                .build();
+    }
+
+    // 添加或覆盖文档,分区字段或routing变了的文档先从原来的位置删掉
+    public void index(String id, Person person) {
+        Location target = locator.target(person);
+        IndexRequest request = new IndexRequest(target.getIndex(), PersonIndex.TYPE, id).routing(target.getRouting())
+                .source(PersonCodec.encode(id, person), XContentType.JSON);
+        PersonWriteEvent event = PersonWriteEvent.index(PersonIndex.INDEX, id, person);
+        submit(id, () -> locator.locate(id, target), previous -> {
+            if (previous == null || previous.equals(target)) {
+                add(request, event);
+                locator.remember(id, target);
+                return DONE;
+            }
+            // 新旧位置可能落在同一分片,先写后删会把新文档删掉,所以不经过缓冲直接删除,删完再写入;
+            // 删除前先把同一id之前的写入发出去并等它们结束,否则它们会落在删除之后
+            return drain().thenCompose(v -> {
+                CompletableFuture<DeleteResponse> removed = new CompletableFuture<>();
+                client.delete(new DeleteRequest(previous.getIndex(), PersonIndex.TYPE, id)
+                                .routing(previous.getRouting()),
+                        ActionListener.wrap(removed::complete, removed::completeExceptionally));
+                return removed;
+            }).thenAcceptAsync(response -> {
+                add(request, event);
+                locator.remember(id, target);
+            }, locating);
+        });
+    }
+
+    // 局部修改文档,分区或routing开启后在文档所在的位置修改
+    public void update(String id, Map<String, Object> doc) {
+        locator.checkUpdate(doc);
+        PersonWriteEvent event = PersonWriteEvent.update(PersonIndex.INDEX, id, doc);
+        submit(id, () -> locator.locate(id), found -> {
+            Location location = found != null ? found : locator.missing();
+            add(new UpdateRequest(location.getIndex(), PersonIndex.TYPE, id).routing(location.getRouting()).doc(doc),
+                    event);
+            return DONE;
+        });
+    }
+
+    // 文档存在则在它所在的位置局部修改,不存在则按person写入
+    public void upsert(String id, Map<String, Object> doc, Person person) {
+        locator.checkUpdate(doc);
+        Location target = locator.target(person);
+        PersonWriteEvent event = PersonWriteEvent.upsert(PersonIndex.INDEX, id, doc, person);
+        submit(id, () -> locator.locate(id, target), existing -> {
+            Location location = existing != null ? existing : target;
+            add(new UpdateRequest(location.getIndex(), PersonIndex.TYPE, id).routing(location.getRouting()).doc(doc)
+                    .upsert(new IndexRequest(location.getIndex(), PersonIndex.TYPE, id).routing(location.getRouting())
+                            .source(PersonCodec.encode(id, person), XContentType.JSON)), event);
+            locator.remember(id, location);
+            return DONE;
+        });
+    }
+
+    // 删除文档
+    public void delete(String id) {
+        PersonWriteEvent event = PersonWriteEvent.delete(PersonIndex.INDEX, id);
+        submit(id, () -> locator.locate(id), found -> {
+            Location location = found != null ? found : locator.missing();
+            add(new DeleteRequest(location.getIndex(), PersonIndex.TYPE, id).routing(location.getRouting()), event);
+            locator.forget(id);
+            return DONE;
+        });
+    }
+
+    // 按条件删除,同步执行,返回删除的文档数
+    public long deleteByQuery(QueryBuilder query) {
+        String[] indices = partitions.searchIndices(query);
+        // 空数组会被es当作全部索引
+        if (indices.length == 0) {
+            return 0;
+        }
+        BulkByScrollResponse response = DeleteByQueryAction.INSTANCE.newRequestBuilder(client)
+                .source(indices)
+                .filter(query)
+                .get();
+        // 部分删除也要通知,本地无法知道具体删了哪些文档
+        events.publish(PersonWriteEvent.deleteByQuery(PersonIndex.INDEX));
+        return response.getDeleted();
+    }
+
+    // 立即发送缓冲中的请求,还在查找位置的写入先等它们加入缓冲
+    public void flush() {
+        awaitLocating();
+        processor.flush();
+    }
+
+    /**
+     * 同一id的写入按调用顺序加入缓冲
+     * 位置已知(本地缓存或未开启分区和routing)且前面没有同一id的写入在排队时,直接在调用线程上加入,
+     * 阻塞等待在途bulk形成背压;否则排在同一id前一个写入之后,查到位置后在locating线程上加入,不占用es的回调线程
+     */
+    private void submit(String id, Supplier<CompletableFuture<Location>> locate,
+                        Function<Location, CompletableFuture<Void>> write) {
+        if (!locator.isEnabled()) {
+            write.apply(locate.get().join());
+            return;
+        }
+        CompletableFuture<Void> turn = new CompletableFuture<>();
+        CompletableFuture<Void> previous = chains.put(id, turn);
+        CompletableFuture<Location> location = previous == null ? locate.get()
+                // 前一个写入失败不影响后面的写入
+                : previous.handle((v, e) -> null).thenCompose(v -> locate.get());
+        CompletableFuture<Void> written = location.isDone() ? location.thenCompose(write)
+                : location.thenComposeAsync(write, locating);
+        written.whenComplete((v, e) -> {
+            chains.remove(id, turn);
+            if (e != null) {
+                failed.incrementAndGet();
+                log.warn("failed to queue write of person [{}]", id, e);
+            }
+            turn.complete(null);
+        });
+    }
+
+    // 发出缓冲中的请求,在这之前发出的bulk(包括重试)全部结束时完成
+    private CompletableFuture<Void> drain() {
+        processor.flush();
+        return CompletableFuture.allOf(inFlight.values().toArray(new CompletableFuture[0]));
+    }
+
+    private void awaitLocating() {
+        CompletableFuture<?>[] queued = chains.values().toArray(new CompletableFuture[0]);
+        if (queued.length == 0) {
+            return;
+        }
+        try {
+            CompletableFuture.allOf(queued).get(properties.getCloseTimeout().toMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            log.warn("{} person writes still waiting for their location", chains.size());
+        }
+    }
+
+    // 事件在这个请求写入成功后发布
+    private void add(DocWriteRequest<?> request, PersonWriteEvent event) {
+        submitted.incrementAndGet();
+        if (event != null) {
+            pending.put(request, event);
+        }
+        processor.add(request);
+    }
+
+    // BulkProcessor的每次尝试都经过这里,响应条目的itemId是它在这次请求中的位置
+    private void execute(BulkRequest request, ActionListener<BulkResponse> listener) {
+        client.bulk(request, ActionListener.wrap(response -> {
+            for (BulkItemResponse item : response) {
+                if (!item.isFailed()) {
+                    PersonWriteEvent event = pending.remove(request.requests().get(item.getItemId()));
+                    if (event != null) {
+                        events.publish(event);
+                    }
+                }
+            }
+            listener.onResponse(response);
+        }, listener::onFailure));
+    }
+
+    public long getSubmitted() {
+        return submitted.get();
+    }
+
+    public long getSucceeded() {
+        return succeeded.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public long getBulks() {
+        return bulks.get();
+    }
+
+    // 关闭时先把缓冲写完,再等待在途请求结束
+    @PreDestroy
+    public void close() throws InterruptedException {
+        awaitLocating();
+        locating.shutdown();
+        if (!processor.awaitClose(properties.getCloseTimeout().toMillis(), TimeUnit.MILLISECONDS)) {
+            log.warn("person indexer closed with bulk requests still in flight");
+        }
+    }
+
+    private void finished(long executionId) {
+        CompletableFuture<Void> bulk = inFlight.remove(executionId);
+        if (bulk != null) {
+            bulk.complete(null);
+        }
+    }
+
+    // 最终失败的条目不再发布
+    private void discard(BulkRequest request) {
+        request.requests().forEach(pending::remove);
+    }
+
+    private class Listener implements BulkProcessor.Listener {
+
+        @Override
+        public void beforeBulk(long executionId, BulkRequest request) {
+            bulks.incrementAndGet();
+            inFlight.put(executionId, new CompletableFuture<>());
+        }
+
+        // 这里拿到的是重试结束后的最终结果,成功条目的事件已经在execute中发布
+        @Override
+        public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+            discard(request);
+            finished(executionId);
+            int failures = 0;
+            for (BulkItemResponse item : response) {
+                if (item.isFailed()) {
+                    failures++;
+                    if (failures == 1) {
+                        log.warn("bulk [{}] item [{}] failed: {}", executionId, item.getId(), item.getFailureMessage());
+                    }
+                }
+            }
+            failed.addAndGet(failures);
+            succeeded.addAndGet(response.getItems().length - failures);
+        }
+
+        @Override
+        public void afterBulk(long executionId, BulkRequest request, Throwable failure) {
+            discard(request);
+            finished(executionId);
+            failed.addAndGet(request.numberOfActions());
+            log.error("bulk [{}] of {} actions failed", executionId, request.numberOfActions(), failure);
+        }
+    }
+}
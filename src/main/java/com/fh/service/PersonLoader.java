@@ -0,0 +1,154 @@
+package com.fh.service;
+
+import com.fh.batch.MicroBatcher;
+import com.fh.config.LoaderProperties;
+import com.fh.entity.Person;
+import com.fh.es.PersonCodec;
+import com.fh.es.PersonIndex;
+import com.fh.partition.PersonPartitions;
+import com.fh.routing.PersonRouting;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetResponse;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 按id读取Person,并发的单个get合并成一个multiGet
+ * 同一批内重复的id只读一次,文档不存在时结果为null
+ * 开启routing后,本地不知道routing的id改用ids查询,会访问所有分片;开启分区后读别名指向多个索引,mget不支持,全部改用ids查询
+ */
+@Service
+public class PersonLoader {
+
+    private final Client client;
+    private final PersonRouting routing;
+    private final PersonPartitions partitions;
+    private final MicroBatcher<String, Person> batcher;
+
+    public PersonLoader(Client client, LoaderProperties properties, PersonRouting routing,
+                        PersonPartitions partitions) {
+        this.client = client;
+        this.routing = routing;
+        this.partitions = partitions;
+        this.batcher = new MicroBatcher<>("person-loader", properties.getMaxBatchSize(), properties.getMaxDelay(),
+                true, this::dispatch);
+    }
+
+    public CompletableFuture<Person> get(String id) {
+        return batcher.submit(id);
+    }
+
+    // 读取多个id,结果按传入顺序排列,不存在的id不出现在结果中
+    public CompletableFuture<Map<String, Person>> getAll(Collection<String> ids) {
+        List<String> keys = new ArrayList<>(ids);
+        List<CompletableFuture<Person>> futures = new ArrayList<>(keys.size());
+        keys.forEach(id -> futures.add(get(id)));
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).thenApply(v -> {
+            Map<String, Person> persons = new LinkedHashMap<>();
+            for (int i = 0; i < keys.size(); i++) {
+                Person person = futures.get(i).join();
+                if (person != null) {
+                    persons.put(keys.get(i), person);
+                }
+            }
+            return persons;
+        });
+    }
+
+    public MicroBatcher<String, Person> batcher() {
+        return batcher;
+    }
+
+    // routing已知的id走mget,未知的用一次ids查询找回文档并记下routing
+    private void dispatch(List<MicroBatcher.Pending<String, Person>> batch) {
+        if (partitions.isEnabled()) {
+            searchByIds(batch);
+            return;
+        }
+        List<MicroBatcher.Pending<String, Person>> routed = new ArrayList<>(batch.size());
+        List<MicroBatcher.Pending<String, Person>> unknown = new ArrayList<>();
+        for (MicroBatcher.Pending<String, Person> pending : batch) {
+            (!routing.isEnabled() || routing.known(pending.key()) != null ? routed : unknown).add(pending);
+        }
+        if (!routed.isEmpty()) {
+            multiGet(routed);
+        }
+        if (!unknown.isEmpty()) {
+            searchByIds(unknown);
+        }
+    }
+
+    private void searchByIds(List<MicroBatcher.Pending<String, Person>> batch) {
+        String[] ids = batch.stream().map(MicroBatcher.Pending::key).toArray(String[]::new);
+        client.prepareSearch(partitions.readIndex()).setTypes(PersonIndex.TYPE)
+                .setQuery(QueryBuilders.idsQuery().addIds(ids))
+                .setSize(ids.length)
+                .execute(new ActionListener<SearchResponse>() {
+                    @Override
+                    public void onResponse(SearchResponse response) {
+                        Map<String, Person> found = new HashMap<>();
+                        for (SearchHit hit : response.getHits()) {
+                            routing.remember(hit);
+                            found.put(hit.getId(), PersonCodec.decode(hit.getSourceRef()));
+                        }
+                        batch.forEach(pending -> pending.complete(found.get(pending.key())));
+                    }
+
+                    @Override
+                    public void onFailure(Exception e) {
+                        batch.forEach(pending -> pending.fail(e));
+                    }
+                });
+    }
+
+    private void multiGet(List<MicroBatcher.Pending<String, Person>> batch) {
+        MultiGetRequest request = new MultiGetRequest();
+        for (MicroBatcher.Pending<String, Person> pending : batch) {
+            request.add(new MultiGetRequest.Item(PersonIndex.INDEX, PersonIndex.TYPE, pending.key())
+                    .routing(routing.known(pending.key())));
+        }
+        client.multiGet(request, new ActionListener<MultiGetResponse>() {
+            @Override
+            public void onResponse(MultiGetResponse response) {
+                MultiGetItemResponse[] items = response.getResponses();
+                for (int i = 0; i < items.length; i++) {
+                    MultiGetItemResponse item = items[i];
+                    MicroBatcher.Pending<String, Person> pending = batch.get(i);
+                    if (item.isFailed()) {
+                        pending.fail(new ElasticsearchException("get [{}] failed", item.getFailure().getFailure(),
+                                pending.key()));
+                    } else if (item.getResponse().isExists()) {
+                        pending.complete(PersonCodec.decode(item.getResponse().getSourceAsBytesRef()));
+                    } else {
+                        pending.complete(null);
+                    }
+                }
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                batch.forEach(pending -> pending.fail(e));
+            }
+        });
+    }
+
+    @PreDestroy
+    public void close() {
+        batcher.close();
+    }
+}
@@ -0,0 +1,177 @@
+package com.fh.service;
+
+import com.fh.batch.MicroBatcher;
+import com.fh.config.MultiSearchProperties;
+import org.elasticsearch.ElasticsearchTimeoutException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.action.search.MultiSearchRequest;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 把并发的单个查询合并成一个multiSearch发送,结果按顺序分给各调用方
+ * 每个查询单独失败:校验不通过的查询不进入批次,某一项出错或超时只影响它自己;
+ * 超时同时写入查询的timeout(写在副本上,不改调用方的请求),es端到时返回已有结果,本地到时直接失败
+ */
+@Service
+public class PersonMultiSearch {
+
+    private final Client client;
+    private final MultiSearchProperties properties;
+    private final MicroBatcher<SearchRequest, SearchResponse> batcher;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "person-msearch-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AtomicLong timedOut = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    public PersonMultiSearch(Client client, MultiSearchProperties properties) {
+        this.client = client;
+        this.properties = properties;
+        this.batcher = new MicroBatcher<>("person-msearch", properties.getMaxBatchSize(), properties.getWindow(),
+                false, this::multiSearch);
+    }
+
+    public CompletableFuture<SearchResponse> search(SearchRequest request) {
+        return search(request, properties.getTimeout());
+    }
+
+    /**
+     * timeout为null或0时不限时间;返回的future只属于本次调用
+     */
+    public CompletableFuture<SearchResponse> search(SearchRequest original, Duration timeout) {
+        SearchRequest request = original;
+        ActionRequestValidationException invalid = request.validate();
+        if (invalid != null) {
+            failed.incrementAndGet();
+            CompletableFuture<SearchResponse> result = new CompletableFuture<>();
+            result.completeExceptionally(invalid);
+            return result;
+        }
+        boolean limited = timeout != null && !timeout.isZero();
+        if (limited && request.source() != null && request.source().timeout() == null) {
+            request = copy(request);
+            request.source().timeout(TimeValue.timeValueMillis(timeout.toMillis()));
+        }
+        CompletableFuture<SearchResponse> result;
+        // scroll查询不能放进multiSearch
+        if (!properties.isEnabled() || request.scroll() != null) {
+            result = new CompletableFuture<>();
+            client.search(request, ActionListener.wrap(result::complete, result::completeExceptionally));
+        } else {
+            result = batcher.submit(request);
+        }
+        return limited ? withTimeout(result, timeout) : result;
+    }
+
+    // 给ActionListener风格的调用方用
+    public void execute(SearchRequest request, ActionListener<SearchResponse> listener) {
+        search(request).whenComplete((response, failure) -> {
+            if (failure != null) {
+                listener.onFailure(failure instanceof Exception ? (Exception) failure : new RuntimeException(failure));
+            } else {
+                listener.onResponse(response);
+            }
+        });
+    }
+
+    public MicroBatcher<SearchRequest, SearchResponse> batcher() {
+        return batcher;
+    }
+
+    // 本地超时的查询数
+    public long getTimedOut() {
+        return timedOut.get();
+    }
+
+    // 失败的查询数,包括校验不通过和multiSearch中出错的项
+    public long getFailed() {
+        return failed.get();
+    }
+
+    // 调用方可能复用请求和SearchSourceBuilder,修改前复制一份;source只复制顶层,query等子对象共用
+    private static SearchRequest copy(SearchRequest request) {
+        SearchSourceBuilder source = request.source().copyWithNewSlice(request.source().slice());
+        SearchRequest copy = new SearchRequest(request.indices(), source)
+                .types(request.types())
+                .routing(request.routing())
+                .preference(request.preference())
+                .searchType(request.searchType())
+                .indicesOptions(request.indicesOptions())
+                .requestCache(request.requestCache())
+                .scroll(request.scroll());
+        if (request.allowPartialSearchResults() != null) {
+            copy.allowPartialSearchResults(request.allowPartialSearchResults());
+        }
+        copy.setBatchedReduceSize(request.getBatchedReduceSize());
+        copy.setMaxConcurrentShardRequests(request.getMaxConcurrentShardRequests());
+        copy.setPreFilterShardSize(request.getPreFilterShardSize());
+        return copy;
+    }
+
+    private CompletableFuture<SearchResponse> withTimeout(CompletableFuture<SearchResponse> result, Duration timeout) {
+        ScheduledFuture<?> deadline = timer.schedule(() -> {
+            // 先计数再完成,调用方看到超时时计数已经可见;结果恰好先到时撤回
+            timedOut.incrementAndGet();
+            if (!result.completeExceptionally(new ElasticsearchTimeoutException("search timed out after {}", timeout))) {
+                timedOut.decrementAndGet();
+            }
+        }, timeout.toNanos(), TimeUnit.NANOSECONDS);
+        result.whenComplete((response, failure) -> deadline.cancel(false));
+        return result;
+    }
+
+    private void multiSearch(List<MicroBatcher.Pending<SearchRequest, SearchResponse>> batch) {
+        MultiSearchRequest request = new MultiSearchRequest();
+        if (properties.getMaxConcurrentSearches() > 0) {
+            request.maxConcurrentSearchRequests(properties.getMaxConcurrentSearches());
+        }
+        batch.forEach(pending -> request.add(pending.key()));
+        client.multiSearch(request, new ActionListener<MultiSearchResponse>() {
+            @Override
+            public void onResponse(MultiSearchResponse response) {
+                MultiSearchResponse.Item[] items = response.getResponses();
+                for (int i = 0; i < items.length; i++) {
+                    MultiSearchResponse.Item item = items[i];
+                    if (item.isFailure()) {
+                        failed.incrementAndGet();
+                        batch.get(i).fail(item.getFailure());
+                    } else {
+                        batch.get(i).complete(item.getResponse());
+                    }
+                }
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                failed.addAndGet(batch.size());
+                batch.forEach(pending -> pending.fail(e));
+            }
+        });
+    }
+
+    @PreDestroy
+    public void close() {
+        batcher.close();
+        timer.shutdown();
+    }
+}
@@ -0,0 +1,105 @@
+package com.fh.service;
+
+import com.fh.cache.CachedResult;
+import com.fh.cache.PersonQueryCache;
+import com.fh.cache.QueryKey;
+import com.fh.config.CacheProperties;
+import com.fh.entity.Person;
+import com.fh.es.PersonCodec;
+import com.fh.es.PersonIndex;
+import com.fh.es.PersonQueryRewriter;
+import com.fh.partition.PersonPartitions;
+import com.fh.routing.PersonRouting;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 带本地缓存的查询
+ * term/terms/ids查询先查缓存,未命中再查es并回填;其他查询直接查es
+ */
+@Service
+public class PersonQueryService {
+
+    private final Client client;
+    private final PersonQueryCache cache;
+    private final CacheProperties properties;
+    private final PersonPartitions partitions;
+    private final PersonRouting routing;
+    private final PersonQueryRewriter rewriter;
+
+    public PersonQueryService(Client client, PersonQueryCache cache, CacheProperties properties,
+                              PersonPartitions partitions, PersonRouting routing, PersonQueryRewriter rewriter) {
+        this.client = client;
+        this.cache = cache;
+        this.properties = properties;
+        this.partitions = partitions;
+        this.routing = routing;
+        this.rewriter = rewriter;
+    }
+
+    public List<Person> search(QueryBuilder query, int size) {
+        return search(query, size, true);
+    }
+
+    /**
+     * useCache为false时本次查询不读也不写缓存,用于必须读最新数据的场景
+     */
+    public List<Person> search(QueryBuilder query, int size, boolean useCache) {
+        QueryKey key = useCache && properties.isEnabled() && size <= properties.getMaxResults()
+                ? QueryKey.of(PersonIndex.INDEX, query, size) : null;
+        if (key == null) {
+            return decode(execute(query, size));
+        }
+        CachedResult cached = cache.get(key);
+        if (cached != null) {
+            return decode(cached);
+        }
+        long start = System.nanoTime();
+        CachedResult result = execute(query, size);
+        cache.put(key, result, start);
+        return decode(result);
+    }
+
+    public List<Person> findByIds(Collection<String> ids) {
+        return search(QueryBuilders.idsQuery().addIds(ids.toArray(new String[0])), ids.size());
+    }
+
+    private CachedResult execute(QueryBuilder query, int size) {
+        String[] indices = partitions.searchIndices(query);
+        if (indices.length == 0) {
+            return new CachedResult(0, Collections.emptyList(), Collections.emptyList());
+        }
+        SearchResponse response = client.prepareSearch(indices)
+                .setTypes(PersonIndex.TYPE)
+                .setRouting(routing.routing(query))
+                .setQuery(rewriter.rewrite(query))
+                .setSize(size)
+                .get();
+        SearchHit[] hits = response.getHits().getHits();
+        List<String> ids = new ArrayList<>(hits.length);
+        List<BytesReference> sources = new ArrayList<>(hits.length);
+        for (SearchHit hit : hits) {
+            ids.add(hit.getId());
+            sources.add(hit.getSourceRef());
+        }
+        return new CachedResult(response.getHits().getTotalHits(), ids, sources);
+    }
+
+    private static List<Person> decode(CachedResult result) {
+        List<Person> persons = new ArrayList<>(result.getSources().size());
+        for (BytesReference source : result.getSources()) {
+            persons.add(PersonCodec.decode(source));
+        }
+        return persons;
+    }
+}
@@ -0,0 +1,180 @@
+package com.fh.service;
+
+import com.fh.config.ScanProperties;
+import com.fh.entity.Person;
+import com.fh.es.PersonIndex;
+import com.fh.es.PersonCodec;
+import com.fh.es.ScanProgress;
+import com.fh.es.ScrollIterator;
+import com.fh.es.SlicedScanner;
+import com.fh.partition.PersonPartitions;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefIterator;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.sort.FieldSortBuilder;
+import org.elasticsearch.search.sort.SortOrder;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * 遍历全部查询结果,代替会把整个索引装进List的queryForList
+ * 单线程用streamAll/iterator,大索引全量遍历用按slice并行的scan;开启分区后遍历读别名下的全部分区
+ */
+@Slf4j
+@Service
+public class PersonScanService {
+
+    private final Client client;
+    private final ScanProperties properties;
+    private final PersonPartitions partitions;
+    private final ExecutorService executor;
+    private final SlicedScanner scanner;
+
+    public PersonScanService(Client client, ScanProperties properties, PersonPartitions partitions) {
+        this.client = client;
+        this.properties = properties;
+        this.partitions = partitions;
+        int threads = properties.getMaxThreads() > 0 ? properties.getMaxThreads()
+                : Runtime.getRuntime().availableProcessors();
+        AtomicInteger counter = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "person-scan-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scanner = new SlicedScanner(client, executor, threads, properties.getPageSize(),
+                TimeValue.timeValueMillis(properties.getKeepAlive().toMillis()));
+    }
+
+    /**
+     * 流式返回全部命中的Person,调用方需用try-with-resources关闭Stream
+     */
+    public Stream<Person> streamAll(QueryBuilder query) {
+        return streamHits(query).map(hit -> PersonCodec.decode(hit.getSourceRef()));
+    }
+
+    public Stream<SearchHit> streamHits(QueryBuilder query) {
+        ScrollIterator iterator = iterator(query);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator,
+                Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(iterator::close);
+    }
+
+    /**
+     * 把命中文档的_source逐行写到out(NDJSON),已是单行json的_source原样写出,不解析成Person
+     * 每页写完flush一次,第一页到达就开始输出;内存只占当前页和预取的下一页,返回写出的文档数
+     */
+    public long writeSources(QueryBuilder query, long limit, OutputStream out) throws IOException {
+        long written = 0;
+        try (ScrollIterator iterator = iterator(query)) {
+            while (written < limit && iterator.hasNext()) {
+                for (SearchHit hit : iterator.nextPage()) {
+                    if (written >= limit) {
+                        break;
+                    }
+                    if (hit.getSourceRef() == null) {
+                        // 索引关闭了_source
+                        continue;
+                    }
+                    writeLine(hit, out);
+                    written++;
+                }
+                out.flush();
+            }
+        }
+        return written;
+    }
+
+    private static void writeLine(SearchHit hit, OutputStream out) throws IOException {
+        BytesReference source = hit.getSourceRef();
+        if (source.length() > 0 && source.get(0) == '{') {
+            if (isSingleLine(source)) {
+                source.writeTo(out);
+            } else {
+                // 格式化过的json,压成一行
+                out.write(XContentHelper.convertToJson(source, true, false, XContentType.JSON)
+                        .getBytes(StandardCharsets.UTF_8));
+            }
+        } else {
+            // smile、cbor等二进制格式转成json
+            out.write(hit.getSourceAsString().getBytes(StandardCharsets.UTF_8));
+        }
+        out.write('\n');
+    }
+
+    private static boolean isSingleLine(BytesReference source) throws IOException {
+        BytesRefIterator slices = source.iterator();
+        for (BytesRef slice = slices.next(); slice != null; slice = slices.next()) {
+            for (int i = slice.offset, end = slice.offset + slice.length; i < end; i++) {
+                if (slice.bytes[i] == '\n' || slice.bytes[i] == '\r') {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 按slice并行遍历,全部命中在调用线程上依次交给consumer
+     */
+    public ScanProgress scan(QueryBuilder query, Consumer<Person> consumer) throws InterruptedException {
+        return scanner.scan(partitions.readIndex(), query, properties.getSlices(),
+                hit -> consumer.accept(PersonCodec.decode(hit.getSourceRef())));
+    }
+
+    /**
+     * 按slice并行遍历,每个slice的命中交给各自的sink,sink在slice线程上调用
+     */
+    public ScanProgress scanPages(QueryBuilder query, IntFunction<Consumer<SearchHit[]>> sinks)
+            throws InterruptedException {
+        return scanner.scanPages(partitions.readIndex(), query, properties.getSlices(), sinks);
+    }
+
+    /**
+     * 把Person中匹配query的文档复制到target索引,可用于重建索引
+     */
+    public ScanProgress copyTo(String target, QueryBuilder query) throws InterruptedException {
+        ScanProgress progress = scanner.copy(partitions.readIndex(), target, query, properties.getSlices());
+        log.info("copy finished, {}", progress);
+        return progress;
+    }
+
+    public Set<ScanProgress> activeScans() {
+        return scanner.active();
+    }
+
+    // 拉取式遍历,按_doc排序是scroll最省资源的方式
+    public ScrollIterator iterator(QueryBuilder query) {
+        return new ScrollIterator(client, client.prepareSearch(partitions.readIndex()).setTypes(PersonIndex.TYPE)
+                .setQuery(query)
+                .setSize(properties.getPageSize())
+                .addSort(FieldSortBuilder.DOC_FIELD_NAME, SortOrder.ASC),
+                TimeValue.timeValueMillis(properties.getKeepAlive().toMillis()));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,231 @@
+package com.fh.service;
+
+import com.fh.batch.MicroBatcher;
+import com.fh.config.StatsProperties;
+import com.fh.es.PersonIndex;
+import com.fh.partition.PersonPartitions;
+import com.fh.stats.AgeRollup;
+import com.fh.stats.StatsRequest;
+import com.fh.stats.StatsRequest.Metric;
+import com.fh.stats.StatsResult;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.Aggregations;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.elasticsearch.search.aggregations.metrics.cardinality.Cardinality;
+import org.elasticsearch.search.aggregations.metrics.stats.Stats;
+import org.elasticsearch.search.aggregations.metrics.stats.extended.ExtendedStats;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一次size=0的查询返回多个统计指标,代替每个指标单独查询一次
+ * 同一个字段的min/max/sum/avg/count合并为stats,需要方差时用extended_stats;
+ * 合并窗口内filter相同的请求共用一次查询,相同的请求还会加入正在进行的查询;
+ * 开启es.rollup时,全库的age统计直接由本地汇总回答
+ */
+@Service
+public class PersonStatsService {
+
+    private static final String STATS = "stats_";
+    private static final String CARDINALITY = "cardinality_";
+    private static final String TERMS = "terms_";
+
+    private final Client client;
+    private final AgeRollup rollup;
+    private final PersonPartitions partitions;
+    private final MicroBatcher<StatsRequest, StatsResult> batcher;
+    private final Map<StatsRequest, CompletableFuture<StatsResult>> inFlight = new ConcurrentHashMap<>();
+    // freshness为0时为null
+    private final Cache<StatsRequest, StatsResult> cache;
+
+    public PersonStatsService(Client client, StatsProperties properties, AgeRollup rollup,
+                              PersonPartitions partitions) {
+        this.client = client;
+        this.rollup = rollup;
+        this.partitions = partitions;
+        this.batcher = new MicroBatcher<>("person-stats", properties.getMaxBatchSize(), properties.getMergeWindow(),
+                false, this::search);
+        this.cache = properties.getFreshness().isZero() ? null : Caffeine.newBuilder()
+                .maximumSize(properties.getMaxCached())
+                .expireAfterWrite(properties.getFreshness().toNanos(), TimeUnit.NANOSECONDS)
+                .build();
+    }
+
+    public CompletableFuture<StatsResult> stats(StatsRequest request) {
+        if (rollup.canServe(request)) {
+            return CompletableFuture.completedFuture(rollup.stats(request));
+        }
+        if (cache != null) {
+            StatsResult cached = cache.getIfPresent(request);
+            if (cached != null) {
+                return CompletableFuture.completedFuture(cached);
+            }
+        }
+        CompletableFuture<StatsResult> mine = new CompletableFuture<>();
+        CompletableFuture<StatsResult> running = inFlight.putIfAbsent(request, mine);
+        if (running != null) {
+            return running.thenApply(r -> r);
+        }
+        batcher.submit(request).whenComplete((result, failure) -> {
+            inFlight.remove(request, mine);
+            if (failure != null) {
+                mine.completeExceptionally(failure);
+                return;
+            }
+            if (cache != null) {
+                cache.put(request, result);
+            }
+            mine.complete(result);
+        });
+        return mine.thenApply(r -> r);
+    }
+
+    // 同步版本
+    public StatsResult statsNow(StatsRequest request) {
+        return stats(request).join();
+    }
+
+    // 按filter分组,每组发一次查询,聚合取组内所有请求的并集
+    private void search(List<MicroBatcher.Pending<StatsRequest, StatsResult>> batch) {
+        Map<QueryBuilder, List<MicroBatcher.Pending<StatsRequest, StatsResult>>> groups = new LinkedHashMap<>();
+        for (MicroBatcher.Pending<StatsRequest, StatsResult> pending : batch) {
+            QueryBuilder filter = pending.key().getFilter() == null
+                    ? QueryBuilders.matchAllQuery() : pending.key().getFilter();
+            groups.computeIfAbsent(filter, k -> new ArrayList<>()).add(pending);
+        }
+        groups.forEach(this::search);
+    }
+
+    private void search(QueryBuilder filter, List<MicroBatcher.Pending<StatsRequest, StatsResult>> group) {
+        Map<String, Boolean> statsFields = new LinkedHashMap<>();
+        Set<String> cardinalityFields = new HashSet<>();
+        Map<String, Integer> termsFields = new LinkedHashMap<>();
+        for (MicroBatcher.Pending<StatsRequest, StatsResult> pending : group) {
+            StatsRequest request = pending.key();
+            for (Metric metric : request.getMetrics()) {
+                if (metric.fromStats()) {
+                    statsFields.merge(request.getField(), metric.extended(), Boolean::logicalOr);
+                } else {
+                    cardinalityFields.add(request.getField());
+                }
+            }
+            if (request.getTermsField() != null) {
+                termsFields.merge(request.getTermsField(), request.getTermsSize(), Math::max);
+            }
+        }
+
+        String[] indices = partitions.searchIndices(filter);
+        // 条件不可能命中任何分区时仍然查一次读别名,由es给出空结果的各项指标
+        SearchRequestBuilder search = client.prepareSearch(indices.length == 0
+                        ? new String[]{partitions.readIndex()} : indices)
+                .setTypes(PersonIndex.TYPE)
+                .setQuery(filter)
+                .setSize(0);
+        statsFields.forEach((field, extended) -> search.addAggregation(extended
+                ? AggregationBuilders.extendedStats(STATS + field).field(field)
+                : AggregationBuilders.stats(STATS + field).field(field)));
+        cardinalityFields.forEach(field ->
+                search.addAggregation(AggregationBuilders.cardinality(CARDINALITY + field).field(field)));
+        termsFields.forEach((field, size) ->
+                search.addAggregation(AggregationBuilders.terms(TERMS + field).field(field).size(size)));
+
+        search.execute(new ActionListener<SearchResponse>() {
+            @Override
+            public void onResponse(SearchResponse response) {
+                // 单个请求解析失败不影响同组其他请求
+                for (MicroBatcher.Pending<StatsRequest, StatsResult> pending : group) {
+                    try {
+                        pending.complete(extract(pending.key(), response));
+                    } catch (Exception e) {
+                        pending.fail(e);
+                    }
+                }
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                group.forEach(pending -> pending.fail(e));
+            }
+        });
+    }
+
+    private static StatsResult extract(StatsRequest request, SearchResponse response) {
+        Aggregations aggregations = response.getAggregations();
+        Map<Metric, Double> values = new EnumMap<>(Metric.class);
+        for (Metric metric : request.getMetrics()) {
+            Double value;
+            if (metric == Metric.CARDINALITY) {
+                Cardinality cardinality = aggregations.get(CARDINALITY + request.getField());
+                value = (double) cardinality.getValue();
+            } else {
+                value = statsValue(aggregations.get(STATS + request.getField()), metric);
+            }
+            // 没有文档时min/max/avg为无穷或NaN,不返回
+            if (value != null && !value.isNaN() && !value.isInfinite()) {
+                values.put(metric, value);
+            }
+        }
+        Map<String, Long> buckets = new LinkedHashMap<>();
+        if (request.getTermsField() != null) {
+            Terms terms = aggregations.get(TERMS + request.getTermsField());
+            for (Terms.Bucket bucket : terms.getBuckets()) {
+                if (buckets.size() >= request.getTermsSize()) {
+                    break;
+                }
+                buckets.put(bucket.getKeyAsString(), bucket.getDocCount());
+            }
+        }
+        return new StatsResult(response.getHits().getTotalHits(), values, buckets);
+    }
+
+    private static Double statsValue(Stats stats, Metric metric) {
+        switch (metric) {
+            case COUNT:
+                return (double) stats.getCount();
+            case MIN:
+                return stats.getMin();
+            case MAX:
+                return stats.getMax();
+            case SUM:
+                return stats.getSum();
+            case AVG:
+                return stats.getAvg();
+            case SUM_OF_SQUARES:
+                return ((ExtendedStats) stats).getSumOfSquares();
+            case VARIANCE:
+                return ((ExtendedStats) stats).getVariance();
+            case STD_DEVIATION:
+                return ((ExtendedStats) stats).getStdDeviation();
+            default:
+                return null;
+        }
+    }
+
+    public MicroBatcher<StatsRequest, StatsResult> batcher() {
+        return batcher;
+    }
+
+    @PreDestroy
+    public void close() {
+        batcher.close();
+    }
+}
@@ -0,0 +1,74 @@
+package com.fh.stats;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 每个age的文档数,0到maxAge用数组计数,超出范围的age放到有序表里
+ * 由AgeRollup加锁修改,读取不加锁
+ */
+final class AgeHistogram {
+
+    // 文档没有age字段
+    static final int MISSING = Integer.MAX_VALUE;
+
+    interface Visitor {
+        void visit(int age, long count);
+    }
+
+    private final AtomicLongArray dense;
+    private final ConcurrentSkipListMap<Integer, Long> sparse = new ConcurrentSkipListMap<>();
+    private final AtomicLong missing = new AtomicLong();
+
+    AgeHistogram(int maxAge) {
+        dense = new AtomicLongArray(maxAge + 1);
+    }
+
+    void add(int age, long delta) {
+        if (age == MISSING) {
+            missing.addAndGet(delta);
+        } else if (age >= 0 && age < dense.length()) {
+            dense.addAndGet(age, delta);
+        } else {
+            sparse.compute(age, (k, count) -> {
+                long sum = (count == null ? 0 : count) + delta;
+                return sum == 0 ? null : sum;
+            });
+        }
+    }
+
+    long missing() {
+        return missing.get();
+    }
+
+    // 按age从小到大访问文档数不为0的分组
+    void forEach(Visitor visitor) {
+        sparse.headMap(0).forEach(visitor::visit);
+        for (int age = 0; age < dense.length(); age++) {
+            long count = dense.get(age);
+            if (count != 0) {
+                visitor.visit(age, count);
+            }
+        }
+        sparse.tailMap(dense.length()).forEach(visitor::visit);
+    }
+
+    Map<Integer, Long> counts() {
+        Map<Integer, Long> counts = new TreeMap<>();
+        forEach(counts::put);
+        return counts;
+    }
+
+    // 用es聚合的结果覆盖
+    void reset(Map<Integer, Long> counts, long missingCount) {
+        for (int age = 0; age < dense.length(); age++) {
+            dense.set(age, 0);
+        }
+        sparse.clear();
+        counts.forEach(this::add);
+        missing.set(missingCount);
+    }
+}
@@ -0,0 +1,395 @@
+package com.fh.stats;
+
+import com.fh.config.RollupProperties;
+import com.fh.config.ScanProperties;
+import com.fh.es.PersonIndex;
+import com.fh.es.PersonWriteEvent;
+import com.fh.es.PersonWriteListener;
+import com.fh.es.ScrollIterator;
+import com.fh.partition.PersonPartitions;
+import com.fh.stats.StatsRequest.Metric;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.elasticsearch.search.sort.FieldSortBuilder;
+import org.elasticsearch.search.sort.SortOrder;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 全库age统计(count/min/max/sum/avg/方差/cardinality/terms)的本地汇总,读取不查es
+ * 按age计数的直方图由写入事件增量维护,另存每个文档当前的age,修改和删除时才知道从哪个age减掉;
+ * 启动时扫描全部文档的age构建,定时用es的terms聚合核对,不一致时以es为准并重新扫描
+ */
+@Slf4j
+@Component
+public class AgeRollup implements PersonWriteListener {
+
+    static final String FIELD = "age";
+
+    private final Client client;
+    private final RollupProperties properties;
+    private final ScanProperties scanProperties;
+    private final PersonPartitions partitions;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "person-age-rollup");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean reloadRequested = new AtomicBoolean();
+
+    // 以下字段的修改都持有this的锁
+    private volatile AgeHistogram histogram;
+    private IdAgeMap ages;
+    // 扫描期间的写入事件,扫描完成后在新结果上重放
+    private List<PersonWriteEvent> journal;
+    private final AtomicLong writes = new AtomicLong();
+
+    private final AtomicLong corrections = new AtomicLong();
+    private final AtomicLong skippedReconciles = new AtomicLong();
+    private final AtomicLong unknownUpdates = new AtomicLong();
+
+    public AgeRollup(Client client, RollupProperties properties, ScanProperties scanProperties,
+                     PersonPartitions partitions) {
+        this.client = client;
+        this.properties = properties;
+        this.scanProperties = scanProperties;
+        this.partitions = partitions;
+    }
+
+    public static AgeRollup disabled() {
+        return new AgeRollup(null, new RollupProperties(), new ScanProperties(), PersonPartitions.disabled());
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!properties.isEnabled()) {
+            return;
+        }
+        scheduler.execute(this::reloadQuietly);
+        long interval = properties.getReconcileInterval().toMillis();
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                reconcile();
+            } catch (Exception e) {
+                log.error("person age rollup reconcile failed", e);
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        scheduler.shutdownNow();
+        scheduler.awaitTermination(30, TimeUnit.SECONDS);
+    }
+
+    // 首次扫描完成前为false,统计仍然查es
+    public boolean isReady() {
+        return histogram != null;
+    }
+
+    // 不带filter、只涉及age的统计可以由本地汇总回答
+    public boolean canServe(StatsRequest request) {
+        return properties.isEnabled() && isReady() && request.getFilter() == null
+                && FIELD.equals(request.getField())
+                && (request.getTermsField() == null || FIELD.equals(request.getTermsField()));
+    }
+
+    public StatsResult stats(StatsRequest request) {
+        AgeHistogram current = histogram;
+        Totals totals = new Totals(request.getTermsField() != null);
+        current.forEach(totals);
+        Map<Metric, Double> values = new EnumMap<>(Metric.class);
+        for (Metric metric : request.getMetrics()) {
+            Double value = totals.value(metric);
+            // 与es一致,没有文档时不返回min/max/avg等指标
+            if (value != null && !value.isNaN() && !value.isInfinite()) {
+                values.put(metric, value);
+            }
+        }
+        Map<String, Long> buckets = new LinkedHashMap<>();
+        if (request.getTermsField() != null) {
+            // 与es的terms一致:文档数倒序,相同时age从小到大
+            totals.buckets.sort((a, b) -> a[1] != b[1] ? Long.compare(b[1], a[1]) : Long.compare(a[0], b[0]));
+            for (long[] bucket : totals.buckets) {
+                if (buckets.size() >= request.getTermsSize()) {
+                    break;
+                }
+                buckets.put(String.valueOf(bucket[0]), bucket[1]);
+            }
+        }
+        return new StatsResult(totals.count + current.missing(), values, buckets);
+    }
+
+    @Override
+    public void onWrite(PersonWriteEvent event) {
+        if (!properties.isEnabled()) {
+            return;
+        }
+        if (event.isByQuery()) {
+            // 不知道改了哪些文档,只能重新扫描
+            requestReload();
+            return;
+        }
+        synchronized (this) {
+            writes.incrementAndGet();
+            if (histogram != null) {
+                apply(histogram, ages, event);
+            }
+            if (journal != null) {
+                journal.add(event);
+            }
+        }
+    }
+
+    /**
+     * 扫描全部文档的age重建汇总,扫描期间的写入在新结果上重放
+     * 重放与扫描结果重叠时,按id记录的age保证同一个写入不会计两次
+     */
+    public void reload() {
+        int expected;
+        synchronized (this) {
+            journal = new ArrayList<>();
+            expected = ages == null ? 1024 : ages.size();
+        }
+        try {
+            AgeHistogram freshHistogram = new AgeHistogram(properties.getMaxAge());
+            IdAgeMap freshAges = new IdAgeMap(expected);
+            long start = System.nanoTime();
+            try (ScrollIterator iterator = new ScrollIterator(client, client.prepareSearch(partitions.readIndex())
+                    .setTypes(PersonIndex.TYPE)
+                    .setQuery(QueryBuilders.matchAllQuery())
+                    .setFetchSource(FIELD, null)
+                    .setSize(scanProperties.getPageSize())
+                    .addSort(FieldSortBuilder.DOC_FIELD_NAME, SortOrder.ASC),
+                    TimeValue.timeValueMillis(scanProperties.getKeepAlive().toMillis()))) {
+                while (iterator.hasNext()) {
+                    SearchHit hit = iterator.next();
+                    int age = toAge(hit.getSourceAsMap().get(FIELD));
+                    int old = freshAges.put(hit.getId(), age);
+                    if (old != IdAgeMap.NONE) {
+                        freshHistogram.add(old, -1);
+                    }
+                    freshHistogram.add(age, 1);
+                }
+            }
+            synchronized (this) {
+                for (PersonWriteEvent event : journal) {
+                    apply(freshHistogram, freshAges, event);
+                }
+                histogram = freshHistogram;
+                ages = freshAges;
+                journal = null;
+            }
+            log.info("person age rollup loaded {} documents in {} ms, {} bytes", freshAges.size(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), freshAges.ramBytesUsed());
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                journal = null;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 用es的terms聚合核对本地汇总,不一致时以es为准并在后台重新扫描
+     * 核对期间有写入时无法判断差异来自哪边,跳过这一次;返回是否做了修正
+     */
+    public boolean reconcile() {
+        if (!isReady()) {
+            return false;
+        }
+        long before = writes.get();
+        // 让已经确认的写入都能被聚合看到
+        client.admin().indices().prepareRefresh(partitions.readIndex()).get();
+        SearchResponse response = client.prepareSearch(partitions.readIndex())
+                .setTypes(PersonIndex.TYPE)
+                .setSize(0)
+                .addAggregation(AggregationBuilders.terms(FIELD).field(FIELD).size(properties.getMaxTerms()))
+                .get();
+        Terms terms = response.getAggregations().get(FIELD);
+        if (terms.getSumOfOtherDocCounts() > 0) {
+            log.warn("person age rollup: more than {} distinct ages, reconcile skipped", properties.getMaxTerms());
+            skippedReconciles.incrementAndGet();
+            return false;
+        }
+        Map<Integer, Long> expected = new TreeMap<>();
+        long withAge = 0;
+        for (Terms.Bucket bucket : terms.getBuckets()) {
+            expected.put(bucket.getKeyAsNumber().intValue(), bucket.getDocCount());
+            withAge += bucket.getDocCount();
+        }
+        long missing = response.getHits().getTotalHits() - withAge;
+        synchronized (this) {
+            if (writes.get() != before || journal != null) {
+                skippedReconciles.incrementAndGet();
+                return false;
+            }
+            Map<Integer, Long> actual = histogram.counts();
+            if (actual.equals(expected) && histogram.missing() == missing) {
+                return false;
+            }
+            log.warn("person age rollup drifted from es, local {} missing {}, es {} missing {}",
+                    actual, histogram.missing(), expected, missing);
+            histogram.reset(expected, missing);
+            corrections.incrementAndGet();
+        }
+        // 按id记录的age也可能不对了
+        requestReload();
+        return true;
+    }
+
+    public long getCorrections() {
+        return corrections.get();
+    }
+
+    public long getSkippedReconciles() {
+        return skippedReconciles.get();
+    }
+
+    // 不知道旧age的修改次数,这些修改要等核对时才计入
+    public long getUnknownUpdates() {
+        return unknownUpdates.get();
+    }
+
+    private void apply(AgeHistogram target, IdAgeMap targetAges, PersonWriteEvent event) {
+        String id = event.getId();
+        if (event.getType() == PersonWriteEvent.Type.INDEX) {
+            int age = event.getDocument().getAge();
+            move(target, targetAges.put(id, age), age);
+        } else if (event.getType() == PersonWriteEvent.Type.DELETE) {
+            int old = targetAges.remove(id);
+            if (old != IdAgeMap.NONE) {
+                target.add(old, -1);
+            }
+        } else if (event.getType() == PersonWriteEvent.Type.UPSERT && targetAges.get(id) == IdAgeMap.NONE) {
+            // 扫描过全部文档,不认识的id说明文档不存在,按upsert的内容新建
+            int age = event.getDocument().getAge();
+            targetAges.put(id, age);
+            target.add(age, 1);
+        } else if (event.getChanges().containsKey(FIELD)) {
+            // 局部修改,以及文档已存在的upsert
+            int age = toAge(event.getChanges().get(FIELD));
+            if (targetAges.get(id) == IdAgeMap.NONE) {
+                unknownUpdates.incrementAndGet();
+                return;
+            }
+            move(target, targetAges.put(id, age), age);
+        }
+    }
+
+    private static void move(AgeHistogram target, int from, int to) {
+        if (from != IdAgeMap.NONE) {
+            target.add(from, -1);
+        }
+        target.add(to, 1);
+    }
+
+    private void requestReload() {
+        if (!reloadRequested.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            scheduler.execute(() -> {
+                reloadRequested.set(false);
+                reloadQuietly();
+            });
+        } catch (RuntimeException e) {
+            // 已经关闭
+            reloadRequested.set(false);
+        }
+    }
+
+    private void reloadQuietly() {
+        try {
+            reload();
+        } catch (Exception e) {
+            log.error("person age rollup reload failed", e);
+        }
+    }
+
+    private static int toAge(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).intValue();
+        }
+        if (value instanceof String) {
+            try {
+                return Integer.parseInt((String) value);
+            } catch (NumberFormatException e) {
+                return AgeHistogram.MISSING;
+            }
+        }
+        return AgeHistogram.MISSING;
+    }
+
+    private static final class Totals implements AgeHistogram.Visitor {
+        private final boolean withBuckets;
+        private final List<long[]> buckets = new ArrayList<>();
+        private long count;
+        private double sum;
+        private double sumOfSquares;
+        private double min = Double.POSITIVE_INFINITY;
+        private double max = Double.NEGATIVE_INFINITY;
+        private long distinct;
+
+        Totals(boolean withBuckets) {
+            this.withBuckets = withBuckets;
+        }
+
+        @Override
+        public void visit(int age, long docs) {
+            count += docs;
+            sum += (double) age * docs;
+            sumOfSquares += (double) age * age * docs;
+            min = Math.min(min, age);
+            max = Math.max(max, age);
+            distinct++;
+            if (withBuckets) {
+                buckets.add(new long[]{age, docs});
+            }
+        }
+
+        Double value(Metric metric) {
+            switch (metric) {
+                case COUNT:
+                    return (double) count;
+                case MIN:
+                    return min;
+                case MAX:
+                    return max;
+                case SUM:
+                    return sum;
+                case AVG:
+                    return sum / count;
+                case SUM_OF_SQUARES:
+                    return sumOfSquares;
+                case VARIANCE:
+                    return (sumOfSquares - sum * sum / count) / count;
+                case STD_DEVIATION:
+                    return Math.sqrt((sumOfSquares - sum * sum / count) / count);
+                case CARDINALITY:
+                    return (double) distinct;
+                default:
+                    return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.fh.stats;
+
+import org.elasticsearch.common.hash.MurmurHash3;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 文档id -> age的开放寻址表(线性探测),只存id的64位哈希,每个文档约占16~32字节
+ * 一千万文档时哈希冲突的概率约为百万分之三,冲突只会让两个文档共用一个age
+ * 不是线程安全的,由AgeRollup加锁访问
+ */
+final class IdAgeMap {
+
+    // get、put、remove在id不存在时的返回值
+    static final int NONE = Integer.MIN_VALUE;
+
+    private static final long EMPTY = 0;
+
+    private long[] keys;
+    private int[] values;
+    private int mask;
+    private int size;
+
+    IdAgeMap(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(16, expected * 4 / 3 + 1) - 1) << 1;
+        keys = new long[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    int size() {
+        return size;
+    }
+
+    long ramBytesUsed() {
+        return (long) keys.length * (Long.BYTES + Integer.BYTES);
+    }
+
+    int get(String id) {
+        int slot = slot(hash(id));
+        return keys[slot] == EMPTY ? NONE : values[slot];
+    }
+
+    // 返回旧值
+    int put(String id, int age) {
+        long key = hash(id);
+        int slot = slot(key);
+        if (keys[slot] != EMPTY) {
+            int old = values[slot];
+            values[slot] = age;
+            return old;
+        }
+        keys[slot] = key;
+        values[slot] = age;
+        if (++size > keys.length * 3 / 4) {
+            resize();
+        }
+        return NONE;
+    }
+
+    // 返回删除的值
+    int remove(String id) {
+        int hole = slot(hash(id));
+        if (keys[hole] == EMPTY) {
+            return NONE;
+        }
+        int old = values[hole];
+        // 把后面探测链上的元素往前移,保证查找时不会在空位提前停下
+        for (int next = (hole + 1) & mask; keys[next] != EMPTY; next = (next + 1) & mask) {
+            int ideal = (int) keys[next] & mask;
+            if (((next - ideal) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                hole = next;
+            }
+        }
+        keys[hole] = EMPTY;
+        size--;
+        return old;
+    }
+
+    // key所在位置,不存在时为应插入的空位
+    private int slot(long key) {
+        int slot = (int) key & mask;
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void resize() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = slot(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private static long hash(String id) {
+        byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+        long hash = MurmurHash3.hash128(bytes, 0, bytes.length, 0, new MurmurHash3.Hash128()).h1;
+        return hash == EMPTY ? 1 : hash;
+    }
+}
@@ -0,0 +1,48 @@
+package com.fh.stats;
+
+import lombok.Builder;
+import lombok.Singular;
+import lombok.Value;
+import org.elasticsearch.index.query.QueryBuilder;
+
+import java.util.Set;
+
+/**
+ * 一次统计请求:filter过滤后对field计算metrics,可选再按termsField分组
+ */
+@Value
+@Builder
+public class StatsRequest {
+
+    public enum Metric {
+        COUNT,
+        MIN,
+        MAX,
+        SUM,
+        AVG,
+        SUM_OF_SQUARES,
+        VARIANCE,
+        STD_DEVIATION,
+        CARDINALITY;
+
+        // 需要extended_stats才能得到的指标
+        public boolean extended() {
+            return this == SUM_OF_SQUARES || this == VARIANCE || this == STD_DEVIATION;
+        }
+
+        // stats或extended_stats能得到的指标
+        public boolean fromStats() {
+            return this != CARDINALITY;
+        }
+    }
+
+    // 为null表示全部文档
+    private final QueryBuilder filter;
+    private final String field;
+    @Singular
+    private final Set<Metric> metrics;
+    // 为null表示不分组
+    private final String termsField;
+    @Builder.Default
+    private final int termsSize = 10;
+}
@@ -0,0 +1,21 @@
+package com.fh.stats;
+
+import lombok.Data;
+
+import java.util.Map;
+
+/**
+ * 统计结果,没有文档时min/max/avg等不存在的指标不出现在values中
+ */
+@Data
+public class StatsResult {
+    // filter命中的文档数
+    private final long total;
+    private final Map<StatsRequest.Metric, Double> values;
+    // 分组的key -> 文档数,按文档数倒序
+    private final Map<String, Long> buckets;
+
+    public Double get(StatsRequest.Metric metric) {
+        return values.get(metric);
+    }
+}
@@ -0,0 +1,456 @@
+package com.fh.suggest;
+
+import com.fh.config.SuggestProperties;
+import com.fh.entity.Person;
+import com.fh.es.PersonWriteEvent;
+import com.fh.es.PersonWriteListener;
+import com.fh.service.PersonScanService;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.lucene.search.suggest.InputIterator;
+import org.apache.lucene.search.suggest.Lookup;
+import org.apache.lucene.search.suggest.fst.WFSTCompletionLookup;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * name、address等字段的本地联想词索引,按前缀返回包含该取值的文档数最多的k个取值
+ * 每个字段一个WFST(FST存储,按权重剪枝取top-k),启动时扫描全部文档构建,之后定时重建;
+ * 两次重建之间应用写入的新取值记在有序的增量表里,查询时与FST结果合并;
+ * 删除和修改前的旧值不从增量里扣减,到下次重建才消失,所以权重在两次重建之间是近似值
+ */
+@Slf4j
+@Component
+public class PersonSuggester implements PersonWriteListener {
+
+    // key为 归一化取值 + SEPARATOR + 原始取值,按归一化的前缀查,返回原始取值;
+    // 两者相同时(中文取值基本都是)只存一份,FST的路径短一半
+    private static final char SEPARATOR = '\u001f';
+    // WFST的权重不能超过int范围
+    private static final long MAX_WEIGHT = Integer.MAX_VALUE;
+
+    private final SuggestProperties properties;
+    private final PersonScanService scanService;
+    private final Map<String, FieldIndex> indices = new LinkedHashMap<>();
+    private final AtomicBoolean rebuilding = new AtomicBoolean();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "person-suggest-rebuild");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public PersonSuggester(SuggestProperties properties, PersonScanService scanService, MeterRegistry registry) {
+        this.properties = properties;
+        this.scanService = scanService;
+        for (String field : properties.getFields()) {
+            FieldIndex index = new FieldIndex(field, extractor(field),
+                    Timer.builder("es.suggest.lookup").tag("field", field).register(registry));
+            indices.put(field, index);
+            Gauge.builder("es.suggest.memory", index, FieldIndex::ramBytesUsed)
+                    .tag("field", field).baseUnit("bytes").register(registry);
+            Gauge.builder("es.suggest.entries", index, FieldIndex::entries)
+                    .tag("field", field).register(registry);
+        }
+    }
+
+    public boolean isEnabled() {
+        return properties.isEnabled();
+    }
+
+    public Set<String> getFields() {
+        return Collections.unmodifiableSet(indices.keySet());
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!properties.isEnabled()) {
+            return;
+        }
+        long interval = properties.getRebuildInterval().toMillis();
+        // 首次构建放到后台,构建完成前只能查到启动后写入的取值
+        scheduler.scheduleWithFixedDelay(this::requestRebuild, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        scheduler.shutdownNow();
+        scheduler.awaitTermination(30, TimeUnit.SECONDS);
+    }
+
+    public List<Suggestion> suggest(String field, String prefix) {
+        return suggest(field, prefix, properties.getSize());
+    }
+
+    public List<Suggestion> suggest(String field, String prefix, int size) {
+        FieldIndex index = indices.get(field);
+        if (index == null) {
+            throw new IllegalArgumentException("no suggestions for field: " + field);
+        }
+        String key = normalize(prefix);
+        if (key.isEmpty() || size <= 0) {
+            return Collections.emptyList();
+        }
+        long start = System.nanoTime();
+        try {
+            return index.lookup(key, size);
+        } finally {
+            index.timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    // 所有字段占用的内存,字节
+    public long ramBytesUsed() {
+        return indices.values().stream().mapToLong(FieldIndex::ramBytesUsed).sum();
+    }
+
+    /**
+     * 扫描lib全部文档重建,返回扫描的文档数
+     */
+    public int rebuild() {
+        try (Stream<Person> persons = scanService.streamAll(QueryBuilders.matchAllQuery())) {
+            return rebuild(persons);
+        }
+    }
+
+    /**
+     * 用给定的全部文档重建,扫描期间的写入同时记入新的增量表,构建完成后与新FST一起替换
+     * 扫描和写入重叠的文档会被多计一次,只影响权重
+     */
+    public int rebuild(Stream<Person> persons) {
+        long start = System.nanoTime();
+        indices.values().forEach(FieldIndex::beginRebuild);
+        try {
+            Map<String, Map<String, long[]>> counts = new HashMap<>();
+            indices.keySet().forEach(field -> counts.put(field, new HashMap<>()));
+            int[] documents = new int[1];
+            persons.forEach(person -> {
+                documents[0]++;
+                indices.forEach((field, index) -> {
+                    String key = key(index.extractor.apply(person));
+                    if (key != null) {
+                        counts.get(field).computeIfAbsent(key, k -> new long[1])[0]++;
+                    }
+                });
+            });
+            for (FieldIndex index : indices.values()) {
+                Map<String, long[]> fieldCounts = counts.get(index.field);
+                index.finishRebuild(build(fieldCounts), fieldCounts.size());
+                // 构建完一个字段就释放它的计数表
+                counts.remove(index.field);
+            }
+            log.info("person suggester rebuilt from {} documents in {} ms, {} bytes",
+                    documents[0], TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), ramBytesUsed());
+            return documents[0];
+        } catch (RuntimeException e) {
+            indices.values().forEach(FieldIndex::abortRebuild);
+            throw e;
+        }
+    }
+
+    @Override
+    public void onWrite(PersonWriteEvent event) {
+        if (!properties.isEnabled()) {
+            return;
+        }
+        if (event.isByQuery()) {
+            requestRebuild();
+            return;
+        }
+        if (event.getType() == PersonWriteEvent.Type.DELETE) {
+            return;
+        }
+        Map<String, Object> values = event.writtenValues();
+        indices.forEach((field, index) -> {
+            Object value = values.get(field);
+            String key = value instanceof String ? key((String) value) : null;
+            if (key != null && index.add(key) > properties.getMaxDelta()) {
+                requestRebuild();
+            }
+        });
+    }
+
+    // 已有重建在排队或执行时不再提交
+    private void requestRebuild() {
+        if (!rebuilding.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            scheduler.execute(() -> {
+                try {
+                    rebuild();
+                } catch (Exception e) {
+                    log.error("person suggester rebuild failed", e);
+                } finally {
+                    rebuilding.set(false);
+                }
+            });
+        } catch (RuntimeException e) {
+            // 已经关闭
+            rebuilding.set(false);
+        }
+    }
+
+    private static WFSTCompletionLookup build(Map<String, long[]> counts) {
+        Iterator<Map.Entry<String, long[]>> entries = counts.entrySet().iterator();
+        InputIterator input = new InputIterator() {
+            private long weight;
+
+            @Override
+            public BytesRef next() {
+                if (!entries.hasNext()) {
+                    return null;
+                }
+                Map.Entry<String, long[]> entry = entries.next();
+                weight = Math.min(entry.getValue()[0], MAX_WEIGHT);
+                return new BytesRef(entry.getKey());
+            }
+
+            @Override
+            public long weight() {
+                return weight;
+            }
+
+            @Override
+            public BytesRef payload() {
+                return null;
+            }
+
+            @Override
+            public boolean hasPayloads() {
+                return false;
+            }
+
+            @Override
+            public Set<BytesRef> contexts() {
+                return null;
+            }
+
+            @Override
+            public boolean hasContexts() {
+                return false;
+            }
+        };
+        // 构建时的排序临时文件放在内存里
+        try (RAMDirectory tempDir = new RAMDirectory()) {
+            WFSTCompletionLookup lookup = new WFSTCompletionLookup(tempDir, "suggest", false);
+            lookup.build(input);
+            return lookup;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static Function<Person, String> extractor(String field) {
+        switch (field) {
+            case "name":
+                return Person::getName;
+            case "address":
+                return Person::getAddress;
+            case "interests":
+                return Person::getInterests;
+            case "birth":
+                return Person::getBirth;
+            default:
+                throw new IllegalArgumentException("unsupported suggest field: " + field);
+        }
+    }
+
+    static String normalize(String value) {
+        return value == null ? "" : value.replace(SEPARATOR, ' ').trim().toLowerCase(Locale.ROOT);
+    }
+
+    private static String key(String value) {
+        String normalized = normalize(value);
+        if (normalized.isEmpty()) {
+            return null;
+        }
+        String original = value.replace(SEPARATOR, ' ').trim();
+        return normalized.equals(original) ? normalized : normalized + SEPARATOR + original;
+    }
+
+    private static String text(String key) {
+        int separator = key.indexOf(SEPARATOR);
+        return separator < 0 ? key : key.substring(separator + 1);
+    }
+
+    private static final class FieldIndex {
+        private final String field;
+        private final Function<Person, String> extractor;
+        private final Timer timer;
+        // FST和它之后的增量一起替换,查询时不会把新FST和旧增量混在一起
+        private volatile Generation generation = new Generation(null, 0, new Delta());
+        // 重建期间的写入,重建完成后成为新的增量
+        private volatile Delta pending;
+
+        FieldIndex(String field, Function<Person, String> extractor, Timer timer) {
+            this.field = field;
+            this.extractor = extractor;
+            this.timer = timer;
+        }
+
+        int add(String key) {
+            Delta next = pending;
+            if (next != null) {
+                next.add(key, null);
+            }
+            Generation current = generation;
+            return current.delta.add(key, current.lookup);
+        }
+
+        List<Suggestion> lookup(String prefix, int size) {
+            Generation current = generation;
+            Map<String, Long> merged = new HashMap<>();
+            if (current.lookup != null) {
+                for (Lookup.LookupResult result : current.lookup.lookup(prefix, null, false, size)) {
+                    merged.put(result.key.toString(), result.value);
+                }
+            }
+            // FST前k个以外的取值只有加上增量后才可能进入前k,所以只需补查增量里的取值
+            for (Map.Entry<String, Delta.Entry> entry : current.delta.prefix(prefix).entrySet()) {
+                merged.put(entry.getKey(), entry.getValue().weight());
+            }
+            // 小顶堆保留前k个
+            Comparator<Map.Entry<String, Long>> order = Map.Entry.<String, Long>comparingByValue(Comparator.reverseOrder())
+                    .thenComparing(Map.Entry.comparingByKey());
+            PriorityQueue<Map.Entry<String, Long>> top = new PriorityQueue<>(size + 1, order.reversed());
+            for (Map.Entry<String, Long> entry : merged.entrySet()) {
+                top.offer(entry);
+                if (top.size() > size) {
+                    top.poll();
+                }
+            }
+            Suggestion[] suggestions = new Suggestion[top.size()];
+            for (int i = suggestions.length - 1; i >= 0; i--) {
+                Map.Entry<String, Long> entry = top.poll();
+                suggestions[i] = new Suggestion(text(entry.getKey()), entry.getValue());
+            }
+            return Arrays.asList(suggestions);
+        }
+
+        void beginRebuild() {
+            pending = new Delta();
+        }
+
+        void finishRebuild(WFSTCompletionLookup lookup, int entries) {
+            Delta next = pending;
+            next.resolve(lookup);
+            generation = new Generation(lookup, entries, next);
+            pending = null;
+        }
+
+        void abortRebuild() {
+            pending = null;
+        }
+
+        long ramBytesUsed() {
+            Generation current = generation;
+            Delta next = pending;
+            return (current.lookup == null ? 0 : current.lookup.ramBytesUsed()) + current.delta.ramBytesUsed()
+                    + (next == null ? 0 : next.ramBytesUsed());
+        }
+
+        long entries() {
+            Generation current = generation;
+            return current.entries + current.delta.size.get();
+        }
+    }
+
+    private static final class Generation {
+        private final WFSTCompletionLookup lookup;
+        private final int entries;
+        private final Delta delta;
+
+        Generation(WFSTCompletionLookup lookup, int entries, Delta delta) {
+            this.lookup = lookup;
+            this.entries = entries;
+            this.delta = delta;
+        }
+    }
+
+    // 两次重建之间新写入的取值及次数
+    private static final class Delta {
+        // 跳表节点、索引层、Entry、LongAdder及String对象头的估算
+        private static final int ENTRY_OVERHEAD = 144;
+
+        private final ConcurrentSkipListMap<String, Entry> counts = new ConcurrentSkipListMap<>();
+        private final AtomicInteger size = new AtomicInteger();
+        private final LongAdder chars = new LongAdder();
+
+        // lookup为该增量对应的FST,新取值第一次写入时记下它在FST中的权重,查询时不用再查FST
+        int add(String key, WFSTCompletionLookup lookup) {
+            Entry entry = counts.get(key);
+            if (entry == null) {
+                Entry created = new Entry(stored(lookup, key));
+                entry = counts.putIfAbsent(key, created);
+                if (entry == null) {
+                    entry = created;
+                    size.incrementAndGet();
+                    chars.add(key.length());
+                }
+            }
+            entry.count.increment();
+            return size.get();
+        }
+
+        // 重建期间写入的取值改为新FST中的权重;与这里并发新加的取值可能漏记FST部分,只影响权重
+        void resolve(WFSTCompletionLookup lookup) {
+            counts.forEach((key, entry) -> entry.stored = stored(lookup, key));
+        }
+
+        ConcurrentNavigableMap<String, Entry> prefix(String prefix) {
+            return counts.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+        }
+
+        long ramBytesUsed() {
+            return (long) size.get() * ENTRY_OVERHEAD + chars.sum() * 2;
+        }
+
+        private static long stored(WFSTCompletionLookup lookup, String key) {
+            Object weight = lookup == null ? null : lookup.get(key);
+            return weight == null ? 0 : ((Number) weight).longValue();
+        }
+
+        private static final class Entry {
+            private final LongAdder count = new LongAdder();
+            private volatile long stored;
+
+            Entry(long stored) {
+                this.stored = stored;
+            }
+
+            long weight() {
+                return stored + count.sum();
+            }
+        }
+    }
+}
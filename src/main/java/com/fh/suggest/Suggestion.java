@@ -0,0 +1,12 @@
+package com.fh.suggest;
+
+import lombok.Data;
+
+/**
+ * 一条联想结果,weight为包含该取值的文档数(两次重建之间为近似值)
+ */
+@Data
+public class Suggestion {
+    private final String text;
+    private final long weight;
+}
@@ -0,0 +1,12 @@
+package com.fh.sync;
+
+/**
+ * 高水位的持久化
+ */
+public interface CheckpointStore {
+
+    // 没有保存过时返回SyncCheckpoint.INITIAL
+    SyncCheckpoint load();
+
+    void save(SyncCheckpoint checkpoint);
+}
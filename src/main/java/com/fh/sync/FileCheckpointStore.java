@@ -0,0 +1,49 @@
+package com.fh.sync;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+
+/**
+ * 高水位保存在本地文件中,格式为 毫秒时间戳,id
+ * 先写临时文件再原子替换,进程崩溃时不会留下半截内容
+ */
+public class FileCheckpointStore implements CheckpointStore {
+
+    private final Path file;
+
+    public FileCheckpointStore(Path file) {
+        this.file = file;
+    }
+
+    @Override
+    public synchronized SyncCheckpoint load() {
+        try {
+            if (!Files.exists(file)) {
+                return SyncCheckpoint.INITIAL;
+            }
+            String[] parts = new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim().split(",");
+            return new SyncCheckpoint(new Date(Long.parseLong(parts[0])), Long.parseLong(parts[1]));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public synchronized void save(SyncCheckpoint checkpoint) {
+        try {
+            Path parent = file.toAbsolutePath().getParent();
+            Files.createDirectories(parent);
+            Path tmp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+            String content = checkpoint.getUpdateTime().getTime() + "," + checkpoint.getLastId();
+            Files.write(tmp, content.getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
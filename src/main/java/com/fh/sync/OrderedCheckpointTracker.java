@@ -0,0 +1,37 @@
+package com.fh.sync;
+
+import java.util.TreeMap;
+
+/**
+ * 并行处理的批次按序号乱序完成,只有序号连续完成的部分才能推进高水位
+ * 序号由调用方从0开始连续分配
+ */
+public class OrderedCheckpointTracker<T> {
+
+    private final TreeMap<Long, T> completed = new TreeMap<>();
+    private long next;
+    private T committed;
+
+    public OrderedCheckpointTracker(T initial) {
+        this.committed = initial;
+    }
+
+    // 标记seq批次完成,返回推进后的高水位
+    public synchronized T complete(long seq, T checkpoint) {
+        completed.put(seq, checkpoint);
+        while (!completed.isEmpty() && completed.firstKey() == next) {
+            committed = completed.pollFirstEntry().getValue();
+            next++;
+        }
+        return committed;
+    }
+
+    public synchronized T committed() {
+        return committed;
+    }
+
+    // 已完成但因前面批次未完成而暂不能提交的批次数
+    public synchronized int pending() {
+        return completed.size();
+    }
+}
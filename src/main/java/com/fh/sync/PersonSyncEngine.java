@@ -0,0 +1,224 @@
+package com.fh.sync;
+
+import com.fh.config.SyncProperties;
+import com.fh.entity.Person;
+import com.fh.entity.PersonRow;
+import com.fh.es.PersonIndex;
+import com.fh.es.PersonCodec;
+import com.fh.es.PersonWriteEvent;
+import com.fh.es.PersonWriteEvents;
+import com.fh.mapper.PersonMapper;
+import com.fh.routing.PersonLocator;
+import com.fh.routing.PersonLocator.Location;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 把person表增量同步到es
+ * 单线程用游标流式读取高水位之后的行,攒满一批交给写线程并行bulk;
+ * 在途批次数受限,读线程会被阻塞,内存占用与表大小无关;
+ * 只有连续完成的批次才推进并持久化高水位,中途失败下次从失败处继续;
+ * 分区字段或routing变了的行写入前先删掉旧位置上的文档,见PersonLocator
+ */
+@Slf4j
+@Component
+public class PersonSyncEngine {
+
+    private final PersonMapper mapper;
+    private final Client client;
+    private final CheckpointStore checkpointStore;
+    private final SyncProperties properties;
+    private final PersonWriteEvents events;
+    private final PersonLocator locator;
+    private final ExecutorService workers;
+
+    private final AtomicLong rowsRead = new AtomicLong();
+    private final AtomicLong rowsIndexed = new AtomicLong();
+    private final AtomicLong failedRows = new AtomicLong();
+    private volatile boolean running;
+    private volatile long startedAt;
+    private volatile long finishedAt;
+    private volatile long lagMillis;
+
+    public PersonSyncEngine(PersonMapper mapper, Client client, CheckpointStore checkpointStore,
+                            SyncProperties properties, PersonWriteEvents events, PersonLocator locator) {
+        this.mapper = mapper;
+        this.client = client;
+        this.checkpointStore = checkpointStore;
+        this.properties = properties;
+        this.events = events;
+        this.locator = locator;
+        AtomicInteger counter = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(properties.getParallelism(), r -> {
+            Thread thread = new Thread(r, "person-sync-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // 同步一轮,追到当前最新数据后返回
+    public synchronized SyncStats runOnce() throws InterruptedException {
+        SyncCheckpoint start = checkpointStore.load();
+        OrderedCheckpointTracker<SyncCheckpoint> tracker = new OrderedCheckpointTracker<>(start);
+        int maxInFlight = properties.getParallelism() * 2;
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        AtomicReference<Exception> failure = new AtomicReference<>();
+
+        rowsRead.set(0);
+        rowsIndexed.set(0);
+        failedRows.set(0);
+        startedAt = System.nanoTime();
+        running = true;
+        try {
+            Batcher batcher = new Batcher(tracker, inFlight, failure);
+            mapper.scanSince(start.getUpdateTime(), start.getLastId(), context -> {
+                if (failure.get() != null) {
+                    context.stop();
+                    return;
+                }
+                rowsRead.incrementAndGet();
+                batcher.add(context.getResultObject());
+            });
+            batcher.submit();
+            // 等待所有在途批次结束
+            inFlight.acquire(maxInFlight);
+            inFlight.release(maxInFlight);
+        } finally {
+            running = false;
+            finishedAt = System.nanoTime();
+        }
+
+        SyncCheckpoint committed = tracker.committed();
+        Date latest = mapper.selectMaxUpdateTime();
+        lagMillis = latest == null ? 0 : Math.max(0, latest.getTime() - committed.getUpdateTime().getTime());
+        if (failure.get() != null) {
+            log.error("person sync stopped at {}", committed, failure.get());
+        }
+        return stats();
+    }
+
+    private void indexBatch(List<PersonRow> rows) {
+        BulkRequest bulkRequest = new BulkRequest();
+        Map<String, Location> targets = new LinkedHashMap<>();
+        for (PersonRow row : rows) {
+            Person person = row.toPerson();
+            Location target = locator.target(person);
+            String id = String.valueOf(row.getId());
+            targets.put(id, target);
+            bulkRequest.add(new IndexRequest(target.getIndex(), PersonIndex.TYPE, id)
+                    .routing(target.getRouting())
+                    .source(PersonCodec.encode(id, person), XContentType.JSON));
+        }
+        locator.removeMoved(targets).join();
+        BulkResponse response = client.bulk(bulkRequest).actionGet();
+        // 单条失败(例如字段类型不符)不阻塞高水位,只记录
+        int failures = 0;
+        BulkItemResponse[] items = response.getItems();
+        for (int i = 0; i < items.length; i++) {
+            BulkItemResponse item = items[i];
+            if (item.isFailed()) {
+                failures++;
+                log.warn("sync person [{}] failed: {}", item.getId(), item.getFailureMessage());
+            } else {
+                Person person = rows.get(i).toPerson();
+                String key = targets.get(item.getId()).getRouting();
+                locator.remember(item.getId(), new Location(item.getIndex(), key));
+                events.publish(PersonWriteEvent.index(PersonIndex.INDEX, item.getId(), person));
+            }
+        }
+        failedRows.addAndGet(failures);
+        rowsIndexed.addAndGet(rows.size() - failures);
+    }
+
+    public SyncStats stats() {
+        long end = running ? System.nanoTime() : finishedAt;
+        double seconds = (end - startedAt) / 1_000_000_000.0;
+        double rate = seconds > 0 ? rowsIndexed.get() / seconds : 0;
+        return new SyncStats(running, rowsRead.get(), rowsIndexed.get(), failedRows.get(), rate, lagMillis,
+                checkpointStore.load());
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        workers.shutdown();
+        workers.awaitTermination(30, TimeUnit.SECONDS);
+    }
+
+    // 读线程上攒批并提交给写线程
+    private class Batcher {
+        private final OrderedCheckpointTracker<SyncCheckpoint> tracker;
+        private final Semaphore inFlight;
+        private final AtomicReference<Exception> failure;
+        private List<PersonRow> batch = new ArrayList<>();
+        private long seq;
+
+        Batcher(OrderedCheckpointTracker<SyncCheckpoint> tracker, Semaphore inFlight,
+                AtomicReference<Exception> failure) {
+            this.tracker = tracker;
+            this.inFlight = inFlight;
+            this.failure = failure;
+        }
+
+        void add(PersonRow row) {
+            batch.add(row);
+            if (batch.size() >= properties.getBatchSize()) {
+                submit();
+            }
+        }
+
+        void submit() {
+            if (batch.isEmpty()) {
+                return;
+            }
+            List<PersonRow> rows = batch;
+            batch = new ArrayList<>(properties.getBatchSize());
+            long batchSeq = seq++;
+            PersonRow last = rows.get(rows.size() - 1);
+            SyncCheckpoint checkpoint = new SyncCheckpoint(last.getUpdateTime(), last.getId());
+            try {
+                inFlight.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure.compareAndSet(null, e);
+                return;
+            }
+            workers.execute(() -> {
+                try {
+                    indexBatch(rows);
+                    // 推进和保存放在同一把锁里,避免较旧的高水位晚于较新的写入文件
+                    synchronized (tracker) {
+                        SyncCheckpoint before = tracker.committed();
+                        SyncCheckpoint after = tracker.complete(batchSeq, checkpoint);
+                        if (after != before) {
+                            checkpointStore.save(after);
+                        }
+                    }
+                } catch (Exception e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    inFlight.release();
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.fh.sync;
+
+import com.fh.config.SyncProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * es.sync.enabled=true时定时执行增量同步
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "es.sync", name = "enabled", havingValue = "true")
+public class PersonSyncScheduler {
+
+    private final PersonSyncEngine engine;
+    private final SyncProperties properties;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "person-sync-scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public PersonSyncScheduler(PersonSyncEngine engine, SyncProperties properties) {
+        this.engine = engine;
+        this.properties = properties;
+    }
+
+    @PostConstruct
+    public void start() {
+        long interval = properties.getInterval().toMillis();
+        scheduler.scheduleWithFixedDelay(this::sync, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private void sync() {
+        try {
+            SyncStats stats = engine.runOnce();
+            if (stats.getRowsRead() > 0) {
+                log.info("person sync: {} rows, {} rows/s, lag {} ms", stats.getRowsIndexed(),
+                        (long) stats.getRowsPerSecond(), stats.getLagMillis());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.error("person sync failed", e);
+        }
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        scheduler.shutdown();
+        scheduler.awaitTermination(30, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,17 @@
+package com.fh.sync;
+
+import lombok.Data;
+
+import java.util.Date;
+
+/**
+ * 同步高水位:已写入es的最后一行的(update_time, id)
+ */
+@Data
+public class SyncCheckpoint {
+
+    public static final SyncCheckpoint INITIAL = new SyncCheckpoint(new Date(0), 0);
+
+    private final Date updateTime;
+    private final long lastId;
+}
@@ -0,0 +1,23 @@
+package com.fh.sync;
+
+import lombok.Data;
+
+/**
+ * 同步进度快照
+ */
+@Data
+public class SyncStats {
+    // 是否正在同步
+    private final boolean running;
+    // 本轮读取的行数
+    private final long rowsRead;
+    // 本轮写入成功的行数
+    private final long rowsIndexed;
+    // 本轮写入失败的行数
+    private final long failedRows;
+    // 本轮写入速度
+    private final double rowsPerSecond;
+    // mysql最新修改时间与高水位的差距,毫秒
+    private final long lagMillis;
+    private final SyncCheckpoint checkpoint;
+}
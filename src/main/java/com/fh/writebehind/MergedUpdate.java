@@ -0,0 +1,100 @@
+package com.fh.writebehind;
+
+import com.fh.entity.Person;
+import com.fh.es.PersonCodec;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 同一文档的若干次局部修改按顺序合并后的结果,合并方式与es的partial update相同(嵌套对象逐层合并)
+ * doc是文档存在时要应用的全部修改;
+ * upsert是文档不存在时写入的内容,等于第一次upsert的文档再依次应用其后的修改
+ */
+public final class MergedUpdate {
+
+    private final Map<String, Object> doc;
+    // 没有upsert时为null,文档不存在时整个修改失败,与逐条发送一致
+    private final Map<String, Object> upsert;
+
+    MergedUpdate(Map<String, Object> doc, Map<String, Object> upsert) {
+        this.doc = doc;
+        this.upsert = upsert;
+    }
+
+    public static MergedUpdate update(Map<String, Object> doc) {
+        return new MergedUpdate(copy(doc), null);
+    }
+
+    public static MergedUpdate upsert(Map<String, Object> doc, Person person) {
+        return new MergedUpdate(copy(doc), toMap(person));
+    }
+
+    public Map<String, Object> doc() {
+        return Collections.unmodifiableMap(doc);
+    }
+
+    public Map<String, Object> upsert() {
+        return upsert == null ? null : Collections.unmodifiableMap(upsert);
+    }
+
+    // 先应用本次再应用next
+    public MergedUpdate then(MergedUpdate next) {
+        Map<String, Object> mergedDoc = copy(doc);
+        XContentHelper.update(mergedDoc, copy(next.doc), false);
+        Map<String, Object> mergedUpsert;
+        if (upsert != null) {
+            // 前面已经插入过,后面的修改都作用在插入的文档上
+            mergedUpsert = copy(upsert);
+            XContentHelper.update(mergedUpsert, copy(next.doc), false);
+        } else {
+            mergedUpsert = next.upsert == null ? null : copy(next.upsert);
+        }
+        return new MergedUpdate(mergedDoc, mergedUpsert);
+    }
+
+    /**
+     * 在es中的文档上应用修改,source为null表示文档不存在,返回null表示应用后仍不存在
+     */
+    public Map<String, Object> applyTo(Map<String, Object> source) {
+        if (source == null) {
+            return upsert == null ? null : copy(upsert);
+        }
+        Map<String, Object> result = copy(source);
+        XContentHelper.update(result, copy(doc), false);
+        return result;
+    }
+
+    public static Map<String, Object> toMap(Person person) {
+        return XContentHelper.convertToMap(PersonCodec.encode(person), true, XContentType.JSON).v2();
+    }
+
+    public static Person toPerson(Map<String, Object> source) {
+        try {
+            return PersonCodec.decode(BytesReference.bytes(XContentFactory.jsonBuilder().map(source)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // XContentHelper.update会修改传入的嵌套Map,合并前逐层复制
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> copy(Map<String, Object> source) {
+        Map<String, Object> copy = new LinkedHashMap<>(source.size());
+        source.forEach((key, value) -> copy.put(key,
+                value instanceof Map ? copy((Map<String, Object>) value) : value));
+        return copy;
+    }
+
+    @Override
+    public String toString() {
+        return "MergedUpdate{doc=" + doc + ", upsert=" + upsert + "}";
+    }
+}
@@ -0,0 +1,300 @@
+package com.fh.writebehind;
+
+import com.fh.config.WriteBehindProperties;
+import com.fh.entity.Person;
+import com.fh.es.PersonCodec;
+import com.fh.es.PersonIndex;
+import com.fh.es.PersonWriteEvent;
+import com.fh.es.PersonWriteEvents;
+import com.fh.routing.PersonLocator;
+import com.fh.routing.PersonLocator.Location;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.rest.RestStatus;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 局部修改的写后缓冲
+ * 同一文档的连续修改在内存中按顺序合并,定时或攒够数量后合并成一个bulk写入es;
+ * 同一时间只有一个bulk在途,同一文档的修改不会乱序;
+ * 本节点通过get读取时会把尚未写入es的修改叠加在es的结果上,保证读到自己的写入;
+ * 开启分区或routing时,读取和写入前由PersonLocator找到每个文档所在的索引和routing
+ */
+@Slf4j
+@Service
+public class PersonWriteBehind {
+
+    private final Client client;
+    private final PersonWriteEvents events;
+    private final WriteBehindProperties properties;
+    private final PersonLocator locator;
+    private final UpdateJournal journal;
+    private final ScheduledExecutorService scheduler;
+
+    private final Object lock = new Object();
+    private Map<String, MergedUpdate> pending = new LinkedHashMap<>();
+    // 正在写入es的一批,写完前仍参与叠加
+    private volatile Map<String, MergedUpdate> inFlight = Collections.emptyMap();
+    // 启动时回放的日志分段,第一次刷新完成后删除
+    private final List<Path> recovered = new ArrayList<>();
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    public PersonWriteBehind(Client client, PersonWriteEvents events, WriteBehindProperties properties,
+                             PersonLocator locator) {
+        this.client = client;
+        this.events = events;
+        this.properties = properties;
+        this.locator = locator;
+        if (properties.getDurability() == WriteBehindProperties.Durability.JOURNAL) {
+            journal = new UpdateJournal(Paths.get(properties.getJournalDir()), properties.isFsync());
+            recovered.addAll(journal.recover((id, update) -> pending.merge(id, update, MergedUpdate::then)));
+            if (!pending.isEmpty()) {
+                log.info("recovered {} pending person updates from journal", pending.size());
+            }
+        } else {
+            journal = null;
+        }
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "person-write-behind");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = properties.getFlushInterval().toMillis();
+        scheduler.scheduleWithFixedDelay(this::flushQuietly, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    // 局部修改,文档不存在时失败
+    public void update(String id, Map<String, Object> doc) {
+        locator.checkUpdate(doc);
+        submit(id, MergedUpdate.update(doc));
+    }
+
+    // 文档存在则局部修改,不存在则写入person
+    public void upsert(String id, Map<String, Object> doc, Person person) {
+        locator.checkUpdate(doc);
+        submit(id, MergedUpdate.upsert(doc, person));
+    }
+
+    private void submit(String id, MergedUpdate update) {
+        submitted.incrementAndGet();
+        boolean full;
+        synchronized (lock) {
+            if (journal != null) {
+                journal.append(id, update);
+            }
+            pending.merge(id, update, MergedUpdate::then);
+            full = pending.size() >= properties.getMaxPending();
+        }
+        if (full) {
+            scheduler.execute(this::flushQuietly);
+        }
+    }
+
+    /**
+     * 读取文档并叠加本节点尚未写入es的修改,文档不存在时结果为null
+     */
+    public CompletableFuture<Person> get(String id) {
+        // 先取叠加内容再读es:读es期间刚写完的修改会重复应用一次,局部修改重复应用结果不变
+        MergedUpdate overlay = overlay(id);
+        return locator.locate(id).thenCompose(location -> {
+            if (location == null) {
+                return CompletableFuture.completedFuture(null);
+            }
+            CompletableFuture<GetResponse> response = new CompletableFuture<>();
+            client.prepareGet(location.getIndex(), PersonIndex.TYPE, id).setRouting(location.getRouting()).execute(
+                    ActionListener.wrap(response::complete, response::completeExceptionally));
+            return response.thenApply(get -> get.isExists()
+                    ? XContentHelper.convertToMap(get.getSourceAsBytesRef(), true, XContentType.JSON).v2() : null);
+        }).thenApply(source -> {
+            Map<String, Object> merged = overlay == null ? source : overlay.applyTo(source);
+            return merged == null ? null : MergedUpdate.toPerson(merged);
+        });
+    }
+
+    private MergedUpdate overlay(String id) {
+        MergedUpdate writing = inFlight.get(id);
+        MergedUpdate waiting;
+        synchronized (lock) {
+            waiting = pending.get(id);
+        }
+        if (writing == null) {
+            return waiting;
+        }
+        return waiting == null ? writing : writing.then(waiting);
+    }
+
+    /**
+     * 把缓冲中的修改写入es,写完后返回
+     */
+    public synchronized void flush() throws InterruptedException {
+        Map<String, MergedUpdate> batch;
+        List<Path> segments = new ArrayList<>(recovered);
+        recovered.clear();
+        synchronized (lock) {
+            batch = pending;
+            pending = new LinkedHashMap<>();
+            inFlight = batch;
+            if (journal != null && !batch.isEmpty()) {
+                segments.add(journal.rotate());
+            }
+        }
+        try {
+            if (!batch.isEmpty()) {
+                write(batch);
+            }
+        } catch (RuntimeException e) {
+            // 整批请求失败(例如集群不可用)时放回缓冲最前面,下次重试;局部修改重复写入结果不变
+            requeue(batch);
+            recovered.addAll(segments);
+            throw e;
+        } finally {
+            inFlight = Collections.emptyMap();
+        }
+        if (journal != null) {
+            segments.forEach(journal::release);
+        }
+    }
+
+    // 被拒绝的条目按指数退避重试,其他失败记录后丢弃
+    private void write(Map<String, MergedUpdate> batch) throws InterruptedException {
+        Map<String, Location> locations = locate(batch);
+        Map<String, MergedUpdate> remaining = batch;
+        long delay = properties.getRetryInitialDelay().toMillis();
+        for (int attempt = 0; ; attempt++) {
+            List<String> ids = new ArrayList<>(remaining.keySet());
+            BulkRequest request = new BulkRequest();
+            for (String id : ids) {
+                MergedUpdate update = remaining.get(id);
+                Location location = locations.get(id);
+                UpdateRequest item = new UpdateRequest(location.getIndex(), PersonIndex.TYPE, id)
+                        .routing(location.getRouting()).doc(update.doc());
+                if (update.upsert() != null) {
+                    // 合并和日志里的upsert不带doc_id,发出时补上
+                    Map<String, Object> upsert = new LinkedHashMap<>(update.upsert());
+                    upsert.put(PersonCodec.ID_FIELD, id);
+                    item.upsert(new IndexRequest(location.getIndex(), PersonIndex.TYPE, id)
+                            .routing(location.getRouting()).source(upsert));
+                }
+                request.add(item);
+            }
+            Map<String, MergedUpdate> rejected = new LinkedHashMap<>();
+            BulkResponse response = client.bulk(request).actionGet();
+            for (BulkItemResponse item : response) {
+                String id = ids.get(item.getItemId());
+                MergedUpdate update = remaining.get(id);
+                if (!item.isFailed()) {
+                    written.incrementAndGet();
+                    events.publish(update.upsert() == null
+                            ? PersonWriteEvent.update(PersonIndex.INDEX, id, update.doc())
+                            : PersonWriteEvent.upsert(PersonIndex.INDEX, id, update.doc(),
+                            MergedUpdate.toPerson(update.upsert())));
+                } else if (item.status() == RestStatus.TOO_MANY_REQUESTS && attempt < properties.getMaxRetries()) {
+                    rejected.put(id, update);
+                } else {
+                    failed.incrementAndGet();
+                    log.warn("write-behind update of person [{}] failed: {}", id, item.getFailureMessage());
+                }
+            }
+            if (rejected.isEmpty()) {
+                return;
+            }
+            Thread.sleep(delay);
+            delay *= 2;
+            remaining = rejected;
+        }
+    }
+
+    /**
+     * 每个文档所在的位置;不存在的文档有upsert时按upsert的内容写到新位置,否则发往locator.missing(),由es返回文档不存在
+     * 查找失败时整批放回缓冲,与bulk请求失败一样处理
+     */
+    private Map<String, Location> locate(Map<String, MergedUpdate> batch) {
+        Map<String, Location> fallbacks = new HashMap<>();
+        Map<String, CompletableFuture<Location>> futures = new LinkedHashMap<>();
+        batch.forEach((id, update) -> {
+            Location target = update.upsert() == null ? null : locator.target(MergedUpdate.toPerson(update.upsert()));
+            fallbacks.put(id, target != null ? target : locator.missing());
+            futures.put(id, locator.locate(id, target));
+        });
+        Map<String, Location> locations = new HashMap<>();
+        futures.forEach((id, future) -> {
+            Location found = future.join();
+            locations.put(id, found != null ? found : fallbacks.get(id));
+        });
+        return locations;
+    }
+
+    private void requeue(Map<String, MergedUpdate> batch) {
+        synchronized (lock) {
+            Map<String, MergedUpdate> merged = new LinkedHashMap<>(batch);
+            pending.forEach((id, update) -> merged.merge(id, update, MergedUpdate::then));
+            pending = merged;
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.error("write-behind flush failed", e);
+        }
+    }
+
+    public int pendingCount() {
+        synchronized (lock) {
+            return pending.size();
+        }
+    }
+
+    public long getSubmitted() {
+        return submitted.get();
+    }
+
+    public long getWritten() {
+        return written.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    // 关闭时写完缓冲,journal模式下写不完的修改留在日志中
+    @PreDestroy
+    public void close() throws Exception {
+        scheduler.shutdown();
+        scheduler.awaitTermination(30, TimeUnit.SECONDS);
+        flush();
+        if (journal != null) {
+            journal.close();
+        }
+    }
+}
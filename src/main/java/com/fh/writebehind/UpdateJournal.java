@@ -0,0 +1,155 @@
+package com.fh.writebehind;
+
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * 写后缓冲的本地追加日志,进程崩溃后用来恢复尚未写入es的修改
+ * 每次刷新切换到新的分段文件,分段中的修改全部写入es后删除该分段;
+ * 每行一条json:{"id":..,"doc":{..},"upsert":{..}}
+ */
+@Slf4j
+public class UpdateJournal implements Closeable {
+
+    private static final String PREFIX = "journal-";
+    private static final String SUFFIX = ".ndjson";
+
+    private final Path dir;
+    private final boolean fsync;
+    private long sequence;
+    private Path current;
+    private FileChannel channel;
+
+    public UpdateJournal(Path dir, boolean fsync) {
+        this.dir = dir;
+        this.fsync = fsync;
+    }
+
+    /**
+     * 按写入顺序回放已有分段,返回这些分段,等回放出的修改写入es后再release
+     * 最后一行可能因崩溃只写了一半,跳过
+     */
+    public synchronized List<Path> recover(BiConsumer<String, MergedUpdate> consumer) {
+        try {
+            Files.createDirectories(dir);
+            List<Path> segments = segments();
+            for (Path segment : segments) {
+                for (String line : Files.readAllLines(segment, StandardCharsets.UTF_8)) {
+                    if (!line.isEmpty()) {
+                        replay(segment, line, consumer);
+                    }
+                }
+                sequence = Math.max(sequence, sequenceOf(segment));
+            }
+            open();
+            return segments;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public synchronized void append(String id, MergedUpdate update) {
+        try {
+            XContentBuilder builder = XContentFactory.jsonBuilder().startObject().field("id", id)
+                    .field("doc", update.doc());
+            if (update.upsert() != null) {
+                builder.field("upsert", update.upsert());
+            }
+            BytesReference line = BytesReference.bytes(builder.endObject());
+            ByteBuffer buffer = ByteBuffer.allocate(line.length() + 1);
+            buffer.put(BytesReference.toBytes(line)).put((byte) '\n').flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            if (fsync) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * 关闭当前分段并打开新分段,返回关闭的分段
+     */
+    public synchronized Path rotate() {
+        try {
+            Path closed = current;
+            channel.close();
+            open();
+            return closed;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // 分段中的修改已经全部处理完
+    public void release(Path segment) {
+        try {
+            Files.deleteIfExists(segment);
+        } catch (IOException e) {
+            log.warn("failed to delete journal segment {}", segment, e);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    private void open() throws IOException {
+        current = dir.resolve(String.format("%s%019d%s", PREFIX, ++sequence, SUFFIX));
+        channel = FileChannel.open(current, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            List<Path> segments = files.filter(f -> f.getFileName().toString().startsWith(PREFIX)
+                    && f.getFileName().toString().endsWith(SUFFIX)).collect(Collectors.toList());
+            Collections.sort(segments);
+            return new ArrayList<>(segments);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void replay(Path segment, String line, BiConsumer<String, MergedUpdate> consumer) {
+        Map<String, Object> entry;
+        try {
+            entry = XContentHelper.convertToMap(XContentType.JSON.xContent(), line, true);
+        } catch (RuntimeException e) {
+            log.warn("skip broken journal line in {}: {}", segment, line);
+            return;
+        }
+        consumer.accept((String) entry.get("id"), new MergedUpdate((Map<String, Object>) entry.get("doc"),
+                (Map<String, Object>) entry.get("upsert")));
+    }
+
+    private static long sequenceOf(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+}
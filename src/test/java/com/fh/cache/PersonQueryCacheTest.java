@@ -0,0 +1,112 @@
+package com.fh.cache;
+
+import com.fh.config.CacheProperties;
+import com.fh.entity.Person;
+import com.fh.es.PersonIndex;
+import com.fh.es.PersonQueryRewriter;
+import com.fh.es.PersonWriteEvent;
+import com.fh.partition.PersonPartitions;
+import com.fh.routing.PersonRouting;
+import com.fh.service.PersonQueryService;
+import com.fh.support.StubClient;
+import org.elasticsearch.action.search.SearchAction;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 查询缓存的命中与按写入失效
+ */
+public class PersonQueryCacheTest {
+
+    private StubClient client;
+    private PersonQueryCache cache;
+    private PersonQueryService service;
+
+    @Before
+    public void setUp() {
+        client = new StubClient();
+        Map<String, Object> source = new HashMap<>();
+        source.put("name", "zhangsan");
+        source.put("age", 20);
+        List<SearchHit> hits = Collections.singletonList(StubClient.hit("1", source));
+        client.on(SearchAction.INSTANCE, (request, listener) ->
+                listener.onResponse(StubClient.searchResponse(hits, 1, null)));
+
+        CacheProperties properties = new CacheProperties();
+        properties.setRefreshGrace(Duration.ZERO);
+        cache = new PersonQueryCache(properties);
+        service = new PersonQueryService(client, cache, properties, PersonPartitions.disabled(),
+                PersonRouting.disabled(), PersonQueryRewriter.disabled());
+    }
+
+    @After
+    public void tearDown() {
+        client.close();
+    }
+
+    // 相同查询第二次走缓存,terms取值顺序不影响命中
+    @Test
+    public void test01() {
+        List<Person> first = service.search(QueryBuilders.termsQuery("name", "zhangsan", "lisi"), 10);
+        List<Person> second = service.search(QueryBuilders.termsQuery("name", "lisi", "zhangsan"), 10);
+
+        assertEquals(1, client.calls(SearchAction.INSTANCE));
+        assertEquals(first, second);
+        assertEquals("zhangsan", second.get(0).getName());
+        assertEquals(1, cache.stats().getHits());
+
+        // 不走缓存的查询每次都查es
+        service.search(QueryBuilders.termsQuery("name", "zhangsan", "lisi"), 10, false);
+        assertEquals(2, client.calls(SearchAction.INSTANCE));
+    }
+
+    // 只有相关的写入才让缓存失效
+    @Test
+    public void test02() {
+        service.search(QueryBuilders.termQuery("name", "zhangsan"), 10);
+        service.search(QueryBuilders.termQuery("age", 20), 10);
+
+        // 结果之外的文档改了无关的值
+        cache.onWrite(PersonWriteEvent.update(PersonIndex.INDEX, "2", Collections.singletonMap("age", 31)));
+        assertEquals(0, cache.stats().getInvalidations());
+
+        // 新文档可能命中name查询
+        Person person = new Person();
+        person.setName("zhangsan feng");
+        person.setAge(99);
+        cache.onWrite(PersonWriteEvent.index(PersonIndex.INDEX, "3", person));
+        assertEquals(1, cache.stats().getInvalidations());
+
+        // 已命中的文档被删除
+        cache.onWrite(PersonWriteEvent.delete(PersonIndex.INDEX, "1"));
+        assertEquals(2, cache.stats().getInvalidations());
+        assertEquals(0, cache.stats().getSize());
+    }
+
+    // 查询期间发生的相关写入使结果不被缓存
+    @Test
+    public void test03() {
+        QueryKey key = QueryKey.of(PersonIndex.INDEX, QueryBuilders.idsQuery().addIds("1"), 10);
+        CachedResult result = new CachedResult(1, Collections.singletonList("1"), Collections.emptyList());
+
+        long start = System.nanoTime();
+        cache.onWrite(PersonWriteEvent.delete(PersonIndex.INDEX, "1"));
+        cache.put(key, result, start);
+
+        assertEquals(null, cache.get(key));
+        assertEquals(1, cache.stats().getSkippedStores());
+        // 不可缓存的查询
+        assertEquals(null, QueryKey.of(PersonIndex.INDEX, QueryBuilders.matchQuery("name", "zhangsan"), 10));
+    }
+}
@@ -0,0 +1,274 @@
+package com.fh.dump;
+
+import com.fh.config.DumpProperties;
+import com.fh.es.PersonCodec;
+import com.fh.es.PersonIndex;
+import com.fh.es.PersonWriteEvents;
+import com.fh.partition.PersonPartitions;
+import com.fh.routing.PersonLocator;
+import com.fh.support.StubClient;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.admin.indices.refresh.RefreshAction;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsAction;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsResponse;
+import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsAction;
+import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsResponse;
+import org.elasticsearch.action.bulk.BulkAction;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.collect.ImmutableOpenMap;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.common.xcontent.DeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 导出文件按块并行解析、批量写入、调整索引设置和断点续传
+ */
+public class PersonDumpLoaderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private StubClient client;
+    private DumpProperties properties;
+    private PersonDumpLoader loader;
+    private final AtomicInteger events = new AtomicInteger();
+    // 依次收到的索引设置修改
+    private final List<Settings> updates = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        client = new StubClient();
+        client.on(GetSettingsAction.INSTANCE, (request, listener) -> listener.onResponse(new GetSettingsResponse(
+                ImmutableOpenMap.<String, Settings>builder().fPut(PersonIndex.INDEX, Settings.builder()
+                        .put("index.refresh_interval", "5s").put("index.number_of_replicas", 1).build()).build(),
+                ImmutableOpenMap.of())));
+        client.on(UpdateSettingsAction.INSTANCE, (request, listener) -> {
+            synchronized (updates) {
+                updates.add(Settings.builder().loadFromSource(Strings.toString(request), XContentType.JSON).build());
+            }
+            listener.onResponse(acknowledged());
+        });
+        client.on(RefreshAction.INSTANCE, (request, listener) -> listener.onResponse(null));
+
+        properties = new DumpProperties();
+        properties.setDirectory(folder.getRoot().getPath());
+        properties.setChunkSizeBytes(512);
+        properties.setMaxLineBytes(256);
+        properties.setParallelism(3);
+        properties.setBulkActions(7);
+        properties.setConcurrentBulks(2);
+        properties.setRetryInitialDelay(Duration.ofMillis(1));
+        loader = new PersonDumpLoader(client, properties, PersonWriteEvents.of(event -> events.incrementAndGet()),
+                PersonPartitions.disabled(), PersonLocator.disabled());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        loader.shutdown();
+        client.close();
+    }
+
+    // 普通_source行和带_id的命中行都能导入,坏行跳过;导入期间关闭refresh和副本,结束后恢复
+    @Test
+    public void test01() throws Exception {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            if (i % 3 == 0) {
+                content.append("{\"_id\":\"h").append(i).append("\",\"_index\":\"lib\",\"_source\":{\"name\":\"n")
+                        .append(i).append("\",\"age\":").append(i % 100).append("}}\r\n");
+            } else {
+                content.append("{\"name\":\"n").append(i).append("\",\"address\":\"宿迁\"}\n");
+            }
+            if (i == 500) {
+                content.append("{not json\n\n");
+            }
+        }
+        Path file = write("persons.ndjson", content.toString());
+
+        DumpLoadStats stats = loader.load(file, DumpFormat.of(file), 0);
+        assertEquals(1000, stats.getDocsIndexed());
+        assertEquals(1, stats.getFailedDocs());
+        assertEquals(Files.size(file), stats.getCommittedOffset());
+        assertEquals(Files.size(file), stats.getBytesRead());
+        assertEquals(Files.size(file), loader.savedOffset(file));
+        assertNull(stats.getError());
+        assertTrue(stats.getDocsPerSecond() > 0);
+        assertTrue(stats.getMegabytesPerSecond() > 0);
+        assertEquals(1000, events.get());
+
+        assertEquals(1000, client.documents(PersonIndex.INDEX).size());
+        // 命中行只取_source部分,前面补上doc_id;普通行生成id,doc_id与之相同
+        Map<String, Object> hit = client.source(PersonIndex.INDEX, "h999");
+        assertEquals("n999", hit.get("name"));
+        assertEquals(99, hit.get("age"));
+        assertEquals("h999", hit.get(PersonCodec.ID_FIELD));
+        assertEquals(3, hit.size());
+        for (String id : client.documents(PersonIndex.INDEX).keySet()) {
+            assertEquals(id, client.source(PersonIndex.INDEX, id).get(PersonCodec.ID_FIELD));
+        }
+
+        assertEquals(2, updates.size());
+        assertEquals("-1", updates.get(0).get("index.refresh_interval"));
+        assertEquals("0", updates.get(0).get("index.number_of_replicas"));
+        assertEquals("5s", updates.get(1).get("index.refresh_interval"));
+        assertEquals("1", updates.get(1).get("index.number_of_replicas"));
+        assertEquals(1, client.calls(RefreshAction.INSTANCE));
+    }
+
+    // CSV按列名解析,支持引号;bulk失败时已提交偏移停在失败块之前,从保存的偏移继续后全部导入
+    @Test
+    public void test02() throws Exception {
+        StringBuilder content = new StringBuilder("id,name,age,address,ignored\n");
+        for (int i = 0; i < 300; i++) {
+            content.append("r").append(i).append(",n").append(i).append(',').append(i % 90)
+                    .append(",\"宿迁,\"\"").append(i).append("\"\"\",x\n");
+        }
+        Path file = write("persons.csv", content.toString());
+        AtomicInteger failing = new AtomicInteger(1);
+        client.on(BulkAction.INSTANCE, (request, listener) -> {
+            for (DocWriteRequest<?> item : request.requests()) {
+                if ("r150".equals(item.id()) && failing.get() > 0) {
+                    listener.onFailure(new IllegalStateException("mapping conflict"));
+                    return;
+                }
+            }
+            listener.onResponse(client.applyBulk(request));
+        });
+
+        DumpLoadStats stats = loader.load(file, DumpFormat.of(file), 0);
+        assertNotNull(stats.getError());
+        long committed = loader.savedOffset(file);
+        assertEquals(stats.getCommittedOffset(), committed);
+        assertTrue(committed < Files.size(file));
+        // 提交偏移之前的行都已写入
+        byte[] bytes = Files.readAllBytes(file);
+        int rowsBefore = -1;
+        for (int i = 0; i < committed; i++) {
+            if (bytes[i] == '\n') {
+                rowsBefore++;
+            }
+        }
+        assertTrue(rowsBefore > 0);
+        for (int i = 0; i < rowsBefore; i++) {
+            assertNotNull(client.source(PersonIndex.INDEX, "r" + i));
+        }
+        // 设置在失败时也恢复
+        assertEquals(2, updates.size());
+
+        failing.set(0);
+        stats = loader.load(file, DumpFormat.CSV, committed);
+        assertNull(stats.getError());
+        assertEquals(Files.size(file), loader.savedOffset(file));
+        assertEquals(300, client.documents(PersonIndex.INDEX).size());
+        Map<String, Object> row = client.source(PersonIndex.INDEX, "r7");
+        assertEquals("n7", row.get("name"));
+        assertEquals(7, row.get("age"));
+        assertEquals("宿迁,\"7\"", row.get("address"));
+        assertFalse(row.containsKey("ignored"));
+    }
+
+    // 被拒绝(429)的条目退避后重试;只能导入目录下的文件
+    @Test
+    public void test03() throws Exception {
+        properties.setTuneSettings(false);
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            content.append("{\"name\":\"n").append(i).append("\"}\n");
+        }
+        Path file = write("persons.json", content.toString());
+        AtomicInteger attempts = new AtomicInteger();
+        client.on(BulkAction.INSTANCE, (request, listener) -> {
+            // 每个bulk的第一次尝试全部拒绝
+            if (attempts.incrementAndGet() % 2 == 1) {
+                BulkItemResponse[] items = new BulkItemResponse[request.numberOfActions()];
+                for (int i = 0; i < items.length; i++) {
+                    DocWriteRequest<?> item = request.requests().get(i);
+                    items[i] = new BulkItemResponse(i, item.opType(), new BulkItemResponse.Failure(item.index(),
+                            item.type(), item.id(), new EsRejectedExecutionException("bulk queue is full")));
+                }
+                listener.onResponse(new BulkResponse(items, 1));
+                return;
+            }
+            listener.onResponse(client.applyBulk(request));
+        });
+        properties.setConcurrentBulks(1);
+
+        DumpLoadStats stats = loader.load(loader.resolve("persons.json"), DumpFormat.NDJSON, 0);
+        assertEquals(100, stats.getDocsIndexed());
+        assertEquals(0, stats.getFailedDocs());
+        assertEquals(100, client.documents(PersonIndex.INDEX).size());
+        assertEquals(0, client.calls(UpdateSettingsAction.INSTANCE));
+
+        try {
+            loader.resolve("../persons.json");
+            fail();
+        } catch (IllegalArgumentException expected) {
+            // 目录之外
+        }
+    }
+
+    // _source里已知字段是数组时,截取的source仍是完整的_source对象;没有doc_id时补在前面,已有时原样使用
+    @Test
+    public void test04() throws Exception {
+        String source = "{\"name\":\"a\",\"interests\":[\"x\",\"y\"],\"birth\":\"1990-01-01\"}";
+        DumpRecords.Record record = ndjson("{\"_id\":\"1\",\"_source\":" + source + ",\"_type\":\"person\"}");
+
+        assertEquals("1", record.id);
+        assertEquals("1990-01-01", record.person.getBirth());
+        assertEquals("{\"doc_id\":\"1\"," + source.substring(1), record.source.utf8ToString());
+
+        record = ndjson("{\"_id\":\"a\\\"b\",\"_source\":{ }}");
+        assertEquals("a\"b", record.id);
+        assertEquals("{\"doc_id\":\"a\\\"b\" }", record.source.utf8ToString());
+
+        String exported = "{\"doc_id\":\"7\",\"name\":\"b\"}";
+        record = ndjson(exported);
+        assertEquals("7", record.id);
+        assertEquals(exported, record.source.utf8ToString());
+    }
+
+    private static DumpRecords.Record ndjson(String line) throws IOException {
+        return DumpRecords.ndjson(ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private Path write(String name, String content) throws IOException {
+        return Files.write(folder.getRoot().toPath().resolve(name), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static UpdateSettingsResponse acknowledged() {
+        try (XContentParser parser = XContentType.JSON.xContent().createParser(NamedXContentRegistry.EMPTY,
+                DeprecationHandler.THROW_UNSUPPORTED_OPERATION, "{\"acknowledged\":true}")) {
+            return UpdateSettingsResponse.fromXContent(parser);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
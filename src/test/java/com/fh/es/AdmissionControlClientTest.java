@@ -0,0 +1,211 @@
+package com.fh.es;
+
+import com.fh.config.AdmissionProperties;
+import com.fh.support.StubClient;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkAction;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.search.SearchAction;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 按操作类别的自适应并发限制:超出上限排队和拒绝、集群拒绝时降低上限、按延迟梯度调整上限
+ */
+public class AdmissionControlClientTest {
+
+    private StubClient stub;
+    private SimpleMeterRegistry registry;
+    private AdmissionProperties properties;
+    private AdmissionControlClient client;
+    // 暂不返回的查询,由测试决定何时完成
+    private final List<ActionListener<SearchResponse>> held = Collections.synchronizedList(new ArrayList<>());
+
+    @Before
+    public void setUp() {
+        stub = new StubClient().inline(true);
+        stub.on(SearchAction.INSTANCE, (request, listener) -> held.add(listener));
+        registry = new SimpleMeterRegistry();
+        properties = new AdmissionProperties();
+        properties.setInitialLimit(4);
+        properties.setMaxQueued(2);
+    }
+
+    @After
+    public void tearDown() {
+        stub.close();
+    }
+
+    // 超过上限的查询排队,排满后立即拒绝;前面的查询完成后排队的依次发出;其他类别不受影响
+    @Test
+    public void test01() throws Exception {
+        client = new AdmissionControlClient(stub, properties, registry);
+        List<CompletableFuture<SearchResponse>> futures = new ArrayList<>();
+        for (int i = 0; i < 7; i++) {
+            futures.add(search());
+        }
+        assertEquals(4, stub.calls(SearchAction.INSTANCE));
+        assertEquals(2, client.limiter("search").queued());
+        assertRejected(futures.get(6));
+        assertEquals(1.0, registry.get("es.admission.shed").tag("op", "search").tag("reason", "queue_full")
+                .counter().count(), 0);
+
+        // 查询占满时写入照常发出
+        client.prepareIndex("person", "person", "1").setSource("name", "n").get();
+
+        complete(2);
+        assertEquals(6, stub.calls(SearchAction.INSTANCE));
+        assertEquals(0, client.limiter("search").queued());
+        assertTrue(futures.get(0).isDone());
+        assertFalse(futures.get(4).isDone());
+        complete(held.size());
+        for (int i = 0; i < 6; i++) {
+            assertEquals(0, futures.get(i).get().getHits().getTotalHits());
+        }
+        assertEquals(0, client.limiter("search").inFlight());
+        // 在途数接近上限时完成的查询让上限略有增加
+        assertTrue(registry.get("es.admission.limit").tag("op", "search").gauge().value() >= 4);
+    }
+
+    // 排队超过等待上限的查询到时就被拒绝,不等前面的查询完成,之后也不再发出
+    @Test
+    public void test02() throws Exception {
+        properties.setInitialLimit(1);
+        properties.setMaxQueueWait(Duration.ofMillis(10));
+        client = new AdmissionControlClient(stub, properties, registry);
+        CompletableFuture<SearchResponse> first = search();
+        CompletableFuture<SearchResponse> waiting = search();
+        assertRejected(waiting);
+        assertFalse(first.isDone());
+        assertEquals(0, client.limiter("search").queued());
+        complete(1);
+        assertEquals(0, first.get().getHits().getTotalHits());
+        assertEquals(1, stub.calls(SearchAction.INSTANCE));
+        assertEquals(0, client.limiter("search").inFlight());
+        assertEquals(1.0, registry.get("es.admission.shed").tag("op", "search").tag("reason", "queue_timeout")
+                .counter().count(), 0);
+    }
+
+    // 集群拒绝(整个请求或bulk条目)时上限减半,同一批在途请求被拒绝只减一次,响应和错误照常返回
+    @Test
+    public void test03() {
+        properties.setInitialLimit(40);
+        client = new AdmissionControlClient(stub, properties, registry);
+        AtomicInteger bulks = new AtomicInteger();
+        List<ActionListener<BulkResponse>> pending = new ArrayList<>();
+        stub.on(BulkAction.INSTANCE, (request, listener) -> {
+            if (bulks.incrementAndGet() <= 3) {
+                pending.add(listener);
+                return;
+            }
+            BulkItemResponse[] items = new BulkItemResponse[request.numberOfActions()];
+            for (int i = 0; i < items.length; i++) {
+                DocWriteRequest<?> item = request.requests().get(i);
+                items[i] = new BulkItemResponse(i, item.opType(), new BulkItemResponse.Failure(item.index(),
+                        item.type(), item.id(), new EsRejectedExecutionException("bulk queue is full")));
+            }
+            listener.onResponse(new BulkResponse(items, 1));
+        });
+        List<CompletableFuture<BulkResponse>> sent = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            sent.add(bulk());
+        }
+        for (ActionListener<BulkResponse> listener : pending) {
+            listener.onFailure(new EsRejectedExecutionException("rejected execution of bulk"));
+        }
+        for (CompletableFuture<BulkResponse> future : sent) {
+            assertRejected(future);
+        }
+        AdaptiveLimiter limiter = client.limiter("bulk");
+        assertEquals(20, limiter.limit());
+
+        // 减小之后发出的请求再被拒绝,继续减小
+        assertTrue(bulk().join().hasFailures());
+        assertEquals(10, limiter.limit());
+        assertEquals(4.0, registry.get("es.admission.overloads").tag("op", "bulk").counter().count(), 0);
+        assertEquals(0, limiter.inFlight());
+    }
+
+    // 延迟平稳且在途数接近上限时上限逐步增加到最大值,延迟明显升高时减小,不低于下限
+    @Test
+    public void test04() {
+        properties.setInitialLimit(10);
+        properties.setMinLimit(2);
+        properties.setMaxLimit(60);
+        AdaptiveLimiter limiter = new AdaptiveLimiter("mget", properties, registry);
+        for (int round = 0; round < 20; round++) {
+            rounds(limiter, TimeUnit.MILLISECONDS.toNanos(5));
+        }
+        assertEquals(60, limiter.limit());
+
+        rounds(limiter, TimeUnit.MILLISECONDS.toNanos(50));
+        int shrunk = limiter.limit();
+        assertTrue("limit " + shrunk, shrunk < 30);
+        assertTrue(shrunk >= 2);
+        assertEquals(0, limiter.inFlight());
+    }
+
+    // 占满当前上限,再逐个按给定延迟完成
+    private static void rounds(AdaptiveLimiter limiter, long rttNanos) {
+        int slots = limiter.limit();
+        AtomicInteger started = new AtomicInteger();
+        for (int i = 0; i < slots; i++) {
+            limiter.submit(started::incrementAndGet, e -> fail(e.getMessage()));
+        }
+        assertEquals(slots, started.get());
+        for (int i = 0; i < slots; i++) {
+            limiter.onSuccess(System.nanoTime() - rttNanos);
+        }
+    }
+
+    private CompletableFuture<SearchResponse> search() {
+        CompletableFuture<SearchResponse> future = new CompletableFuture<>();
+        client.prepareSearch("person").execute(ActionListener.wrap(future::complete, future::completeExceptionally));
+        return future;
+    }
+
+    private CompletableFuture<BulkResponse> bulk() {
+        CompletableFuture<BulkResponse> future = new CompletableFuture<>();
+        client.prepareBulk().add(client.prepareIndex("person", "person", "1").setSource("name", "n"))
+                .execute(ActionListener.wrap(future::complete, future::completeExceptionally));
+        return future;
+    }
+
+    // 按发出顺序完成前count个暂存的查询
+    private void complete(int count) {
+        for (int i = 0; i < count; i++) {
+            held.remove(0).onResponse(StubClient.searchResponse(Collections.emptyList(), 0, null));
+        }
+    }
+
+    private static void assertRejected(CompletableFuture<?> future) {
+        try {
+            future.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof EsRejectedExecutionException);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.fh.es;
+
+import com.fh.entity.Person;
+import com.fh.support.StubClient;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkAction;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.SearchAction;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 按操作类型记录的客户端指标
+ */
+public class InstrumentedClientTest {
+
+    private StubClient stub;
+    private SimpleMeterRegistry registry;
+    private InstrumentedClient client;
+
+    @Before
+    public void setUp() {
+        stub = new StubClient();
+        registry = new SimpleMeterRegistry();
+        client = new InstrumentedClient(stub, registry, Duration.ofMinutes(1), false);
+    }
+
+    @After
+    public void tearDown() {
+        PersonCodec.instrument(null);
+        stub.close();
+    }
+
+    // 查询记录客户端延迟和服务端took,失败单独计数
+    @Test
+    public void test01() {
+        stub.on(SearchAction.INSTANCE, (request, listener) ->
+                listener.onResponse(StubClient.searchResponse(Collections.emptyList(), 0, null)));
+        client.prepareSearch("lib").setQuery(QueryBuilders.matchAllQuery()).get();
+        client.prepareSearch("lib").get();
+        try {
+            client.prepareMultiSearch().get();
+        } catch (UnsupportedOperationException ignored) {
+        }
+
+        assertEquals(2, registry.get("es.client.requests").tags("op", "search", "outcome", "success").timer().count());
+        assertEquals(2, registry.get("es.client.took").tag("op", "search").timer().count());
+        assertEquals(2, registry.get("es.client.overhead").tag("op", "search").timer().count());
+        assertEquals(1, registry.get("es.client.requests").tags("op", "msearch", "outcome", "failure").timer().count());
+    }
+
+    // bulk统计条目数和失败条目数,upsert与update分开记录
+    @Test
+    public void test02() {
+        stub.on(BulkAction.INSTANCE, (request, listener) -> {
+            BulkItemResponse[] items = new BulkItemResponse[request.numberOfActions()];
+            for (int i = 0; i < items.length; i++) {
+                DocWriteRequest<?> item = request.requests().get(i);
+                items[i] = new BulkItemResponse(i, item.opType(), new BulkItemResponse.Failure(
+                        item.index(), item.type(), item.id(), new IllegalArgumentException("mapping")));
+            }
+            listener.onResponse(new BulkResponse(items, 3));
+        });
+        BulkResponse response = client.bulk(new BulkRequest()
+                .add(new IndexRequest("lib", "_doc", "1").source("name", "a"))
+                .add(new IndexRequest("lib", "_doc", "2").source("name", "b"))).actionGet();
+        client.update(new UpdateRequest("lib", "_doc", "1").doc("age", 1)
+                .upsert(new IndexRequest("lib", "_doc", "1").source("age", 1))).actionGet();
+
+        assertEquals(2, response.getItems().length);
+        assertEquals(2.0, registry.get("es.client.bulk.items").counter().count(), 0.0);
+        assertEquals(2.0, registry.get("es.client.bulk.item.failures").counter().count(), 0.0);
+        assertEquals(1, registry.get("es.client.requests").tags("op", "upsert", "outcome", "success").timer().count());
+    }
+
+    // 命中映射成Person单独计时,包括经过PersonEntityMapper的映射
+    @Test
+    public void test03() throws Exception {
+        PersonCodec.instrument(client.mapping());
+        Person person = PersonCodec.decode(new BytesArray("{\"name\":\"a\",\"age\":1}"));
+        new PersonEntityMapper(null).mapToObject(PersonCodec.encodeToString(person), Person.class);
+
+        assertEquals(2, registry.get("es.client.mapping").tag("type", "person").timer().count());
+
+        PersonCodec.instrument(null);
+        PersonCodec.decode(new BytesArray("{}"));
+        assertEquals(2, registry.get("es.client.mapping").timer().count());
+    }
+}
@@ -0,0 +1,145 @@
+package com.fh.es;
+
+import com.fh.config.NodeSelectorProperties;
+import com.fh.support.StubClient;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.elasticsearch.action.search.SearchAction;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 按节点延迟选择协调节点、拒绝惩罚和查询对冲,节点用注入延迟的StubClient代替
+ */
+public class NodeSelectingClientTest {
+
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    private final Map<String, StubClient> stubs = new LinkedHashMap<>();
+    // 节点名 -> 查询的响应延迟(毫秒),为负数时拒绝请求
+    private final Map<String, Integer> delays = new LinkedHashMap<>();
+    private SimpleMeterRegistry registry;
+    private NodeSelectorProperties properties;
+    private NodeSelectingClient client;
+
+    @Before
+    public void setUp() {
+        registry = new SimpleMeterRegistry();
+        properties = new NodeSelectorProperties();
+        properties.setProbeInterval(Duration.ofMinutes(1));
+    }
+
+    @After
+    public void tearDown() {
+        client.close();
+        timer.shutdownNow();
+    }
+
+    // 慢节点只在还没有样本时被选中一次,之后请求都发给快的节点
+    @Test
+    public void test01() {
+        start("a", 5, "b", 40, "c", 5);
+        for (int i = 0; i < 30; i++) {
+            search();
+        }
+        assertEquals(1, stubs.get("b").calls(SearchAction.INSTANCE));
+        assertEquals(29, stubs.get("a").calls(SearchAction.INSTANCE) + stubs.get("c").calls(SearchAction.INSTANCE));
+        assertTrue(client.latencyNanos("b") >= TimeUnit.MILLISECONDS.toNanos(40));
+    }
+
+    // 拒绝请求的节点受到惩罚,错误照常返回给调用方;惩罚随时间衰减
+    @Test
+    public void test02() throws Exception {
+        properties.setPenaltyHalfLife(Duration.ofMillis(50));
+        start("a", -1, "b", 20);
+        try {
+            search();
+            fail();
+        } catch (EsRejectedExecutionException expected) {
+            // a还没有样本,第一个请求发给a
+        }
+        for (int i = 0; i < 5; i++) {
+            search();
+        }
+        assertEquals(1, stubs.get("a").calls(SearchAction.INSTANCE));
+        assertEquals(5, stubs.get("b").calls(SearchAction.INSTANCE));
+        assertEquals(0, client.latencyNanos("a"));
+        assertEquals(1, registry.get("es.nodes.rejections").tag("node", "a").counter().count(), 0);
+
+        long penalty = client.penaltyNanos("a");
+        Thread.sleep(200);
+        assertTrue(client.penaltyNanos("a") < penalty / 8);
+    }
+
+    // 超过延迟分位数还没返回的查询向另一个节点再发一次,用先返回的结果;scroll查询不对冲
+    @Test
+    public void test03() {
+        properties.setHedge(true);
+        properties.setHedgeWindow(20);
+        properties.setHedgeMinDelay(Duration.ofMillis(1));
+        start("a", 5, "b", 5);
+        for (int i = 0; i < 20; i++) {
+            search();
+        }
+        assertEquals(0, registry.get("es.nodes.hedges").counter().count(), 0);
+
+        // 下一个收到查询的节点卡住
+        AtomicInteger stalls = new AtomicInteger(1);
+        for (String node : stubs.keySet()) {
+            stubs.get(node).on(SearchAction.INSTANCE, (request, listener) -> timer.schedule(() ->
+                    listener.onResponse(StubClient.searchResponse(Collections.emptyList(), 0, null)),
+                    stalls.getAndDecrement() > 0 ? 2000 : 5, TimeUnit.MILLISECONDS));
+        }
+        long start = System.nanoTime();
+        search();
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(1000));
+        assertEquals(1, registry.get("es.nodes.hedges").counter().count(), 0);
+        assertEquals(1, registry.get("es.nodes.hedge.wins").counter().count(), 0);
+
+        stalls.set(1);
+        start = System.nanoTime();
+        client.prepareSearch("lib").setScroll(TimeValue.timeValueMinutes(1)).get();
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(2000));
+        assertEquals(1, registry.get("es.nodes.hedges").counter().count(), 0);
+    }
+
+    private void search() {
+        client.prepareSearch("lib").get();
+    }
+
+    // 参数为节点名和延迟交替
+    private void start(Object... nodes) {
+        for (int i = 0; i < nodes.length; i += 2) {
+            String name = (String) nodes[i];
+            StubClient stub = new StubClient();
+            delays.put(name, (Integer) nodes[i + 1]);
+            stub.on(SearchAction.INSTANCE, (request, listener) -> {
+                int delay = delays.get(name);
+                if (delay < 0) {
+                    listener.onFailure(new EsRejectedExecutionException("search queue is full"));
+                    return;
+                }
+                timer.schedule(() -> listener.onResponse(StubClient.searchResponse(Collections.emptyList(), 0, null)),
+                        delay, TimeUnit.MILLISECONDS);
+            });
+            // 预热线程池,避免第一个请求的冷启动耗时被记成节点延迟
+            stub.prepareGet("lib", "_doc", "1").get();
+            stubs.put(name, stub);
+        }
+        client = new NodeSelectingClient(stubs, properties, registry);
+    }
+}
@@ -0,0 +1,104 @@
+package com.fh.es;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fh.entity.Person;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.junit.Test;
+import org.springframework.data.elasticsearch.core.DefaultEntityMapper;
+import org.springframework.data.elasticsearch.core.mapping.SimpleElasticsearchMappingContext;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Person专用编解码
+ */
+public class PersonCodecTest {
+
+    // 编码结果与原先XContentBuilder手写的_source一致
+    @Test
+    public void test01() throws Exception {
+        Person person = person();
+        String expected = BytesReference.bytes(XContentFactory.jsonBuilder().startObject()
+                .field("name", "蔡俊男")
+                .field("age", 23)
+                .field("address", "江苏省宿迁市")
+                .field("interests", "看电影,学习,打游戏")
+                .field("birth", "1997-07-05")
+                .endObject()).utf8ToString();
+
+        assertEquals(expected, PersonCodec.encodeToString(person));
+        assertEquals(person, PersonCodec.decode(PersonCodec.encode(person)));
+    }
+
+    // 解码结果与默认的jackson映射一致,未知字段和null被忽略
+    @Test
+    public void test02() throws Exception {
+        String source = "{\"name\":\"吴兴玉\",\"extra\":{\"a\":[1,2]},\"age\":\"25\",\"address\":null,"
+                + "\"interests\":\"读书\",\"birth\":\"1995-07-05\",\"tags\":[\"x\"]}";
+        Person person = PersonCodec.decode(new BytesArray(source));
+
+        assertEquals("吴兴玉", person.getName());
+        assertEquals(25, person.getAge());
+        assertNull(person.getAddress());
+        assertEquals("1995-07-05", person.getBirth());
+
+        DefaultEntityMapper defaultMapper = new DefaultEntityMapper(new SimpleElasticsearchMappingContext());
+        String known = PersonCodec.encodeToString(person);
+        assertEquals(defaultMapper.mapToObject(known, Person.class), PersonCodec.decode(known));
+    }
+
+    // 复用的缓冲区不会让前一次的内容混进结果
+    @Test
+    public void test03() {
+        BytesReference first = PersonCodec.encode(person());
+        Person other = new Person();
+        other.setName("a");
+        PersonCodec.encode(other);
+
+        assertEquals(person(), PersonCodec.decode(first));
+    }
+
+    // 已知字段的值是数组或对象时跳过整个值,后面的字段照常解析
+    @Test
+    public void test04() throws Exception {
+        String source = "{\"name\":\"吴兴玉\",\"interests\":[\"读书\",[\"游泳\"]],\"address\":{\"city\":\"北京市\"},"
+                + "\"age\":25,\"birth\":\"1995-07-05\"}";
+        Person person = PersonCodec.decode(new BytesArray(source));
+
+        assertEquals("吴兴玉", person.getName());
+        assertNull(person.getInterests());
+        assertNull(person.getAddress());
+        assertEquals(25, person.getAge());
+        assertEquals("1995-07-05", person.getBirth());
+    }
+
+    // 带id编码时doc_id写在最前面,解码时跳过它,需要时交给调用方
+    @Test
+    public void test05() throws Exception {
+        Person person = person();
+        String source = PersonCodec.encodeToString(person);
+        BytesReference withId = PersonCodec.encode("p\"1", person);
+
+        assertEquals("{\"doc_id\":\"p\\\"1\"," + source.substring(1), withId.utf8ToString());
+        assertEquals(person, PersonCodec.decode(withId));
+        String[] id = new String[1];
+        try (JsonParser parser = new JsonFactory().createParser(withId.utf8ToString())) {
+            assertEquals(person, PersonCodec.read(parser, value -> id[0] = value));
+        }
+        assertEquals("p\"1", id[0]);
+    }
+
+    private static Person person() {
+        Person person = new Person();
+        person.setName("蔡俊男");
+        person.setAge(23);
+        person.setAddress("江苏省宿迁市");
+        person.setInterests("看电影,学习,打游戏");
+        person.setBirth("1997-07-05");
+        return person;
+    }
+}
@@ -0,0 +1,94 @@
+package com.fh.es;
+
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.query.Operator;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * http请求中查询dsl子集的解析
+ */
+public class PersonQueryParserTest {
+
+    // test26中的组合查询
+    @Test
+    public void test01() {
+        Map<String, Object> bool = new LinkedHashMap<>();
+        bool.put("must", map("match", map("address", "宿迁")));
+        bool.put("must_not", Collections.singletonList(map("match", map("interests", "看报"))));
+        bool.put("filter", map("range", map("age", map("gte", 23))));
+        QueryBuilder expected = QueryBuilders.boolQuery()
+                .must(QueryBuilders.matchQuery("address", "宿迁"))
+                .mustNot(QueryBuilders.matchQuery("interests", "看报"))
+                .filter(QueryBuilders.rangeQuery("age").gte(23));
+        assertEquals(expected, PersonQueryParser.parse(map("bool", bool)));
+    }
+
+    // term、terms、match选项、range上下界和should
+    @Test
+    public void test02() {
+        assertEquals(QueryBuilders.termQuery("name", "zhangsan"),
+                PersonQueryParser.parse(map("term", map("name", "zhangsan"))));
+        assertEquals(QueryBuilders.termQuery("age", 20),
+                PersonQueryParser.parse(map("term", map("age", map("value", 20)))));
+        assertEquals(QueryBuilders.termsQuery("age", Arrays.asList(20, 30)),
+                PersonQueryParser.parse(map("terms", map("age", Arrays.asList(20, 30)))));
+
+        Map<String, Object> options = new LinkedHashMap<>();
+        options.put("query", "宿迁 南京");
+        options.put("operator", "and");
+        assertEquals(QueryBuilders.matchQuery("address", "宿迁 南京").operator(Operator.AND),
+                PersonQueryParser.parse(map("match", map("address", options))));
+
+        Map<String, Object> range = new LinkedHashMap<>();
+        range.put("gt", 20);
+        range.put("lte", 30);
+        Map<String, Object> bool = new LinkedHashMap<>();
+        bool.put("should", Arrays.asList(map("range", map("age", range)), map("match_all", Collections.emptyMap())));
+        bool.put("minimum_should_match", 1);
+        assertEquals(QueryBuilders.boolQuery()
+                        .should(QueryBuilders.rangeQuery("age").gt(20).lte(30))
+                        .should(QueryBuilders.matchAllQuery())
+                        .minimumShouldMatch("1"),
+                PersonQueryParser.parse(map("bool", bool)));
+
+        assertEquals(QueryBuilders.matchAllQuery(), PersonQueryParser.parse(null));
+        assertEquals(QueryBuilders.matchAllQuery(), PersonQueryParser.parse(Collections.emptyMap()));
+    }
+
+    // 不支持的查询和格式错误
+    @Test
+    public void test03() {
+        assertRejected(map("wildcard", map("name", "zhang*")));
+        assertRejected(map("bool", map("must_nt", map("match_all", Collections.emptyMap()))));
+        assertRejected(map("range", map("age", map("from", 1))));
+        assertRejected(map("terms", map("age", 20)));
+        assertRejected(map("term", map("name", Collections.singletonList("a"))));
+        assertRejected("zhangsan");
+        Map<String, Object> two = new LinkedHashMap<>();
+        two.put("match_all", Collections.emptyMap());
+        two.put("term", map("name", "a"));
+        assertRejected(two);
+    }
+
+    private static void assertRejected(Object query) {
+        try {
+            PersonQueryParser.parse(query);
+            fail("accepted " + query);
+        } catch (IllegalArgumentException expected) {
+            // 预期的异常
+        }
+    }
+
+    private static Map<String, Object> map(String key, Object value) {
+        return Collections.singletonMap(key, value);
+    }
+}
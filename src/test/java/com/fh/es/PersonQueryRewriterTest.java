@@ -0,0 +1,93 @@
+package com.fh.es;
+
+import com.fh.config.NgramProperties;
+import com.fh.support.NgramIndex;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.ConstantScoreQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/**
+ * 通配符、前缀查询改写到n-gram子字段,命中结果不变
+ */
+public class PersonQueryRewriterTest {
+
+    private final NgramProperties properties = properties();
+    private final PersonQueryRewriter rewriter = new PersonQueryRewriter(properties);
+
+    private static NgramProperties properties() {
+        NgramProperties properties = new NgramProperties();
+        properties.setEnabled(true);
+        return properties;
+    }
+
+    // 整值匹配改写到对应子字段,分词字段和fuzzy保持不变
+    @Test
+    public void test01() {
+        assertEquals(QueryBuilders.constantScoreQuery(QueryBuilders.termQuery("name.edge", "吴")),
+                rewriter.rewrite(QueryBuilders.prefixQuery("name.keyword", "吴")));
+        assertEquals(QueryBuilders.constantScoreQuery(QueryBuilders.wildcardQuery("address.reverse", "省苏?")),
+                rewriter.rewrite(QueryBuilders.wildcardQuery("address.keyword", "?苏省")));
+        assertEquals(QueryBuilders.constantScoreQuery(QueryBuilders.termQuery("address.ngram", "苏省")),
+                rewriter.rewrite(QueryBuilders.wildcardQuery("address.keyword", "*苏省*")));
+        assertEquals(QueryBuilders.constantScoreQuery(QueryBuilders.prefixQuery("address.reverse", "市迁")),
+                rewriter.rewrite(QueryBuilders.wildcardQuery("address.keyword", "*迁市")));
+
+        QueryBuilder analyzed = QueryBuilders.wildcardQuery("address", "?苏省");
+        assertSame(analyzed, rewriter.rewrite(analyzed));
+        QueryBuilder fuzzy = QueryBuilders.fuzzyQuery("address.keyword", "江苏省");
+        assertSame(fuzzy, rewriter.rewrite(fuzzy));
+        // 超过maxGram的中缀没有对应的n-gram
+        QueryBuilder longInfix = QueryBuilders.wildcardQuery("address.keyword", "*江苏省宿*");
+        assertSame(longInfix, rewriter.rewrite(longInfix));
+        QueryBuilder prefix = QueryBuilders.prefixQuery("name.keyword", "吴");
+        assertSame(prefix, PersonQueryRewriter.disabled().rewrite(prefix));
+
+        BoolQueryBuilder bool = (BoolQueryBuilder) rewriter.rewrite(QueryBuilders.boolQuery().boost(2f)
+                .must(QueryBuilders.matchQuery("name", "zhangsan"))
+                .filter(QueryBuilders.prefixQuery("name.keyword", "吴").boost(3f)));
+        assertEquals(2f, bool.boost(), 0f);
+        assertEquals(QueryBuilders.matchQuery("name", "zhangsan"), bool.must().get(0));
+        assertEquals(3f, ((ConstantScoreQueryBuilder) bool.filter().get(0)).boost(), 0f);
+    }
+
+    // 同样的数据上改写前后命中数相同
+    @Test
+    public void test02() throws Exception {
+        Map<String, List<String>> values = new LinkedHashMap<>();
+        values.put("name", Arrays.asList("吴兴玉", "吴", "朱腾跃", "张三", "李吴", "吴越王钱镠", "zhangsan", "Zhang"));
+        values.put("address", Arrays.asList("江苏省宿迁市", "浙江省杭州市", "江苏省镇江", "苏省", "北京市朝阳区",
+                "江苏省", "上海市浦东新区", "广东省深圳市"));
+        List<QueryBuilder> queries = Arrays.asList(
+                QueryBuilders.prefixQuery("name.keyword", "吴"),
+                QueryBuilders.prefixQuery("name.keyword", "zh"),
+                QueryBuilders.prefixQuery("name.keyword", "吴越王钱镠"),
+                QueryBuilders.wildcardQuery("name.keyword", "吴*"),
+                QueryBuilders.wildcardQuery("address.keyword", "?苏省"),
+                QueryBuilders.wildcardQuery("address.keyword", "*苏省"),
+                QueryBuilders.wildcardQuery("address.keyword", "*苏省*"),
+                QueryBuilders.wildcardQuery("address.keyword", "*江*"),
+                QueryBuilders.wildcardQuery("address.keyword", "*省?*市"),
+                QueryBuilders.wildcardQuery("address.keyword", "?江省杭州?"),
+                QueryBuilders.boolQuery()
+                        .filter(QueryBuilders.wildcardQuery("address.keyword", "*市"))
+                        .mustNot(QueryBuilders.prefixQuery("name.keyword", "朱")));
+        try (NgramIndex index = new NgramIndex(properties, values)) {
+            for (QueryBuilder query : queries) {
+                QueryBuilder rewritten = rewriter.rewrite(query);
+                assertEquals(query.toString(), index.count(query), index.count(rewritten));
+            }
+        }
+        assertNotSame(queries.get(8), rewriter.rewrite(queries.get(8)));
+    }
+}
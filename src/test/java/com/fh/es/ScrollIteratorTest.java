@@ -0,0 +1,110 @@
+package com.fh.es;
+
+import com.fh.support.StubClient;
+import org.elasticsearch.action.search.ClearScrollAction;
+import org.elasticsearch.action.search.ClearScrollResponse;
+import org.elasticsearch.action.search.SearchAction;
+import org.elasticsearch.action.search.SearchScrollAction;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * scroll分页遍历与预取
+ */
+public class ScrollIteratorTest {
+
+    private static final int TOTAL = 25;
+    private static final int PAGE_SIZE = 10;
+
+    private StubClient client;
+
+    @Before
+    public void setUp() {
+        client = new StubClient();
+        // scroll id记录下一页的起始位置
+        client.on(SearchAction.INSTANCE, (request, listener) ->
+                listener.onResponse(StubClient.searchResponse(page(0), TOTAL, String.valueOf(PAGE_SIZE))));
+        client.on(SearchScrollAction.INSTANCE, (request, listener) -> {
+            int from = Integer.parseInt(request.scrollId());
+            listener.onResponse(StubClient.searchResponse(page(from), TOTAL, String.valueOf(from + PAGE_SIZE)));
+        });
+        client.on(ClearScrollAction.INSTANCE, (request, listener) ->
+                listener.onResponse(new ClearScrollResponse(true, 1)));
+    }
+
+    @After
+    public void tearDown() {
+        client.close();
+    }
+
+    // 按页取完全部结果,最后一页不再多发请求,结束后清理scroll
+    @Test
+    public void test01() throws Exception {
+        List<String> ids = new ArrayList<>();
+        try (ScrollIterator iterator = iterator()) {
+            while (iterator.hasNext()) {
+                ids.add(iterator.next().getId());
+            }
+            assertEquals(TOTAL, iterator.getTotalHits());
+        }
+        assertEquals(TOTAL, ids.size());
+        assertEquals("0", ids.get(0));
+        assertEquals("24", ids.get(24));
+        assertEquals(2, client.calls(SearchScrollAction.INSTANCE));
+        awaitClearScroll();
+    }
+
+    // 拿到第一页后下一页已经在请求中
+    @Test
+    public void test02() throws Exception {
+        try (ScrollIterator iterator = iterator()) {
+            assertTrue(iterator.hasNext());
+            iterator.next();
+            assertEquals(1, client.calls(SearchScrollAction.INSTANCE));
+        }
+    }
+
+    // 提前关闭时也会清理scroll
+    @Test
+    public void test03() throws Exception {
+        ScrollIterator iterator = iterator();
+        assertTrue(iterator.hasNext());
+        iterator.close();
+        assertFalse(iterator.hasNext());
+        awaitClearScroll();
+    }
+
+    private ScrollIterator iterator() {
+        return new ScrollIterator(client, client.prepareSearch("lib").setQuery(QueryBuilders.matchAllQuery())
+                .setSize(PAGE_SIZE), TimeValue.timeValueMinutes(1));
+    }
+
+    private void awaitClearScroll() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (client.calls(ClearScrollAction.INSTANCE) == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, client.calls(ClearScrollAction.INSTANCE));
+    }
+
+    private static List<SearchHit> page(int from) {
+        List<SearchHit> hits = new ArrayList<>();
+        for (int i = from; i < Math.min(from + PAGE_SIZE, TOTAL); i++) {
+            hits.add(StubClient.hit(String.valueOf(i), Collections.singletonMap("name", "person" + i)));
+        }
+        return hits;
+    }
+}
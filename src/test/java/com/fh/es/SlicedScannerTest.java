@@ -0,0 +1,137 @@
+package com.fh.es;
+
+import com.fh.support.StubClient;
+import org.elasticsearch.action.search.ClearScrollAction;
+import org.elasticsearch.action.search.ClearScrollResponse;
+import org.elasticsearch.action.search.SearchAction;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchScrollAction;
+import org.elasticsearch.common.document.DocumentField;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.mapper.RoutingFieldMapper;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.slice.SliceBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * sliced scroll并行遍历
+ */
+public class SlicedScannerTest {
+
+    private static final int TOTAL = 103;
+    private static final int PAGE_SIZE = 10;
+
+    private StubClient client;
+    private ExecutorService executor;
+    private SlicedScanner scanner;
+
+    @Before
+    public void setUp() {
+        client = new StubClient();
+        // 按 id % max == sliceId 分片,scroll id格式为 sliceId:max:from
+        client.on(SearchAction.INSTANCE, (request, listener) -> {
+            SliceBuilder slice = request.source().slice();
+            int id = slice == null ? 0 : slice.getId();
+            int max = slice == null ? 1 : slice.getMax();
+            listener.onResponse(page(id, max, 0));
+        });
+        client.on(SearchScrollAction.INSTANCE, (request, listener) -> {
+            String[] parts = request.scrollId().split(":");
+            listener.onResponse(page(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]),
+                    Integer.parseInt(parts[2])));
+        });
+        client.on(ClearScrollAction.INSTANCE, (request, listener) ->
+                listener.onResponse(new ClearScrollResponse(true, 1)));
+        executor = Executors.newFixedThreadPool(2);
+        scanner = new SlicedScanner(client, executor, 2, PAGE_SIZE, TimeValue.timeValueMinutes(1));
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        client.close();
+    }
+
+    // 多个slice的结果汇总到一个消费者,不重不漏
+    @Test
+    public void test01() throws Exception {
+        List<String> ids = new ArrayList<>();
+        ScanProgress progress = scanner.scan("lib", QueryBuilders.matchAllQuery(), 4,
+                hit -> ids.add(hit.getId()));
+
+        assertEquals(TOTAL, ids.size());
+        assertEquals(TOTAL, ids.stream().distinct().count());
+        assertEquals(TOTAL, progress.getTotalHits());
+        assertEquals(TOTAL, progress.getProcessed());
+        assertTrue(progress.isFinished());
+        assertTrue(scanner.active().isEmpty());
+    }
+
+    // 每个slice写入各自的sink
+    @Test
+    public void test02() throws Exception {
+        Set<String> seen = ConcurrentHashMap.newKeySet();
+        Set<Integer> slices = ConcurrentHashMap.newKeySet();
+        IntFunction<Consumer<SearchHit[]>> sinks = sliceId -> page -> {
+            slices.add(sliceId);
+            for (SearchHit hit : page) {
+                assertEquals(sliceId, Integer.parseInt(hit.getId()) % 3);
+                seen.add(hit.getId());
+            }
+        };
+        scanner.scanPages("lib", QueryBuilders.matchAllQuery(), 3, sinks);
+
+        assertEquals(TOTAL, seen.size());
+        assertEquals(3, slices.size());
+    }
+
+    // 复制到另一个索引时直接使用原_source,并带上原routing
+    @Test
+    public void test03() throws Exception {
+        ScanProgress progress = scanner.copy("lib", "lib_copy", QueryBuilders.matchAllQuery(), 2);
+
+        assertEquals(TOTAL, client.documents("lib_copy").size());
+        assertEquals("person7", client.source("lib_copy", "7").get("name"));
+        assertEquals("r7", client.routing("lib_copy", "7"));
+        assertNull(client.routing("lib_copy", "8"));
+        assertEquals(0, progress.getFailed());
+    }
+
+    private static SearchResponse page(int sliceId, int max, int from) {
+        List<Integer> all = new ArrayList<>();
+        for (int i = 0; i < TOTAL; i++) {
+            if (i % max == sliceId) {
+                all.add(i);
+            }
+        }
+        List<SearchHit> hits = new ArrayList<>();
+        for (int i = from; i < Math.min(from + PAGE_SIZE, all.size()); i++) {
+            String id = String.valueOf(all.get(i));
+            SearchHit hit = StubClient.hit(id, Collections.singletonMap("name", "person" + id));
+            // 奇数id带routing
+            if (all.get(i) % 2 == 1) {
+                hit.fields(Collections.singletonMap(RoutingFieldMapper.NAME,
+                        new DocumentField(RoutingFieldMapper.NAME, Collections.singletonList("r" + id))));
+            }
+            hits.add(hit);
+        }
+        return StubClient.searchResponse(hits, all.size(), sliceId + ":" + max + ":" + (from + PAGE_SIZE));
+    }
+}
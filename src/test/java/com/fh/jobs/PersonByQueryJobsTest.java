@@ -0,0 +1,129 @@
+package com.fh.jobs;
+
+import com.fh.config.JobsProperties;
+import com.fh.es.PersonWriteEvent;
+import com.fh.es.PersonWriteEvents;
+import com.fh.partition.PersonPartitions;
+import com.fh.support.StubClient;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.cluster.node.tasks.cancel.CancelTasksAction;
+import org.elasticsearch.action.admin.cluster.node.tasks.cancel.CancelTasksResponse;
+import org.elasticsearch.action.admin.cluster.node.tasks.list.ListTasksAction;
+import org.elasticsearch.action.admin.cluster.node.tasks.list.ListTasksResponse;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.reindex.AbstractBulkByScrollRequest;
+import org.elasticsearch.index.reindex.BulkByScrollResponse;
+import org.elasticsearch.index.reindex.BulkByScrollTask;
+import org.elasticsearch.index.reindex.DeleteByQueryAction;
+import org.elasticsearch.index.reindex.DeleteByQueryRequest;
+import org.elasticsearch.index.reindex.RethrottleAction;
+import org.elasticsearch.tasks.Task;
+import org.elasticsearch.tasks.TaskId;
+import org.elasticsearch.tasks.TaskInfo;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 后台delete-by-query任务的进度、调整限速与取消
+ */
+public class PersonByQueryJobsTest {
+
+    private static final TaskId LEADER = new TaskId("node", 1);
+
+    private StubClient client;
+    private PersonByQueryJobs jobs;
+    private final AtomicReference<ActionListener<BulkByScrollResponse>> running = new AtomicReference<>();
+    private final AtomicReference<String> opaqueId = new AtomicReference<>();
+    private final AtomicReference<DeleteByQueryRequest> submitted = new AtomicReference<>();
+    private final List<Float> throttles = new CopyOnWriteArrayList<>();
+    private final List<PersonWriteEvent> events = new CopyOnWriteArrayList<>();
+    private final CountDownLatch finished = new CountDownLatch(1);
+
+    @Before
+    public void setUp() {
+        client = new StubClient();
+        client.on(DeleteByQueryAction.INSTANCE, (request, listener) -> {
+            submitted.set(request);
+            opaqueId.set(client.threadPool().getThreadContext().getHeader(Task.X_OPAQUE_ID));
+            running.set(ActionListener.wrap(r -> {
+                listener.onResponse(r);
+                finished.countDown();
+            }, listener::onFailure));
+        });
+        // 切片的子task带同样的头,但有父task
+        client.on(ListTasksAction.INSTANCE, (request, listener) -> listener.onResponse(new ListTasksResponse(
+                Arrays.asList(task(new TaskId("node", 2), LEADER), task(LEADER, TaskId.EMPTY_TASK_ID)),
+                Collections.emptyList(), Collections.emptyList())));
+        client.on(RethrottleAction.INSTANCE, (request, listener) -> {
+            throttles.add(request.getRequestsPerSecond());
+            listener.onResponse(new ListTasksResponse(Collections.emptyList(), Collections.emptyList(),
+                    Collections.emptyList()));
+        });
+        client.on(CancelTasksAction.INSTANCE, (request, listener) -> {
+            assertEquals(LEADER, request.getTaskId());
+            listener.onResponse(new CancelTasksResponse(Collections.emptyList(), Collections.emptyList(),
+                    Collections.emptyList()));
+            running.get().onResponse(new BulkByScrollResponse(TimeValue.timeValueSeconds(1),
+                    status(60, "by user request"), Collections.emptyList(), Collections.emptyList(), false));
+        });
+        jobs = new PersonByQueryJobs(client, PersonWriteEvents.of(events::add), new JobsProperties(),
+                PersonPartitions.disabled());
+    }
+
+    @After
+    public void tearDown() {
+        client.close();
+    }
+
+    private TaskInfo task(TaskId id, TaskId parent) {
+        return new TaskInfo(id, "transport", DeleteByQueryAction.NAME, "", status(40, null), 0, 0, true, parent,
+                Collections.singletonMap(Task.X_OPAQUE_ID, opaqueId.get()));
+    }
+
+    private static BulkByScrollTask.Status status(long deleted, String reasonCancelled) {
+        return new BulkByScrollTask.Status(null, 100, 0, 0, deleted, 4, 0, 0, 0, 0, TimeValue.ZERO, 50f,
+                reasonCancelled, TimeValue.ZERO);
+    }
+
+    @Test
+    public void test01() throws Exception {
+        ByQueryJobStatus started = jobs.deleteByQuery(QueryBuilders.rangeQuery("age").lt(18), 50f);
+        assertEquals(ByQueryJobStatus.State.PENDING, started.getState());
+        while (running.get() == null) {
+            Thread.sleep(10);
+        }
+        assertEquals(started.getId(), opaqueId.get());
+        assertEquals(AbstractBulkByScrollRequest.AUTO_SLICES, submitted.get().getSlices());
+
+        // 从没有父task的leader读取进度
+        ByQueryJobStatus progress = jobs.status(started.getId());
+        assertEquals(ByQueryJobStatus.State.RUNNING, progress.getState());
+        assertEquals(40.0, progress.getPercent(), 0.0);
+        assertEquals(LEADER.toString(), progress.getTaskId());
+
+        // 不限速
+        jobs.rethrottle(started.getId(), 0);
+        assertEquals(Collections.singletonList(Float.POSITIVE_INFINITY), throttles);
+
+        jobs.cancel(started.getId());
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        ByQueryJobStatus cancelled = jobs.status(started.getId());
+        assertEquals(ByQueryJobStatus.State.CANCELLED, cancelled.getState());
+        assertEquals(60, cancelled.getProcessed());
+        // 开始和结束各通知一次
+        assertEquals(2, events.size());
+    }
+}
@@ -0,0 +1,269 @@
+package com.fh.paging;
+
+import com.fh.config.PagingProperties;
+import com.fh.entity.Person;
+import com.fh.es.PersonCodec;
+import com.fh.es.PersonQueryRewriter;
+import com.fh.partition.PersonPartitions;
+import com.fh.routing.PersonRouting;
+import com.fh.support.StubClient;
+import org.elasticsearch.action.search.ClearScrollAction;
+import org.elasticsearch.action.search.ClearScrollResponse;
+import org.elasticsearch.action.search.SearchAction;
+import org.elasticsearch.action.search.SearchScrollAction;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.DocValueFormat;
+import org.elasticsearch.search.SearchContextMissingException;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.sort.FieldSortBuilder;
+import org.elasticsearch.search.sort.SortBuilder;
+import org.elasticsearch.search.sort.SortBuilders;
+import org.elasticsearch.search.sort.SortOrder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.elasticsearch.core.query.NativeSearchQueryBuilder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 游标分页:search_after前后翻页、游标校验和一致性模式
+ */
+public class PersonCursorPagerTest {
+
+    private StubClient client;
+    private PersonCursorPager pager;
+    // id -> age,null表示没有age
+    private final Map<String, Integer> docs = new HashMap<>();
+    // 最近一次search请求的排序和条数
+    private List<SortBuilder<?>> lastSorts;
+    private int lastSize;
+
+    @Before
+    public void setUp() {
+        client = new StubClient();
+        Integer[] ages = {30, 20, 30, null, 40, 30, null, 20};
+        for (int i = 0; i < ages.length; i++) {
+            docs.put("p" + i, ages[i]);
+        }
+        client.on(SearchAction.INSTANCE, (request, listener) -> {
+            lastSorts = request.source().sorts();
+            lastSize = request.source().size();
+            List<Object[]> sorted = sorted(lastSorts);
+            int start = 0;
+            Object[] after = request.source().searchAfter();
+            if (after != null) {
+                Comparator<Object[]> comparator = comparator(lastSorts);
+                while (start < sorted.size() && comparator.compare(sorted.get(start), after) <= 0) {
+                    start++;
+                }
+            }
+            List<SearchHit> hits = hits(sorted, start, lastSize);
+            // scroll时scroll id记下一页的起点
+            String scrollId = request.scroll() == null ? null : "s" + (start + hits.size());
+            listener.onResponse(StubClient.searchResponse(hits, docs.size(), scrollId));
+        });
+        client.on(SearchScrollAction.INSTANCE, (request, listener) -> {
+            if ("gone".equals(request.scrollId())) {
+                listener.onFailure(new SearchContextMissingException(1));
+                return;
+            }
+            int start = Integer.parseInt(request.scrollId().substring(1));
+            List<SearchHit> hits = hits(sorted(lastSorts), start, lastSize);
+            listener.onResponse(StubClient.searchResponse(hits, docs.size(), "s" + (start + hits.size())));
+        });
+        client.on(ClearScrollAction.INSTANCE, (request, listener) ->
+                listener.onResponse(new ClearScrollResponse(true, 1)));
+        PagingProperties properties = new PagingProperties();
+        properties.setMaxSize(100);
+        pager = new PersonCursorPager(client, properties, PersonPartitions.disabled(), PersonRouting.disabled(),
+                PersonQueryRewriter.disabled());
+    }
+
+    @After
+    public void tearDown() {
+        client.close();
+    }
+
+    // 按age降序向后翻到底再向前翻回第一页,相同age按doc_id排,没有age的排最后,不重不漏
+    @Test
+    public void test01() throws Exception {
+        List<FieldSortBuilder> sorts = PersonCursorPager.sorts("age:desc");
+        List<String> expected = Arrays.asList("p4", "p0", "p2", "p5", "p1", "p7", "p3", "p6");
+
+        List<List<String>> forward = new ArrayList<>();
+        CursorPage page = pager.page(QueryBuilders.matchAllQuery(), sorts, 3, null, false).get();
+        assertNull(page.getPrevious());
+        forward.add(ids(page));
+        while (page.getNext() != null) {
+            assertEquals(4, lastSize);
+            page = pager.page(QueryBuilders.matchAllQuery(), sorts, 3, page.getNext(), false).get();
+            forward.add(ids(page));
+        }
+        assertEquals(expected, forward.stream().flatMap(List::stream).collect(Collectors.toList()));
+        assertEquals(Arrays.asList("p3", "p6"), forward.get(2));
+        assertEquals(8, page.getTotal());
+
+        List<List<String>> backward = new ArrayList<>();
+        backward.add(ids(page));
+        while (page.getPrevious() != null) {
+            page = pager.page(QueryBuilders.matchAllQuery(), sorts, 3, page.getPrevious(), false).get();
+            assertNotNull(page.getNext());
+            backward.add(0, ids(page));
+        }
+        assertEquals(forward, backward);
+    }
+
+    // 游标与查询不匹配、游标损坏、页太大都是调用方的错误
+    @Test
+    public void test02() throws Exception {
+        CursorPage page = pager.page(QueryBuilders.matchAllQuery(), PersonCursorPager.sorts("age"), 2, null, false)
+                .get();
+        assertBadRequest(() -> pager.page(QueryBuilders.matchAllQuery(), PersonCursorPager.sorts("age:desc"), 2,
+                page.getNext(), false));
+        assertBadRequest(() -> pager.page(QueryBuilders.termQuery("name", "zhangsan"), PersonCursorPager.sorts("age"),
+                2, page.getNext(), false));
+        assertBadRequest(() -> pager.page(QueryBuilders.matchAllQuery(), PersonCursorPager.sorts("age"), 2,
+                "not-a-cursor", false));
+        assertBadRequest(() -> pager.page(QueryBuilders.matchAllQuery(), PersonCursorPager.sorts("age"), 101,
+                null, false));
+        assertBadRequest(() -> pager.page(QueryBuilders.matchAllQuery(), PersonCursorPager.sorts("age:up"), 2,
+                null, false));
+    }
+
+    // 一致性模式用scroll往后翻,没有上一页,最后一页清理scroll;scroll过期时游标失效
+    @Test
+    public void test03() throws Exception {
+        List<FieldSortBuilder> sorts = PersonCursorPager.sorts("age:desc");
+        List<String> ids = new ArrayList<>();
+        CursorPage page = pager.page(QueryBuilders.matchAllQuery(), sorts, 3, null, true).get();
+        assertEquals(3, lastSize);
+        ids.addAll(ids(page));
+        while (page.getNext() != null) {
+            assertNull(page.getPrevious());
+            page = pager.page(QueryBuilders.matchAllQuery(), sorts, 3, page.getNext(), true).get();
+            ids.addAll(ids(page));
+        }
+        assertEquals(Arrays.asList("p4", "p0", "p2", "p5", "p1", "p7", "p3", "p6"), ids);
+        assertEquals(1, client.calls(SearchAction.INSTANCE));
+        assertEquals(2, client.calls(SearchScrollAction.INSTANCE));
+        assertEquals(1, client.calls(ClearScrollAction.INSTANCE));
+
+        // 一致性模式的游标不能在普通模式下用
+        String cursor = pager.page(QueryBuilders.matchAllQuery(), sorts, 3, null, true).get().getNext();
+        assertBadRequest(() -> pager.page(QueryBuilders.matchAllQuery(), sorts, 3, cursor, false));
+
+        long hash = PageCursor.decode(cursor).getQuery();
+        String expired = PageCursor.scroll(hash, "gone", 3).encode();
+        try {
+            pager.page(QueryBuilders.matchAllQuery(), sorts, 3, expired, true).get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalArgumentException);
+            assertEquals("cursor expired", e.getCause().getMessage());
+        }
+    }
+
+    // ElasticsearchTemplate的SearchQuery:沿用其中的排序和每页条数,末尾加上tiebreaker
+    @Test
+    public void test04() throws Exception {
+        CursorPage page = pager.page(new NativeSearchQueryBuilder().withQuery(QueryBuilders.matchAllQuery())
+                .withSort(SortBuilders.fieldSort("age").order(SortOrder.ASC)).withPageable(PageRequest.of(0, 2))
+                .build(), null).get();
+        assertEquals(Arrays.asList("p1", "p7"), ids(page));
+        assertEquals(3, lastSize);
+        assertEquals(Arrays.asList("age", PersonCodec.ID_FIELD), lastSorts.stream()
+                .map(sort -> ((FieldSortBuilder) sort).getFieldName()).collect(Collectors.toList()));
+    }
+
+    private interface Call {
+        CompletableFuture<CursorPage> call();
+    }
+
+    private static void assertBadRequest(Call call) throws Exception {
+        try {
+            call.call().get();
+            fail();
+        } catch (IllegalArgumentException expected) {
+            // 同步校验失败
+        }
+    }
+
+    private List<String> ids(CursorPage page) {
+        List<String> ids = new ArrayList<>();
+        for (Person person : page.getContent()) {
+            ids.add(person.getName());
+        }
+        return ids;
+    }
+
+    // 按请求的排序算出每个文档的排序值并排好序,缺失值与es一样换成Long的最大或最小值
+    private List<Object[]> sorted(List<SortBuilder<?>> sorts) {
+        List<Object[]> rows = new ArrayList<>();
+        docs.forEach((id, age) -> {
+            Object[] row = new Object[sorts.size()];
+            for (int i = 0; i < sorts.size(); i++) {
+                FieldSortBuilder sort = (FieldSortBuilder) sorts.get(i);
+                if (PersonCodec.ID_FIELD.equals(sort.getFieldName())) {
+                    row[i] = id;
+                } else if (age != null) {
+                    row[i] = (long) age;
+                } else {
+                    boolean first = "_first".equals(sort.missing());
+                    row[i] = first == (sort.order() == SortOrder.ASC) ? Long.MIN_VALUE : Long.MAX_VALUE;
+                }
+            }
+            rows.add(row);
+        });
+        rows.sort(comparator(sorts));
+        return rows;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Comparator<Object[]> comparator(List<SortBuilder<?>> sorts) {
+        return (a, b) -> {
+            for (int i = 0; i < sorts.size(); i++) {
+                int c = a[i] instanceof Number
+                        ? Long.compare(((Number) a[i]).longValue(), ((Number) b[i]).longValue())
+                        : ((Comparable<Object>) a[i]).compareTo(b[i]);
+                if (c != 0) {
+                    return sorts.get(i).order() == SortOrder.ASC ? c : -c;
+                }
+            }
+            return 0;
+        };
+    }
+
+    private List<SearchHit> hits(List<Object[]> rows, int start, int size) {
+        List<SearchHit> hits = new ArrayList<>();
+        for (Object[] row : rows.subList(Math.min(start, rows.size()), Math.min(start + size, rows.size()))) {
+            String id = (String) row[row.length - 1];
+            Map<String, Object> source = new HashMap<>();
+            source.put("name", id);
+            if (docs.get(id) != null) {
+                source.put("age", docs.get(id));
+            }
+            SearchHit hit = StubClient.hit(id, source);
+            DocValueFormat[] formats = new DocValueFormat[row.length];
+            Arrays.fill(formats, DocValueFormat.RAW);
+            hit.sortValues(row, formats);
+            hits.add(hit);
+        }
+        return hits;
+    }
+}
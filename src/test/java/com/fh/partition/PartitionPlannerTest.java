@@ -0,0 +1,54 @@
+package com.fh.partition;
+
+import org.elasticsearch.index.query.QueryBuilders;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * 按查询条件裁剪分区
+ */
+public class PartitionPlannerTest {
+
+    private final PartitionPlanner planner = new PartitionPlanner("birth",
+            new PartitionScheme("lib-", PartitionScheme.Granularity.YEAR));
+    private final List<String> partitions = Arrays.asList("lib-1990", "lib-1991", "lib-1992", "lib-1993");
+
+    @Test
+    public void rangeAndTermsSelectOverlappingPartitions() {
+        assertEquals(Arrays.asList("lib-1991", "lib-1992"), planner.plan(
+                QueryBuilders.rangeQuery("birth").gte("1991-06-01").lt("1992-02"), partitions));
+        // 多个取值按覆盖它们的最小区间裁剪
+        assertEquals(Arrays.asList("lib-1990", "lib-1991"), planner.plan(
+                QueryBuilders.termsQuery("birth", "1990-03-04", "1991-12-31"), partitions));
+        // bool的filter取交集,与分区字段无关的条件不影响结果
+        assertEquals(Collections.singletonList("lib-1992"), planner.plan(QueryBuilders.boolQuery()
+                .must(QueryBuilders.matchQuery("name", "zhangsan"))
+                .filter(QueryBuilders.rangeQuery("birth").gte("1992"))
+                .filter(QueryBuilders.rangeQuery("birth").lte("1992-12-31")), partitions));
+        assertEquals(Collections.emptyList(), planner.plan(QueryBuilders.boolQuery()
+                .filter(QueryBuilders.termQuery("birth", "1990-01-01"))
+                .filter(QueryBuilders.termQuery("birth", "1991-01-01")), partitions));
+    }
+
+    @Test
+    public void unboundedQueriesSearchAllPartitions() {
+        assertNull(planner.plan(QueryBuilders.matchAllQuery(), partitions));
+        assertNull(planner.plan(QueryBuilders.rangeQuery("birth").gte("now-10y"), partitions));
+        // 日期运算和时区会移动实际的边界,不能按字面的日期裁剪
+        assertNull(planner.plan(QueryBuilders.rangeQuery("birth").lte("1990-01-01T00:00||+10y"), partitions));
+        assertNull(planner.plan(QueryBuilders.rangeQuery("birth").lte("1990-12-31").timeZone("-08:00"), partitions));
+        assertNull(planner.plan(QueryBuilders.rangeQuery("birth").lte("1990-12-31T20:00:00-08:00"), partitions));
+        assertEquals(Collections.singletonList("lib-1990"), planner.plan(
+                QueryBuilders.rangeQuery("birth").gte("1990-01-01T00:00:00").lte("1990-12-31 23:59:59.999Z"),
+                partitions));
+        assertNull(planner.plan(QueryBuilders.boolQuery()
+                .should(QueryBuilders.termQuery("birth", "1990-01-01"))
+                .should(QueryBuilders.termQuery("name", "lisi")), partitions));
+    }
+}
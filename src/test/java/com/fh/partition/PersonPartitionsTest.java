@@ -0,0 +1,178 @@
+package com.fh.partition;
+
+import com.fh.config.NgramProperties;
+import com.fh.config.PartitionProperties;
+import com.fh.entity.Person;
+import com.fh.support.StubClient;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesAction;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequest;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequest.AliasActions;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesResponse;
+import org.elasticsearch.action.admin.indices.alias.get.GetAliasesAction;
+import org.elasticsearch.action.admin.indices.alias.get.GetAliasesResponse;
+import org.elasticsearch.action.admin.indices.create.CreateIndexAction;
+import org.elasticsearch.action.admin.indices.create.CreateIndexResponse;
+import org.elasticsearch.action.admin.indices.get.GetIndexAction;
+import org.elasticsearch.action.admin.indices.get.GetIndexResponse;
+import org.elasticsearch.action.admin.indices.template.put.PutIndexTemplateAction;
+import org.elasticsearch.action.admin.indices.template.put.PutIndexTemplateResponse;
+import org.elasticsearch.cluster.metadata.AliasMetaData;
+import org.elasticsearch.common.CheckedFunction;
+import org.elasticsearch.common.collect.ImmutableOpenMap;
+import org.elasticsearch.common.xcontent.DeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 分区列表的刷新:只查部分分区时不使用过期的列表;写别名只往最新的分区移动
+ */
+public class PersonPartitionsTest {
+
+    private StubClient client;
+    private PartitionProperties properties;
+    private PersonPartitions partitions;
+    private final List<String> indices = new CopyOnWriteArrayList<>(Collections.singletonList("lib-1990"));
+    private final AtomicBoolean unavailable = new AtomicBoolean();
+    private final QueryBuilder range = QueryBuilders.rangeQuery("birth").gte("1990").lte("1991-12-31");
+
+    @Before
+    public void setUp() {
+        client = new StubClient();
+        client.on(GetIndexAction.INSTANCE, (request, listener) -> {
+            if (unavailable.get()) {
+                throw new IllegalStateException("master not discovered");
+            }
+            listener.onResponse(response(indices));
+        });
+        properties = new PartitionProperties();
+        properties.setEnabled(true);
+        properties.setPlanRefreshInterval(Duration.ofMinutes(1));
+        partitions = new PersonPartitions(client, properties, new NgramProperties());
+    }
+
+    @After
+    public void tearDown() {
+        client.close();
+    }
+
+    // 其他实例新建的分区在planRefreshInterval之后就会被裁剪后的查询用到;不限范围的查询用读别名,不需要刷新
+    @Test
+    public void test01() {
+        assertArrayEquals(new String[]{"lib-1990"}, partitions.searchIndices(range));
+        indices.add("lib-1991");
+        assertArrayEquals(new String[]{"lib-1990"}, partitions.searchIndices(range));
+        assertEquals(1, client.calls(GetIndexAction.INSTANCE));
+
+        // 列表过期
+        properties.setPlanRefreshInterval(Duration.ZERO);
+        assertArrayEquals(new String[]{"lib-read"}, partitions.searchIndices(QueryBuilders.matchAllQuery()));
+        assertEquals(1, client.calls(GetIndexAction.INSTANCE));
+        assertArrayEquals(new String[]{"lib-1990", "lib-1991"}, partitions.searchIndices(range));
+        assertEquals(2, client.calls(GetIndexAction.INSTANCE));
+    }
+
+    // 刷新失败时裁剪后的查询改查读别名,已有的分区列表保留
+    @Test
+    public void test02() {
+        assertArrayEquals(new String[]{"lib-1990"}, partitions.searchIndices(range));
+        unavailable.set(true);
+        properties.setPlanRefreshInterval(Duration.ZERO);
+        assertArrayEquals(new String[]{"lib-read"}, partitions.searchIndices(range));
+        assertEquals(Collections.singleton("lib-1990"), partitions.partitions());
+    }
+
+    // 新进程写入已有的旧分区时不新建分区,也不把写别名从其他实例设置的最新分区上移走;新建更晚的分区时才往后移
+    @Test
+    public void test03() {
+        indices.add("lib-2000");
+        List<IndicesAliasesRequest> moves = aliases("lib-2000");
+        Person person = new Person();
+        person.setBirth("1990-05-01");
+        assertEquals("lib-1990", partitions.writeIndex(person));
+        assertEquals(0, client.calls(CreateIndexAction.INSTANCE));
+        assertTrue(moves.isEmpty());
+
+        person.setBirth("2005-01-01");
+        assertEquals("lib-2005", partitions.writeIndex(person));
+        assertEquals(1, client.calls(CreateIndexAction.INSTANCE));
+        assertEquals(1, moves.size());
+        List<AliasActions> actions = moves.get(0).getAliasActions();
+        assertEquals(AliasActions.Type.REMOVE, actions.get(0).actionType());
+        assertArrayEquals(new String[]{"lib-2000"}, actions.get(0).indices());
+        assertEquals(AliasActions.Type.ADD, actions.get(1).actionType());
+        assertArrayEquals(new String[]{"lib-2005"}, actions.get(1).indices());
+    }
+
+    // 还没有分区时分区字段为空的文档不能直接写写别名,先建当前周期的分区并让写别名指向它
+    @Test
+    public void test04() {
+        indices.clear();
+        List<IndicesAliasesRequest> moves = aliases(null);
+        assertEquals("lib-write", partitions.writeIndex(new Person()));
+        String current = "lib-" + LocalDate.now().getYear();
+        assertEquals(Collections.singleton(current), partitions.partitions());
+        assertEquals(1, moves.size());
+        assertArrayEquals(new String[]{current}, moves.get(0).getAliasActions().get(0).indices());
+
+        assertEquals("lib-write", partitions.missingIndex());
+        assertEquals(1, client.calls(CreateIndexAction.INSTANCE));
+        assertEquals(1, moves.size());
+    }
+
+    // holder为写别名当前所在的分区;创建分区会加入indices,返回收到的别名修改请求
+    private List<IndicesAliasesRequest> aliases(String holder) {
+        List<IndicesAliasesRequest> moves = new CopyOnWriteArrayList<>();
+        ImmutableOpenMap.Builder<String, List<AliasMetaData>> holders = ImmutableOpenMap.builder();
+        if (holder != null) {
+            holders.put(holder, Collections.singletonList(AliasMetaData.builder("lib-write").build()));
+        }
+        GetAliasesResponse current = new GetAliasesResponse(holders.build());
+        client.on(GetAliasesAction.INSTANCE, (request, listener) -> listener.onResponse(current));
+        client.on(IndicesAliasesAction.INSTANCE, (request, listener) -> {
+            moves.add(request);
+            listener.onResponse(parse("{\"acknowledged\":true}", IndicesAliasesResponse::fromXContent));
+        });
+        client.on(PutIndexTemplateAction.INSTANCE, (request, listener) ->
+                listener.onResponse(parse("{\"acknowledged\":true}", PutIndexTemplateResponse::fromXContent)));
+        client.on(CreateIndexAction.INSTANCE, (request, listener) -> {
+            indices.add(request.index());
+            listener.onResponse(parse("{\"acknowledged\":true,\"shards_acknowledged\":true,\"index\":\""
+                    + request.index() + "\"}", CreateIndexResponse::fromXContent));
+        });
+        return moves;
+    }
+
+    private static GetIndexResponse response(List<String> indices) {
+        String json = indices.stream().map(index -> "\"" + index + "\":{}")
+                .collect(Collectors.joining(",", "{", "}"));
+        return parse(json, GetIndexResponse::fromXContent);
+    }
+
+    private static <T> T parse(String json, CheckedFunction<XContentParser, T, IOException> reader) {
+        try (XContentParser parser = XContentType.JSON.xContent().createParser(NamedXContentRegistry.EMPTY,
+                DeprecationHandler.THROW_UNSUPPORTED_OPERATION, json)) {
+            return reader.apply(parser);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
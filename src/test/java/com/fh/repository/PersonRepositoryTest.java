@@ -0,0 +1,194 @@
+package com.fh.repository;
+
+import com.fh.config.AdmissionProperties;
+import com.fh.config.AsyncProperties;
+import com.fh.config.MultiSearchProperties;
+import com.fh.config.RoutingProperties;
+import com.fh.entity.Person;
+import com.fh.es.AdmissionControlClient;
+import com.fh.es.PersonCodec;
+import com.fh.es.PersonIndex;
+import com.fh.es.PersonQueryRewriter;
+import com.fh.es.PersonWriteEvent;
+import com.fh.es.PersonWriteEvents;
+import com.fh.partition.PersonPartitions;
+import com.fh.routing.PersonLocator;
+import com.fh.routing.PersonRouting;
+import com.fh.service.PersonMultiSearch;
+import com.fh.support.StubClient;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.delete.DeleteAction;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.delete.DeleteResponse;
+import org.elasticsearch.action.get.GetAction;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.index.IndexAction;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.search.SearchAction;
+import org.elasticsearch.client.Client;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 异步读写与在途上限
+ */
+public class PersonRepositoryTest {
+
+    private StubClient client;
+    private final List<PersonWriteEvent> written = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void setUp() {
+        client = new StubClient();
+    }
+
+    @After
+    public void tearDown() {
+        client.close();
+    }
+
+    private PersonRepository repository(int maxInFlight, int maxQueued) {
+        return repository(client, maxInFlight, maxQueued);
+    }
+
+    private PersonRepository repository(Client client, int maxInFlight, int maxQueued) {
+        AsyncProperties properties = new AsyncProperties();
+        properties.setMaxInFlight(maxInFlight);
+        properties.setMaxQueued(maxQueued);
+        return new PersonRepository(client, PersonWriteEvents.of(written::add), PersonPartitions.disabled(),
+                PersonRouting.disabled(), PersonLocator.disabled(),
+                new PersonMultiSearch(client, new MultiSearchProperties()), PersonQueryRewriter.disabled(), properties);
+    }
+
+    // 写入后能读到,写入成功后发出事件
+    @Test
+    public void test01() {
+        PersonRepository repository = repository(10, 10);
+        Person person = new Person();
+        person.setName("zhangsan");
+        person.setAge(20);
+
+        repository.index("1", person).join();
+        repository.update("1", Collections.singletonMap("age", 21)).join();
+
+        assertEquals(21, repository.get("1").join().getAge());
+        assertEquals("1", client.source(PersonIndex.INDEX, "1").get(PersonCodec.ID_FIELD));
+        assertNull(repository.get("2").join());
+        Map<String, Person> persons = repository.multiGet(Arrays.asList("2", "1")).join();
+        assertEquals(Collections.singletonList("1"), new ArrayList<>(persons.keySet()));
+        assertEquals(2, written.size());
+        assertEquals(PersonWriteEvent.Type.UPDATE, written.get(1).getType());
+    }
+
+    // 超过在途上限的请求排队,排队也满时立即拒绝,前面的完成后排队的才发出
+    @Test
+    public void test02() {
+        List<ActionListener<GetResponse>> held = new CopyOnWriteArrayList<>();
+        client.inline(true).on(GetAction.INSTANCE, (request, listener) -> held.add(listener));
+        PersonRepository repository = repository(1, 1);
+
+        CompletableFuture<Person> first = repository.get("1");
+        CompletableFuture<Person> second = repository.get("2");
+        CompletableFuture<Person> third = repository.get("3");
+        assertEquals(1, held.size());
+        assertEquals(1, repository.limiter().queued());
+        try {
+            third.join();
+            fail();
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+
+        held.get(0).onFailure(new IllegalStateException("boom"));
+        assertTrue(first.isCompletedExceptionally());
+        assertEquals(2, held.size());
+        assertEquals(0, repository.limiter().queued());
+        assertEquals(1, repository.limiter().inFlight());
+        assertFalse(second.isDone());
+    }
+
+    // 客户端开启准入控制后不再按自己的上限排队,只在客户端按操作类别排一次
+    @Test
+    public void test03() {
+        List<ActionListener<GetResponse>> held = new CopyOnWriteArrayList<>();
+        client.inline(true).on(GetAction.INSTANCE, (request, listener) -> held.add(listener));
+        AdmissionProperties admission = new AdmissionProperties();
+        admission.setInitialLimit(1);
+        AdmissionControlClient admitted = new AdmissionControlClient(client, admission, new SimpleMeterRegistry());
+        PersonRepository repository = repository(admitted, 1, 1);
+
+        repository.get("1");
+        repository.get("2");
+        CompletableFuture<Person> third = repository.get("3");
+        assertEquals(1, held.size());
+        assertEquals(0, repository.limiter().queued());
+        assertEquals(2, admitted.limiter("mget").queued());
+        assertFalse(third.isDone());
+    }
+
+    // 开启routing时同一id的写入依次执行:后一个写入等前一个写完,再从前一个写入的位置删掉旧文档
+    @Test
+    public void test04() {
+        List<Runnable> held = new CopyOnWriteArrayList<>();
+        List<DeleteRequest> deletes = new CopyOnWriteArrayList<>();
+        client.inline(true)
+                .on(SearchAction.INSTANCE, (request, listener) ->
+                        listener.onResponse(StubClient.searchResponse(Collections.emptyList(), 0, null)))
+                .on(IndexAction.INSTANCE, (request, listener) -> held.add(() -> listener.onResponse(
+                        (IndexResponse) client.applyBulk(new BulkRequest().add(request)).getItems()[0].getResponse())))
+                .on(DeleteAction.INSTANCE, (request, listener) -> {
+                    deletes.add(request);
+                    listener.onResponse((DeleteResponse) client.applyBulk(new BulkRequest().add(request))
+                            .getItems()[0].getResponse());
+                });
+        RoutingProperties properties = new RoutingProperties();
+        properties.setEnabled(true);
+        PersonRouting routing = new PersonRouting(properties);
+        AsyncProperties async = new AsyncProperties();
+        PersonRepository repository = new PersonRepository(client, PersonWriteEvents.of(written::add),
+                PersonPartitions.disabled(), routing,
+                new PersonLocator(client, PersonPartitions.disabled(), routing, properties),
+                new PersonMultiSearch(client, new MultiSearchProperties()), PersonQueryRewriter.disabled(), async);
+
+        CompletableFuture<IndexResponse> first = repository.index("1", person("北京市朝阳区"));
+        CompletableFuture<IndexResponse> second = repository.index("1", person("江苏省宿迁市"));
+        assertEquals(1, held.size());
+
+        held.get(0).run();
+        assertTrue(first.isDone());
+        assertEquals(2, held.size());
+        held.get(1).run();
+        second.join();
+
+        assertEquals(1, deletes.size());
+        assertEquals("北京市", deletes.get(0).routing());
+        assertEquals("江苏省", client.routing(PersonIndex.INDEX, "1"));
+        assertEquals(2, written.size());
+    }
+
+    private static Person person(String address) {
+        Person person = new Person();
+        person.setName("zhangsan");
+        person.setAddress(address);
+        return person;
+    }
+}
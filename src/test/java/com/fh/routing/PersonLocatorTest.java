@@ -0,0 +1,201 @@
+package com.fh.routing;
+
+import com.fh.config.AsyncProperties;
+import com.fh.config.IndexerProperties;
+import com.fh.config.MultiSearchProperties;
+import com.fh.config.RoutingProperties;
+import com.fh.config.WriteBehindProperties;
+import com.fh.entity.Person;
+import com.fh.es.PersonIndex;
+import com.fh.es.PersonQueryRewriter;
+import com.fh.es.PersonWriteEvent;
+import com.fh.es.PersonWriteEvents;
+import com.fh.partition.PersonPartitions;
+import com.fh.repository.PersonRepository;
+import com.fh.service.PersonIndexer;
+import com.fh.service.PersonMultiSearch;
+import com.fh.support.StubClient;
+import com.fh.writebehind.PersonWriteBehind;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.OriginalIndices;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.delete.DeleteAction;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.delete.DeleteResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.SearchAction;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.document.DocumentField;
+import org.elasticsearch.common.text.Text;
+import org.elasticsearch.index.query.IdsQueryBuilder;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchShardTarget;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 按id找到文档实际所在的位置:routing变了时删掉旧位置上的文档,查找不阻塞调用线程,写后缓冲按位置写入
+ */
+public class PersonLocatorTest {
+
+    private StubClient client;
+    private RoutingProperties properties;
+    private PersonRouting routing;
+    private final List<DeleteRequest> deletes = new CopyOnWriteArrayList<>();
+    private final List<PersonWriteEvent> published = new CopyOnWriteArrayList<>();
+    // 设置后ids查询等它放行才返回
+    private volatile CountDownLatch searchGate;
+
+    @Before
+    public void setUp() {
+        client = new StubClient();
+        client.on(SearchAction.INSTANCE, this::searchByIds);
+        client.on(DeleteAction.INSTANCE, (request, listener) -> {
+            deletes.add(request);
+            listener.onResponse((DeleteResponse) client.applyBulk(new BulkRequest().add(request))
+                    .getItems()[0].getResponse());
+        });
+        properties = new RoutingProperties();
+        properties.setEnabled(true);
+        routing = new PersonRouting(properties);
+    }
+
+    @After
+    public void tearDown() {
+        client.close();
+    }
+
+    // routing变了的文档先从旧routing下删掉再写入;本地没见过的文档由ids查询找到旧routing
+    @Test
+    public void test01() {
+        PersonRepository repository = repository(locator());
+        repository.index("1", person("zhangsan", "江苏省宿迁市")).join();
+        assertTrue(deletes.isEmpty());
+        repository.index("1", person("zhangsan", "北京市朝阳区")).join();
+        assertEquals(1, deletes.size());
+        assertEquals("江苏省", deletes.get(0).routing());
+        assertEquals("北京市", client.routing(PersonIndex.INDEX, "1"));
+
+        // 另一个节点不知道这个文档,修改时先查到它的routing
+        PersonRepository other = repository(locator());
+        other.update("1", Collections.singletonMap("age", 30)).join();
+        assertEquals(30, other.get("1").join().getAge());
+        other.index("1", person("zhangsan", "上海市浦东新区")).join();
+        assertEquals(2, deletes.size());
+        assertEquals("北京市", deletes.get(1).routing());
+        assertEquals("上海市", client.routing(PersonIndex.INDEX, "1"));
+    }
+
+    // 需要查找位置的写入不阻塞调用线程,同一id的后续写入排在它后面,按调用顺序写入和发布
+    @Test
+    public void test02() throws Exception {
+        client.index(new IndexRequest(PersonIndex.INDEX, PersonIndex.TYPE, "9")
+                .routing("北京市").source("name", "lisi", "address", "北京市朝阳区")).actionGet();
+        IndexerProperties indexer = new IndexerProperties();
+        indexer.setFlushInterval(Duration.ofMinutes(1));
+        PersonIndexer writer = new PersonIndexer(client, indexer, PersonWriteEvents.of(published::add),
+                PersonPartitions.disabled(), locator());
+        searchGate = new CountDownLatch(1);
+        try {
+            writer.update("9", Collections.singletonMap("age", 1));
+            writer.update("9", Collections.singletonMap("age", 2));
+            writer.index("9", person("lisi", "江苏省宿迁市"));
+            assertTrue(published.isEmpty());
+            searchGate.countDown();
+            writer.flush();
+        } finally {
+            searchGate.countDown();
+            writer.close();
+        }
+
+        assertEquals(3, published.size());
+        assertEquals(1, published.get(0).getChanges().get("age"));
+        assertEquals(2, published.get(1).getChanges().get("age"));
+        assertEquals(PersonWriteEvent.Type.INDEX, published.get(2).getType());
+        // 改了routing的写入先删掉旧routing下的文档
+        assertEquals(1, deletes.size());
+        assertEquals("北京市", deletes.get(0).routing());
+        assertEquals("江苏省", client.routing(PersonIndex.INDEX, "9"));
+        // 整篇写入覆盖了之前的修改
+        assertEquals(0, client.source(PersonIndex.INDEX, "9").get("age"));
+    }
+
+    // 写后缓冲按文档的routing读取和写入
+    @Test
+    public void test03() throws Exception {
+        PersonRepository repository = repository(locator());
+        repository.index("5", person("wangwu", "江苏省宿迁市")).join();
+        WriteBehindProperties writeBehind = new WriteBehindProperties();
+        writeBehind.setFlushInterval(Duration.ofMinutes(1));
+        PersonWriteBehind buffer = new PersonWriteBehind(client, PersonWriteEvents.of(), writeBehind, locator());
+        try {
+            buffer.update("5", Collections.singletonMap("age", 40));
+            assertEquals(40, buffer.get("5").join().getAge());
+            buffer.flush();
+            assertEquals(40, client.source(PersonIndex.INDEX, "5").get("age"));
+            assertEquals("江苏省", client.routing(PersonIndex.INDEX, "5"));
+            assertEquals("wangwu", buffer.get("5").join().getName());
+            assertEquals(1, buffer.getWritten());
+        } finally {
+            buffer.close();
+        }
+    }
+
+    private PersonLocator locator() {
+        return new PersonLocator(client, PersonPartitions.disabled(), routing, properties);
+    }
+
+    private PersonRepository repository(PersonLocator locator) {
+        return new PersonRepository(client, PersonWriteEvents.of(published::add), PersonPartitions.disabled(),
+                routing, locator, new PersonMultiSearch(client, new MultiSearchProperties()),
+                PersonQueryRewriter.disabled(), new AsyncProperties());
+    }
+
+    // ids查询从内置文档库找出命中,带上所在索引和routing
+    private void searchByIds(SearchRequest request, ActionListener<SearchResponse> listener) {
+        CountDownLatch gate = searchGate;
+        if (gate != null) {
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        List<SearchHit> hits = new ArrayList<>();
+        for (String id : ((IdsQueryBuilder) request.source().query()).ids()) {
+            Map<String, Object> source = client.source(PersonIndex.INDEX, id);
+            if (source == null) {
+                continue;
+            }
+            String key = client.routing(PersonIndex.INDEX, id);
+            SearchHit hit = new SearchHit(0, id, new Text(PersonIndex.TYPE), key == null ? Collections.emptyMap()
+                    : Collections.singletonMap(PersonRouting.ROUTING_FIELD,
+                    new DocumentField(PersonRouting.ROUTING_FIELD, Collections.singletonList(key))));
+            hit.shard(new SearchShardTarget("stub", new ShardId(PersonIndex.INDEX, "_na_", 0), null,
+                    OriginalIndices.NONE));
+            hits.add(hit);
+        }
+        listener.onResponse(StubClient.searchResponse(hits, hits.size(), null));
+    }
+
+    private static Person person(String name, String address) {
+        Person person = new Person();
+        person.setName(name);
+        person.setAddress(address);
+        return person;
+    }
+}
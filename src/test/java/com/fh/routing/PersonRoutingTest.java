@@ -0,0 +1,132 @@
+package com.fh.routing;
+
+import com.fh.config.AsyncProperties;
+import com.fh.config.MultiSearchProperties;
+import com.fh.config.RoutingProperties;
+import com.fh.entity.Person;
+import com.fh.es.PersonCodec;
+import com.fh.es.PersonIndex;
+import com.fh.es.PersonQueryRewriter;
+import com.fh.es.PersonWriteEvents;
+import com.fh.partition.PersonPartitions;
+import com.fh.repository.PersonRepository;
+import com.fh.service.PersonMultiSearch;
+import com.fh.support.StubClient;
+import org.elasticsearch.action.OriginalIndices;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.SearchAction;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.common.document.DocumentField;
+import org.elasticsearch.common.text.Text;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchShardTarget;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * routing的计算、查询锁定分片与按id读写时自动带routing
+ */
+public class PersonRoutingTest {
+
+    private StubClient client;
+    private RoutingProperties properties;
+    private PersonRouting routing;
+
+    @Before
+    public void setUp() {
+        client = new StubClient();
+        properties = new RoutingProperties();
+        properties.setEnabled(true);
+        routing = new PersonRouting(properties);
+    }
+
+    @After
+    public void tearDown() {
+        client.close();
+    }
+
+    // 精确匹配routing字段的条件只查对应分片,其他条件查全部分片
+    @Test
+    public void test01() {
+        assertEquals("江苏省", routing.key("江苏省宿迁市"));
+        assertEquals("北京市", routing.key("北京市朝阳区"));
+        assertEquals("江苏省", routing.routing(QueryBuilders.termQuery("address.keyword", "江苏省宿迁市")));
+        assertEquals("北京市,江苏省", routing.routing(QueryBuilders.boolQuery()
+                .must(QueryBuilders.matchQuery("name", "zhangsan"))
+                .filter(QueryBuilders.termsQuery("address.keyword", "江苏省宿迁市", "北京市朝阳区"))));
+        assertEquals("江苏省", routing.routing(QueryBuilders.prefixQuery("address.keyword", "江苏省宿")));
+        // 分词字段上的匹配不能保证命中的文档routing相同
+        assertNull(routing.routing(QueryBuilders.matchQuery("address", "江苏省宿迁市")));
+        assertNull(routing.routing(QueryBuilders.prefixQuery("address.keyword", "江苏")));
+        assertNull(routing.routing(QueryBuilders.boolQuery()
+                .should(QueryBuilders.termQuery("address.keyword", "江苏省宿迁市"))
+                .should(QueryBuilders.termQuery("name", "lisi"))));
+        assertEquals("北京市,江苏省", routing.routing(QueryBuilders.boolQuery()
+                .should(QueryBuilders.termQuery("address.keyword", "江苏省宿迁市"))
+                .should(QueryBuilders.termQuery("address.keyword", "北京市朝阳区"))));
+        // 有must时should可选,命中的文档可以在任何分片
+        assertNull(routing.routing(QueryBuilders.boolQuery()
+                .must(QueryBuilders.matchQuery("name", "zhangsan"))
+                .should(QueryBuilders.termQuery("address.keyword", "江苏省宿迁市"))));
+        assertEquals("北京市", routing.routing(QueryBuilders.boolQuery()
+                .filter(QueryBuilders.termQuery("address.keyword", "北京市朝阳区"))
+                .should(QueryBuilders.termQuery("address.keyword", "江苏省宿迁市"))));
+    }
+
+    // 写入带上routing,之后按id读写沿用;本地不知道routing时先查一次,新写入的id也要查一次有没有在别的routing下
+    @Test
+    public void test02() {
+        Person other = new Person();
+        other.setAddress("北京市朝阳区");
+        client.index(new IndexRequest(PersonIndex.INDEX, PersonIndex.TYPE, "9").routing("北京市")
+                .source(PersonCodec.encode(other), XContentType.JSON)).actionGet();
+        List<SearchRequest> searches = new CopyOnWriteArrayList<>();
+        client.on(SearchAction.INSTANCE, (request, listener) -> {
+            searches.add(request);
+            if (!request.source().query().toString().contains("\"9\"")) {
+                listener.onResponse(StubClient.searchResponse(Collections.emptyList(), 0, null));
+                return;
+            }
+            SearchHit hit = new SearchHit(0, "9", new Text(PersonIndex.TYPE), Collections.singletonMap(
+                    PersonRouting.ROUTING_FIELD, new DocumentField(PersonRouting.ROUTING_FIELD,
+                            Collections.singletonList("北京市"))));
+            hit.shard(new SearchShardTarget("stub", new ShardId(PersonIndex.INDEX, "_na_", 0), null,
+                    OriginalIndices.NONE));
+            hit.sourceRef(PersonCodec.encode(other));
+            listener.onResponse(StubClient.searchResponse(Collections.singletonList(hit), 1, null));
+        });
+        PersonRepository repository = new PersonRepository(client, PersonWriteEvents.of(),
+                PersonPartitions.disabled(), routing, new PersonLocator(client, PersonPartitions.disabled(), routing,
+                properties), new PersonMultiSearch(client, new MultiSearchProperties()),
+                PersonQueryRewriter.disabled(), new AsyncProperties());
+        Person person = new Person();
+        person.setName("zhangsan");
+        person.setAddress("江苏省宿迁市");
+
+        repository.index("1", person).join();
+        repository.update("1", Collections.singletonMap("age", 30)).join();
+        assertEquals("江苏省", client.routing(PersonIndex.INDEX, "1"));
+        assertEquals(30, repository.get("1").join().getAge());
+        assertEquals(1, repository.multiGet(Arrays.asList("1")).join().size());
+        assertEquals(1, searches.size());
+
+        assertEquals("北京市朝阳区", repository.get("9").join().getAddress());
+        assertEquals(2, searches.size());
+        assertEquals("北京市", routing.known("9"));
+
+        repository.search(QueryBuilders.termQuery("address.keyword", "北京市朝阳区"), 0, 10).join();
+        assertEquals("北京市", searches.get(2).routing());
+    }
+}
@@ -0,0 +1,210 @@
+package com.fh.service;
+
+import com.fh.config.IndexerProperties;
+import com.fh.entity.Person;
+import com.fh.es.PersonIndex;
+import com.fh.es.PersonWriteEvent;
+import com.fh.es.PersonWriteEvents;
+import com.fh.partition.PersonPartitions;
+import com.fh.routing.PersonLocator;
+import com.fh.support.StubClient;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkAction;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 批量写入:按数量、大小、时间刷新,被拒绝条目的重试,条目失败和重试时写入事件与条目的对应
+ */
+public class PersonIndexerTest {
+
+    private StubClient client;
+    private IndexerProperties properties;
+    private PersonIndexer indexer;
+    private final List<PersonWriteEvent> published = Collections.synchronizedList(new ArrayList<>());
+
+    @Before
+    public void setUp() {
+        client = new StubClient();
+        properties = new IndexerProperties();
+        properties.setFlushInterval(Duration.ofMinutes(1));
+        properties.setRetryInitialDelay(Duration.ofMillis(1));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (indexer != null) {
+            indexer.close();
+        }
+        client.close();
+    }
+
+    // 同一bulk里同一id的多个写入只有部分成功时,只发布成功的写入;重试成功的条目在重试后发布
+    @Test
+    public void test01() throws Exception {
+        Set<DocWriteRequest<?>> rejected = ConcurrentHashMap.newKeySet();
+        client.on(BulkAction.INSTANCE, (request, listener) -> {
+            BulkItemResponse[] items = new BulkItemResponse[request.numberOfActions()];
+            for (int i = 0; i < items.length; i++) {
+                DocWriteRequest<?> item = request.requests().get(i);
+                Object name = item instanceof UpdateRequest ? ((UpdateRequest) item).doc().sourceAsMap().get("name")
+                        : null;
+                if ("bad".equals(name)) {
+                    items[i] = failure(i, item, new IllegalArgumentException("mapper_parsing_exception"));
+                } else if ("busy".equals(name) && rejected.add(item)) {
+                    items[i] = failure(i, item, new EsRejectedExecutionException("bulk queue is full"));
+                } else {
+                    items[i] = new BulkItemResponse(i, item.opType(),
+                            client.applyBulk(new BulkRequest().add(item)).getItems()[0].getResponse());
+                }
+            }
+            listener.onResponse(new BulkResponse(items, 1));
+        });
+        // 同步发送,第一批重试完成后才发第二批
+        properties.setConcurrentRequests(0);
+        start();
+
+        // 只有被拒绝的条目失败时才重试
+        indexer.index("x", person("first"));
+        indexer.update("x", Collections.singletonMap("name", "busy"));
+        indexer.delete("y");
+        indexer.flush();
+        indexer.update("x", Collections.singletonMap("name", "bad"));
+        indexer.update("x", Collections.singletonMap("name", "last"));
+        indexer.close();
+
+        assertEquals(4, published.size());
+        assertEquals(PersonWriteEvent.Type.INDEX, published.get(0).getType());
+        assertEquals(PersonWriteEvent.Type.DELETE, published.get(1).getType());
+        // 被拒绝的修改在重试成功后才发布
+        assertEquals(PersonWriteEvent.Type.UPDATE, published.get(2).getType());
+        assertEquals("busy", published.get(2).getChanges().get("name"));
+        // 失败的修改不发布
+        assertEquals("last", published.get(3).getChanges().get("name"));
+        assertEquals(4, indexer.getSucceeded());
+        assertEquals(1, indexer.getFailed());
+        assertEquals("last", client.source(PersonIndex.INDEX, "x").get("name"));
+    }
+
+    // 攒满bulkActions条立即发送,剩下的在关闭时发送;每条写入成功后发布一次事件
+    @Test
+    public void test02() throws Exception {
+        properties.setBulkActions(3);
+        start();
+        for (int i = 0; i < 7; i++) {
+            indexer.index(String.valueOf(i), person("person" + i));
+        }
+        assertEquals(2, client.calls(BulkAction.INSTANCE));
+        indexer.close();
+
+        assertEquals(3, client.calls(BulkAction.INSTANCE));
+        assertEquals(3, indexer.getBulks());
+        assertEquals(7, indexer.getSubmitted());
+        assertEquals(7, indexer.getSucceeded());
+        assertEquals(7, client.documents(PersonIndex.INDEX).size());
+        assertEquals(7, published.size());
+    }
+
+    // 缓冲超过bulkSizeBytes立即发送
+    @Test
+    public void test03() throws Exception {
+        properties.setBulkSizeBytes(1);
+        start();
+        for (int i = 0; i < 3; i++) {
+            indexer.index(String.valueOf(i), person("person" + i));
+        }
+        assertEquals(3, client.calls(BulkAction.INSTANCE));
+        indexer.close();
+        assertEquals(3, indexer.getSucceeded());
+    }
+
+    // 数量和大小都不够时按flushInterval定时发送
+    @Test
+    public void test04() throws Exception {
+        properties.setFlushInterval(Duration.ofMillis(50));
+        start();
+        indexer.index("1", person("a"));
+        indexer.delete("2");
+        assertEquals(0, client.calls(BulkAction.INSTANCE));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (published.size() < 2 && System.currentTimeMillis() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+        assertEquals(1, client.calls(BulkAction.INSTANCE));
+        assertEquals(2, published.size());
+        assertEquals("a", client.source(PersonIndex.INDEX, "1").get("name"));
+    }
+
+    // 被拒绝的条目退避后重试,成功后只发布一次;超过重试次数的条目计为失败,不发布
+    @Test
+    public void test05() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        AtomicInteger rejections = new AtomicInteger(2);
+        client.on(BulkAction.INSTANCE, (request, listener) -> {
+            attempts.incrementAndGet();
+            if (rejections.getAndDecrement() > 0) {
+                BulkItemResponse[] items = new BulkItemResponse[request.numberOfActions()];
+                for (int i = 0; i < items.length; i++) {
+                    items[i] = failure(i, request.requests().get(i),
+                            new EsRejectedExecutionException("bulk queue is full"));
+                }
+                listener.onResponse(new BulkResponse(items, 1));
+            } else {
+                listener.onResponse(client.applyBulk(request));
+            }
+        });
+        properties.setConcurrentRequests(0);
+        properties.setMaxRetries(2);
+        start();
+        for (int i = 0; i < 3; i++) {
+            indexer.index(String.valueOf(i), person("person" + i));
+        }
+        indexer.flush();
+        assertEquals(3, attempts.get());
+        assertEquals(1, indexer.getBulks());
+        assertEquals(3, indexer.getSucceeded());
+        assertEquals(3, published.size());
+
+        // 重试次数用完仍被拒绝
+        rejections.set(3);
+        indexer.delete("0");
+        indexer.flush();
+        assertEquals(6, attempts.get());
+        assertEquals(1, indexer.getFailed());
+        assertEquals(3, published.size());
+        assertEquals(3, client.documents(PersonIndex.INDEX).size());
+    }
+
+    private void start() {
+        indexer = new PersonIndexer(client, properties, PersonWriteEvents.of(published::add),
+                PersonPartitions.disabled(), PersonLocator.disabled());
+    }
+
+    private static Person person(String name) {
+        Person person = new Person();
+        person.setName(name);
+        return person;
+    }
+
+    private static BulkItemResponse failure(int position, DocWriteRequest<?> item, Exception cause) {
+        return new BulkItemResponse(position, item.opType(),
+                new BulkItemResponse.Failure(item.index(), item.type(), item.id(), cause));
+    }
+}
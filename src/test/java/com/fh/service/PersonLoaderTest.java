@@ -0,0 +1,131 @@
+package com.fh.service;
+
+import com.fh.config.LoaderProperties;
+import com.fh.config.NgramProperties;
+import com.fh.config.PartitionProperties;
+import com.fh.entity.Person;
+import com.fh.es.PersonIndex;
+import com.fh.partition.PersonPartitions;
+import com.fh.routing.PersonRouting;
+import com.fh.support.StubClient;
+import org.elasticsearch.action.get.MultiGetAction;
+import org.elasticsearch.action.search.SearchAction;
+import org.elasticsearch.index.query.IdsQueryBuilder;
+import org.elasticsearch.search.SearchHit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * 并发按id读取合并成multiGet
+ */
+public class PersonLoaderTest {
+
+    private StubClient client;
+    private PersonLoader loader;
+
+    @Before
+    public void setUp() {
+        client = new StubClient();
+        for (int i = 0; i < 10; i++) {
+            client.put(PersonIndex.INDEX, String.valueOf(i), Collections.singletonMap("name", "person" + i));
+        }
+        LoaderProperties properties = new LoaderProperties();
+        properties.setMaxBatchSize(10);
+        properties.setMaxDelay(Duration.ofSeconds(10));
+        loader = new PersonLoader(client, properties, PersonRouting.disabled(), PersonPartitions.disabled());
+    }
+
+    @After
+    public void tearDown() {
+        loader.close();
+        client.close();
+    }
+
+    // 多个线程同时读取,攒满一批后只发一次multiGet,每个调用方拿到自己的结果
+    @Test
+    public void test01() throws Exception {
+        ExecutorService threads = Executors.newFixedThreadPool(10);
+        CountDownLatch start = new CountDownLatch(1);
+        List<CompletableFuture<CompletableFuture<Person>>> calls = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            String id = String.valueOf(i);
+            calls.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                return loader.get(id);
+            }, threads));
+        }
+        start.countDown();
+        for (int i = 0; i < 10; i++) {
+            assertEquals("person" + i, calls.get(i).get().get().getName());
+        }
+        threads.shutdown();
+
+        assertEquals(1, client.calls(MultiGetAction.INSTANCE));
+        assertEquals(10.0, loader.batcher().getAverageBatchSize(), 0.0);
+    }
+
+    // 重复的id只读一次,不存在的文档结果为null
+    @Test
+    public void test02() throws Exception {
+        CompletableFuture<Map<String, Person>> all = loader.getAll(Arrays.asList("1", "2", "1", "404"));
+        CompletableFuture<Person> missing = loader.get("404");
+        loader.batcher().flush();
+
+        Map<String, Person> persons = all.get();
+        assertEquals(Arrays.asList("1", "2"), new ArrayList<>(persons.keySet()));
+        assertNull(missing.get());
+        assertEquals(2, loader.batcher().getDeduplicated());
+        assertEquals(3.0, loader.batcher().getAverageBatchSize(), 0.0);
+    }
+
+    // 开启分区后不用mget,一批id用一次ids查询读别名
+    @Test
+    public void test03() throws Exception {
+        PartitionProperties partition = new PartitionProperties();
+        partition.setEnabled(true);
+        List<String> searched = new ArrayList<>();
+        client.on(SearchAction.INSTANCE, (request, listener) -> {
+            searched.addAll(Arrays.asList(request.indices()));
+            List<SearchHit> hits = new ArrayList<>();
+            for (String id : ((IdsQueryBuilder) request.source().query()).ids()) {
+                Map<String, Object> source = client.source(PersonIndex.INDEX, id);
+                if (source != null) {
+                    hits.add(StubClient.hit(id, source));
+                }
+            }
+            listener.onResponse(StubClient.searchResponse(hits, hits.size(), null));
+        });
+        LoaderProperties properties = new LoaderProperties();
+        properties.setMaxBatchSize(2);
+        properties.setMaxDelay(Duration.ofSeconds(10));
+        PersonLoader partitioned = new PersonLoader(client, properties, PersonRouting.disabled(),
+                new PersonPartitions(client, partition, new NgramProperties()));
+        try {
+            Map<String, Person> persons = partitioned.getAll(Arrays.asList("3", "404")).get();
+            assertEquals(Collections.singletonList("3"), new ArrayList<>(persons.keySet()));
+            assertEquals(Collections.singletonList("lib-read"), searched);
+            assertEquals(0, client.calls(MultiGetAction.INSTANCE));
+        } finally {
+            partitioned.close();
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.fh.service;
+
+import com.fh.config.MultiSearchProperties;
+import com.fh.es.PersonIndex;
+import com.fh.support.StubClient;
+import org.elasticsearch.ElasticsearchTimeoutException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.action.search.MultiSearchAction;
+import org.elasticsearch.action.search.MultiSearchRequest;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 并发查询合并成multiSearch,单个查询的失败和超时互不影响
+ */
+public class PersonMultiSearchTest {
+
+    private StubClient client;
+    private PersonMultiSearch multiSearch;
+
+    @Before
+    public void setUp() {
+        client = new StubClient();
+        MultiSearchProperties properties = new MultiSearchProperties();
+        properties.setEnabled(true);
+        properties.setMaxBatchSize(10);
+        properties.setWindow(Duration.ofSeconds(10));
+        properties.setTimeout(Duration.ZERO);
+        multiSearch = new PersonMultiSearch(client, properties);
+    }
+
+    @After
+    public void tearDown() {
+        multiSearch.close();
+        client.close();
+    }
+
+    // 以size区分每个查询,size为3的一项在es端失败
+    private static SearchRequest request(int size) {
+        return new SearchRequest(PersonIndex.INDEX)
+                .source(new SearchSourceBuilder().query(QueryBuilders.termQuery("age", size)).size(size));
+    }
+
+    // 10个并发查询只发一次multiSearch,出错的一项只让它自己的调用方失败
+    @Test
+    public void test01() throws Exception {
+        client.on(MultiSearchAction.INSTANCE, (request, listener) -> {
+            List<MultiSearchResponse.Item> items = new ArrayList<>();
+            for (SearchRequest search : request.requests()) {
+                int size = search.source().size();
+                items.add(size == 3
+                        ? new MultiSearchResponse.Item(null, new IllegalArgumentException("bad query"))
+                        : new MultiSearchResponse.Item(
+                                StubClient.searchResponse(Collections.emptyList(), size, null), null));
+            }
+            listener.onResponse(new MultiSearchResponse(items.toArray(new MultiSearchResponse.Item[0])));
+        });
+        ExecutorService threads = Executors.newFixedThreadPool(10);
+        CountDownLatch start = new CountDownLatch(1);
+        List<CompletableFuture<CompletableFuture<SearchResponse>>> calls = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            int size = i;
+            calls.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                return multiSearch.search(request(size));
+            }, threads));
+        }
+        start.countDown();
+        for (int i = 0; i < 10; i++) {
+            CompletableFuture<SearchResponse> result = calls.get(i).get();
+            if (i == 3) {
+                try {
+                    result.join();
+                    fail();
+                } catch (CompletionException e) {
+                    assertTrue(e.getCause() instanceof IllegalArgumentException);
+                }
+            } else {
+                assertEquals(i, result.join().getHits().getTotalHits());
+            }
+        }
+        threads.shutdown();
+
+        assertEquals(1, client.calls(MultiSearchAction.INSTANCE));
+        assertEquals(1, multiSearch.getFailed());
+    }
+
+    // 超时的查询先失败,同一批的其他查询照常等结果;校验不通过的查询不进入批次;超时写在发出的副本上
+    @Test
+    public void test02() {
+        List<ActionListener<MultiSearchResponse>> held = new CopyOnWriteArrayList<>();
+        List<MultiSearchRequest> sent = new CopyOnWriteArrayList<>();
+        client.on(MultiSearchAction.INSTANCE, (request, listener) -> {
+            sent.add(request);
+            held.add(listener);
+        });
+
+        SearchRequest invalid = new SearchRequest(PersonIndex.INDEX).scroll(TimeValue.timeValueMinutes(1))
+                .source(new SearchSourceBuilder().size(0));
+        try {
+            multiSearch.search(invalid).join();
+            fail();
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof ActionRequestValidationException);
+        }
+
+        SearchRequest limited = request(1);
+        CompletableFuture<SearchResponse> slow = multiSearch.search(limited, Duration.ofMillis(50));
+        CompletableFuture<SearchResponse> patient = multiSearch.search(request(2));
+        multiSearch.batcher().flush();
+        try {
+            slow.join();
+            fail();
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof ElasticsearchTimeoutException);
+        }
+        assertEquals(TimeValue.timeValueMillis(50), sent.get(0).requests().get(0).source().timeout());
+        assertEquals(limited.source().query(), sent.get(0).requests().get(0).source().query());
+        assertNull(limited.source().timeout());
+        assertFalse(patient.isDone());
+        assertEquals(1, multiSearch.getTimedOut());
+
+        held.get(0).onResponse(new MultiSearchResponse(new MultiSearchResponse.Item[]{
+                new MultiSearchResponse.Item(StubClient.searchResponse(Collections.emptyList(), 1, null), null),
+                new MultiSearchResponse.Item(StubClient.searchResponse(Collections.emptyList(), 2, null), null)}));
+        assertEquals(2, patient.join().getHits().getTotalHits());
+        assertEquals(1, client.calls(MultiSearchAction.INSTANCE));
+    }
+}
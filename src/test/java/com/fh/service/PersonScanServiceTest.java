@@ -0,0 +1,108 @@
+package com.fh.service;
+
+import com.fh.config.ScanProperties;
+import com.fh.partition.PersonPartitions;
+import com.fh.support.StubClient;
+import org.elasticsearch.action.search.ClearScrollAction;
+import org.elasticsearch.action.search.ClearScrollResponse;
+import org.elasticsearch.action.search.SearchAction;
+import org.elasticsearch.action.search.SearchScrollAction;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.text.Text;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 命中的_source按NDJSON流式写出
+ */
+public class PersonScanServiceTest {
+
+    private StubClient client;
+    private PersonScanService service;
+    private List<List<SearchHit>> pages;
+
+    @Before
+    public void setUp() {
+        client = new StubClient();
+        // scroll id为下一页的页号
+        client.on(SearchAction.INSTANCE, (request, listener) ->
+                listener.onResponse(StubClient.searchResponse(pages.get(0), total(), "1")));
+        client.on(SearchScrollAction.INSTANCE, (request, listener) -> {
+            int page = Integer.parseInt(request.scrollId());
+            listener.onResponse(StubClient.searchResponse(pages.get(page), total(), String.valueOf(page + 1)));
+        });
+        client.on(ClearScrollAction.INSTANCE, (request, listener) ->
+                listener.onResponse(new ClearScrollResponse(true, 1)));
+        service = new PersonScanService(client, new ScanProperties(), PersonPartitions.disabled());
+    }
+
+    @After
+    public void tearDown() {
+        service.shutdown();
+        client.close();
+    }
+
+    // 单行json原样写出,格式化过的json和二进制格式转成单行json,每页flush一次
+    @Test
+    public void test01() throws IOException {
+        pages = Arrays.asList(
+                Arrays.asList(hit("1", new BytesArray("{\"name\":\"张三\",\"age\":20}")),
+                        hit("2", new BytesArray("{\n  \"name\" : \"李四\",\n  \"age\" : 30\n}"))),
+                Collections.singletonList(hit("3", BytesReference.bytes(XContentFactory.smileBuilder()
+                        .startObject().field("name", "王五").field("age", 40).endObject()))));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        List<Integer> flushedAt = new ArrayList<>();
+        long written = service.writeSources(QueryBuilders.matchAllQuery(), Long.MAX_VALUE,
+                new FilterOutputStream(bytes) {
+                    @Override
+                    public void flush() throws IOException {
+                        flushedAt.add(bytes.size());
+                        super.flush();
+                    }
+                });
+
+        assertEquals(3, written);
+        String expected = "{\"name\":\"张三\",\"age\":20}\n"
+                + "{\"name\":\"李四\",\"age\":30}\n"
+                + "{\"name\":\"王五\",\"age\":40}\n";
+        assertEquals(expected, new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+        assertEquals(2, flushedAt.size());
+    }
+
+    // 达到limit后停止,不再取后面的页
+    @Test
+    public void test02() throws IOException {
+        pages = Arrays.asList(
+                Arrays.asList(hit("1", new BytesArray("{\"age\":1}")), hit("2", new BytesArray("{\"age\":2}"))),
+                Collections.singletonList(hit("3", new BytesArray("{\"age\":3}"))));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        assertEquals(1, service.writeSources(QueryBuilders.matchAllQuery(), 1, bytes));
+        assertEquals("{\"age\":1}\n", new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    private long total() {
+        return pages.stream().mapToLong(List::size).sum();
+    }
+
+    private static SearchHit hit(String id, BytesReference source) {
+        SearchHit hit = new SearchHit(0, id, new Text("_doc"), Collections.emptyMap());
+        hit.sourceRef(source);
+        return hit;
+    }
+}
@@ -0,0 +1,116 @@
+package com.fh.service;
+
+import com.fh.config.StatsProperties;
+import com.fh.partition.PersonPartitions;
+import com.fh.stats.AgeRollup;
+import com.fh.stats.StatsRequest;
+import com.fh.stats.StatsRequest.Metric;
+import com.fh.stats.StatsResult;
+import com.fh.support.StubClient;
+import org.elasticsearch.action.search.SearchAction;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.index.query.MatchAllQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.DocValueFormat;
+import org.elasticsearch.search.aggregations.AggregationBuilder;
+import org.elasticsearch.search.aggregations.InternalAggregation;
+import org.elasticsearch.search.aggregations.InternalAggregations;
+import org.elasticsearch.search.aggregations.metrics.stats.InternalStats;
+import org.elasticsearch.search.aggregations.metrics.stats.extended.InternalExtendedStats;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * 多个统计指标合并成一次查询
+ */
+public class PersonStatsServiceTest {
+
+    private StubClient client;
+    private final List<SearchRequest> requests = Collections.synchronizedList(new ArrayList<>());
+
+    @Before
+    public void setUp() {
+        client = new StubClient();
+        // age为20、30、40三条文档的统计结果
+        client.on(SearchAction.INSTANCE, (request, listener) -> {
+            requests.add(request);
+            List<InternalAggregation> aggregations = new ArrayList<>();
+            for (AggregationBuilder builder : request.source().aggregations().getAggregatorFactories()) {
+                aggregations.add("extended_stats".equals(builder.getType())
+                        ? new InternalExtendedStats(builder.getName(), 3, 90, 20, 40, 2900, 2, DocValueFormat.RAW,
+                        Collections.emptyList(), null)
+                        : new InternalStats(builder.getName(), 3, 90, 20, 40, DocValueFormat.RAW,
+                        Collections.emptyList(), null));
+            }
+            listener.onResponse(StubClient.searchResponse(Collections.emptyList(), 3, null,
+                    new InternalAggregations(aggregations)));
+        });
+    }
+
+    @After
+    public void tearDown() {
+        client.close();
+    }
+
+    private PersonStatsService service(Duration freshness) {
+        StatsProperties properties = new StatsProperties();
+        properties.setMergeWindow(Duration.ofSeconds(10));
+        properties.setFreshness(freshness);
+        return new PersonStatsService(client, properties, AgeRollup.disabled(), PersonPartitions.disabled());
+    }
+
+    // 同一filter的不同指标合并为一次size=0查询,需要方差时升级为extended_stats
+    @Test
+    public void test01() {
+        PersonStatsService service = service(Duration.ZERO);
+        CompletableFuture<StatsResult> minMax = service.stats(StatsRequest.builder()
+                .field("age").metric(Metric.MIN).metric(Metric.MAX).build());
+        CompletableFuture<StatsResult> variance = service.stats(StatsRequest.builder()
+                .field("age").metric(Metric.AVG).metric(Metric.VARIANCE).build());
+        CompletableFuture<StatsResult> filtered = service.stats(StatsRequest.builder()
+                .filter(QueryBuilders.rangeQuery("age").gte(23)).field("age").metric(Metric.SUM).build());
+        service.batcher().flush();
+
+        assertEquals(20.0, minMax.join().get(Metric.MIN), 0.0);
+        assertEquals(40.0, minMax.join().get(Metric.MAX), 0.0);
+        assertEquals(30.0, variance.join().get(Metric.AVG), 0.0);
+        assertFalse(minMax.join().getValues().containsKey(Metric.AVG));
+        assertEquals(90.0, filtered.join().get(Metric.SUM), 0.0);
+
+        // 两个不同的filter各一次查询
+        assertEquals(2, requests.size());
+        SearchRequest all = requests.stream()
+                .filter(r -> r.source().query() instanceof MatchAllQueryBuilder).findFirst().get();
+        assertEquals(0, all.source().size());
+        assertEquals("extended_stats", all.source().aggregations().getAggregatorFactories().get(0).getType());
+        service.close();
+    }
+
+    // 相同请求加入正在进行的查询,开启缓存后窗口内不再查询
+    @Test
+    public void test02() {
+        PersonStatsService service = service(Duration.ofMinutes(1));
+        StatsRequest request = StatsRequest.builder().field("age").metric(Metric.COUNT).build();
+        CompletableFuture<StatsResult> first = service.stats(request);
+        CompletableFuture<StatsResult> second = service.stats(request);
+        service.batcher().flush();
+
+        assertEquals(3.0, first.join().get(Metric.COUNT), 0.0);
+        assertEquals(first.join(), second.join());
+        assertEquals(1, service.batcher().getSubmitted());
+
+        assertEquals(first.join(), service.statsNow(request));
+        assertEquals(1, requests.size());
+        service.close();
+    }
+}
@@ -0,0 +1,269 @@
+package com.fh.stats;
+
+import com.fh.config.RollupProperties;
+import com.fh.config.ScanProperties;
+import com.fh.config.StatsProperties;
+import com.fh.entity.Person;
+import com.fh.es.PersonIndex;
+import com.fh.es.PersonWriteEvent;
+import com.fh.partition.PersonPartitions;
+import com.fh.service.PersonStatsService;
+import com.fh.stats.StatsRequest.Metric;
+import com.fh.support.StubClient;
+import org.elasticsearch.action.admin.indices.refresh.RefreshAction;
+import org.elasticsearch.action.search.ClearScrollAction;
+import org.elasticsearch.action.search.ClearScrollResponse;
+import org.elasticsearch.action.search.SearchAction;
+import org.elasticsearch.action.search.SearchScrollAction;
+import org.elasticsearch.search.DocValueFormat;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.aggregations.BucketOrder;
+import org.elasticsearch.search.aggregations.InternalAggregation;
+import org.elasticsearch.search.aggregations.InternalAggregations;
+import org.elasticsearch.search.aggregations.bucket.terms.LongTerms;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * age统计本地汇总的构建、增量维护与核对
+ */
+public class AgeRollupTest {
+
+    private StubClient client;
+    private AgeRollup rollup;
+    // 扫描的两页结果
+    private List<SearchHit> firstPage;
+    private List<SearchHit> secondPage;
+    // 取第二页时执行,模拟扫描期间的写入
+    private Runnable duringScan = () -> { };
+    // 核对时es聚合返回的age -> 文档数,以及总文档数
+    private Map<Long, Long> esCounts = new LinkedHashMap<>();
+    private long esTotal;
+    private Runnable duringRefresh = () -> { };
+
+    @Before
+    public void setUp() {
+        client = new StubClient();
+        // 1:20 2:30 3:30 4:没有age
+        firstPage = Arrays.asList(hit("1", 20), hit("2", 30));
+        secondPage = Arrays.asList(hit("3", 30), hit("4", null));
+        client.on(SearchAction.INSTANCE, (request, listener) -> {
+            if (request.source().size() == 0) {
+                listener.onResponse(StubClient.searchResponse(Collections.emptyList(), esTotal, null,
+                        new InternalAggregations(Collections.singletonList(terms()))));
+                return;
+            }
+            listener.onResponse(StubClient.searchResponse(firstPage, firstPage.size() + secondPage.size(), "1"));
+        });
+        client.on(SearchScrollAction.INSTANCE, (request, listener) -> {
+            duringScan.run();
+            listener.onResponse(StubClient.searchResponse(secondPage, firstPage.size() + secondPage.size(), "2"));
+        });
+        client.on(ClearScrollAction.INSTANCE, (request, listener) ->
+                listener.onResponse(new ClearScrollResponse(true, 1)));
+        client.on(RefreshAction.INSTANCE, (request, listener) -> {
+            duringRefresh.run();
+            listener.onResponse(null);
+        });
+
+        RollupProperties properties = new RollupProperties();
+        properties.setEnabled(true);
+        properties.setMaxAge(100);
+        rollup = new AgeRollup(client, properties, new ScanProperties(), PersonPartitions.disabled());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        rollup.stop();
+        client.close();
+    }
+
+    // 扫描后的统计,没有age的文档只计入总数
+    @Test
+    public void test01() {
+        assertFalse(rollup.isReady());
+        rollup.reload();
+        assertTrue(rollup.isReady());
+
+        StatsResult result = rollup.stats(all());
+        assertEquals(4, result.getTotal());
+        assertEquals(3, result.get(Metric.COUNT), 0);
+        assertEquals(20, result.get(Metric.MIN), 0);
+        assertEquals(30, result.get(Metric.MAX), 0);
+        assertEquals(80, result.get(Metric.SUM), 0);
+        assertEquals(80 / 3.0, result.get(Metric.AVG), 1e-9);
+        assertEquals((20 * 20 + 2 * 30 * 30 - 80 * 80 / 3.0) / 3, result.get(Metric.VARIANCE), 1e-9);
+        assertEquals(2, result.get(Metric.CARDINALITY), 0);
+        Map<String, Long> buckets = new LinkedHashMap<>();
+        buckets.put("30", 2L);
+        buckets.put("20", 1L);
+        assertEquals(buckets, result.getBuckets());
+    }
+
+    // 新增、覆盖、局部修改、删除和upsert都按旧age增减
+    @Test
+    public void test02() {
+        rollup.reload();
+        rollup.onWrite(PersonWriteEvent.index(PersonIndex.INDEX, "5", person(40)));
+        rollup.onWrite(PersonWriteEvent.index(PersonIndex.INDEX, "1", person(25)));
+        rollup.onWrite(PersonWriteEvent.update(PersonIndex.INDEX, "2", Collections.singletonMap("age", 31)));
+        rollup.onWrite(PersonWriteEvent.update(PersonIndex.INDEX, "3", Collections.singletonMap("name", "lisi")));
+        rollup.onWrite(PersonWriteEvent.delete(PersonIndex.INDEX, "3"));
+        rollup.onWrite(PersonWriteEvent.delete(PersonIndex.INDEX, "404"));
+        rollup.onWrite(PersonWriteEvent.upsert(PersonIndex.INDEX, "6", Collections.singletonMap("age", 99), person(50)));
+        rollup.onWrite(PersonWriteEvent.upsert(PersonIndex.INDEX, "1", Collections.singletonMap("age", 26), person(0)));
+        // 超出数组范围的age
+        rollup.onWrite(PersonWriteEvent.index(PersonIndex.INDEX, "7", person(200)));
+        rollup.onWrite(PersonWriteEvent.index(PersonIndex.INDEX, "8", person(-1)));
+
+        StatsResult result = rollup.stats(all());
+        Map<String, Long> buckets = new LinkedHashMap<>();
+        for (String age : new String[]{"-1", "26", "31", "40", "50", "200"}) {
+            buckets.put(age, 1L);
+        }
+        assertEquals(buckets, result.getBuckets());
+        assertEquals(7, result.getTotal());
+        assertEquals(-1 + 26 + 31 + 40 + 50 + 200, result.get(Metric.SUM), 0);
+        assertEquals(-1, result.get(Metric.MIN), 0);
+        assertEquals(200, result.get(Metric.MAX), 0);
+        assertEquals(0, rollup.getUnknownUpdates());
+
+        // 扫描时不存在的文档,不知道旧age
+        rollup.onWrite(PersonWriteEvent.update(PersonIndex.INDEX, "404", Collections.singletonMap("age", 1)));
+        assertEquals(1, rollup.getUnknownUpdates());
+        assertEquals(6, rollup.stats(all()).get(Metric.CARDINALITY), 0);
+    }
+
+    // 扫描期间的写入在新结果上重放,扫描已经看到的写入不重复计数
+    @Test
+    public void test03() {
+        secondPage = Arrays.asList(hit("3", 30), hit("4", null), hit("5", 70));
+        duringScan = () -> {
+            rollup.onWrite(PersonWriteEvent.index(PersonIndex.INDEX, "2", person(60)));
+            rollup.onWrite(PersonWriteEvent.index(PersonIndex.INDEX, "5", person(70)));
+            rollup.onWrite(PersonWriteEvent.delete(PersonIndex.INDEX, "1"));
+        };
+        rollup.reload();
+
+        Map<String, Long> buckets = new LinkedHashMap<>();
+        buckets.put("30", 1L);
+        buckets.put("60", 1L);
+        buckets.put("70", 1L);
+        assertEquals(buckets, rollup.stats(all()).getBuckets());
+        assertEquals(4, rollup.stats(all()).getTotal());
+    }
+
+    // 与es一致时不修正,不一致时以es为准,核对期间有写入时跳过
+    @Test
+    public void test04() {
+        rollup.reload();
+        esCounts.put(30L, 2L);
+        esCounts.put(20L, 1L);
+        esTotal = 4;
+        assertFalse(rollup.reconcile());
+        assertEquals(0, rollup.getCorrections());
+
+        esCounts.put(30L, 1L);
+        esCounts.put(45L, 3L);
+        esTotal = 5;
+        duringRefresh = () -> rollup.onWrite(PersonWriteEvent.update(PersonIndex.INDEX, "1",
+                Collections.singletonMap("name", "lisi")));
+        assertFalse(rollup.reconcile());
+        assertEquals(1, rollup.getSkippedReconciles());
+
+        duringRefresh = () -> { };
+        // 修正后会在后台重新扫描,扫描结果与es一致
+        secondPage = Arrays.asList(hit("5", 45), hit("6", 45), hit("7", 45));
+        assertTrue(rollup.reconcile());
+        assertEquals(1, rollup.getCorrections());
+        Map<String, Long> buckets = new LinkedHashMap<>();
+        buckets.put("45", 3L);
+        buckets.put("20", 1L);
+        buckets.put("30", 1L);
+        StatsResult result = rollup.stats(all());
+        assertEquals(buckets, result.getBuckets());
+        assertEquals(5, result.getTotal());
+    }
+
+    // 全库的age统计不查es,带filter的仍然查es
+    @Test
+    public void test05() {
+        rollup.reload();
+        StatsProperties properties = new StatsProperties();
+        PersonStatsService service = new PersonStatsService(client, properties, rollup, PersonPartitions.disabled());
+        try {
+            int searches = client.calls(SearchAction.INSTANCE);
+            StatsResult result = service.statsNow(all());
+            assertEquals(30, result.get(Metric.MAX), 0);
+            assertEquals(searches, client.calls(SearchAction.INSTANCE));
+
+            assertFalse(rollup.canServe(StatsRequest.builder().field("age").metric(Metric.MAX)
+                    .filter(org.elasticsearch.index.query.QueryBuilders.termQuery("name", "zhangsan")).build()));
+            assertFalse(rollup.canServe(StatsRequest.builder().field("age").metric(Metric.MAX)
+                    .termsField("address.keyword").build()));
+            assertFalse(AgeRollup.disabled().canServe(all()));
+        } finally {
+            service.close();
+        }
+    }
+
+    // id表在删除和扩容后仍能找到全部id
+    @Test
+    public void test06() {
+        IdAgeMap map = new IdAgeMap(0);
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(IdAgeMap.NONE, map.put("id-" + i, i));
+        }
+        for (int i = 0; i < 10000; i += 2) {
+            assertEquals(i, map.remove("id-" + i));
+        }
+        assertEquals(5000, map.size());
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(i % 2 == 0 ? IdAgeMap.NONE : i, map.get("id-" + i));
+        }
+        assertEquals(1, map.put("id-1", 2));
+        assertEquals(IdAgeMap.NONE, map.remove("id-0"));
+    }
+
+    private static StatsRequest all() {
+        return StatsRequest.builder().field("age").termsField("age").termsSize(100)
+                .metric(Metric.COUNT).metric(Metric.MIN).metric(Metric.MAX).metric(Metric.SUM).metric(Metric.AVG)
+                .metric(Metric.VARIANCE).metric(Metric.CARDINALITY).build();
+    }
+
+    private InternalAggregation terms() {
+        List<LongTerms.Bucket> buckets = new ArrayList<>();
+        esCounts.forEach((age, count) ->
+                buckets.add(new LongTerms.Bucket(age, count, InternalAggregations.EMPTY, false, 0, DocValueFormat.RAW)));
+        return new LongTerms(AgeRollup.FIELD, BucketOrder.count(false), 1000, 1, Collections.emptyList(), null,
+                DocValueFormat.RAW, 1000, false, 0, buckets, 0);
+    }
+
+    private static SearchHit hit(String id, Integer age) {
+        Map<String, Object> source = new HashMap<>();
+        if (age != null) {
+            source.put("age", age);
+        }
+        return StubClient.hit(id, source);
+    }
+
+    private static Person person(int age) {
+        Person person = new Person();
+        person.setName("zhangsan");
+        person.setAge(age);
+        return person;
+    }
+}
@@ -0,0 +1,121 @@
+package com.fh.suggest;
+
+import com.fh.config.SuggestProperties;
+import com.fh.entity.Person;
+import com.fh.es.PersonIndex;
+import com.fh.es.PersonWriteEvent;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 本地联想词索引的前缀查询、增量合并与重建
+ */
+public class PersonSuggesterTest {
+
+    private SimpleMeterRegistry registry;
+    private PersonSuggester suggester;
+
+    @Before
+    public void setUp() {
+        SuggestProperties properties = new SuggestProperties();
+        properties.setEnabled(true);
+        registry = new SimpleMeterRegistry();
+        suggester = new PersonSuggester(properties, null, registry);
+        suggester.rebuild(Stream.of(
+                person("张三", "江苏省宿迁市"),
+                person("张三", "江苏省南京市"),
+                person("张三丰", "江苏省南京市"),
+                person("张无忌", "浙江省杭州市"),
+                person("Tom", "上海市浦东新区")));
+    }
+
+    // 按文档数从多到少返回前缀相同的取值,包括中文
+    @Test
+    public void test01() {
+        assertEquals(Arrays.asList("张三", "张三丰", "张无忌"), texts(suggester.suggest("name", "张")));
+        assertEquals(2, suggester.suggest("name", "张").get(0).getWeight());
+        assertEquals(Arrays.asList("江苏省南京市", "江苏省宿迁市"), texts(suggester.suggest("address", "江苏")));
+        assertEquals(Collections.singletonList("张三"), texts(suggester.suggest("name", "张", 1)));
+        assertTrue(suggester.suggest("name", "李").isEmpty());
+        assertTrue(suggester.suggest("name", "").isEmpty());
+    }
+
+    // 前缀不区分大小写,返回原始取值
+    @Test
+    public void test02() {
+        assertEquals(Collections.singletonList("Tom"), texts(suggester.suggest("name", "to")));
+        assertEquals(Collections.singletonList("Tom"), texts(suggester.suggest("name", "TO")));
+    }
+
+    // 写入的新取值立即可查,已有取值的权重与FST中的累加
+    @Test
+    public void test03() {
+        suggester.onWrite(PersonWriteEvent.index(PersonIndex.INDEX, "6", person("张无忌", "浙江省杭州市")));
+        suggester.onWrite(PersonWriteEvent.index(PersonIndex.INDEX, "7", person("张无忌", "浙江省杭州市")));
+        suggester.onWrite(PersonWriteEvent.update(PersonIndex.INDEX, "8",
+                Collections.singletonMap("name", "张翠山")));
+
+        List<Suggestion> suggestions = suggester.suggest("name", "张");
+        assertEquals(Arrays.asList("张无忌", "张三", "张三丰", "张翠山"), texts(suggestions));
+        assertEquals(3, suggestions.get(0).getWeight());
+        assertEquals(Collections.singletonList("浙江省杭州市"), texts(suggester.suggest("address", "浙江")));
+        assertEquals(3, suggester.suggest("address", "浙江").get(0).getWeight());
+    }
+
+    // FST前k个以外的取值加上增量后进入前k
+    @Test
+    public void test06() {
+        suggester.onWrite(PersonWriteEvent.index(PersonIndex.INDEX, "6", person("张三丰", "江苏省南京市")));
+        suggester.onWrite(PersonWriteEvent.index(PersonIndex.INDEX, "7", person("张三丰", "江苏省南京市")));
+
+        List<Suggestion> suggestions = suggester.suggest("name", "张", 1);
+        assertEquals(Collections.singletonList("张三丰"), texts(suggestions));
+        assertEquals(3, suggestions.get(0).getWeight());
+    }
+
+    // 重建后增量清空,删除的取值在重建后消失
+    @Test
+    public void test04() {
+        suggester.onWrite(PersonWriteEvent.index(PersonIndex.INDEX, "6", person("李四", "北京市")));
+        suggester.onWrite(PersonWriteEvent.delete(PersonIndex.INDEX, "6"));
+        assertEquals(Collections.singletonList("李四"), texts(suggester.suggest("name", "李")));
+
+        suggester.rebuild(Stream.of(person("张三", "江苏省宿迁市")));
+        assertTrue(suggester.suggest("name", "李").isEmpty());
+        assertEquals(Collections.singletonList("张三"), texts(suggester.suggest("name", "张")));
+        assertEquals(1, suggester.suggest("name", "张").get(0).getWeight());
+    }
+
+    // 内存、条目数和查询耗时指标
+    @Test
+    public void test05() {
+        suggester.suggest("name", "张");
+        suggester.suggest("address", "江苏");
+        assertEquals(1, registry.get("es.suggest.lookup").tag("field", "name").timer().count());
+        assertEquals(4, registry.get("es.suggest.entries").tag("field", "name").gauge().value(), 0);
+        assertTrue(registry.get("es.suggest.memory").tag("field", "address").gauge().value() > 0);
+        assertEquals(suggester.ramBytesUsed(), registry.get("es.suggest.memory").gauges().stream()
+                .mapToDouble(gauge -> gauge.value()).sum(), 0);
+    }
+
+    private static List<String> texts(List<Suggestion> suggestions) {
+        return suggestions.stream().map(Suggestion::getText).collect(Collectors.toList());
+    }
+
+    private static Person person(String name, String address) {
+        Person person = new Person();
+        person.setName(name);
+        person.setAddress(address);
+        return person;
+    }
+}
@@ -0,0 +1,139 @@
+package com.fh.support;
+
+import com.fh.config.NgramProperties;
+import com.fh.es.PersonMapping;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.KeywordTokenizer;
+import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
+import org.apache.lucene.analysis.ngram.EdgeNGramTokenFilter;
+import org.apache.lucene.analysis.ngram.NGramTokenFilter;
+import org.apache.lucene.analysis.reverse.ReverseStringFilter;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.WildcardQuery;
+import org.apache.lucene.store.RAMDirectory;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.ConstantScoreQueryBuilder;
+import org.elasticsearch.index.query.PrefixQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.TermQueryBuilder;
+import org.elasticsearch.index.query.WildcardQueryBuilder;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * 内存中的lucene索引,子字段的分析方式与PersonMapping相同,用来核对改写前后的命中结果
+ * 只支持改写涉及的term、prefix、wildcard、constant_score和bool查询
+ */
+public class NgramIndex implements Closeable {
+
+    private final RAMDirectory directory = new RAMDirectory();
+    private final DirectoryReader reader;
+    private final IndexSearcher searcher;
+
+    // values为字段名到各文档取值的映射,各字段的文档数相同
+    public NgramIndex(NgramProperties properties, Map<String, List<String>> values) {
+        Map<String, Analyzer> analyzers = new HashMap<>();
+        for (String field : properties.getFields()) {
+            analyzers.put(field + "." + PersonMapping.EDGE, analyzer(t ->
+                    new EdgeNGramTokenFilter(t, 1, properties.getEdgeMaxGram(), false)));
+            analyzers.put(field + "." + PersonMapping.NGRAM, analyzer(t ->
+                    new NGramTokenFilter(t, properties.getMinGram(), properties.getMaxGram(), false)));
+            analyzers.put(field + "." + PersonMapping.REVERSE, analyzer(ReverseStringFilter::new));
+        }
+        try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(
+                new PerFieldAnalyzerWrapper(analyzer(t -> t), analyzers)))) {
+            int count = values.values().iterator().next().size();
+            for (int i = 0; i < count; i++) {
+                Document document = new Document();
+                for (Map.Entry<String, List<String>> entry : values.entrySet()) {
+                    String field = entry.getKey();
+                    String value = entry.getValue().get(i);
+                    document.add(new StringField(field + ".keyword", value, Field.Store.NO));
+                    document.add(new TextField(field + "." + PersonMapping.EDGE, value, Field.Store.NO));
+                    document.add(new TextField(field + "." + PersonMapping.NGRAM, value, Field.Store.NO));
+                    document.add(new TextField(field + "." + PersonMapping.REVERSE, value, Field.Store.NO));
+                }
+                writer.addDocument(document);
+            }
+            writer.commit();
+            reader = DirectoryReader.open(directory);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        searcher = new IndexSearcher(reader);
+    }
+
+    public int count(QueryBuilder query) {
+        try {
+            return searcher.count(toLucene(query));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static Query toLucene(QueryBuilder query) {
+        if (query instanceof TermQueryBuilder) {
+            TermQueryBuilder term = (TermQueryBuilder) query;
+            return new TermQuery(new Term(term.fieldName(), term.value().toString()));
+        }
+        if (query instanceof PrefixQueryBuilder) {
+            PrefixQueryBuilder prefix = (PrefixQueryBuilder) query;
+            return new PrefixQuery(new Term(prefix.fieldName(), prefix.value()));
+        }
+        if (query instanceof WildcardQueryBuilder) {
+            WildcardQueryBuilder wildcard = (WildcardQueryBuilder) query;
+            return new WildcardQuery(new Term(wildcard.fieldName(), wildcard.value()));
+        }
+        if (query instanceof ConstantScoreQueryBuilder) {
+            return new ConstantScoreQuery(toLucene(((ConstantScoreQueryBuilder) query).innerQuery()));
+        }
+        if (query instanceof BoolQueryBuilder) {
+            BoolQueryBuilder bool = (BoolQueryBuilder) query;
+            BooleanQuery.Builder builder = new BooleanQuery.Builder();
+            bool.must().forEach(clause -> builder.add(toLucene(clause), BooleanClause.Occur.MUST));
+            bool.filter().forEach(clause -> builder.add(toLucene(clause), BooleanClause.Occur.FILTER));
+            bool.should().forEach(clause -> builder.add(toLucene(clause), BooleanClause.Occur.SHOULD));
+            bool.mustNot().forEach(clause -> builder.add(toLucene(clause), BooleanClause.Occur.MUST_NOT));
+            return builder.build();
+        }
+        throw new IllegalArgumentException("unsupported query " + query.getName());
+    }
+
+    private static Analyzer analyzer(Function<Tokenizer, TokenStream> filter) {
+        return new Analyzer() {
+            @Override
+            protected TokenStreamComponents createComponents(String fieldName) {
+                Tokenizer tokenizer = new KeywordTokenizer();
+                return new TokenStreamComponents(tokenizer, filter.apply(tokenizer));
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+        directory.close();
+    }
+}
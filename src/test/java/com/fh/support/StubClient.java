@@ -0,0 +1,242 @@
+package com.fh.support;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.DocWriteResponse;
+import org.elasticsearch.action.bulk.BulkAction;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteAction;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.delete.DeleteResponse;
+import org.elasticsearch.action.get.GetAction;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetAction;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetResponse;
+import org.elasticsearch.action.index.IndexAction;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.ShardSearchFailure;
+import org.elasticsearch.action.update.UpdateAction;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.action.update.UpdateResponse;
+import org.elasticsearch.client.support.AbstractClient;
+import org.elasticsearch.common.UUIDs;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.text.Text;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.get.GetResult;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHits;
+import org.elasticsearch.search.aggregations.InternalAggregations;
+import org.elasticsearch.search.internal.InternalSearchResponse;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * 进程内的es替身,不需要集群即可测试
+ * 内置一个按索引存放_source的内存文档库,支持index、update、delete、bulk、get、mget;
+ * 文档记下写入时的routing,get带的routing不一致时当作不存在,与es查错分片的表现相同;
+ * 其他action通过on注册处理逻辑,未注册的action返回失败
+ */
+public class StubClient extends AbstractClient {
+
+    private final Map<String, Map<String, BytesReference>> documents = new ConcurrentHashMap<>();
+    private final Map<String, BiConsumer<ActionRequest, ActionListener<ActionResponse>>> handlers =
+            new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> calls = new ConcurrentHashMap<>();
+    private final Map<String, String> routings = new ConcurrentHashMap<>();
+    private volatile boolean inline;
+
+    public StubClient() {
+        super(Settings.EMPTY, new ThreadPool(Settings.builder().put("node.name", "stub").build()));
+        on(BulkAction.INSTANCE, (request, listener) -> listener.onResponse(applyBulk(request)));
+        on(IndexAction.INSTANCE, (request, listener) -> listener.onResponse((IndexResponse) write(request)));
+        on(UpdateAction.INSTANCE, (request, listener) -> listener.onResponse((UpdateResponse) write(request)));
+        on(DeleteAction.INSTANCE, (request, listener) -> listener.onResponse((DeleteResponse) write(request)));
+        on(GetAction.INSTANCE, (request, listener) -> listener.onResponse(lookup(request)));
+        on(MultiGetAction.INSTANCE, (request, listener) -> {
+            MultiGetItemResponse[] items = new MultiGetItemResponse[request.getItems().size()];
+            for (int i = 0; i < items.length; i++) {
+                MultiGetRequest.Item item = request.getItems().get(i);
+                items[i] = new MultiGetItemResponse(lookup(new GetRequest(item.index(), item.type(), item.id())
+                        .routing(item.routing())), null);
+            }
+            listener.onResponse(new MultiGetResponse(items));
+        });
+    }
+
+    // 注册或覆盖某个action的处理逻辑,处理逻辑在线程池中执行
+    @SuppressWarnings("unchecked")
+    public <Request extends ActionRequest, Response extends ActionResponse> StubClient on(
+            Action<Request, Response, ?> action, BiConsumer<Request, ActionListener<Response>> handler) {
+        handlers.put(action.name(), (BiConsumer) handler);
+        return this;
+    }
+
+    @Override
+    protected <Request extends ActionRequest, Response extends ActionResponse,
+            RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder>> void doExecute(
+            Action<Request, Response, RequestBuilder> action, Request request, ActionListener<Response> listener) {
+        calls.computeIfAbsent(action.name(), k -> new AtomicInteger()).incrementAndGet();
+        BiConsumer<ActionRequest, ActionListener<ActionResponse>> handler = handlers.get(action.name());
+        if (handler == null) {
+            listener.onFailure(new UnsupportedOperationException("stub does not support " + action.name()));
+            return;
+        }
+        Runnable task = () -> {
+            try {
+                handler.accept(request, (ActionListener<ActionResponse>) listener);
+            } catch (Exception e) {
+                listener.onFailure(e);
+            }
+        };
+        if (inline) {
+            task.run();
+        } else {
+            threadPool().generic().execute(task);
+        }
+    }
+
+    // 处理逻辑直接在调用线程执行,基准测试中用来去掉线程切换的开销
+    public StubClient inline(boolean inline) {
+        this.inline = inline;
+        return this;
+    }
+
+    // 某个action被调用的次数
+    public int calls(Action<?, ?, ?> action) {
+        AtomicInteger count = calls.get(action.name());
+        return count == null ? 0 : count.get();
+    }
+
+    public Map<String, BytesReference> documents(String index) {
+        return documents.computeIfAbsent(index, k -> new ConcurrentHashMap<>());
+    }
+
+    public Map<String, Object> source(String index, String id) {
+        BytesReference source = documents(index).get(id);
+        return source == null ? null : XContentHelper.convertToMap(source, false, XContentType.JSON).v2();
+    }
+
+    // 文档写入时带的routing
+    public String routing(String index, String id) {
+        return routings.get(index + "/" + id);
+    }
+
+    public void put(String index, String id, Map<String, Object> source) {
+        documents(index).put(id, toBytes(source));
+    }
+
+    // 按内置文档库执行bulk,自定义的bulk处理逻辑可以转交给它
+    public BulkResponse applyBulk(BulkRequest request) {
+        BulkItemResponse[] items = new BulkItemResponse[request.numberOfActions()];
+        for (int i = 0; i < items.length; i++) {
+            DocWriteRequest<?> item = request.requests().get(i);
+            items[i] = new BulkItemResponse(i, item.opType(), write(item));
+        }
+        return new BulkResponse(items, 1);
+    }
+
+    private synchronized DocWriteResponse write(DocWriteRequest<?> request) {
+        // 与es一样,没有id的index请求自动生成id
+        if (request instanceof IndexRequest && request.id() == null) {
+            ((IndexRequest) request).id(UUIDs.base64UUID());
+        }
+        Map<String, BytesReference> docs = documents(request.index());
+        ShardId shardId = new ShardId(request.index(), "_na_", 0);
+        boolean existed = docs.containsKey(request.id());
+        if (request.routing() != null) {
+            routings.put(request.index() + "/" + request.id(), request.routing());
+        }
+        if (request instanceof IndexRequest) {
+            IndexRequest index = (IndexRequest) request;
+            docs.put(index.id(), index.source());
+            return new IndexResponse(shardId, index.type(), index.id(), 0, 1, 1, !existed);
+        }
+        if (request instanceof DeleteRequest) {
+            docs.remove(request.id());
+            routings.remove(request.index() + "/" + request.id());
+            return new DeleteResponse(shardId, request.type(), request.id(), 0, 1, 1, existed);
+        }
+        UpdateRequest update = (UpdateRequest) request;
+        if (!existed && update.upsertRequest() != null) {
+            docs.put(update.id(), update.upsertRequest().source());
+            return new UpdateResponse(shardId, update.type(), update.id(), 1, DocWriteResponse.Result.CREATED);
+        }
+        Map<String, Object> merged = new LinkedHashMap<>();
+        if (existed) {
+            merged.putAll(XContentHelper.convertToMap(docs.get(update.id()), true, XContentType.JSON).v2());
+        }
+        merged.putAll(update.doc().sourceAsMap());
+        docs.put(update.id(), toBytes(merged));
+        return new UpdateResponse(shardId, update.type(), update.id(), 1,
+                existed ? DocWriteResponse.Result.UPDATED : DocWriteResponse.Result.CREATED);
+    }
+
+    private GetResponse lookup(GetRequest request) {
+        BytesReference source = documents(request.index()).get(request.id());
+        if (!Objects.equals(request.routing(), routing(request.index(), request.id()))) {
+            source = null;
+        }
+        return new GetResponse(new GetResult(request.index(), request.type(), request.id(), source == null ? -1 : 1,
+                source != null, source, Collections.emptyMap()));
+    }
+
+    // 构造一个命中,_source为source
+    public static SearchHit hit(String id, Map<String, Object> source) {
+        SearchHit hit = new SearchHit(0, id, new Text("_doc"), Collections.emptyMap());
+        hit.sourceRef(toBytes(source));
+        return hit;
+    }
+
+    // 构造一页查询结果
+    public static SearchResponse searchResponse(List<SearchHit> hits, long totalHits, String scrollId) {
+        return searchResponse(hits, totalHits, scrollId, null);
+    }
+
+    // 构造一页带聚合结果的查询结果
+    public static SearchResponse searchResponse(List<SearchHit> hits, long totalHits, String scrollId,
+                                                InternalAggregations aggregations) {
+        SearchHits searchHits = new SearchHits(hits.toArray(new SearchHit[0]), totalHits, 1f);
+        return new SearchResponse(new InternalSearchResponse(searchHits, aggregations, null, null, false, null, 1),
+                scrollId, 1, 1, 0, 1, ShardSearchFailure.EMPTY_ARRAY, SearchResponse.Clusters.EMPTY);
+    }
+
+    private static BytesReference toBytes(Map<String, Object> source) {
+        try {
+            return BytesReference.bytes(XContentFactory.jsonBuilder().map(source));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        ThreadPool.terminate(threadPool(), 10, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,204 @@
+package com.fh.sync;
+
+import com.fh.config.RoutingProperties;
+import com.fh.config.SyncProperties;
+import com.fh.es.PersonIndex;
+import com.fh.es.PersonWriteEvents;
+import com.fh.mapper.PersonMapper;
+import com.fh.partition.PersonPartitions;
+import com.fh.routing.PersonLocator;
+import com.fh.routing.PersonRouting;
+import com.fh.support.StubClient;
+import org.apache.ibatis.mapping.Environment;
+import org.apache.ibatis.session.Configuration;
+import org.apache.ibatis.session.SqlSessionFactoryBuilder;
+import org.apache.ibatis.transaction.jdbc.JdbcTransactionFactory;
+import org.elasticsearch.action.OriginalIndices;
+import org.elasticsearch.action.bulk.BulkAction;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.search.SearchAction;
+import org.elasticsearch.common.document.DocumentField;
+import org.elasticsearch.common.text.Text;
+import org.elasticsearch.index.query.IdsQueryBuilder;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchShardTarget;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mybatis.spring.SqlSessionTemplate;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 内嵌h2数据库 + 进程内es替身,端到端验证增量同步
+ */
+public class PersonSyncEngineTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private JdbcTemplate jdbc;
+    private StubClient client;
+    private PersonMapper mapper;
+    private SyncProperties properties;
+    private PersonSyncEngine engine;
+    private FileCheckpointStore checkpointStore;
+
+    @Before
+    public void setUp() throws Exception {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:" + System.nanoTime() + ";MODE=MySQL;DB_CLOSE_DELAY=-1");
+        new ResourceDatabasePopulator(new ClassPathResource("sync/schema.sql")).execute(dataSource);
+        jdbc = new JdbcTemplate(dataSource);
+
+        Configuration configuration = new Configuration(
+                new Environment("test", new JdbcTransactionFactory(), dataSource));
+        configuration.addMapper(PersonMapper.class);
+        mapper = new SqlSessionTemplate(new SqlSessionFactoryBuilder().build(configuration))
+                .getMapper(PersonMapper.class);
+
+        properties = new SyncProperties();
+        properties.setBatchSize(100);
+        properties.setParallelism(4);
+        client = new StubClient();
+        checkpointStore = new FileCheckpointStore(folder.getRoot().toPath().resolve("checkpoint"));
+        engine = engine(PersonLocator.disabled());
+    }
+
+    private PersonSyncEngine engine(PersonLocator locator) {
+        return new PersonSyncEngine(mapper, client, checkpointStore, properties, PersonWriteEvents.of(), locator);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        engine.shutdown();
+        client.close();
+    }
+
+    // 全量同步后高水位停在最后一行
+    @Test
+    public void test01() throws Exception {
+        for (int i = 1; i <= 2500; i++) {
+            insert(i, "person" + i, 1000L + i);
+        }
+        SyncStats stats = engine.runOnce();
+
+        assertEquals(2500, stats.getRowsRead());
+        assertEquals(2500, stats.getRowsIndexed());
+        assertEquals(2500, client.documents(PersonIndex.INDEX).size());
+        assertEquals(25, client.calls(BulkAction.INSTANCE));
+        assertEquals(0, stats.getLagMillis());
+        assertEquals(new SyncCheckpoint(new Date(3500), 2500), checkpointStore.load());
+        assertEquals("person42", client.source(PersonIndex.INDEX, "42").get("name"));
+    }
+
+    // 第二轮只同步高水位之后新增和修改的行
+    @Test
+    public void test02() throws Exception {
+        for (int i = 1; i <= 300; i++) {
+            insert(i, "person" + i, 1000L);
+        }
+        engine.runOnce();
+        int bulks = client.calls(BulkAction.INSTANCE);
+
+        jdbc.update("UPDATE person SET name = ?, update_time = ? WHERE id = ?", "changed", new Timestamp(2000), 7);
+        insert(301, "person301", 2000L);
+        SyncStats stats = engine.runOnce();
+
+        assertEquals(2, stats.getRowsRead());
+        assertEquals(bulks + 1, client.calls(BulkAction.INSTANCE));
+        assertEquals("changed", client.source(PersonIndex.INDEX, "7").get("name"));
+        assertEquals(new SyncCheckpoint(new Date(2000), 301), checkpointStore.load());
+    }
+
+    // 某一批写入失败时高水位不越过失败的批次
+    @Test
+    public void test03() throws Exception {
+        for (int i = 1; i <= 500; i++) {
+            insert(i, "person" + i, 1000L + i);
+        }
+        client.on(BulkAction.INSTANCE, (request, listener) -> {
+            if ("201".equals(request.requests().get(0).id())) {
+                listener.onFailure(new IllegalStateException("node down"));
+                return;
+            }
+            listener.onResponse(new BulkResponse(new BulkItemResponse[0], 1));
+        });
+        engine.runOnce();
+
+        assertEquals(200, checkpointStore.load().getLastId());
+    }
+
+    // 地址(routing)变了的行先从旧routing下删掉;新进程没见过的文档由ids查询找到旧routing
+    @Test
+    public void test04() throws Exception {
+        List<DeleteRequest> deletes = new CopyOnWriteArrayList<>();
+        client.on(BulkAction.INSTANCE, (request, listener) -> {
+            request.requests().stream().filter(item -> item instanceof DeleteRequest)
+                    .forEach(item -> deletes.add((DeleteRequest) item));
+            listener.onResponse(client.applyBulk(request));
+        });
+        client.on(SearchAction.INSTANCE, (request, listener) -> {
+            List<SearchHit> hits = new ArrayList<>();
+            for (String id : ((IdsQueryBuilder) request.source().query()).ids()) {
+                String key = client.routing(PersonIndex.INDEX, id);
+                if (client.source(PersonIndex.INDEX, id) == null) {
+                    continue;
+                }
+                SearchHit hit = new SearchHit(0, id, new Text(PersonIndex.TYPE), Collections.singletonMap(
+                        PersonRouting.ROUTING_FIELD,
+                        new DocumentField(PersonRouting.ROUTING_FIELD, Collections.singletonList(key))));
+                hit.shard(new SearchShardTarget("stub", new ShardId(PersonIndex.INDEX, "_na_", 0), null,
+                        OriginalIndices.NONE));
+                hits.add(hit);
+            }
+            listener.onResponse(StubClient.searchResponse(hits, hits.size(), null));
+        });
+        for (int i = 1; i <= 3; i++) {
+            insert(i, "person" + i, 1000L + i);
+        }
+        engine.shutdown();
+        engine = engine(locator());
+        engine.runOnce();
+        assertEquals("江苏省", client.routing(PersonIndex.INDEX, "2"));
+
+        jdbc.update("UPDATE person SET address = ?, update_time = ? WHERE id = ?", "北京市朝阳区",
+                new Timestamp(2000), 2);
+        engine.shutdown();
+        engine = engine(locator());
+        SyncStats stats = engine.runOnce();
+
+        assertEquals(1, stats.getRowsIndexed());
+        assertEquals(1, deletes.size());
+        assertEquals("江苏省", deletes.get(0).routing());
+        assertEquals("北京市", client.routing(PersonIndex.INDEX, "2"));
+        assertEquals(3, client.documents(PersonIndex.INDEX).size());
+    }
+
+    private PersonLocator locator() {
+        RoutingProperties routing = new RoutingProperties();
+        routing.setEnabled(true);
+        return new PersonLocator(client, PersonPartitions.disabled(), new PersonRouting(routing), routing);
+    }
+
+    private void insert(long id, String name, long updateTime) {
+        jdbc.update("INSERT INTO person VALUES (?, ?, ?, ?, ?, ?, ?)", id, name, "江苏省宿迁市", 23,
+                "看电影,学习", "1997-07-05", new Timestamp(updateTime));
+    }
+}
@@ -0,0 +1,106 @@
+package com.fh.writebehind;
+
+import com.fh.config.WriteBehindProperties;
+import com.fh.entity.Person;
+import com.fh.es.PersonIndex;
+import com.fh.es.PersonWriteEvents;
+import com.fh.routing.PersonLocator;
+import com.fh.support.StubClient;
+import org.elasticsearch.action.bulk.BulkAction;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 同一文档的修改合并写入、读到自己的写入、崩溃后从日志恢复
+ */
+public class PersonWriteBehindTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private StubClient client;
+
+    @Before
+    public void setUp() {
+        client = new StubClient();
+    }
+
+    @After
+    public void tearDown() {
+        client.close();
+    }
+
+    private PersonWriteBehind writeBehind(WriteBehindProperties.Durability durability) {
+        WriteBehindProperties properties = new WriteBehindProperties();
+        properties.setFlushInterval(Duration.ofHours(1));
+        properties.setDurability(durability);
+        properties.setJournalDir(folder.getRoot().getPath());
+        return new PersonWriteBehind(client, PersonWriteEvents.of(), properties, PersonLocator.disabled());
+    }
+
+    // 连续修改合并成一条,刷新前本节点已能读到
+    @Test
+    public void test01() throws Exception {
+        Map<String, Object> source = new HashMap<>();
+        source.put("name", "zhangsan");
+        source.put("age", 20);
+        client.put(PersonIndex.INDEX, "1", source);
+        PersonWriteBehind writeBehind = writeBehind(WriteBehindProperties.Durability.SHUTDOWN);
+
+        writeBehind.update("1", Collections.singletonMap("name", "lisi"));
+        writeBehind.update("1", Collections.singletonMap("interests", "看书"));
+        Person person = new Person();
+        person.setName("wangwu");
+        writeBehind.upsert("2", Collections.singletonMap("age", 30), person);
+        writeBehind.update("2", Collections.singletonMap("interests", "跑步"));
+
+        Person read = writeBehind.get("1").get();
+        assertEquals("lisi", read.getName());
+        assertEquals("看书", read.getInterests());
+        assertEquals(20, read.getAge());
+        assertEquals("跑步", writeBehind.get("2").get().getInterests());
+        assertEquals(0, client.calls(BulkAction.INSTANCE));
+
+        writeBehind.flush();
+        assertEquals(1, client.calls(BulkAction.INSTANCE));
+        assertEquals(2, writeBehind.getWritten());
+        assertEquals("lisi", client.source(PersonIndex.INDEX, "1").get("name"));
+        assertEquals("看书", client.source(PersonIndex.INDEX, "1").get("interests"));
+        // 文档2不存在,写入upsert文档再应用其后的修改
+        assertEquals("wangwu", client.source(PersonIndex.INDEX, "2").get("name"));
+        assertEquals("跑步", client.source(PersonIndex.INDEX, "2").get("interests"));
+        writeBehind.close();
+    }
+
+    // 未刷新就崩溃,重启后从日志回放,写完后删除日志分段
+    @Test
+    public void test02() throws Exception {
+        client.put(PersonIndex.INDEX, "1", Collections.singletonMap("name", "zhangsan"));
+        PersonWriteBehind crashed = writeBehind(WriteBehindProperties.Durability.JOURNAL);
+        crashed.update("1", Collections.singletonMap("age", 21));
+        crashed.update("1", Collections.singletonMap("age", 22));
+
+        PersonWriteBehind restarted = writeBehind(WriteBehindProperties.Durability.JOURNAL);
+        assertEquals(1, restarted.pendingCount());
+        restarted.flush();
+
+        assertEquals(22, client.source(PersonIndex.INDEX, "1").get("age"));
+        try (Stream<?> files = Files.list(folder.getRoot().toPath())) {
+            // 只剩重启后新打开的空分段
+            assertEquals(1, files.count());
+        }
+        restarted.close();
+    }
+}
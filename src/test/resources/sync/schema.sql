@@ -0,0 +1,10 @@
+CREATE TABLE person (
+    id BIGINT PRIMARY KEY,
+    name VARCHAR(64),
+    address VARCHAR(255),
+    age INT,
+    interests VARCHAR(255),
+    birth VARCHAR(16),
+    update_time TIMESTAMP NOT NULL
+);
+CREATE INDEX idx_person_update_time ON person (update_time, id);